@@ -98,6 +98,14 @@ public final class SdcFrame {
     // optional string sessionId = 4;
     boolean hasSessionId();
     String getSessionId();
+    
+    // optional bool compressed = 5;
+    boolean hasCompressed();
+    boolean getCompressed();
+    
+    // optional int64 ack = 6;
+    boolean hasAck();
+    long getAck();
   }
   public static final class FrameInfo extends
       com.google.protobuf.GeneratedMessage
@@ -274,11 +282,33 @@ public final class SdcFrame {
       }
     }
     
+    // optional bool compressed = 5;
+    public static final int COMPRESSED_FIELD_NUMBER = 5;
+    private boolean compressed_;
+    public boolean hasCompressed() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public boolean getCompressed() {
+      return compressed_;
+    }
+    
+    // optional int64 ack = 6;
+    public static final int ACK_FIELD_NUMBER = 6;
+    private long ack_;
+    public boolean hasAck() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    public long getAck() {
+      return ack_;
+    }
+    
     private void initFields() {
       sequence_ = 0L;
       type_ = com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Type.SOCKET_DATA;
       payload_ = com.google.protobuf.ByteString.EMPTY;
       sessionId_ = "";
+      compressed_ = false;
+      ack_ = 0L;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -304,6 +334,12 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeBytes(4, getSessionIdBytes());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeBool(5, compressed_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeInt64(6, ack_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -329,6 +365,14 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(4, getSessionIdBytes());
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(5, compressed_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(6, ack_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -461,6 +505,10 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000004);
         sessionId_ = "";
         bitField0_ = (bitField0_ & ~0x00000008);
+        compressed_ = false;
+        bitField0_ = (bitField0_ & ~0x00000010);
+        ack_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000020);
         return this;
       }
       
@@ -515,6 +563,14 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000008;
         }
         result.sessionId_ = sessionId_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.compressed_ = compressed_;
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.ack_ = ack_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -543,6 +599,12 @@ public final class SdcFrame {
         if (other.hasSessionId()) {
           setSessionId(other.getSessionId());
         }
+        if (other.hasCompressed()) {
+          setCompressed(other.getCompressed());
+        }
+        if (other.hasAck()) {
+          setAck(other.getAck());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -600,6 +662,16 @@ public final class SdcFrame {
               sessionId_ = input.readBytes();
               break;
             }
+            case 40: {
+              bitField0_ |= 0x00000010;
+              compressed_ = input.readBool();
+              break;
+            }
+            case 48: {
+              bitField0_ |= 0x00000020;
+              ack_ = input.readInt64();
+              break;
+            }
           }
         }
       }
@@ -711,6 +783,48 @@ public final class SdcFrame {
         onChanged();
       }
       
+      // optional bool compressed = 5;
+      private boolean compressed_ ;
+      public boolean hasCompressed() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      public boolean getCompressed() {
+        return compressed_;
+      }
+      public Builder setCompressed(boolean value) {
+        bitField0_ |= 0x00000010;
+        compressed_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearCompressed() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        compressed_ = false;
+        onChanged();
+        return this;
+      }
+      
+      // optional int64 ack = 6;
+      private long ack_ ;
+      public boolean hasAck() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      public long getAck() {
+        return ack_;
+      }
+      public Builder setAck(long value) {
+        bitField0_ |= 0x00000020;
+        ack_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearAck() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        ack_ = 0L;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.FrameInfo)
     }
     
@@ -736,6 +850,10 @@ public final class SdcFrame {
     // optional bytes segment = 3;
     boolean hasSegment();
     com.google.protobuf.ByteString getSegment();
+    
+    // optional int64 windowUpdate = 4;
+    boolean hasWindowUpdate();
+    long getWindowUpdate();
   }
   public static final class SocketDataInfo extends
       com.google.protobuf.GeneratedMessage
@@ -868,10 +986,21 @@ public final class SdcFrame {
       return segment_;
     }
     
+    // optional int64 windowUpdate = 4;
+    public static final int WINDOWUPDATE_FIELD_NUMBER = 4;
+    private long windowUpdate_;
+    public boolean hasWindowUpdate() {
+      return ((bitField0_ & 0x00000008) == 0x00000008);
+    }
+    public long getWindowUpdate() {
+      return windowUpdate_;
+    }
+    
     private void initFields() {
       connectionId_ = 0L;
       state_ = com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo.State.START;
       segment_ = com.google.protobuf.ByteString.EMPTY;
+      windowUpdate_ = 0L;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -902,6 +1031,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000004) == 0x00000004)) {
         output.writeBytes(3, segment_);
       }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        output.writeInt64(4, windowUpdate_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -923,6 +1055,10 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(3, segment_);
       }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(4, windowUpdate_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -1053,6 +1189,8 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000002);
         segment_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000004);
+        windowUpdate_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000008);
         return this;
       }
       
@@ -1103,6 +1241,10 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000004;
         }
         result.segment_ = segment_;
+        if (((from_bitField0_ & 0x00000008) == 0x00000008)) {
+          to_bitField0_ |= 0x00000008;
+        }
+        result.windowUpdate_ = windowUpdate_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -1128,6 +1270,9 @@ public final class SdcFrame {
         if (other.hasSegment()) {
           setSegment(other.getSegment());
         }
+        if (other.hasWindowUpdate()) {
+          setWindowUpdate(other.getWindowUpdate());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -1188,6 +1333,11 @@ public final class SdcFrame {
               segment_ = input.readBytes();
               break;
             }
+            case 32: {
+              bitField0_ |= 0x00000008;
+              windowUpdate_ = input.readInt64();
+              break;
+            }
           }
         }
       }
@@ -1263,6 +1413,27 @@ public final class SdcFrame {
         return this;
       }
       
+      // optional int64 windowUpdate = 4;
+      private long windowUpdate_ ;
+      public boolean hasWindowUpdate() {
+        return ((bitField0_ & 0x00000008) == 0x00000008);
+      }
+      public long getWindowUpdate() {
+        return windowUpdate_;
+      }
+      public Builder setWindowUpdate(long value) {
+        bitField0_ |= 0x00000008;
+        windowUpdate_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearWindowUpdate() {
+        bitField0_ = (bitField0_ & ~0x00000008);
+        windowUpdate_ = 0L;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.SocketDataInfo)
     }
     
@@ -1296,6 +1467,16 @@ public final class SdcFrame {
     // optional string statusMessage = 6;
     boolean hasStatusMessage();
     String getStatusMessage();
+    
+    // repeated .sdc_frame.MessageHeader features = 7;
+    java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader> 
+        getFeaturesList();
+    com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader getFeatures(int index);
+    int getFeaturesCount();
+    java.util.List<? extends com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder> 
+        getFeaturesOrBuilderList();
+    com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder getFeaturesOrBuilder(
+        int index);
   }
   public static final class AuthorizationInfo extends
       com.google.protobuf.GeneratedMessage
@@ -1583,18 +1764,46 @@ public final class SdcFrame {
       }
     }
     
+    // repeated .sdc_frame.MessageHeader features = 7;
+    public static final int FEATURES_FIELD_NUMBER = 7;
+    private java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader> features_;
+    public java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader> getFeaturesList() {
+      return features_;
+    }
+    public java.util.List<? extends com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder> 
+        getFeaturesOrBuilderList() {
+      return features_;
+    }
+    public int getFeaturesCount() {
+      return features_.size();
+    }
+    public com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader getFeatures(int index) {
+      return features_.get(index);
+    }
+    public com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder getFeaturesOrBuilder(
+        int index) {
+      return features_.get(index);
+    }
+    
     private void initFields() {
       email_ = "";
       authType_ = com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.AuthType.PASSWORD;
       password_ = "";
       result_ = com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.ResultCode.OK;
       statusMessage_ = "";
+      features_ = java.util.Collections.emptyList();
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
       byte isInitialized = memoizedIsInitialized;
       if (isInitialized != -1) return isInitialized == 1;
       
+      for (int i = 0; i < getFeaturesCount(); i++) {
+        if (!getFeatures(i).isInitialized()) {
+          memoizedIsInitialized = 0;
+          return false;
+        }
+      }
       memoizedIsInitialized = 1;
       return true;
     }
@@ -1617,6 +1826,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000010) == 0x00000010)) {
         output.writeBytes(6, getStatusMessageBytes());
       }
+      for (int i = 0; i < features_.size(); i++) {
+        output.writeMessage(7, features_.get(i));
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -1646,6 +1858,10 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(6, getStatusMessageBytes());
       }
+      for (int i = 0; i < features_.size(); i++) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeMessageSize(7, features_.get(i));
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -1762,6 +1978,7 @@ public final class SdcFrame {
       }
       private void maybeForceBuilderInitialization() {
         if (com.google.protobuf.GeneratedMessage.alwaysUseFieldBuilders) {
+          getFeaturesFieldBuilder();
         }
       }
       private static Builder create() {
@@ -1780,6 +1997,12 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000008);
         statusMessage_ = "";
         bitField0_ = (bitField0_ & ~0x00000010);
+        if (featuresBuilder_ == null) {
+          features_ = java.util.Collections.emptyList();
+          bitField0_ = (bitField0_ & ~0x00000020);
+        } else {
+          featuresBuilder_.clear();
+        }
         return this;
       }
       
@@ -1838,6 +2061,15 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000010;
         }
         result.statusMessage_ = statusMessage_;
+        if (featuresBuilder_ == null) {
+          if (((bitField0_ & 0x00000020) == 0x00000020)) {
+            features_ = java.util.Collections.unmodifiableList(features_);
+            bitField0_ = (bitField0_ & ~0x00000020);
+          }
+          result.features_ = features_;
+        } else {
+          result.features_ = featuresBuilder_.build();
+        }
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -1869,11 +2101,43 @@ public final class SdcFrame {
         if (other.hasStatusMessage()) {
           setStatusMessage(other.getStatusMessage());
         }
+        if (featuresBuilder_ == null) {
+          if (!other.features_.isEmpty()) {
+            if (features_.isEmpty()) {
+              features_ = other.features_;
+              bitField0_ = (bitField0_ & ~0x00000020);
+            } else {
+              ensureFeaturesIsMutable();
+              features_.addAll(other.features_);
+            }
+            onChanged();
+          }
+        } else {
+          if (!other.features_.isEmpty()) {
+            if (featuresBuilder_.isEmpty()) {
+              featuresBuilder_.dispose();
+              featuresBuilder_ = null;
+              features_ = other.features_;
+              bitField0_ = (bitField0_ & ~0x00000020);
+              featuresBuilder_ = 
+                com.google.protobuf.GeneratedMessage.alwaysUseFieldBuilders ?
+                   getFeaturesFieldBuilder() : null;
+            } else {
+              featuresBuilder_.addAllMessages(other.features_);
+            }
+          }
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
       
       public final boolean isInitialized() {
+        for (int i = 0; i < getFeaturesCount(); i++) {
+          if (!getFeatures(i).isInitialized()) {
+            
+            return false;
+          }
+        }
         return true;
       }
       
@@ -1937,6 +2201,12 @@ public final class SdcFrame {
               statusMessage_ = input.readBytes();
               break;
             }
+            case 58: {
+              com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder subBuilder = com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.newBuilder();
+              input.readMessage(subBuilder, extensionRegistry);
+              addFeatures(subBuilder.buildPartial());
+              break;
+            }
           }
         }
       }
@@ -2099,6 +2369,192 @@ public final class SdcFrame {
         onChanged();
       }
       
+      // repeated .sdc_frame.MessageHeader features = 7;
+      private java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader> features_ =
+        java.util.Collections.emptyList();
+      private void ensureFeaturesIsMutable() {
+        if (!((bitField0_ & 0x00000020) == 0x00000020)) {
+          features_ = new java.util.ArrayList<com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader>(features_);
+          bitField0_ |= 0x00000020;
+         }
+      }
+      
+      private com.google.protobuf.RepeatedFieldBuilder<
+          com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder> featuresBuilder_;
+      
+      public java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader> getFeaturesList() {
+        if (featuresBuilder_ == null) {
+          return java.util.Collections.unmodifiableList(features_);
+        } else {
+          return featuresBuilder_.getMessageList();
+        }
+      }
+      public int getFeaturesCount() {
+        if (featuresBuilder_ == null) {
+          return features_.size();
+        } else {
+          return featuresBuilder_.getCount();
+        }
+      }
+      public com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader getFeatures(int index) {
+        if (featuresBuilder_ == null) {
+          return features_.get(index);
+        } else {
+          return featuresBuilder_.getMessage(index);
+        }
+      }
+      public Builder setFeatures(
+          int index, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader value) {
+        if (featuresBuilder_ == null) {
+          if (value == null) {
+            throw new NullPointerException();
+          }
+          ensureFeaturesIsMutable();
+          features_.set(index, value);
+          onChanged();
+        } else {
+          featuresBuilder_.setMessage(index, value);
+        }
+        return this;
+      }
+      public Builder setFeatures(
+          int index, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder builderForValue) {
+        if (featuresBuilder_ == null) {
+          ensureFeaturesIsMutable();
+          features_.set(index, builderForValue.build());
+          onChanged();
+        } else {
+          featuresBuilder_.setMessage(index, builderForValue.build());
+        }
+        return this;
+      }
+      public Builder addFeatures(com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader value) {
+        if (featuresBuilder_ == null) {
+          if (value == null) {
+            throw new NullPointerException();
+          }
+          ensureFeaturesIsMutable();
+          features_.add(value);
+          onChanged();
+        } else {
+          featuresBuilder_.addMessage(value);
+        }
+        return this;
+      }
+      public Builder addFeatures(
+          int index, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader value) {
+        if (featuresBuilder_ == null) {
+          if (value == null) {
+            throw new NullPointerException();
+          }
+          ensureFeaturesIsMutable();
+          features_.add(index, value);
+          onChanged();
+        } else {
+          featuresBuilder_.addMessage(index, value);
+        }
+        return this;
+      }
+      public Builder addFeatures(
+          com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder builderForValue) {
+        if (featuresBuilder_ == null) {
+          ensureFeaturesIsMutable();
+          features_.add(builderForValue.build());
+          onChanged();
+        } else {
+          featuresBuilder_.addMessage(builderForValue.build());
+        }
+        return this;
+      }
+      public Builder addFeatures(
+          int index, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder builderForValue) {
+        if (featuresBuilder_ == null) {
+          ensureFeaturesIsMutable();
+          features_.add(index, builderForValue.build());
+          onChanged();
+        } else {
+          featuresBuilder_.addMessage(index, builderForValue.build());
+        }
+        return this;
+      }
+      public Builder addAllFeatures(
+          java.lang.Iterable<? extends com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader> values) {
+        if (featuresBuilder_ == null) {
+          ensureFeaturesIsMutable();
+          super.addAll(values, features_);
+          onChanged();
+        } else {
+          featuresBuilder_.addAllMessages(values);
+        }
+        return this;
+      }
+      public Builder clearFeatures() {
+        if (featuresBuilder_ == null) {
+          features_ = java.util.Collections.emptyList();
+          bitField0_ = (bitField0_ & ~0x00000020);
+          onChanged();
+        } else {
+          featuresBuilder_.clear();
+        }
+        return this;
+      }
+      public Builder removeFeatures(int index) {
+        if (featuresBuilder_ == null) {
+          ensureFeaturesIsMutable();
+          features_.remove(index);
+          onChanged();
+        } else {
+          featuresBuilder_.remove(index);
+        }
+        return this;
+      }
+      public com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder getFeaturesBuilder(
+          int index) {
+        return getFeaturesFieldBuilder().getBuilder(index);
+      }
+      public com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder getFeaturesOrBuilder(
+          int index) {
+        if (featuresBuilder_ == null) {
+          return features_.get(index);  } else {
+          return featuresBuilder_.getMessageOrBuilder(index);
+        }
+      }
+      public java.util.List<? extends com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder> 
+           getFeaturesOrBuilderList() {
+        if (featuresBuilder_ != null) {
+          return featuresBuilder_.getMessageOrBuilderList();
+        } else {
+          return java.util.Collections.unmodifiableList(features_);
+        }
+      }
+      public com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder addFeaturesBuilder() {
+        return getFeaturesFieldBuilder().addBuilder(
+            com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.getDefaultInstance());
+      }
+      public com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder addFeaturesBuilder(
+          int index) {
+        return getFeaturesFieldBuilder().addBuilder(
+            index, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.getDefaultInstance());
+      }
+      public java.util.List<com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder> 
+           getFeaturesBuilderList() {
+        return getFeaturesFieldBuilder().getBuilderList();
+      }
+      private com.google.protobuf.RepeatedFieldBuilder<
+          com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder> 
+          getFeaturesFieldBuilder() {
+        if (featuresBuilder_ == null) {
+          featuresBuilder_ = new com.google.protobuf.RepeatedFieldBuilder<
+              com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader.Builder, com.google.dataconnector.protocol.proto.SdcFrame.MessageHeaderOrBuilder>(
+                  features_,
+                  ((bitField0_ & 0x00000020) == 0x00000020),
+                  getParentForChildren(),
+                  isClean());
+          features_ = null;
+        }
+        return featuresBuilder_;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.AuthorizationInfo)
     }
     
@@ -8895,6 +9351,10 @@ public final class SdcFrame {
     // optional bool close = 4;
     boolean hasClose();
     boolean getClose();
+    
+    // optional int64 windowUpdate = 5;
+    boolean hasWindowUpdate();
+    long getWindowUpdate();
   }
   public static final class SocketSessionData extends
       com.google.protobuf.GeneratedMessage
@@ -8965,11 +9425,22 @@ public final class SdcFrame {
       return close_;
     }
     
+    // optional int64 windowUpdate = 5;
+    public static final int WINDOWUPDATE_FIELD_NUMBER = 5;
+    private long windowUpdate_;
+    public boolean hasWindowUpdate() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    public long getWindowUpdate() {
+      return windowUpdate_;
+    }
+    
     private void initFields() {
       socketHandle_ = com.google.protobuf.ByteString.EMPTY;
       data_ = com.google.protobuf.ByteString.EMPTY;
       streamOffset_ = 0L;
       close_ = false;
+      windowUpdate_ = 0L;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -8999,6 +9470,9 @@ public final class SdcFrame {
       if (((bitField0_ & 0x00000008) == 0x00000008)) {
         output.writeBool(4, close_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeInt64(5, windowUpdate_);
+      }
       getUnknownFields().writeTo(output);
     }
     
@@ -9024,6 +9498,10 @@ public final class SdcFrame {
         size += com.google.protobuf.CodedOutputStream
           .computeBoolSize(4, close_);
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(5, windowUpdate_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -9156,6 +9634,8 @@ public final class SdcFrame {
         bitField0_ = (bitField0_ & ~0x00000004);
         close_ = false;
         bitField0_ = (bitField0_ & ~0x00000008);
+        windowUpdate_ = 0L;
+        bitField0_ = (bitField0_ & ~0x00000010);
         return this;
       }
       
@@ -9210,6 +9690,10 @@ public final class SdcFrame {
           to_bitField0_ |= 0x00000008;
         }
         result.close_ = close_;
+        if (((from_bitField0_ & 0x00000010) == 0x00000010)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.windowUpdate_ = windowUpdate_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -9238,6 +9722,9 @@ public final class SdcFrame {
         if (other.hasClose()) {
           setClose(other.getClose());
         }
+        if (other.hasWindowUpdate()) {
+          setWindowUpdate(other.getWindowUpdate());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -9293,6 +9780,11 @@ public final class SdcFrame {
               close_ = input.readBool();
               break;
             }
+            case 40: {
+              bitField0_ |= 0x00000010;
+              windowUpdate_ = input.readInt64();
+              break;
+            }
           }
         }
       }
@@ -9389,6 +9881,27 @@ public final class SdcFrame {
         return this;
       }
       
+      // optional int64 windowUpdate = 5;
+      private long windowUpdate_ ;
+      public boolean hasWindowUpdate() {
+        return ((bitField0_ & 0x00000010) == 0x00000010);
+      }
+      public long getWindowUpdate() {
+        return windowUpdate_;
+      }
+      public Builder setWindowUpdate(long value) {
+        bitField0_ |= 0x00000010;
+        windowUpdate_ = value;
+        onChanged();
+        return this;
+      }
+      public Builder clearWindowUpdate() {
+        bitField0_ = (bitField0_ & ~0x00000010);
+        windowUpdate_ = 0L;
+        onChanged();
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:sdc_frame.SocketSessionData)
     }
     
@@ -11160,75 +11673,78 @@ public final class SdcFrame {
   static {
     java.lang.String[] descriptorData = {
       "\n:src/java/com/google/dataconnector/prot" +
-      "ocol/sdc_frame.proto\022\tsdc_frame\"\366\001\n\tFram" +
+      "ocol/sdc_frame.proto\022\tsdc_frame\"\227\002\n\tFram" +
       "eInfo\022\020\n\010sequence\030\001 \001(\003\022\'\n\004type\030\002 \001(\0162\031." +
       "sdc_frame.FrameInfo.Type\022\017\n\007payload\030\003 \001(" +
-      "\014\022\021\n\tsessionId\030\004 \001(\t\"\211\001\n\004Type\022\017\n\013SOCKET_" +
-      "DATA\020\000\022\020\n\014REGISTRATION\020\001\022\020\n\014HEALTH_CHECK" +
-      "\020\002\022\021\n\rAUTHORIZATION\020\003\022\021\n\rFETCH_REQUEST\020\004" +
-      "\022\022\n\016SOCKET_SESSION\020\005\022\022\n\016SHUTDOWN_QUEUE\020\006" +
-      "\"\224\001\n\016SocketDataInfo\022\024\n\014connectionId\030\001 \002(" +
-      "\003\022.\n\005state\030\002 \002(\0162\037.sdc_frame.SocketDataI",
-      "nfo.State\022\017\n\007segment\030\003 \001(\014\"+\n\005State\022\t\n\005S" +
-      "TART\020\000\022\014\n\010CONTINUE\020\001\022\t\n\005CLOSE\020\002\"\300\002\n\021Auth" +
-      "orizationInfo\022\r\n\005email\030\001 \001(\t\0227\n\010authType" +
-      "\030\002 \001(\0162%.sdc_frame.AuthorizationInfo.Aut" +
-      "hType\022\020\n\010password\030\003 \001(\t\0227\n\006result\030\005 \001(\0162" +
-      "\'.sdc_frame.AuthorizationInfo.ResultCode" +
-      "\022\025\n\rstatusMessage\030\006 \001(\t\"g\n\nResultCode\022\006\n" +
-      "\002OK\020\001\022\021\n\rACCESS_DENIED\020\002\022,\n(ACCESS_DENIE" +
-      "D_CAPTCHA_REQUIRED_TO_UNLOCK\020\003\022\020\n\014SERVER" +
-      "_ERROR\020\004\"\030\n\010AuthType\022\014\n\010PASSWORD\020\001\"4\n\013Re",
-      "sourceKey\022\n\n\002ip\030\001 \002(\t\022\014\n\004port\030\002 \002(\005\022\013\n\003k" +
-      "ey\030\003 \002(\003\"\313\001\n\020RegistrationInfo\022\013\n\003xml\030\001 \001" +
-      "(\t\022\025\n\rstatusMessage\030\002 \001(\t\0226\n\006result\030\003 \001(" +
-      "\0162&.sdc_frame.RegistrationInfo.ResultCod" +
-      "e\0229\n\022serverSuppliedConf\030\004 \001(\0132\035.sdc_fram" +
-      "e.ServerSuppliedConf\" \n\nResultCode\022\006\n\002OK" +
-      "\020\001\022\n\n\006FAILED\020\002\"\211\001\n\022ServerSuppliedConf\022\032\n" +
-      "\022healthCheckTimeout\030\004 \001(\005\022!\n\031healthCheck" +
-      "WakeUpInterval\030\005 \001(\005\022\021\n\tsessionId\030\006 \001(\t\022" +
-      "\017\n\007keyAlgo\030\007 \001(\t\022\020\n\010keyBytes\030\010 \001(\014\"\313\001\n\017H",
-      "ealthCheckInfo\022\021\n\ttimeStamp\030\001 \001(\003\0221\n\006sou" +
-      "rce\030\002 \001(\0162!.sdc_frame.HealthCheckInfo.So" +
-      "urce\022-\n\004type\030\003 \001(\0162\037.sdc_frame.HealthChe" +
-      "ckInfo.Type\" \n\006Source\022\n\n\006CLIENT\020\001\022\n\n\006SER" +
-      "VER\020\002\"!\n\004Type\022\013\n\007REQUEST\020\001\022\014\n\010RESPONSE\020\002" +
-      "\"+\n\rMessageHeader\022\013\n\003key\030\001 \002(\t\022\r\n\005value\030" +
-      "\002 \002(\t\"{\n\014FetchRequest\022\n\n\002id\030\001 \002(\t\022\020\n\010res" +
-      "ource\030\002 \002(\t\022\020\n\010strategy\030\003 \001(\t\022)\n\007headers" +
-      "\030\004 \003(\0132\030.sdc_frame.MessageHeader\022\020\n\010cont" +
-      "ents\030\005 \001(\014\"v\n\nFetchReply\022\n\n\002id\030\001 \002(\t\022\016\n\006",
-      "status\030\002 \002(\005\022)\n\007headers\030\003 \003(\0132\030.sdc_fram" +
-      "e.MessageHeader\022\020\n\010contents\030\004 \001(\014\022\017\n\007lat" +
-      "ency\030\005 \001(\003\"\264\001\n\024SocketSessionRequest\022*\n\004v" +
+      "\014\022\021\n\tsessionId\030\004 \001(\t\022\022\n\ncompressed\030\005 \001(\010" +
+      "\022\013\n\003ack\030\006 \001(\003\"\211\001\n\004Type\022\017\n\013SOCKET_DATA\020\000\022" +
+      "\020\n\014REGISTRATION\020\001\022\020\n\014HEALTH_CHECK\020\002\022\021\n\rA" +
+      "UTHORIZATION\020\003\022\021\n\rFETCH_REQUEST\020\004\022\022\n\016SOC" +
+      "KET_SESSION\020\005\022\022\n\016SHUTDOWN_QUEUE\020\006\"\252\001\n\016So" +
+      "cketDataInfo\022\024\n\014connectionId\030\001 \002(\003\022.\n\005st",
+      "ate\030\002 \002(\0162\037.sdc_frame.SocketDataInfo.Sta" +
+      "te\022\017\n\007segment\030\003 \001(\014\022\024\n\014windowUpdate\030\004 \001(" +
+      "\003\"+\n\005State\022\t\n\005START\020\000\022\014\n\010CONTINUE\020\001\022\t\n\005C" +
+      "LOSE\020\002\"\354\002\n\021AuthorizationInfo\022\r\n\005email\030\001 " +
+      "\001(\t\0227\n\010authType\030\002 \001(\0162%.sdc_frame.Author" +
+      "izationInfo.AuthType\022\020\n\010password\030\003 \001(\t\0227" +
+      "\n\006result\030\005 \001(\0162\'.sdc_frame.Authorization" +
+      "Info.ResultCode\022\025\n\rstatusMessage\030\006 \001(\t\022*" +
+      "\n\010features\030\007 \003(\0132\030.sdc_frame.MessageHead" +
+      "er\"g\n\nResultCode\022\006\n\002OK\020\001\022\021\n\rACCESS_DENIE",
+      "D\020\002\022,\n(ACCESS_DENIED_CAPTCHA_REQUIRED_TO" +
+      "_UNLOCK\020\003\022\020\n\014SERVER_ERROR\020\004\"\030\n\010AuthType\022" +
+      "\014\n\010PASSWORD\020\001\"4\n\013ResourceKey\022\n\n\002ip\030\001 \002(\t" +
+      "\022\014\n\004port\030\002 \002(\005\022\013\n\003key\030\003 \002(\003\"\313\001\n\020Registra" +
+      "tionInfo\022\013\n\003xml\030\001 \001(\t\022\025\n\rstatusMessage\030\002" +
+      " \001(\t\0226\n\006result\030\003 \001(\0162&.sdc_frame.Registr" +
+      "ationInfo.ResultCode\0229\n\022serverSuppliedCo" +
+      "nf\030\004 \001(\0132\035.sdc_frame.ServerSuppliedConf\"" +
+      " \n\nResultCode\022\006\n\002OK\020\001\022\n\n\006FAILED\020\002\"\211\001\n\022Se" +
+      "rverSuppliedConf\022\032\n\022healthCheckTimeout\030\004",
+      " \001(\005\022!\n\031healthCheckWakeUpInterval\030\005 \001(\005\022" +
+      "\021\n\tsessionId\030\006 \001(\t\022\017\n\007keyAlgo\030\007 \001(\t\022\020\n\010k" +
+      "eyBytes\030\010 \001(\014\"\313\001\n\017HealthCheckInfo\022\021\n\ttim" +
+      "eStamp\030\001 \001(\003\0221\n\006source\030\002 \001(\0162!.sdc_frame" +
+      ".HealthCheckInfo.Source\022-\n\004type\030\003 \001(\0162\037." +
+      "sdc_frame.HealthCheckInfo.Type\" \n\006Source" +
+      "\022\n\n\006CLIENT\020\001\022\n\n\006SERVER\020\002\"!\n\004Type\022\013\n\007REQU" +
+      "EST\020\001\022\014\n\010RESPONSE\020\002\"+\n\rMessageHeader\022\013\n\003" +
+      "key\030\001 \002(\t\022\r\n\005value\030\002 \002(\t\"{\n\014FetchRequest" +
+      "\022\n\n\002id\030\001 \002(\t\022\020\n\010resource\030\002 \002(\t\022\020\n\010strate",
+      "gy\030\003 \001(\t\022)\n\007headers\030\004 \003(\0132\030.sdc_frame.Me" +
+      "ssageHeader\022\020\n\010contents\030\005 \001(\014\"v\n\nFetchRe" +
+      "ply\022\n\n\002id\030\001 \002(\t\022\016\n\006status\030\002 \002(\005\022)\n\007heade" +
+      "rs\030\003 \003(\0132\030.sdc_frame.MessageHeader\022\020\n\010co" +
+      "ntents\030\004 \001(\014\022\017\n\007latency\030\005 \001(\003\"\264\001\n\024Socket" +
+      "SessionRequest\022*\n\004verb\030\001 \002(\0162\034.sdc_frame" +
+      ".SocketSessionVerb\022\024\n\014socketHandle\030\002 \002(\014" +
+      "\022\020\n\010hostname\030\003 \002(\t\022\014\n\004port\030\004 \001(\005\022)\n\007head" +
+      "ers\030\005 \003(\0132\030.sdc_frame.MessageHeader\022\017\n\007t" +
+      "imeout\030\006 \001(\003\"\253\002\n\022SocketSessionReply\022*\n\004v",
       "erb\030\001 \002(\0162\034.sdc_frame.SocketSessionVerb\022" +
-      "\024\n\014socketHandle\030\002 \002(\014\022\020\n\010hostname\030\003 \002(\t\022" +
-      "\014\n\004port\030\004 \001(\005\022)\n\007headers\030\005 \003(\0132\030.sdc_fra" +
-      "me.MessageHeader\022\017\n\007timeout\030\006 \001(\003\"\253\002\n\022So" +
-      "cketSessionReply\022*\n\004verb\030\001 \002(\0162\034.sdc_fra" +
-      "me.SocketSessionVerb\022\024\n\014socketHandle\030\002 \002" +
-      "(\014\0224\n\006status\030\003 \002(\0162$.sdc_frame.SocketSes",
-      "sionReply.Status\022\020\n\010hostname\030\004 \002(\t\022\014\n\004po" +
-      "rt\030\005 \001(\005\022)\n\007headers\030\006 \003(\0132\030.sdc_frame.Me" +
-      "ssageHeader\022\017\n\007latency\030\007 \001(\003\"A\n\006Status\022\006" +
-      "\n\002OK\020\001\022\t\n\005ERROR\020\002\022\020\n\014UNKNOWN_HOST\020\003\022\022\n\016C" +
-      "ANNOT_CONNECT\020\004\"\\\n\021SocketSessionData\022\024\n\014" +
-      "socketHandle\030\001 \002(\014\022\014\n\004data\030\002 \001(\014\022\024\n\014stre" +
-      "amOffset\030\003 \001(\003\022\r\n\005close\030\004 \001(\010\"\274\001\n\025Regist" +
-      "rationRequestV4\022\017\n\007agentId\030\001 \002(\t\022\027\n\017sock" +
-      "sServerPort\030\002 \002(\005\022\027\n\017healthCheckPort\030\003 \002" +
-      "(\005\022\035\n\025healthCheckGadgetUser\030\004 \003(\t\022+\n\013res",
-      "ourceKey\030\005 \003(\0132\026.sdc_frame.ResourceKey\022\024" +
-      "\n\014resourcesXml\030\006 \002(\t\"\347\001\n\026RegistrationRes" +
-      "ponseV4\022\025\n\rstatusMessage\030\001 \001(\t\022<\n\006result" +
-      "\030\002 \002(\0162,.sdc_frame.RegistrationResponseV" +
-      "4.ResultCode\0229\n\022serverSuppliedConf\030\003 \001(\013" +
-      "2\035.sdc_frame.ServerSuppliedConf\"=\n\nResul" +
-      "tCode\022\006\n\002OK\020\001\022\025\n\021ERRORS_IN_REQUEST\020\002\022\020\n\014" +
-      "SERVER_ERROR\020\003*7\n\021SocketSessionVerb\022\n\n\006C" +
-      "REATE\020\001\022\013\n\007CONNECT\020\002\022\t\n\005CLOSE\020\003B)\n\'com.g" +
-      "oogle.dataconnector.protocol.proto"
+      "\024\n\014socketHandle\030\002 \002(\014\0224\n\006status\030\003 \002(\0162$." +
+      "sdc_frame.SocketSessionReply.Status\022\020\n\010h" +
+      "ostname\030\004 \002(\t\022\014\n\004port\030\005 \001(\005\022)\n\007headers\030\006" +
+      " \003(\0132\030.sdc_frame.MessageHeader\022\017\n\007latenc" +
+      "y\030\007 \001(\003\"A\n\006Status\022\006\n\002OK\020\001\022\t\n\005ERROR\020\002\022\020\n\014" +
+      "UNKNOWN_HOST\020\003\022\022\n\016CANNOT_CONNECT\020\004\"r\n\021So" +
+      "cketSessionData\022\024\n\014socketHandle\030\001 \002(\014\022\014\n" +
+      "\004data\030\002 \001(\014\022\024\n\014streamOffset\030\003 \001(\003\022\r\n\005clo" +
+      "se\030\004 \001(\010\022\024\n\014windowUpdate\030\005 \001(\003\"\274\001\n\025Regis",
+      "trationRequestV4\022\017\n\007agentId\030\001 \002(\t\022\027\n\017soc" +
+      "ksServerPort\030\002 \002(\005\022\027\n\017healthCheckPort\030\003 " +
+      "\002(\005\022\035\n\025healthCheckGadgetUser\030\004 \003(\t\022+\n\013re" +
+      "sourceKey\030\005 \003(\0132\026.sdc_frame.ResourceKey\022" +
+      "\024\n\014resourcesXml\030\006 \002(\t\"\347\001\n\026RegistrationRe" +
+      "sponseV4\022\025\n\rstatusMessage\030\001 \001(\t\022<\n\006resul" +
+      "t\030\002 \002(\0162,.sdc_frame.RegistrationResponse" +
+      "V4.ResultCode\0229\n\022serverSuppliedConf\030\003 \001(" +
+      "\0132\035.sdc_frame.ServerSuppliedConf\"=\n\nResu" +
+      "ltCode\022\006\n\002OK\020\001\022\025\n\021ERRORS_IN_REQUEST\020\002\022\020\n",
+      "\014SERVER_ERROR\020\003*7\n\021SocketSessionVerb\022\n\n\006" +
+      "CREATE\020\001\022\013\n\007CONNECT\020\002\022\t\n\005CLOSE\020\003B)\n\'com." +
+      "google.dataconnector.protocol.proto"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
       new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -11240,7 +11756,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_FrameInfo_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_FrameInfo_descriptor,
-              new java.lang.String[] { "Sequence", "Type", "Payload", "SessionId", },
+              new java.lang.String[] { "Sequence", "Type", "Payload", "SessionId", "Compressed", "Ack", },
               com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.class,
               com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo.Builder.class);
           internal_static_sdc_frame_SocketDataInfo_descriptor =
@@ -11248,7 +11764,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_SocketDataInfo_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_SocketDataInfo_descriptor,
-              new java.lang.String[] { "ConnectionId", "State", "Segment", },
+              new java.lang.String[] { "ConnectionId", "State", "Segment", "WindowUpdate", },
               com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo.class,
               com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo.Builder.class);
           internal_static_sdc_frame_AuthorizationInfo_descriptor =
@@ -11256,7 +11772,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_AuthorizationInfo_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_AuthorizationInfo_descriptor,
-              new java.lang.String[] { "Email", "AuthType", "Password", "Result", "StatusMessage", },
+              new java.lang.String[] { "Email", "AuthType", "Password", "Result", "StatusMessage", "Features", },
               com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.class,
               com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo.Builder.class);
           internal_static_sdc_frame_ResourceKey_descriptor =
@@ -11336,7 +11852,7 @@ public final class SdcFrame {
           internal_static_sdc_frame_SocketSessionData_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_sdc_frame_SocketSessionData_descriptor,
-              new java.lang.String[] { "SocketHandle", "Data", "StreamOffset", "Close", },
+              new java.lang.String[] { "SocketHandle", "Data", "StreamOffset", "Close", "WindowUpdate", },
               com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData.class,
               com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData.Builder.class);
           internal_static_sdc_frame_RegistrationRequestV4_descriptor =
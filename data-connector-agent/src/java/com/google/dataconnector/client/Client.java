@@ -16,18 +16,24 @@
  */
 package com.google.dataconnector.client;
 
+import com.google.dataconnector.protocol.BufferPool;
+import com.google.dataconnector.util.CircuitBreaker;
 import com.google.dataconnector.util.ClientGuiceModule;
 import com.google.dataconnector.util.ConnectionException;
+import com.google.dataconnector.util.DnsCache;
 import com.google.dataconnector.util.FileUtil;
 import com.google.dataconnector.util.LocalConf;
 import com.google.dataconnector.util.LocalConfException;
 import com.google.dataconnector.util.LocalConfValidator;
+import com.google.dataconnector.util.ParallelConnector;
 import com.google.dataconnector.util.ShutdownManager;
+import com.google.dataconnector.util.TimerWheel;
 import com.google.feedserver.util.BeanCliHelper;
 import com.google.feedserver.util.ConfigurationBeanException;
 import com.google.gdata.util.common.util.Base64;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.Provider;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -41,9 +47,11 @@ import java.util.Properties;
  * Secure Data Connector:
  *
  * 1) The "secure data connection" to the server which provides the transport from the server
- * side back to the client.  see {@link SdcConnection}
+ * side back to the client, optionally over several parallel tunnels.  see {@link SdcConnection}
+ * and {@link TunnelManager}
  * 2) The Socks 5 proxy which provides the network firewall to incoming network connections through
- * the secure data transport. see {@link JsocksStarter}
+ * the secure data transport. see {@link JsocksStarter}, or {@link SocksDataHandler} when socks
+ * connections are answered in process.
  * 3) The HTTP(S) proxy which provides the http firewall filtering for incoming http requests.
  *
  * @author rayc@google.com (Ray Colline)
@@ -58,9 +66,14 @@ public class Client {
 
   /* Dependencies */
   private final LocalConf localConf;
-  private final SdcConnection secureDataConnection;
+  private final TunnelManager tunnelManager;
   private final JsocksStarter jsocksStarter;
   private final ShutdownManager shutdownManager;
+  private final Provider<BufferPool> bufferPoolProvider;
+  private final TimerWheel timerWheel;
+  private final Provider<DnsCache> dnsCacheProvider;
+  private final Provider<ParallelConnector> parallelConnectorProvider;
+  private final Provider<CircuitBreaker> circuitBreakerProvider;
 
   /* Local fields */
   private static long unsuccessfulAttempts = 0;
@@ -70,13 +83,21 @@ public class Client {
    * Creates a new client from the populated client configuration object.
    */
   @Inject
-  public Client(final LocalConf localConf, final SdcConnection secureDataConnection,
+  public Client(final LocalConf localConf, final TunnelManager tunnelManager,
       final JsocksStarter jsocksStarter,
-      final ShutdownManager shutdownManager) {
+      final ShutdownManager shutdownManager, final Provider<BufferPool> bufferPoolProvider,
+      final TimerWheel timerWheel, final Provider<DnsCache> dnsCacheProvider,
+      final Provider<ParallelConnector> parallelConnectorProvider,
+      final Provider<CircuitBreaker> circuitBreakerProvider) {
     this.localConf = localConf;
-    this.secureDataConnection = secureDataConnection;
+    this.tunnelManager = tunnelManager;
     this.jsocksStarter = jsocksStarter;
     this.shutdownManager = shutdownManager; 
+    this.bufferPoolProvider = bufferPoolProvider;
+    this.timerWheel = timerWheel;
+    this.dnsCacheProvider = dnsCacheProvider;
+    this.parallelConnectorProvider = parallelConnectorProvider;
+    this.circuitBreakerProvider = circuitBreakerProvider;
   }
 
   /**
@@ -116,20 +137,30 @@ public class Client {
       	String password = new FileUtil().readFile(localConf.getPasswordFile());
       	localConf.setPassword(password);
       }
-      // start jsocks thread
-      jsocksStarter.startJsocksProxy();
+      // start jsocks thread, unless socks connections are answered in process.
+      if (!localConf.getInProcessSocks()) {
+        jsocksStarter.startJsocksProxy();
+      }
       // start main processing thread - to initiate connection/registration with the SDC server
-      secureDataConnection.connect();
+      tunnelManager.connect();
     } catch (IOException e ) {
       LOG.fatal("Cannot read password file.", e);
     } catch (ConnectionException e) {
       LOG.fatal("Connection failed.", e);
     } finally {
       shutdownManager.shutdownAll();
+      // The pool and the other stats holders are only created once the flags are parsed.
+      final BufferPool bufferPool = bufferPoolProvider.get();
+      bufferPool.reportLeaks();
+      LOG.info("Buffer pool: " + bufferPool.getStats());
+      LOG.info("Connection timeouts: " + timerWheel.getStats());
+      LOG.info("DNS cache: " + dnsCacheProvider.get().getStats());
+      LOG.info("Parallel connects: " + parallelConnectorProvider.get().getStats());
+      LOG.info("Circuit breakers: " + circuitBreakerProvider.get().getStats());
     }
 
     // Check whether connection was successful or not.
-    if (secureDataConnection.hasConnectedSuccessfully()) {
+    if (tunnelManager.hasConnectedSuccessfully()) {
       unsuccessfulAttempts = 0;
     } else if (localConf.getStartOnce()) {
       LOG.info("Configured only to start once. Quitting!");
@@ -18,11 +18,15 @@ package com.google.dataconnector.client;
 
 import java.io.CharArrayWriter;
 import java.io.PrintWriter;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
 import java.net.URL;
+import java.net.UnknownHostException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ThreadPoolExecutor;
 
+import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.log4j.Logger;
 
 import com.google.common.base.Preconditions;
@@ -36,6 +40,7 @@ import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
 import com.google.dataconnector.util.AgentConfigurationException;
+import com.google.dataconnector.util.CircuitBreaker;
 import com.google.dataconnector.util.ClockUtil;
 import com.google.dataconnector.util.SdcKeysManager;
 import com.google.dataconnector.util.SessionEncryption;
@@ -96,6 +101,7 @@ public class FetchRequestHandler implements Dispatchable {
   private final ThreadPoolExecutor threadPoolExecutor;
   private final Injector injector;
   private final ClockUtil clock;
+  private final CircuitBreaker circuitBreaker;
 
   // Runtime Dependencies.
   private FrameSender frameSender;
@@ -107,14 +113,16 @@ public class FetchRequestHandler implements Dispatchable {
    * @param km The session key manager.
    * @param threadPoolExecutor The thread pool.
    * @param injector The injector.
+   * @param circuitBreaker Refuses requests for resources that keep failing, null fetches all.
    */
   @Inject
   public FetchRequestHandler(SdcKeysManager km, ThreadPoolExecutor threadPoolExecutor,
-      Injector injector, ClockUtil clock) {
+      Injector injector, ClockUtil clock, CircuitBreaker circuitBreaker) {
     this.sdcKeysManager = km;
     this.threadPoolExecutor = threadPoolExecutor;
     this.injector = injector;
     this.clock = clock;
+    this.circuitBreaker = circuitBreaker;
   }
 
   public final void setFrameSender(FrameSender frameSender) {
@@ -243,11 +251,30 @@ public class FetchRequestHandler implements Dispatchable {
 
       replyBuilder.setId(request.getId());
 
+      // A resource known to be down is answered at once rather than holding a thread.
+      String backend = backend(request);
+      if (backend != null && !circuitBreaker.allow(backend)) {
+        LOG.info(request.getId() + ": " + backend + " keeps failing, not fetching.");
+        reply = replyBuilder.setStatus(StatusCode.IO_EXCEPTION.value).setLatency(0).build();
+        sendReply(reply);
+        return reply;
+      }
+
       Exception exception = null;
       try {
 
         long start = clock.currentTimeMillis();
-        strategy.process(request, replyBuilder);
+        try {
+          strategy.process(request, replyBuilder);
+        } catch (StrategyException e) {
+          if (backend != null && isConnectFailure(e.getCause())) {
+            circuitBreaker.failed(backend);
+          }
+          throw e;
+        }
+        if (backend != null) {
+          circuitBreaker.succeeded(backend);
+        }
         replyBuilder.setLatency(clock.currentTimeMillis() - start);
 
         if (!replyBuilder.hasStatus()) {
@@ -279,6 +306,33 @@ public class FetchRequestHandler implements Dispatchable {
     }
   }
 
+  /**
+   * Returns the host and port the request fetches from, as the circuit breaker knows it, or null
+   * without a circuit breaker.
+   */
+  String backend(FetchRequest request) {
+    if (circuitBreaker == null) {
+      return null;
+    }
+    try {
+      URL url = new URL(request.getResource());
+      return CircuitBreaker.backend(url.getHost(),
+          url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    } catch (MalformedURLException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether a fetch failed because the resource could not be reached at all, rather
+   * than answering with an error status or failing while its response was read.  Only these
+   * count against the resource in the circuit breaker.
+   */
+  static boolean isConnectFailure(Throwable cause) {
+    return cause instanceof ConnectException || cause instanceof NoRouteToHostException ||
+        cause instanceof UnknownHostException || cause instanceof ConnectTimeoutException;
+  }
+
   /**
    * If the request contains a special header for logging exception, send the
    * stacktrace back as a reply header.
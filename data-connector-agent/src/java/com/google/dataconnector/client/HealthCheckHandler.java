@@ -70,6 +70,7 @@ public class HealthCheckHandler extends Thread implements Dispatchable, Stoppabl
   // Class fields.
   private long lastHealthCheckReceivedStamp = 0;
   private boolean hadAtleastOneSuccessfulHealthCheck = false;
+  private volatile boolean continueAfterFailure = false;
 
   @Inject
   public HealthCheckHandler(final ClockUtil clock, final ShutdownManager shutdownManager) {
@@ -121,6 +122,11 @@ public class HealthCheckHandler extends Thread implements Dispatchable, Stoppabl
         frameSender.sendFrame(SdcFrame.FrameInfo.Type.HEALTH_CHECK, hci.toByteString());
         sleep(serverSuppliedConf.getHealthCheckWakeUpInterval() * 1000);
 
+        // Backed up connections show while they last, not only when the tunnel ends.
+        final String queueStats = frameSender.getQueueStats();
+        if (queueStats != null) {
+          LOG.info("Send queue: " + queueStats);
+        }
 
         // Every send interval we check to see if we have timed out.  Sending is reliable as
         // it uses a large blocking queue to send frames.  Therefore we can re-use the send
@@ -132,7 +138,11 @@ public class HealthCheckHandler extends Thread implements Dispatchable, Stoppabl
           LOG.warn("Health check response not received in " +
               (clock.currentTimeMillis() - lastHealthCheckReceivedStamp) + "ms.");
           failCallback.handleFailure();
-          return;
+          if (!continueAfterFailure) {
+            return;
+          }
+          // The connection resumes, give it a full timeout again.
+          lastHealthCheckReceivedStamp = clock.currentTimeMillis();
         } else {
           // We set this to indicate we have received some valid frames from the server.
           hadAtleastOneSuccessfulHealthCheck = true;
@@ -169,6 +179,14 @@ public class HealthCheckHandler extends Thread implements Dispatchable, Stoppabl
     this.failCallback = failCallback;
   }
 
+  /**
+   * Keeps checking after a failure instead of exiting.  Used for resumable sessions where the
+   * failure callback reconnects without replacing this handler.
+   */
+  public void setContinueAfterFailure(final boolean continueAfterFailure) {
+    this.continueAfterFailure = continueAfterFailure;
+  }
+
   public synchronized void setServerSuppliedConf(final ServerSuppliedConf serverSuppliedConf) {
     this.serverSuppliedConf = serverSuppliedConf;
   }
@@ -17,11 +17,15 @@
 package com.google.dataconnector.client;
 
 import com.google.dataconnector.client.HealthCheckHandler.FailCallback;
+import com.google.dataconnector.protocol.FrameCompressor;
 import com.google.dataconnector.protocol.FrameReceiver;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.FramingException;
+import com.google.dataconnector.protocol.ProtocolFeatures;
+import com.google.dataconnector.protocol.ReplayBuffer;
 import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
 import com.google.dataconnector.registration.v4.Registration;
 import com.google.dataconnector.util.ConnectionException;
 import com.google.dataconnector.util.LocalConf;
@@ -35,7 +39,11 @@ import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.LdapName;
@@ -65,6 +73,9 @@ public class SdcConnection implements FailCallback, Stoppable {
     "TLS_RSA_WITH_AES_128_CBC_SHA"
   };
 
+  private static final long MIN_RESUME_DELAY = 500; // ms
+  private static final long MAX_RESUME_DELAY = 10 * 1000; // ms
+
   public static final String INITIAL_HANDSHAKE_MSG = "v5.1 " +
      SdcConnection.class.getPackage().getImplementationVersion() + "\n";
 
@@ -82,7 +93,15 @@ public class SdcConnection implements FailCallback, Stoppable {
   private final SocketSessionRequestHandler socketSessionRequestHandler;
   
   // Fields
-  private SSLSocket socket;
+  private volatile Socket socket;
+  private ProtocolFeatures protocolFeatures = ProtocolFeatures.NONE;
+  private String tunnelGroup;
+  private int tunnelIndex = 0;
+  private int tunnelCount = 1;
+  private boolean tunnelRefused = false;
+  private final String resumeToken = UUID.randomUUID().toString();
+  private ReplayBuffer replayBuffer;
+  private volatile boolean stopped = false;
 
  /**
   *  Sets up a Secure Data connection to a Secure Link server with the supplied configuration.
@@ -139,29 +158,14 @@ public class SdcConnection implements FailCallback, Stoppable {
       // TODO(rayc) figure out a cooler way to do this.
       registration.setHealthCheckHandler(healthCheckHandler);
       
-      // Setup SSL connection and verify.
-      LOG.debug("setting up SSLSocket with customized SSLSocketFacory");
-      final SSLSocketFactory sslSocketFactory = sslSocketFactoryInit
-          .getSslSocketFactory(localConf);
-      socket = (SSLSocket) sslSocketFactory.createSocket();
-      socket.setEnabledCipherSuites(SECURE_CIPHER_SUITE);
-      // wait for 30 sec to connect. is that too long?
-      socket.connect(new InetSocketAddress(localConf.getSdcServerHost(),
-          localConf.getSdcServerPort()), 30 *1000);
-
-      if (!localConf.getAllowUnverifiedCertificates()) {
-        verifySubjectInCertificate(socket.getSession());
-      }
-
-      // send a message to initiate handshake with tunnelserver
-      LOG.info("Sending initial handshake msg: " + INITIAL_HANDSHAKE_MSG);
-      final byte[] handshake = INITIAL_HANDSHAKE_MSG.getBytes();
-      socket.getOutputStream().write(handshake);
-      socket.getOutputStream().flush();
+      socket = openSocket();
+      sendHandshake();
 
       // setup frame IO
       frameReceiver.setInputStream(socket.getInputStream());
       frameSender.setOutputStream(socket.getOutputStream());
+      frameSender.setBatching(localConf.getFrameBatching(), localConf.getFrameBatchMaxBytes(),
+          localConf.getFrameBatchMaxLatency());
       frameSender.start();
 
       LOG.info("Attemping login");
@@ -171,8 +175,35 @@ public class SdcConnection implements FailCallback, Stoppable {
       }
       LOG.info("Successful login");
 
-      // send registration info to the SDC server
-      registration.sendRegistrationInfo(frameSender);
+      // A server that does not know about tunnel groups gets the first tunnel only.
+      if (tunnelGroup != null && tunnelIndex > 0 &&
+          !protocolFeatures.isEnabled(ProtocolFeatures.TUNNEL_GROUP)) {
+        tunnelRefused = true;
+        throw new ConnectionException("Server does not support parallel tunnels");
+      }
+
+      // Turn on negotiated frame compression in both directions.
+      if (ProtocolFeatures.DEFLATE.equals(
+          protocolFeatures.getValue(ProtocolFeatures.FRAME_COMPRESSION))) {
+        frameReceiver.setFrameCompressor(new FrameCompressor(
+            localConf.getFrameCompressionThreshold(), localConf.getFrameCompressionAdaptive()));
+        frameSender.setFrameCompressor(new FrameCompressor(
+            localConf.getFrameCompressionThreshold(), localConf.getFrameCompressionAdaptive()));
+      }
+
+      // Keep unacknowledged frames so the session survives a dropped connection.
+      if (protocolFeatures.isEnabled(ProtocolFeatures.RESUME)) {
+        replayBuffer = new ReplayBuffer(localConf.getResumeBufferBytes());
+        frameSender.setReplayBuffer(replayBuffer);
+        frameReceiver.setReplayBuffer(replayBuffer);
+        healthCheckHandler.setContinueAfterFailure(true);
+      }
+
+      // send registration info to the SDC server.  Further tunnels of a group get the
+      // registration response of the group without registering again.
+      if (isPrimaryTunnel()) {
+        registration.sendRegistrationInfo(frameSender);
+      }
 
       // setup to start receiving and processing registration response
       frameReceiver.registerDispatcher(FrameInfo.Type.REGISTRATION, registration);
@@ -188,6 +219,7 @@ public class SdcConnection implements FailCallback, Stoppable {
 
       // Setup Socket Data.
       socksDataHandler.setFrameSender(frameSender);
+      socksDataHandler.setProtocolFeatures(protocolFeatures);
       frameReceiver.registerDispatcher(FrameInfo.Type.SOCKET_DATA, socksDataHandler);
 
       // Setup AgentRequest handler
@@ -196,17 +228,34 @@ public class SdcConnection implements FailCallback, Stoppable {
 
       // Setup SocketSessionRequestHandler
       socketSessionRequestHandler.setFrameSender(frameSender);
+      socketSessionRequestHandler.setProtocolFeatures(protocolFeatures);
       frameReceiver.registerDispatcher(FrameInfo.Type.SOCKET_SESSION, socketSessionRequestHandler);
 
       // a thread to watch for changes in the resources.xml file
       // make this thread a daemon - so it can't hold up the process from exiting
-      LOG.info("starting a thread to watch resources file");
-      resourcesFileWatcher.setFrameSender(frameSender);
-      resourcesFileWatcher.start();
+      if (isPrimaryTunnel()) {
+        LOG.info("starting a thread to watch resources file");
+        resourcesFileWatcher.setFrameSender(frameSender);
+        resourcesFileWatcher.start();
+      }
 
       // Add to shutdown manager so it gets gracefully shutdown.
       shutdownManager.addStoppable(this);
-      frameReceiver.startDispatching();
+      frameReceiver.setAsyncDispatch(localConf.getAsyncDispatch(),
+          localConf.getDispatchLaneCapacity());
+      if (localConf.getDispatchShards() > 0) {
+        frameReceiver.setDispatchShards(localConf.getDispatchShards());
+      }
+      while (true) {
+        try {
+          frameReceiver.startDispatching();
+        } catch (FramingException e) {
+          if (!resume(e)) {
+            frameReceiver.stopDispatching();
+            throw e;
+          }
+        }
+      }
     } catch (IOException e) {
       throw new ConnectionException(e);
     } catch (FramingException e) {
@@ -214,36 +263,201 @@ public class SdcConnection implements FailCallback, Stoppable {
     }
   }
   
+  /**
+   * Opens the SSL connection to the SDC server and verifies the server certificate.
+   *
+   * @throws IOException if the connection cannot be established.
+   * @throws ConnectionException if the server certificate does not match.
+   */
+  Socket openSocket() throws IOException, ConnectionException {
+    // Setup SSL connection and verify.
+    LOG.debug("setting up SSLSocket with customized SSLSocketFacory");
+    final SSLSocketFactory sslSocketFactory = sslSocketFactoryInit
+        .getSslSocketFactory(localConf);
+    final SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket();
+    sslSocket.setEnabledCipherSuites(SECURE_CIPHER_SUITE);
+    // wait for 30 sec to connect. is that too long?
+    sslSocket.connect(new InetSocketAddress(localConf.getSdcServerHost(),
+        localConf.getSdcServerPort()), 30 *1000);
+
+    if (!localConf.getAllowUnverifiedCertificates()) {
+      verifySubjectInCertificate(sslSocket.getSession());
+    }
+    return sslSocket;
+  }
+
+  /**
+   * Sends the message that starts the handshake with the server.
+   */
+  private void sendHandshake() throws IOException {
+    LOG.info("Sending initial handshake msg: " + INITIAL_HANDSHAKE_MSG);
+    final byte[] handshake = INITIAL_HANDSHAKE_MSG.getBytes();
+    socket.getOutputStream().write(handshake);
+    socket.getOutputStream().flush();
+  }
+
+  /**
+   * Tries to continue a resumable session on a new connection after the current one failed.
+   * Handlers, their connections and the frames waiting to be sent all carry over.
+   *
+   * @param failure why the connection failed.
+   * @return false if the session cannot be resumed and the agent has to start over.
+   */
+  boolean resume(final FramingException failure) {
+    if (stopped || replayBuffer == null || !replayBuffer.isResumable()) {
+      return false;
+    }
+    LOG.warn("Lost connection to SDC server, resuming session.", failure);
+    closeSocket();
+    final long deadline = System.currentTimeMillis() + localConf.getResumeTimeout() * 1000L;
+    long delay = MIN_RESUME_DELAY;
+    while (!stopped && System.currentTimeMillis() < deadline) {
+      try {
+        return resumeOnce();
+      } catch (IOException e) {
+        LOG.info("Resume attempt failed.", e);
+      } catch (FramingException e) {
+        LOG.info("Resume attempt failed.", e);
+      } catch (ConnectionException e) {
+        LOG.warn("Resume attempt failed.", e);
+        return false;
+      }
+      closeSocket();
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException e) {
+        return false;
+      }
+      delay = Math.min(MAX_RESUME_DELAY, delay * 2);
+    }
+    return false;
+  }
+
+  /**
+   * Connects once, authorizes with the resume token and the next sequence we expect, and hands
+   * the new streams to the frame sender and receiver if the server still has the session.
+   *
+   * @return false if the server refused to resume.
+   */
+  private boolean resumeOnce() throws IOException, FramingException, ConnectionException {
+    socket = openSocket();
+    if (stopped) {
+      closeSocket();
+      return false;
+    }
+    sendHandshake();
+    if (!frameReceiver.restart(socket.getInputStream())) {
+      return false;
+    }
+
+    // The new connection starts at sequence 0 with its own authorization.  The frame sender is
+    // still waiting to resume, so we write the request ourselves.
+    final long receivedSequence = replayBuffer.getReceivedSequence();
+    final List<MessageHeader> features = getOfferedFeatures();
+    features.add(MessageHeader.newBuilder()
+        .setKey(ProtocolFeatures.RESUME_SEQUENCE)
+        .setValue(String.valueOf(receivedSequence))
+        .build());
+    FrameSender.writeFrame(socket.getOutputStream(), authorizationFrame(features));
+    final AuthorizationInfo response = AuthorizationInfo.parseFrom(
+        frameReceiver.readOneFrame().getPayload());
+    if (response.getResult() != AuthorizationInfo.ResultCode.OK) {
+      LOG.error("Auth Result: " + response.getResult().toString());
+      return false;
+    }
+    final ProtocolFeatures resumed = ProtocolFeatures.fromHeaders(response.getFeaturesList());
+    final long sendSequence = resumed.getLong(ProtocolFeatures.RESUME_SEQUENCE, -1);
+    if (!resumeToken.equals(resumed.getValue(ProtocolFeatures.RESUME))) {
+      LOG.warn("Server no longer has the session.");
+      return false;
+    }
+    if (!replayBuffer.canReplayFrom(sendSequence)) {
+      LOG.error("Server wants frames from " + sendSequence + " which are not buffered.");
+      return false;
+    }
+    frameReceiver.setSequence(receivedSequence);
+    frameSender.resume(socket.getOutputStream(), sendSequence);
+    LOG.info("Resumed session, receiving from " + receivedSequence + " and sending from " +
+        sendSequence);
+    return true;
+  }
+
   /** 
    * Kills active SDC connection and cleans up resources.
    */
   @Override
   public void shutdown() {
+    stopped = true;
+    closeSocket();
+  }
+
+  /**
+   * Closes the socket of the current connection.
+   */
+  private void closeSocket() {
+    final Socket currentSocket = socket;
+    if (currentSocket == null) {
+      return;
+    }
     try {
       // should cause frame receiver to exit its loop as the read call will throw an IOException.
-      socket.close();
+      currentSocket.close();
     } catch (IOException e) {
       LOG.debug("Socket exception when closing.", e);
     } 
   }
 
   /**
-   * Creates authorization request and sends to server and awaits response.
+   * Tears down this connection after {@link #connect()} returned, stopping the threads it
+   * started without touching other connections of the agent.
+   */
+  public void disconnect() {
+    shutdown();
+    frameReceiver.stopDispatching();
+    frameSender.shutdown();
+    healthCheckHandler.shutdown();
+    resourcesFileWatcher.shutdown();
+    shutdownManager.removeStoppable(this);
+    shutdownManager.removeStoppable(frameSender);
+    shutdownManager.removeStoppable(healthCheckHandler);
+    shutdownManager.removeStoppable(resourcesFileWatcher);
+  }
+
+  /**
+   * Makes this connection one of several parallel tunnels of the agent.
+   *
+   * @param group id shared by all tunnels of the agent.
+   * @param index index of this tunnel, the first tunnel registers the resources.
+   * @param count number of tunnels the agent opens.
+   */
+  public void setTunnel(final String group, final int index, final int count) {
+    this.tunnelGroup = group;
+    this.tunnelIndex = index;
+    this.tunnelCount = count;
+  }
+
+  boolean isPrimaryTunnel() {
+    return tunnelIndex == 0;
+  }
+
+  /**
+   * Returns true if the server accepted the login but not the tunnel group of this tunnel.
+   */
+  public boolean isTunnelRefused() {
+    return tunnelRefused;
+  }
+
+  /**
+   * Creates authorization request and sends to server and awaits response.  The request offers
+   * the optional protocol features this agent is configured for and the response decides which
+   * of them are used on this connection.
    *
    * @returns true if successfully logged on or false otherwise.
    */
   boolean authorize() {
     try {
       // Authenticate
-      final AuthorizationInfo authInfoRequest = AuthorizationInfo.newBuilder()
-          .setEmail(localConf.getUser() + "@" + localConf.getDomain())
-          .setPassword(localConf.getPassword())
-          .build();
-      final FrameInfo authReqRawFrame = FrameInfo.newBuilder()
-          .setPayload(authInfoRequest.toByteString())
-          .setType(FrameInfo.Type.AUTHORIZATION)
-          .build();
-      frameSender.sendFrame(authReqRawFrame);
+      frameSender.sendFrame(authorizationFrame(getOfferedFeatures()));
       final FrameInfo authRespRawFrame = frameReceiver.readOneFrame();
       final AuthorizationInfo authInfoResponse = AuthorizationInfo.parseFrom(
           authRespRawFrame.getPayload());
@@ -252,6 +466,8 @@ public class SdcConnection implements FailCallback, Stoppable {
         LOG.error("Auth Error Message: " + authInfoResponse.getStatusMessage().toString());
         return false;
       }
+      protocolFeatures = ProtocolFeatures.fromHeaders(authInfoResponse.getFeaturesList());
+      LOG.info("Negotiated protocol features: " + protocolFeatures);
       return true;
     } catch (FramingException e) {
       LOG.warn("Frame error", e);
@@ -262,6 +478,77 @@ public class SdcConnection implements FailCallback, Stoppable {
     }
   }
 
+  /**
+   * Creates the authorization request frame.
+   *
+   * @param features the optional protocol features to offer.
+   */
+  private FrameInfo authorizationFrame(final List<MessageHeader> features) {
+    final AuthorizationInfo authInfoRequest = AuthorizationInfo.newBuilder()
+        .setEmail(localConf.getUser() + "@" + localConf.getDomain())
+        .setPassword(localConf.getPassword())
+        .addAllFeatures(features)
+        .build();
+    return FrameInfo.newBuilder()
+        .setPayload(authInfoRequest.toByteString())
+        .setType(FrameInfo.Type.AUTHORIZATION)
+        .build();
+  }
+
+  /**
+   * Returns the optional protocol features to offer the server.
+   */
+  List<MessageHeader> getOfferedFeatures() {
+    final List<MessageHeader> features = new ArrayList<MessageHeader>();
+    if (localConf.getSocketDataWindow() > 0) {
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.SOCKET_DATA_WINDOW)
+          .setValue(String.valueOf(localConf.getSocketDataWindow()))
+          .build());
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.SOCKET_SESSION_WINDOW)
+          .setValue(String.valueOf(localConf.getSocketDataWindow()))
+          .build());
+    }
+    if (localConf.getSocketSessionReorderBytes() > 0) {
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.SOCKET_SESSION_REORDER)
+          .setValue(String.valueOf(localConf.getSocketSessionReorderBytes()))
+          .build());
+    }
+    if (localConf.getFrameCompression()) {
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.FRAME_COMPRESSION)
+          .setValue(ProtocolFeatures.DEFLATE)
+          .build());
+    }
+    if (localConf.getResumeBufferBytes() > 0) {
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.RESUME)
+          .setValue(resumeToken)
+          .build());
+    }
+    if (tunnelGroup != null) {
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.TUNNEL_GROUP)
+          .setValue(tunnelGroup)
+          .build());
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.TUNNEL_INDEX)
+          .setValue(String.valueOf(tunnelIndex))
+          .build());
+      features.add(MessageHeader.newBuilder()
+          .setKey(ProtocolFeatures.TUNNEL_COUNT)
+          .setValue(String.valueOf(tunnelCount))
+          .build());
+    }
+    return features;
+  }
+
+  ProtocolFeatures getProtocolFeatures() {
+    return protocolFeatures;
+  }
+
   /**
    * Verifies that the server certificate has the correct Subject DN name.
    * Throws an exception otherwise, since the server may be impersonating a
@@ -314,13 +601,14 @@ public class SdcConnection implements FailCallback, Stoppable {
   }
 
   /**
-   * Closes underlying socket for this SDC connection.  Which shuts down the SDC agent.
+   * Closes underlying socket for this SDC connection.  Which shuts down the SDC agent, or only
+   * this tunnel when the agent runs several.
    */
   @Override
   public void handleFailure() {
     LOG.error("Closing SDC connection due to health check failure.");
-    // Will cause connect() to unblock.
-    this.shutdown();
+    // Will cause connect() to unblock, or to resume the session if it can.
+    closeSocket();
   }
   
   public boolean hasConnectedSuccessfully() {
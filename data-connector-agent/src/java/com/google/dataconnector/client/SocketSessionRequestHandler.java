@@ -21,12 +21,15 @@ import com.google.dataconnector.client.socketsession.SocketSessionManager;
 import com.google.dataconnector.protocol.Dispatchable;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.FramingException;
+import com.google.dataconnector.protocol.ProtocolFeatures;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply.Status;
 import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.DnsCache;
 import com.google.dataconnector.util.SdcKeysManager;
 import com.google.dataconnector.util.SessionEncryption;
 import com.google.inject.Inject;
@@ -39,6 +42,14 @@ import org.apache.log4j.Logger;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 
 /**
@@ -56,10 +67,17 @@ public class SocketSessionRequestHandler implements Dispatchable {
   private final SocketSessionManager sessionManager;
   private final Injector injector;
   private final ClockUtil clock;
+  private final ThreadPoolExecutor threadPoolExecutor;
+  private final DnsCache dnsCache;
 
   // Runtime Dependencies.
   private FrameSender frameSender;
-  private Sink<SocketSessionData> tunnel;
+  private Sink<FrameInfo> tunnel;
+  private ProtocolFeatures protocolFeatures = ProtocolFeatures.NONE;
+
+  // Local fields.
+  private final Map<ByteString, HandleRequests> inProgress =
+      new HashMap<ByteString, HandleRequests>();
   
   /**
    * A data sink of type T.  It's some interface that is able to receive the
@@ -72,23 +90,33 @@ public class SocketSessionRequestHandler implements Dispatchable {
   
   @Inject
   public SocketSessionRequestHandler(SdcKeysManager km, SocketSessionManager manager,
-      Injector injector, ClockUtil clock) {
+      Injector injector, ClockUtil clock, ThreadPoolExecutor threadPoolExecutor,
+      DnsCache dnsCache) {
     this.sdcKeysManager = km;
     this.sessionManager = manager;
     this.injector = injector;
     this.clock = clock;
+    this.threadPoolExecutor = threadPoolExecutor;
+    this.dnsCache = dnsCache;
   }
 
   public final void setFrameSender(FrameSender frameSender) {
     this.frameSender = frameSender;
-    this.tunnel = new Sink<SocketSessionData>() {
+    this.tunnel = new Sink<FrameInfo>() {
       @Override
-      public boolean receive(SocketSessionData message) {
-        return sendToCloud(message);
+      public boolean receive(FrameInfo frame) {
+        return sendToCloud(frame);
       }
     };
   }
 
+  /**
+   * Sets the features negotiated with the server, which decide whether sessions get a window.
+   */
+  public void setProtocolFeatures(ProtocolFeatures protocolFeatures) {
+    this.protocolFeatures = protocolFeatures;
+  }
+
 
   @Override
   public void dispatch(FrameInfo frameInfo) throws FramingException {
@@ -138,12 +166,20 @@ public class SocketSessionRequestHandler implements Dispatchable {
           .setHostname(request.getHostname())
           .setPort(request.getPort());
 
-        long start = this.clock.currentTimeMillis();
-        handleSocketSessionRequest(request, replyBuilder);
-        replyBuilder.setLatency(this.clock.currentTimeMillis() - start);
-        SocketSessionReply reply = replyBuilder.build();
-        sendToCloud(reply);
-        this.sessionManager.notifySent(reply.getSocketHandle(), reply);
+        PendingRequest pending =
+            new PendingRequest(request, replyBuilder, this.clock.currentTimeMillis());
+        switch (request.getVerb()) {
+          case CREATE:
+          case CONNECT:
+            // Resolving and connecting block, the reply is sent when they complete.
+            runInOrder(pending);
+            break;
+          case CLOSE:
+            close(pending);
+            break;
+          default:
+            pending.run();
+        }
       } catch (InvalidProtocolBufferException e2) {
         LOG.warn("Unknown message type: " + frameInfo.getType() +
             ":" + frameInfo);
@@ -153,6 +189,162 @@ public class SocketSessionRequestHandler implements Dispatchable {
     }
   }
   
+  /**
+   * Runs the request on the thread pool after the requests for the same handle still in
+   * progress, so a CONNECT never overtakes its CREATE.  Without a free thread the request, and
+   * any queued behind it meanwhile, is answered with a failure.
+   */
+  private void runInOrder(PendingRequest pending) {
+    ByteString handle = pending.request.getSocketHandle();
+    HandleRequests handleRequests;
+    synchronized (inProgress) {
+      handleRequests = inProgress.get(handle);
+      if (handleRequests != null) {
+        handleRequests.add(pending);
+        return;
+      }
+      handleRequests = new HandleRequests(handle);
+      handleRequests.add(pending);
+      inProgress.put(handle, handleRequests);
+    }
+    try {
+      threadPoolExecutor.execute(handleRequests);
+    } catch (RejectedExecutionException e) {
+      LOG.warn(handle.toStringUtf8() + ": Out of threads, rejecting " +
+          pending.request.getVerb());
+      List<PendingRequest> rejected;
+      synchronized (inProgress) {
+        inProgress.remove(handle);
+        rejected = handleRequests.drain();
+      }
+      for (PendingRequest request : rejected) {
+        request.reject();
+      }
+    }
+  }
+
+  /**
+   * Handles a CLOSE at once, closing the socket of a connect in progress, unless the session is
+   * still being created.  Then it waits for the CREATE, which would otherwise make a session
+   * nobody closes.
+   */
+  private void close(PendingRequest pending) {
+    synchronized (inProgress) {
+      HandleRequests handleRequests = inProgress.get(pending.request.getSocketHandle());
+      if (handleRequests != null && handleRequests.creates > 0) {
+        handleRequests.add(pending);
+        return;
+      }
+    }
+    pending.run();
+  }
+
+  /**
+   * A request whose reply's latency is measured from when it was dispatched.
+   */
+  private final class PendingRequest implements Runnable {
+    private final SocketSessionRequest request;
+    private final SocketSessionReply.Builder replyBuilder;
+    private final long start;
+
+    PendingRequest(SocketSessionRequest request, SocketSessionReply.Builder replyBuilder,
+        long start) {
+      this.request = request;
+      this.replyBuilder = replyBuilder;
+      this.start = start;
+    }
+
+    /**
+     * Handles the request and sends the reply to the cloud.
+     */
+    @Override
+    public void run() {
+      try {
+        handleSocketSessionRequest(request, replyBuilder);
+      } catch (RuntimeException e) {
+        LOG.warn(request.getSocketHandle().toStringUtf8() + ": Failed " + request.getVerb(), e);
+        replyBuilder.setStatus(Status.ERROR);
+      }
+      reply();
+    }
+
+    /**
+     * Answers the request with a failure without handling it.
+     */
+    void reject() {
+      replyBuilder.setStatus(request.getVerb() == SocketSessionVerb.CONNECT ?
+          Status.CANNOT_CONNECT : Status.ERROR);
+      reply();
+    }
+
+    private void reply() {
+      replyBuilder.setLatency(clock.currentTimeMillis() - start);
+      SocketSessionReply reply = replyBuilder.build();
+      sendToCloud(reply);
+      sessionManager.notifySent(reply.getSocketHandle(), reply);
+    }
+  }
+
+  /**
+   * The requests for one handle waiting for, or being handled by, a pool thread, one at a time.
+   * Guarded by {@code inProgress}.
+   */
+  private final class HandleRequests implements Runnable {
+    private final ByteString handle;
+    private final Queue<PendingRequest> queue = new LinkedList<PendingRequest>();
+    // CREATEs queued or being handled.
+    private int creates;
+
+    HandleRequests(ByteString handle) {
+      this.handle = handle;
+    }
+
+    void add(PendingRequest pending) {
+      queue.add(pending);
+      if (pending.request.getVerb() == SocketSessionVerb.CREATE) {
+        creates++;
+      }
+    }
+
+    List<PendingRequest> drain() {
+      List<PendingRequest> drained = new ArrayList<PendingRequest>(queue);
+      queue.clear();
+      creates = 0;
+      return drained;
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        PendingRequest next;
+        synchronized (inProgress) {
+          next = queue.poll();
+          if (next == null) {
+            inProgress.remove(handle);
+            return;
+          }
+        }
+        next.run();
+        if (next.request.getVerb() == SocketSessionVerb.CREATE) {
+          synchronized (inProgress) {
+            creates--;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the connect timeout asked for by the request, or 0 for the agent's default when it
+   * has none.
+   */
+  static int connectTimeout(SocketSessionRequest request) {
+    if (request.hasTimeout() && request.getTimeout() > 0) {
+      return (int) Math.min(request.getTimeout(), Integer.MAX_VALUE);
+    }
+    return 0;
+  }
+
   protected void handleSocketSessionRequest(SocketSessionRequest request,
       SocketSessionReply.Builder replyBuilder) {
     LOG.debug(String.format("SocketSessionRequest handle=%s,verb=%s", 
@@ -160,17 +352,19 @@ public class SocketSessionRequestHandler implements Dispatchable {
     switch (request.getVerb()) {
       case CREATE:
         // First resolve.
-        InetSocketAddress endpoint = resolve(request.getSocketHandle(),
+        List<InetSocketAddress> endpoints = resolve(request.getSocketHandle(),
             request.getHostname(), request.getPort());
-        if (endpoint == null) {
+        if (endpoints == null) {
           replyBuilder.setStatus(Status.UNKNOWN_HOST);
         } else {
-          // Update with the resolved address:
-          replyBuilder.setHostname(endpoint.getAddress().getCanonicalHostName());
+          // Update with the resolved address the connect tries first:
+          replyBuilder.setHostname(dnsCache.getHostName(endpoints.get(0).getAddress()));
           // Now create the session:
           boolean success = this.sessionManager.createSession(
               this.tunnel,
-              request.getSocketHandle(), endpoint);
+              request.getSocketHandle(), endpoints,
+              protocolFeatures.getLong(ProtocolFeatures.SOCKET_SESSION_WINDOW, 0),
+              protocolFeatures.getLong(ProtocolFeatures.SOCKET_SESSION_REORDER, 0));
           if (success) {
             replyBuilder.setStatus(Status.OK);
           } else {
@@ -179,7 +373,7 @@ public class SocketSessionRequestHandler implements Dispatchable {
         }
         break;
       case CONNECT:
-        if (this.sessionManager.connect(request.getSocketHandle())) {
+        if (this.sessionManager.connect(request.getSocketHandle(), connectTimeout(request))) {
           replyBuilder.setStatus(Status.OK);
         } else {
           replyBuilder.setStatus(Status.CANNOT_CONNECT);
@@ -199,16 +393,25 @@ public class SocketSessionRequestHandler implements Dispatchable {
   }
   
   protected void handleSocketSessionData(SocketSessionData data) {
-    LOG.debug("WRITE " + data.getData().size() + " bytes, data = [" +
-        new String(data.getData().toByteArray()) + "]");
-    this.sessionManager.write(data.getSocketHandle(), data.getData().toByteArray(),
-        data.getStreamOffset());
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("WRITE " + data.getData().size() + " bytes, data = [" +
+          data.getData().toStringUtf8() + "]");
+    }
+    // Only queued, the session's writer waits on the socket.  Segments out of order or seen
+    // before are sorted out by the session when offsets were negotiated.
+    this.sessionManager.write(data.getSocketHandle(), data.getData(), data.getStreamOffset());
   }
   
-  private InetSocketAddress resolve(ByteString handle, String hostname, int port) {
+  /**
+   * Returns an endpoint for every address of the host, or null if it does not resolve.
+   */
+  private List<InetSocketAddress> resolve(ByteString handle, String hostname, int port) {
     try {
-      InetAddress found = InetAddress.getByName(hostname);
-      return new InetSocketAddress(found, port);
+      List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+      for (InetAddress found : dnsCache.resolve(hostname)) {
+        endpoints.add(new InetSocketAddress(found, port));
+      }
+      return endpoints;
     } catch (UnknownHostException e) {
       LOG.warn(handle.toStringUtf8() + ": Host unknown: " + hostname, e);
     }
@@ -242,13 +445,20 @@ public class SocketSessionRequestHandler implements Dispatchable {
   
   /**
    * Asynchronously sends data to the cloud.
-   * @param data The data.
+   * @param frame The frame carrying the session data, already encoded by the session.
    */
-  boolean sendToCloud(SocketSessionData data) {
+  boolean sendToCloud(FrameInfo frame) {
     Preconditions.checkNotNull(frameSender);
-    LOG.debug("DATA: handle=" + data.getSocketHandle().toStringUtf8() +
-        ", offset=" + data.getStreamOffset() + ", data=" + data.getData().toStringUtf8());
-    frameSender.sendFrame(FrameInfo.Type.SOCKET_SESSION, data.toByteString());
+    if (LOG.isDebugEnabled()) {
+      try {
+        SocketSessionData data = SocketSessionData.parseFrom(frame.getPayload());
+        LOG.debug("DATA: handle=" + data.getSocketHandle().toStringUtf8() +
+            ", offset=" + data.getStreamOffset() + ", data=" + data.getData().toStringUtf8());
+      } catch (InvalidProtocolBufferException e) {
+        LOG.debug("DATA: unparsable payload", e);
+      }
+    }
+    frameSender.sendFrame(frame);
     return true;
   }
 }
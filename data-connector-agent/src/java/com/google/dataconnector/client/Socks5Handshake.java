@@ -0,0 +1,290 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.util.Rfc1929SdcAuthenticator;
+import com.google.protobuf.ByteString;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Server side of the SOCKS5 negotiation for one connection served by the in-process socks
+ * endpoint.  It is fed the bytes the cloud sends before the connection is plumbed, answers the
+ * method selection and RFC1929 authentication and checks the CONNECT request with the
+ * {@link Rfc1929SdcAuthenticator}, exactly like the JSOCKS server does.  Messages may arrive split
+ * over any number of segments.  Bytes following the request belong to the connection itself and
+ * are left for {@link #getRemaining()}.
+ */
+class Socks5Handshake {
+
+  enum State {
+    METHOD, // waiting for the method selection.
+    AUTH, // waiting for the user name and password.
+    REQUEST, // waiting for the CONNECT request.
+    CONNECT, // request allowed, the caller connects to the destination.
+    FAILED // rejected, the caller closes the connection.
+  }
+
+  static final int VERSION = 5;
+  static final int AUTH_VERSION = 1;
+  static final int METHOD_USER_PASSWORD = 2;
+  static final int METHOD_NONE_ACCEPTABLE = 0xFF;
+  static final int CMD_CONNECT = 1;
+  static final int ATYP_IPV4 = 1;
+  static final int ATYP_DOMAIN = 3;
+  static final int ATYP_IPV6 = 4;
+
+  // Reply codes from RFC1928.
+  static final int REPLY_SUCCEEDED = 0;
+  static final int REPLY_GENERAL_FAILURE = 1;
+  static final int REPLY_NOT_ALLOWED = 2;
+  static final int REPLY_HOST_UNREACHABLE = 4;
+  static final int REPLY_CONNECTION_REFUSED = 5;
+  static final int REPLY_COMMAND_NOT_SUPPORTED = 7;
+  static final int REPLY_ADDRESS_NOT_SUPPORTED = 8;
+
+  private final long connectionId;
+  private final Rfc1929SdcAuthenticator authenticator;
+
+  private State state = State.METHOD;
+  private byte[] input = new byte[0];
+  private int consumedBytes = 0;
+  private String passKey;
+  private String serverMetaData;
+  private String host;
+  private int port;
+
+  Socks5Handshake(final long connectionId, final Rfc1929SdcAuthenticator authenticator) {
+    this.connectionId = connectionId;
+    this.authenticator = authenticator;
+  }
+
+  /**
+   * Parses as many handshake messages as the bytes received so far hold.
+   *
+   * @param segment the next bytes from the cloud.
+   * @return the reply bytes to send back, empty if there is nothing to say yet.
+   */
+  ByteString consume(final ByteString segment) {
+    final byte[] joined = Arrays.copyOf(input, input.length + segment.size());
+    segment.copyTo(joined, input.length);
+    input = joined;
+    final List<ByteString> replies = new ArrayList<ByteString>();
+    while (true) {
+      final ByteString next;
+      switch (state) {
+        case METHOD:
+          next = readMethods();
+          break;
+        case AUTH:
+          next = readAuthentication();
+          break;
+        case REQUEST:
+          next = readRequest();
+          break;
+        default:
+          return ByteString.copyFrom(replies);
+      }
+      if (next == null) {
+        return ByteString.copyFrom(replies);
+      }
+      replies.add(next);
+    }
+  }
+
+  State getState() {
+    return state;
+  }
+
+  /**
+   * Returns how many of the bytes fed so far were handshake messages.
+   */
+  int getConsumedBytes() {
+    return consumedBytes;
+  }
+
+  /**
+   * Returns the bytes received after the CONNECT request.
+   */
+  ByteString getRemaining() {
+    return ByteString.copyFrom(input);
+  }
+
+  String getHost() {
+    return host;
+  }
+
+  int getPort() {
+    return port;
+  }
+
+  /**
+   * Builds a reply to the CONNECT request.
+   *
+   * @param replyCode one of the REPLY codes.
+   * @param boundAddress the local address of the connection to the destination, or null.
+   */
+  static ByteString connectReply(final int replyCode, final InetSocketAddress boundAddress) {
+    byte[] address = new byte[4];
+    int boundPort = 0;
+    if (boundAddress != null && boundAddress.getAddress() != null) {
+      address = boundAddress.getAddress().getAddress();
+      boundPort = boundAddress.getPort();
+    }
+    final byte[] reply = new byte[6 + address.length];
+    reply[0] = VERSION;
+    reply[1] = (byte) replyCode;
+    reply[3] = (byte) (address.length == 4 ? ATYP_IPV4 : ATYP_IPV6);
+    System.arraycopy(address, 0, reply, 4, address.length);
+    reply[reply.length - 2] = (byte) (boundPort >>> 8);
+    reply[reply.length - 1] = (byte) boundPort;
+    return ByteString.copyFrom(reply);
+  }
+
+  /**
+   * VER, NMETHODS, METHODS.  Only the RFC1929 method is acceptable.
+   */
+  private ByteString readMethods() {
+    if (input.length < 2) {
+      return null;
+    }
+    final int methodCount = unsigned(1);
+    if (input.length < 2 + methodCount) {
+      return null;
+    }
+    if (unsigned(0) != VERSION) {
+      // Drop non version 5 messages.
+      state = State.FAILED;
+      return ByteString.EMPTY;
+    }
+    boolean offered = false;
+    for (int i = 0; i < methodCount; i++) {
+      offered |= unsigned(2 + i) == METHOD_USER_PASSWORD;
+    }
+    skip(2 + methodCount);
+    if (!offered) {
+      state = State.FAILED;
+      return ByteString.copyFrom(new byte[] { VERSION, (byte) METHOD_NONE_ACCEPTABLE });
+    }
+    state = State.AUTH;
+    return ByteString.copyFrom(new byte[] { VERSION, METHOD_USER_PASSWORD });
+  }
+
+  /**
+   * VER, ULEN, UNAME, PLEN, PASSWD.  The user name carries the cloud's metadata and the password
+   * is the resource key.
+   */
+  private ByteString readAuthentication() {
+    if (input.length < 2) {
+      return null;
+    }
+    final int userLength = unsigned(1);
+    if (input.length < 3 + userLength) {
+      return null;
+    }
+    final int passwordLength = unsigned(2 + userLength);
+    if (input.length < 3 + userLength + passwordLength) {
+      return null;
+    }
+    if (unsigned(0) != AUTH_VERSION) {
+      state = State.FAILED;
+      return ByteString.EMPTY;
+    }
+    serverMetaData = new String(input, 2, userLength);
+    passKey = new String(input, 3 + userLength, passwordLength);
+    skip(3 + userLength + passwordLength);
+    if (!authenticator.isKnownKey(passKey)) {
+      state = State.FAILED;
+      return ByteString.copyFrom(new byte[] { AUTH_VERSION, 1 });
+    }
+    state = State.REQUEST;
+    return ByteString.copyFrom(new byte[] { AUTH_VERSION, 0 });
+  }
+
+  /**
+   * VER, CMD, RSV, ATYP, DST.ADDR, DST.PORT.  Only CONNECT is supported.
+   */
+  private ByteString readRequest() {
+    if (input.length < 5) {
+      return null;
+    }
+    final int addressType = unsigned(3);
+    final int addressLength;
+    final int addressStart;
+    if (addressType == ATYP_IPV4) {
+      addressStart = 4;
+      addressLength = 4;
+    } else if (addressType == ATYP_IPV6) {
+      addressStart = 4;
+      addressLength = 16;
+    } else if (addressType == ATYP_DOMAIN) {
+      addressStart = 5;
+      addressLength = unsigned(4);
+    } else {
+      state = State.FAILED;
+      return connectReply(REPLY_ADDRESS_NOT_SUPPORTED, null);
+    }
+    final int requestLength = addressStart + addressLength + 2;
+    if (input.length < requestLength) {
+      return null;
+    }
+    if (unsigned(0) != VERSION) {
+      state = State.FAILED;
+      return ByteString.EMPTY;
+    }
+    final int command = unsigned(1);
+    final byte[] address =
+        Arrays.copyOfRange(input, addressStart, addressStart + addressLength);
+    port = (unsigned(requestLength - 2) << 8) | unsigned(requestLength - 1);
+    skip(requestLength);
+    if (command != CMD_CONNECT) {
+      state = State.FAILED;
+      return connectReply(REPLY_COMMAND_NOT_SUPPORTED, null);
+    }
+    if (addressType == ATYP_DOMAIN) {
+      host = new String(address);
+    } else {
+      try {
+        host = InetAddress.getByAddress(address).getHostAddress();
+      } catch (UnknownHostException e) {
+        throw new IllegalStateException(e); // Only thrown for bad lengths.
+      }
+    }
+    if (!authenticator.checkDestination(passKey, serverMetaData, String.valueOf(connectionId),
+        host, port)) {
+      state = State.FAILED;
+      return connectReply(REPLY_NOT_ALLOWED, null);
+    }
+    // The reply waits for the connect.
+    state = State.CONNECT;
+    return null;
+  }
+
+  private int unsigned(final int index) {
+    return input[index] & 0xFF;
+  }
+
+  private void skip(final int length) {
+    input = Arrays.copyOfRange(input, length, input.length);
+    consumedBytes += length;
+  }
+}
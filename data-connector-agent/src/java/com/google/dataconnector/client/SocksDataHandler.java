@@ -18,28 +18,43 @@ package com.google.dataconnector.client;
 
 import com.google.dataconnector.protocol.ConnectorStateCallback;
 import com.google.dataconnector.protocol.Dispatchable;
+import com.google.dataconnector.protocol.FlowControlWindow;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.FramingException;
 import com.google.dataconnector.protocol.InputStreamConnector;
 import com.google.dataconnector.protocol.OutputStreamConnector;
+import com.google.dataconnector.protocol.ProtocolFeatures;
+import com.google.dataconnector.protocol.SegmentBuffer;
+import com.google.dataconnector.protocol.SelectorConnector;
+import com.google.dataconnector.protocol.SelectorTransport;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.ConnectionTimer;
 import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ParallelConnector;
+import com.google.dataconnector.util.Rfc1929SdcAuthenticator;
+import com.google.dataconnector.util.TimerWheel;
 
 import com.google.common.base.Preconditions;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
 import com.google.inject.name.Named;
 
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.apache.log4j.Logger;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.RejectedExecutionException;
@@ -50,6 +65,10 @@ import javax.net.SocketFactory;
 /**
  * Handler for all incoming socket connections from the cloud.  Listens for new
  * {@link SocketDataInfo} frames and handles plumbing connections to the local socks server.
+ * With the in-process socks endpoint the SOCKS5 negotiation is answered here and connections go
+ * straight to the requested backend instead of through the JSOCKS server on the loopback.
+ * Connections are served by the shared {@link SelectorTransport} when it is enabled, otherwise
+ * each gets its own input and output stream connector thread.
  *
  * @author rayc@google.com (Ray Colline)
  */
@@ -63,12 +82,22 @@ public class SocksDataHandler implements Dispatchable {
   private final InetAddress localHostAddress;
   private final ThreadPoolExecutor threadPoolExecutor;
   private final Injector injector;
+  private final SelectorTransport selectorTransport;
+  private final Rfc1929SdcAuthenticator rfc1929SdcAuthenticator;
+  private final TimerWheel timerWheel;
+  private final ParallelConnector parallelConnector;
 
   // Runtime dependencies
   private FrameSender frameSender;
+  private ProtocolFeatures protocolFeatures = ProtocolFeatures.NONE;
 
   // Local fields
-  private final ConcurrentMap<Long, BlockingQueue<SocketDataInfo>> outputQueueMap;
+  private final ConcurrentMap<Long, SegmentBuffer> outputBufferMap;
+  private final ConcurrentMap<Long, FlowControlWindow> sendWindowMap;
+  private final ConcurrentMap<Long, FlowControlWindow> receiveWindowMap;
+  private final ConcurrentMap<Long, SelectorConnector> selectorConnectorMap;
+  private final ConcurrentMap<Long, PendingConnection> pendingConnectionMap;
+  private final ConcurrentMap<Long, ConnectionTimer> connectionTimerMap;
 
   public interface ConnectionStateUpdatable {
      public void removeConnection(final long connectionId);
@@ -77,20 +106,34 @@ public class SocksDataHandler implements Dispatchable {
   @Inject
   public SocksDataHandler(final LocalConf localConf, final SocketFactory socketFactory,
       final @Named("localhost") InetAddress localHostAddress,
-      final ThreadPoolExecutor threadPoolExecutor, final Injector injector) {
+      final ThreadPoolExecutor threadPoolExecutor, final Injector injector,
+      final SelectorTransport selectorTransport,
+      final Rfc1929SdcAuthenticator rfc1929SdcAuthenticator, final TimerWheel timerWheel,
+      final ParallelConnector parallelConnector) {
 
-    outputQueueMap = new ConcurrentHashMap<Long, BlockingQueue<SocketDataInfo>>();
+    outputBufferMap = new ConcurrentHashMap<Long, SegmentBuffer>();
+    sendWindowMap = new ConcurrentHashMap<Long, FlowControlWindow>();
+    receiveWindowMap = new ConcurrentHashMap<Long, FlowControlWindow>();
+    selectorConnectorMap = new ConcurrentHashMap<Long, SelectorConnector>();
+    pendingConnectionMap = new ConcurrentHashMap<Long, PendingConnection>();
+    connectionTimerMap = new ConcurrentHashMap<Long, ConnectionTimer>();
     this.localConf = localConf;
     this.socketFactory = socketFactory;
     this.localHostAddress = localHostAddress;
     this.threadPoolExecutor = threadPoolExecutor;
     this.injector = injector;
+    this.selectorTransport = selectorTransport;
+    this.rfc1929SdcAuthenticator = rfc1929SdcAuthenticator;
+    this.timerWheel = timerWheel;
+    this.parallelConnector = parallelConnector;
   }
 
   /**
    * Gets called by the frame receiver when a SocketDataInfo frame is received.  Depending
    * on the frame STATE, it will plumb a new connection to the socks server or send data
-   * to an existing connection.
+   * to an existing connection.  When socket data flow control has been negotiated, incoming data
+   * is charged against the connection's receive window instead of blocking on its buffer, so a
+   * slow local consumer never stalls the other connections on the tunnel.
    *
    * @throws FramingException if any IO errors with plumbing, unparsable frames, or frames in
    * a bad state.
@@ -105,38 +148,34 @@ public class SocksDataHandler implements Dispatchable {
       // Handle incoming start request.
       if (socketDataInfo.getState() == SocketDataInfo.State.START) {
         LOG.info("Starting new connection. ID " + connectionId);
+        startTimer(connectionId);
+        if (localConf.getInProcessSocks()) {
+          // Negotiate here, the connection is plumbed once the request has been checked.
+          createWindows(connectionId);
+          pendingConnectionMap.put(connectionId, new PendingConnection(connectionId,
+              new Socks5Handshake(connectionId, rfc1929SdcAuthenticator)));
+          return;
+        }
+        final InetSocketAddress socksServer =
+            new InetSocketAddress(localHostAddress, localConf.getSocksServerPort());
+        if (selectorTransport != null && selectorTransport.isEnabled()) {
+          startSelectorConnector(connectionId, selectorTransport.connect(connectionId,
+              socksServer, frameSender, new ConnectionRemover()));
+          return;
+        }
         final Socket socket = socketFactory.createSocket();
-        socket.connect(new InetSocketAddress(localHostAddress, localConf.getSocksServerPort()));
-
-        final ConnectionRemover connectionRemoverCallback = new ConnectionRemover();
-
-        // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
-        final InputStreamConnector inputStreamConnector =
-            injector.getInstance(InputStreamConnector.class);
-        inputStreamConnector.setConnectionId(connectionId);
-        inputStreamConnector.setInputStream(socket.getInputStream());
-        inputStreamConnector.setFrameSender(frameSender);
-        inputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
-        inputStreamConnector.setName("Inputconnector-" + connectionId);
-
-        // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
-        final OutputStreamConnector outputStreamConnector =
-            injector.getInstance(OutputStreamConnector.class);
-        outputStreamConnector.setConnectionId(connectionId);
-        outputStreamConnector.setOutputStream(socket.getOutputStream());
-        outputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
-        outputStreamConnector.setName("Outputconnector-" + connectionId);
-        outputQueueMap.put(connectionId, outputStreamConnector.getQueue());
-
-        // Start threads
-        threadPoolExecutor.execute(inputStreamConnector);
-        threadPoolExecutor.execute(outputStreamConnector);
-        LOG.debug("active thread count = " + Thread.activeCount());
+        socket.connect(socksServer);
+        startStreamConnectors(connectionId, socket);
       // Deal with continuing connections or close connections.
       } else if (socketDataInfo.getState() == SocketDataInfo.State.CONTINUE ||
           socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
-        if (outputQueueMap.containsKey(socketDataInfo.getConnectionId())) {
-          outputQueueMap.get(connectionId).put(socketDataInfo);
+        final ConnectionTimer connectionTimer = connectionTimerMap.get(connectionId);
+        if (connectionTimer != null) {
+          connectionTimer.touch();
+        }
+        final PendingConnection pendingConnection = pendingConnectionMap.get(connectionId);
+        if (pendingConnection == null || !pendingConnection.handle(socketDataInfo)) {
+          dispatchData(socketDataInfo);
         }
       // Unknown states.
       } else {
@@ -153,15 +192,503 @@ public class SocksDataHandler implements Dispatchable {
       throw new FramingException(e);
     } catch (RejectedExecutionException e){
       LOG.warn("Out of threads, waiting for some to free up.  Total active " +
-          threadPoolExecutor.getActiveCount() + " queue Map entries" + outputQueueMap.size());
+          threadPoolExecutor.getActiveCount() + " buffer Map entries" + outputBufferMap.size());
       throw new FramingException("Out of threads!");
     }
   }
 
+  /**
+   * Routes a CONTINUE or CLOSE frame to the connectors of a plumbed connection.
+   */
+  private void dispatchData(final SocketDataInfo socketDataInfo) throws InterruptedException {
+    final long connectionId = socketDataInfo.getConnectionId();
+    final SelectorConnector selectorConnector = selectorConnectorMap.get(connectionId);
+    if (selectorConnector != null) {
+      dispatchToSelector(selectorConnector, socketDataInfo);
+    } else if (getSocketDataWindow() > 0) {
+      dispatchWindowed(socketDataInfo);
+    } else {
+      final SegmentBuffer buffer = outputBufferMap.get(connectionId);
+      if (buffer == null) {
+        return;
+      }
+      if (socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
+        buffer.close();
+      } else {
+        // Without flow control the only push back is to wait for room.
+        buffer.put(socketDataInfo.getSegment());
+      }
+    }
+  }
+
+  /**
+   * Starts the idle and lifetime timeouts of a new connection, if the agent has a timer wheel.
+   */
+  private void startTimer(final long connectionId) {
+    if (timerWheel == null) {
+      return;
+    }
+    final ConnectionTimer connectionTimer = new ConnectionTimer(timerWheel,
+        localConf.getIdleTimeout() * 1000L, localConf.getMaxConnectionLifetime() * 1000L,
+        new Runnable() {
+          @Override
+          public void run() {
+            expireConnection(connectionId);
+          }
+        });
+    final ConnectionTimer previous = connectionTimerMap.put(connectionId, connectionTimer);
+    if (previous != null) {
+      previous.cancel();
+    }
+  }
+
+  /**
+   * Closes a connection that has been idle or open too long, telling the cloud.  Runs on the
+   * timer wheel thread so only starts the close.  A connection still connecting to its resource
+   * is left to its connect timeout.
+   */
+  private void expireConnection(final long connectionId) {
+    LOG.info("Connection " + connectionId + " idle or open too long, closing.");
+    final PendingConnection pendingConnection = pendingConnectionMap.get(connectionId);
+    if (pendingConnection != null) {
+      pendingConnection.expire();
+      return;
+    }
+    final SelectorConnector selectorConnector = selectorConnectorMap.get(connectionId);
+    if (selectorConnector != null) {
+      // Tells the cloud once the channel is closed.
+      selectorConnector.reset();
+      return;
+    }
+    final SegmentBuffer buffer = outputBufferMap.get(connectionId);
+    if (buffer != null) {
+      // The output side closes the socket, then the input side tells the cloud.
+      resetConnection(connectionId, buffer);
+    }
+  }
+
+  /**
+   * Creates the flow control windows of a new connection if flow control has been negotiated and
+   * they do not exist yet.
+   */
+  private void createWindows(final long connectionId) {
+    final long windowSize = getSocketDataWindow();
+    if (windowSize > 0 && !sendWindowMap.containsKey(connectionId)) {
+      sendWindowMap.put(connectionId, new FlowControlWindow(windowSize));
+      receiveWindowMap.put(connectionId, new FlowControlWindow(windowSize));
+    }
+  }
+
+  /**
+   * Starts an input and an output stream connector thread on a connected socket.
+   */
+  private void startStreamConnectors(final long connectionId, final Socket socket)
+      throws IOException {
+    final ConnectionRemover connectionRemoverCallback = new ConnectionRemover();
+
+    // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
+    final InputStreamConnector inputStreamConnector =
+        injector.getInstance(InputStreamConnector.class);
+    inputStreamConnector.setConnectionId(connectionId);
+    inputStreamConnector.setInputStream(socket.getInputStream());
+    inputStreamConnector.setFrameSender(frameSender);
+    inputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
+    inputStreamConnector.setName("Inputconnector-" + connectionId);
+    inputStreamConnector.setConnectionTimer(connectionTimerMap.get(connectionId));
+
+    // TODO(rayc) Create a pool of connectors instead of making a new instance each time.
+    final OutputStreamConnector outputStreamConnector =
+        injector.getInstance(OutputStreamConnector.class);
+    outputStreamConnector.setConnectionId(connectionId);
+    outputStreamConnector.setOutputStream(socket.getOutputStream());
+    outputStreamConnector.setConnectorStateCallback(connectionRemoverCallback);
+    outputStreamConnector.setName("Outputconnector-" + connectionId);
+    outputBufferMap.put(connectionId, outputStreamConnector.getBuffer());
+
+    createWindows(connectionId);
+    final FlowControlWindow sendWindow = sendWindowMap.get(connectionId);
+    if (sendWindow != null) {
+      inputStreamConnector.setSendWindow(sendWindow);
+      outputStreamConnector.setFrameSender(frameSender);
+      outputStreamConnector.setReceiveWindow(receiveWindowMap.get(connectionId));
+    }
+
+    // Start threads
+    threadPoolExecutor.execute(inputStreamConnector);
+    threadPoolExecutor.execute(outputStreamConnector);
+    LOG.debug("active thread count = " + Thread.activeCount());
+  }
+
+  /**
+   * Tracks a connection handed to the selector transport.
+   */
+  private void startSelectorConnector(final long connectionId,
+      final SelectorConnector selectorConnector) {
+    createWindows(connectionId);
+    final FlowControlWindow sendWindow = sendWindowMap.get(connectionId);
+    if (sendWindow != null) {
+      selectorConnector.setSendWindow(sendWindow);
+      selectorConnector.setReceiveWindow(receiveWindowMap.get(connectionId));
+    }
+    selectorConnector.setConnectionTimer(connectionTimerMap.get(connectionId));
+    selectorConnectorMap.put(connectionId, selectorConnector);
+  }
+
+  /**
+   * Hands a CONTINUE or CLOSE frame to a selector connection.  Writes are queued on the connection
+   * and only wait for it when flow control is off, like the stream connectors' buffer.
+   */
+  private void dispatchToSelector(final SelectorConnector selectorConnector,
+      final SocketDataInfo socketDataInfo) throws InterruptedException {
+    final long connectionId = socketDataInfo.getConnectionId();
+    if (socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
+      selectorConnector.close();
+      return;
+    }
+
+    if (socketDataInfo.hasWindowUpdate()) {
+      final FlowControlWindow sendWindow = sendWindowMap.get(connectionId);
+      if (sendWindow != null) {
+        sendWindow.release(socketDataInfo.getWindowUpdate());
+        selectorConnector.windowUpdated();
+      }
+    }
+
+    final int segmentSize = socketDataInfo.getSegment().size();
+    if (segmentSize == 0) {
+      return;
+    }
+    final FlowControlWindow receiveWindow = receiveWindowMap.get(connectionId);
+    if (receiveWindow != null && !receiveWindow.tryAcquire(segmentSize)) {
+      LOG.warn("Receive window exceeded for connection " + connectionId + ", resetting.");
+      selectorConnector.reset();
+      return;
+    }
+    selectorConnector.write(socketDataInfo.getSegment());
+  }
+
+  /**
+   * Hands a CONTINUE or CLOSE frame to its connection without blocking.  Window updates release
+   * credit to the connection's input side and data is charged against its receive window.  A peer
+   * that overruns the window has broken the protocol, so that connection alone is reset.
+   */
+  private void dispatchWindowed(final SocketDataInfo socketDataInfo) {
+    final long connectionId = socketDataInfo.getConnectionId();
+    final SegmentBuffer buffer = outputBufferMap.get(connectionId);
+    if (buffer == null) {
+      return;
+    }
+
+    if (socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
+      buffer.close();
+      return;
+    }
+
+    if (socketDataInfo.hasWindowUpdate()) {
+      final FlowControlWindow sendWindow = sendWindowMap.get(connectionId);
+      if (sendWindow != null) {
+        sendWindow.release(socketDataInfo.getWindowUpdate());
+      }
+    }
+
+    final int segmentSize = socketDataInfo.getSegment().size();
+    if (segmentSize == 0) {
+      return;
+    }
+    final FlowControlWindow receiveWindow = receiveWindowMap.get(connectionId);
+    if (receiveWindow == null || !receiveWindow.tryAcquire(segmentSize) ||
+        !buffer.offer(socketDataInfo.getSegment())) {
+      LOG.warn("Receive window exceeded for connection " + connectionId + ", resetting.");
+      resetConnection(connectionId, buffer);
+    }
+  }
+
+  /**
+   * Drops anything still buffered for the connection and closes it.
+   */
+  private void resetConnection(final long connectionId, final SegmentBuffer buffer) {
+    buffer.reset();
+    new ConnectionRemover().close(connectionId);
+  }
+
+  /**
+   * Returns the negotiated per connection window or 0 if flow control is off.
+   */
+  private long getSocketDataWindow() {
+    return protocolFeatures.getLong(ProtocolFeatures.SOCKET_DATA_WINDOW, 0);
+  }
+
   public void setFrameSender(final FrameSender frameSender) {
     this.frameSender = frameSender;
   }
 
+  /**
+   * Sets the features negotiated with the server.  Must be called before dispatching starts.
+   */
+  public void setProtocolFeatures(final ProtocolFeatures protocolFeatures) {
+    this.protocolFeatures = protocolFeatures;
+  }
+
+  /**
+   * A connection to the in-process socks endpoint that has not been plumbed yet.  Its frames are
+   * fed to the {@link Socks5Handshake} until the request has been checked, then queued while the
+   * backend is connected on the thread pool.  Once connected the queued frames are dispatched to
+   * the connectors in order before anything that arrives later.
+   */
+  private class PendingConnection implements Runnable {
+
+    private final long connectionId;
+    private final Socks5Handshake handshake;
+    private final List<SocketDataInfo> queued = new ArrayList<SocketDataInfo>();
+    private boolean plumbed = false; // guarded by this.
+
+    PendingConnection(final long connectionId, final Socks5Handshake handshake) {
+      this.connectionId = connectionId;
+      this.handshake = handshake;
+    }
+
+    /**
+     * Handles a frame for the connection.
+     *
+     * @return false if the connection is plumbed and the frame should be dispatched as usual.
+     */
+    synchronized boolean handle(final SocketDataInfo socketDataInfo) {
+      if (plumbed) {
+        return false;
+      }
+      if (handshake.getState() == Socks5Handshake.State.CONNECT) {
+        queued.add(socketDataInfo);
+        return true;
+      }
+      if (socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
+        LOG.debug("Connection " + connectionId + " closed while negotiating.");
+        close(false);
+        return true;
+      }
+      final FlowControlWindow sendWindow = sendWindowMap.get(connectionId);
+      if (sendWindow != null && socketDataInfo.hasWindowUpdate()) {
+        sendWindow.release(socketDataInfo.getWindowUpdate());
+      }
+
+      final int consumed = handshake.getConsumedBytes();
+      final ByteString reply = handshake.consume(socketDataInfo.getSegment());
+      send(reply, handshake.getConsumedBytes() - consumed);
+      if (handshake.getState() == Socks5Handshake.State.FAILED) {
+        close(true);
+      } else if (handshake.getState() == Socks5Handshake.State.CONNECT) {
+        try {
+          threadPoolExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+          LOG.warn("Out of threads, rejecting connection " + connectionId);
+          send(Socks5Handshake.connectReply(Socks5Handshake.REPLY_GENERAL_FAILURE, null), 0);
+          close(true);
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Connects to the requested backend, answers the request and plumbs the connection.
+     */
+    @Override
+    public void run() {
+      final List<InetSocketAddress> endpoints = resolve();
+      if (endpoints == null) {
+        LOG.info("Connection " + connectionId + " cannot resolve " + handshake.getHost());
+        fail(Socks5Handshake.REPLY_HOST_UNREACHABLE);
+        return;
+      }
+      try {
+        if (selectorTransport != null && selectorTransport.isEnabled()) {
+          final SocketChannel channel = connect(endpoints,
+              new ParallelConnector.Opener<SocketChannel>() {
+                @Override
+                public SocketChannel open() throws IOException {
+                  return SocketChannel.open();
+                }
+
+                @Override
+                public void connect(final SocketChannel opened, final InetSocketAddress address)
+                    throws IOException {
+                  opened.connect(address);
+                }
+              });
+          // The reply must go out before the connection reads anything from the backend.
+          succeed((InetSocketAddress) channel.socket().getLocalSocketAddress());
+          startSelectorConnector(connectionId, selectorTransport.register(connectionId, channel,
+              frameSender, new ConnectionRemover()));
+        } else {
+          final Socket socket = connect(endpoints, new ParallelConnector.Opener<Socket>() {
+            @Override
+            public Socket open() throws IOException {
+              return socketFactory.createSocket();
+            }
+
+            @Override
+            public void connect(final Socket opened, final InetSocketAddress address)
+                throws IOException {
+              opened.connect(address);
+            }
+          });
+          succeed((InetSocketAddress) socket.getLocalSocketAddress());
+          try {
+            startStreamConnectors(connectionId, socket);
+          } catch (RejectedExecutionException e) {
+            LOG.warn("Out of threads, closing connection " + connectionId);
+            socket.close();
+            synchronized (this) {
+              close(true);
+            }
+            return;
+          }
+        }
+      } catch (IOException e) {
+        LOG.info("Connection " + connectionId + " to " + endpoints + " failed", e);
+        fail(Socks5Handshake.REPLY_CONNECTION_REFUSED);
+        return;
+      }
+
+      synchronized (this) {
+        plumbed = true;
+        pendingConnectionMap.remove(connectionId);
+        try {
+          final ByteString remaining = handshake.getRemaining();
+          if (!remaining.isEmpty()) {
+            dispatchData(SocketDataInfo.newBuilder()
+                .setConnectionId(connectionId)
+                .setState(SocketDataInfo.State.CONTINUE)
+                .setSegment(remaining)
+                .build());
+          }
+          for (SocketDataInfo socketDataInfo : queued) {
+            dispatchData(socketDataInfo);
+          }
+        } catch (InterruptedException e) {
+          LOG.warn("Interrupted plumbing connection " + connectionId);
+          new ConnectionRemover().close(connectionId);
+        }
+        queued.clear();
+      }
+    }
+
+    /**
+     * Returns an endpoint for every address of the requested host, or null if it does not
+     * resolve.
+     */
+    private List<InetSocketAddress> resolve() {
+      if (parallelConnector == null) {
+        final InetSocketAddress address =
+            new InetSocketAddress(handshake.getHost(), handshake.getPort());
+        return address.isUnresolved() ? null : Collections.singletonList(address);
+      }
+      try {
+        return parallelConnector.resolve(handshake.getHost(), handshake.getPort());
+      } catch (UnknownHostException e) {
+        return null;
+      }
+    }
+
+    /**
+     * Connects to the first endpoint that answers, within the configured timeout.  Without a
+     * parallel connector only the first endpoint is tried.
+     */
+    private <S extends Closeable> S connect(final List<InetSocketAddress> endpoints,
+        final ParallelConnector.Opener<S> opener) throws IOException {
+      if (parallelConnector != null) {
+        return parallelConnector.connect(endpoints, localConf.getConnectTimeout() * 1000L,
+            opener);
+      }
+      final S opened = opener.open();
+      final TimerWheel.Timeout connectTimeout = connectTimeout(opened);
+      try {
+        opener.connect(opened, endpoints.get(0));
+      } catch (IOException e) {
+        opened.close();
+        throw e;
+      } finally {
+        if (connectTimeout != null) {
+          connectTimeout.cancel();
+        }
+      }
+      return opened;
+    }
+
+    /**
+     * Closes the socket or channel if connecting takes longer than the configured timeout.
+     *
+     * @return the timeout to cancel once connected, null without a timer wheel.
+     */
+    private TimerWheel.Timeout connectTimeout(final Closeable connecting) {
+      if (timerWheel == null) {
+        return null;
+      }
+      return ConnectionTimer.connectTimeout(timerWheel, localConf.getConnectTimeout() * 1000L,
+          connecting);
+    }
+
+    /**
+     * Closes the connection if it is still negotiating.  Once connecting, the connect timeout
+     * applies instead.
+     */
+    synchronized void expire() {
+      if (!plumbed && handshake.getState() != Socks5Handshake.State.CONNECT) {
+        close(true);
+      }
+    }
+
+    private void succeed(final InetSocketAddress boundAddress) {
+      LOG.debug("Connection " + connectionId + " connected to " + handshake.getHost() + ":" +
+          handshake.getPort());
+      send(Socks5Handshake.connectReply(Socks5Handshake.REPLY_SUCCEEDED, boundAddress), 0);
+    }
+
+    private synchronized void fail(final int replyCode) {
+      send(Socks5Handshake.connectReply(replyCode, null), 0);
+      close(true);
+    }
+
+    /**
+     * Sends negotiation replies to the cloud and hands back the window the handshake used.
+     *
+     * @param reply bytes to send, may be empty.
+     * @param consumed handshake bytes received that no connector will acknowledge.
+     */
+    private void send(final ByteString reply, final int consumed) {
+      final SocketDataInfo.Builder builder = SocketDataInfo.newBuilder()
+          .setConnectionId(connectionId)
+          .setState(SocketDataInfo.State.CONTINUE)
+          .setSegment(reply);
+      if (receiveWindowMap.containsKey(connectionId) && consumed > 0) {
+        builder.setWindowUpdate(consumed);
+      } else if (reply.isEmpty()) {
+        return;
+      }
+      final FlowControlWindow sendWindow = sendWindowMap.get(connectionId);
+      if (sendWindow != null) {
+        sendWindow.tryAcquire(reply.size());
+      }
+      frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, builder.build().toByteString());
+    }
+
+    /**
+     * Stops tracking the connection, dropping anything queued.  Called holding the lock.
+     *
+     * @param notify true to tell the cloud the connection is closed.
+     */
+    private void close(final boolean notify) {
+      plumbed = true; // Anything later is dispatched to connectors that do not exist.
+      queued.clear();
+      pendingConnectionMap.remove(connectionId);
+      if (notify) {
+        frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CLOSE)
+            .build().toByteString());
+      }
+      new ConnectionRemover().close(connectionId);
+    }
+  }
+
   /**
    * Provides callback for InputStreamConnector and OutputStreamConnector for when connection state
    * changes on input or output streams.
@@ -171,19 +698,34 @@ public class SocksDataHandler implements Dispatchable {
   public class ConnectionRemover implements ConnectorStateCallback {
 
     /**
-     * Removes connection from the queueMap so its no longer tracked.
+     * Removes connection from the bufferMap or closes its selector connection so its no longer
+     * tracked and closes its flow control windows so a blocked input side gives up.
      */
     @Override
     public void close(final long connectionId) {
       // We never know if the input or output side will detect closure first.
       // We defensively call from both sides.  In the event we are called twice we check to see
       // if we have already cleaned up.
-      if (outputQueueMap.containsKey(connectionId)) {
-        // We tell the output thread to give up by placing a final CLOSE SocketData.
-        outputQueueMap.get(connectionId).add(SocketDataInfo.newBuilder()
-            .setState(SocketDataInfo.State.CLOSE)
-            .setConnectionId(connectionId).build());
-        outputQueueMap.remove(connectionId);
+      final SelectorConnector selectorConnector = selectorConnectorMap.remove(connectionId);
+      if (selectorConnector != null) {
+        selectorConnector.close();
+      }
+      final SegmentBuffer buffer = outputBufferMap.remove(connectionId);
+      if (buffer != null) {
+        // We tell the output thread to give up once it has written what is buffered.
+        buffer.close();
+      }
+      final FlowControlWindow sendWindow = sendWindowMap.remove(connectionId);
+      if (sendWindow != null) {
+        sendWindow.close();
+      }
+      final FlowControlWindow receiveWindow = receiveWindowMap.remove(connectionId);
+      if (receiveWindow != null) {
+        receiveWindow.close();
+      }
+      final ConnectionTimer connectionTimer = connectionTimerMap.remove(connectionId);
+      if (connectionTimer != null) {
+        connectionTimer.cancel();
       }
     }
   }
@@ -0,0 +1,222 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.util.ConnectionException;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.dataconnector.util.Stoppable;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens the configured number of {@link SdcConnection} tunnels to the SDC server.  Each tunnel
+ * has its own TLS socket, frame sender, frame receiver and handlers, so encryption and dispatch
+ * of the agent's traffic is spread over as many threads as there are tunnels.  The server stripes
+ * socket data connections, socket sessions and fetch requests across the tunnels and every reply
+ * goes back on the tunnel its request came in on.
+ *
+ * A tunnel that fails, for instance on a missed health check, is reconnected on its own while the
+ * remaining tunnels carry the traffic.  {@link #connect()} returns once no tunnel is left.
+ */
+public class TunnelManager implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(TunnelManager.class);
+
+  static final long MIN_RECONNECT_DELAY = 1000; // 1 second
+  static final long MAX_RECONNECT_DELAY = 60 * 1000; // 1 minute
+
+  // Dependencies.
+  private final LocalConf localConf;
+  private final Provider<SdcConnection> connectionProvider;
+  private final ShutdownManager shutdownManager;
+
+  // Fields
+  private final List<Tunnel> tunnels = new ArrayList<Tunnel>();
+  private final AtomicInteger liveTunnels = new AtomicInteger();
+  private volatile SdcConnection singleConnection;
+  private volatile boolean connectedSuccessfully = false;
+  private volatile boolean stopped = false;
+  private long reconnectDelay = MIN_RECONNECT_DELAY;
+
+  @Inject
+  public TunnelManager(final LocalConf localConf, final Provider<SdcConnection> connectionProvider,
+      final ShutdownManager shutdownManager) {
+    this.localConf = localConf;
+    this.connectionProvider = connectionProvider;
+    this.shutdownManager = shutdownManager;
+  }
+
+  /**
+   * Connects all tunnels and blocks until the last of them is down or the manager is shut down.
+   * With a single tunnel this is exactly {@link SdcConnection#connect()}.
+   *
+   * @throws ConnectionException if the tunnels went down.
+   */
+  public void connect() throws ConnectionException {
+    final int tunnelCount = localConf.getTunnelCount();
+    if (tunnelCount <= 1) {
+      singleConnection = connectionProvider.get();
+      singleConnection.connect();
+      return;
+    }
+
+    shutdownManager.addStoppable(this);
+    final String group = UUID.randomUUID().toString();
+    LOG.info("Opening " + tunnelCount + " tunnels in group " + group);
+    synchronized (tunnels) {
+      for (int index = 0; index < tunnelCount; index++) {
+        tunnels.add(new Tunnel(group, index, tunnelCount));
+      }
+    }
+    liveTunnels.set(tunnelCount);
+    for (Tunnel tunnel : getTunnels()) {
+      tunnel.start();
+    }
+    for (Tunnel tunnel : getTunnels()) {
+      try {
+        tunnel.join();
+      } catch (InterruptedException e) {
+        LOG.warn("Interrupted while waiting for tunnels.");
+        shutdown();
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    if (!stopped) {
+      throw new ConnectionException("All tunnels to the SDC server are down");
+    }
+  }
+
+  /**
+   * Stops all tunnels and keeps them from reconnecting.
+   */
+  @Override
+  public void shutdown() {
+    stopped = true;
+    for (Tunnel tunnel : getTunnels()) {
+      tunnel.interrupt();
+      final SdcConnection connection = tunnel.connection;
+      if (connection != null) {
+        connection.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Returns true if any tunnel passed a health check.
+   */
+  public boolean hasConnectedSuccessfully() {
+    final SdcConnection connection = singleConnection;
+    if (connection != null) {
+      return connection.hasConnectedSuccessfully();
+    }
+    return connectedSuccessfully;
+  }
+
+  /**
+   * Returns the number of tunnels currently connected or connecting.
+   */
+  int getLiveTunnels() {
+    return liveTunnels.get();
+  }
+
+  void setReconnectDelay(final long reconnectDelay) {
+    this.reconnectDelay = reconnectDelay;
+  }
+
+  private List<Tunnel> getTunnels() {
+    synchronized (tunnels) {
+      return new ArrayList<Tunnel>(tunnels);
+    }
+  }
+
+  /**
+   * Keeps one tunnel of the group up.  Each attempt uses a fresh {@link SdcConnection} with its
+   * own handlers.  The tunnel gives up when the server refuses the group or when it finds all
+   * other tunnels down, leaving the reconnect of the whole agent to the caller of
+   * {@link TunnelManager#connect()}.
+   */
+  private class Tunnel extends Thread {
+
+    private final String group;
+    private final int index;
+    private final int count;
+    private volatile SdcConnection connection;
+
+    Tunnel(final String group, final int index, final int count) {
+      this.group = group;
+      this.index = index;
+      this.count = count;
+      setName(TunnelManager.class.getName() + "-" + index);
+    }
+
+    @Override
+    public void run() {
+      long delay = reconnectDelay;
+      while (true) {
+        connection = connectionProvider.get();
+        connection.setTunnel(group, index, count);
+        if (stopped) {
+          liveTunnels.decrementAndGet();
+          return;
+        }
+        try {
+          connection.connect();
+        } catch (ConnectionException e) {
+          LOG.warn("Tunnel " + index + " failed.", e);
+        } catch (RuntimeException e) {
+          LOG.error("Tunnel " + index + " died.", e);
+        } finally {
+          liveTunnels.decrementAndGet();
+          connection.disconnect();
+        }
+
+        if (connection.hasConnectedSuccessfully()) {
+          connectedSuccessfully = true;
+          delay = reconnectDelay;
+        }
+        if (connection.isTunnelRefused()) {
+          LOG.warn("Server refused tunnel " + index + ". Continuing with fewer tunnels.");
+          return;
+        }
+        if (stopped || liveTunnels.get() == 0) {
+          return;
+        }
+
+        LOG.info("Reconnecting tunnel " + index + " in " + delay + "ms.");
+        try {
+          sleep(delay);
+        } catch (InterruptedException e) {
+          return;
+        }
+        delay = Math.min(MAX_RECONNECT_DELAY, delay * 2);
+        if (stopped || liveTunnels.get() == 0) {
+          return;
+        }
+        liveTunnels.incrementAndGet();
+      }
+    }
+  }
+}
@@ -16,7 +16,6 @@
  */
 package com.google.dataconnector.client.fetchrequest;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import org.apache.http.Header;
@@ -36,11 +35,12 @@ import org.apache.log4j.Logger;
 
 import com.google.dataconnector.client.StrategyException;
 import com.google.dataconnector.client.FetchRequestHandler.Strategy;
+import com.google.dataconnector.protocol.BufferPool;
+import com.google.dataconnector.protocol.PooledOutputStream;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
 import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
 import com.google.inject.Inject;
-import com.google.protobuf.ByteString;
 
 /**
 TODO(dchung): javadoc.
@@ -51,10 +51,11 @@ public class HttpFetchStrategy implements Strategy {
 
   // Local fields.
   private final DefaultHttpClient httpClient = new DefaultHttpClient();
+  private final BufferPool bufferPool;
 
   @Inject
-  public HttpFetchStrategy() {
-    // Default constructor.
+  public HttpFetchStrategy(BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
   }
 
   /**
@@ -165,16 +166,17 @@ public class HttpFetchStrategy implements Strategy {
 
     HttpEntity entity = response.getEntity();
     if (entity != null) {
+      // The body is collected in pooled chunks rather than a growing array.
+      PooledOutputStream buff = new PooledOutputStream(bufferPool);
       try {
-        ByteArrayOutputStream buff = new ByteArrayOutputStream();
         entity.writeTo(buff);
-        buff.flush();
-        buff.close();
         if (buff.size() > 0) {
-          replyBuilder.setContents(ByteString.copyFrom(buff.toByteArray()));
+          replyBuilder.setContents(buff.toByteString());
         }
       } catch (IOException e) {
         throw new StrategyException(request.getId() + " while copying content:", e);
+      } finally {
+        buff.close();
       }
     }
     // Copy the headers
@@ -17,12 +17,21 @@
 package com.google.dataconnector.client.socketsession;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Maps;
 import com.google.dataconnector.client.SocketSessionRequestHandler.Sink;
+import com.google.dataconnector.protocol.BufferPool;
+import com.google.dataconnector.protocol.DataFrames;
+import com.google.dataconnector.protocol.FlowControlWindow;
+import com.google.dataconnector.protocol.SegmentBuffer;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
 import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.ConnectionTimer;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ParallelConnector;
+import com.google.dataconnector.util.TimerWheel;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.Singleton;
 import com.google.protobuf.ByteString;
 
@@ -30,13 +39,22 @@ import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Manages all the inflight socket sessions for this agent.
@@ -45,212 +63,586 @@ import java.util.concurrent.atomic.AtomicLong;
 @Singleton
 public class SocketSessionManager {
 
-  public static int DEFAULT_CONNECT_TIMEOUT = 60000;
+  static final int READ_SIZE = 1024 * 64;
+  static final int WRITE_SIZE = 16 * 1024;
+  // How long a closed session may take to write out what the cloud sent before its CLOSE.
+  static final long DRAIN_TIMEOUT_MILLIS = 30 * 1000L;
   
   private static Logger logger = Logger.getLogger(SocketSessionManager.class);
   
   // Injected Dependencies.
   protected final ThreadPoolExecutor threadPoolExecutor;
   private final ClockUtil clock;
-  private final Map<ByteString, Session> sessions = Maps.newHashMap();
+  private final BufferPool bufferPool;
+  private final Provider<SegmentBuffer> segmentBufferProvider;
+  private final TimerWheel timerWheel;
+  private final ParallelConnector parallelConnector;
+  private final LocalConf localConf;
+  // Looked up from the dispatch thread and the threads connecting and reading sessions.
+  private final ConcurrentMap<ByteString, Session> sessions =
+      new ConcurrentHashMap<ByteString, Session>();
   
   @Inject
-  public SocketSessionManager(ThreadPoolExecutor threadPoolExecutor, ClockUtil clock) {
+  public SocketSessionManager(ThreadPoolExecutor threadPoolExecutor, ClockUtil clock,
+      BufferPool bufferPool, Provider<SegmentBuffer> segmentBufferProvider,
+      TimerWheel timerWheel, ParallelConnector parallelConnector, LocalConf localConf) {
     this.threadPoolExecutor = threadPoolExecutor;
     this.clock = clock;
+    this.bufferPool = bufferPool;
+    this.segmentBufferProvider = segmentBufferProvider;
+    this.timerWheel = timerWheel;
+    this.parallelConnector = parallelConnector;
+    this.localConf = localConf;
   }
 
   enum SessionState {
     EXCEPTION,
     CREATED,
+    CONNECTING,
     OPEN,
     CLOSED;
   }
   
   /**
-   * Class that encapsulates the states of a socket session.
+   * Class that encapsulates the states of a socket session.  State changes are compare and set
+   * on {@link #state}, so the dispatch, connect and reader threads never wait on each other.
+   *
+   * <p>Data from the cloud is queued in a bounded {@link SegmentBuffer} and written to the socket
+   * by the session's own writer, so a backend that stops reading only stalls its own session.
+   * With a receive window the cloud is told how much it may send by window updates, which are
+   * held back while the queue is full, and overrunning the window resets the session.  Without
+   * one the dispatch thread waits for room in the queue, as it waited on the socket before.
+   *
+   * <p>When offsets were negotiated the data is written in stream offset order whatever order it
+   * arrives in.  Bytes already queued are dropped and segments ahead of a gap are held, up to a
+   * bound, until the gap is filled.
    */
   public class Session {
-    private SessionState state;
+    private final AtomicReference<SessionState> state =
+        new AtomicReference<SessionState>(SessionState.CREATED);
     private final ByteString handle;
-    private final InetSocketAddress endpoint;
+    // Every address of the host, raced when connecting.
+    private final List<InetSocketAddress> endpoints;
     private final AtomicLong bytesReceived = new AtomicLong(0);
-    private final Sink<SocketSessionData> receiver;
-    private Socket socket;
+    private final Sink<FrameInfo> receiver;
+    // Null until connected.  The sockets of the attempts are kept meanwhile, so a close at any
+    // time can close them.
+    private volatile Socket socket;
+    private final Queue<Socket> connecting = new ConcurrentLinkedQueue<Socket>();
+    private final SegmentBuffer outbound;
+    // Null unless the cloud negotiated session windows.
+    private final FlowControlWindow receiveWindow;
+    // Only used by the writer.
+    private long unacknowledgedBytes = 0;
+    // Bytes held ahead of a gap before the session is reset, 0 if offsets are not checked.
+    private final long reorderBytes;
+    // Segments ahead of nextOffset by offset.  All guarded by orderLock.
+    private final Object orderLock = new Object();
+    private final TreeMap<Long, ByteString> heldSegments = new TreeMap<Long, ByteString>();
+    private long heldBytes = 0;
+    private long nextOffset = 0;
     private final AtomicBoolean connectReplySent = new AtomicBoolean(false);
+    private final AtomicBoolean closeSent = new AtomicBoolean(false);
+    private volatile ConnectionTimer timer;
+    private volatile TimerWheel.Timeout drainTimeout;
     
-    Session(Sink<SocketSessionData> cloud, ByteString handle, InetSocketAddress endpoint) {
+    Session(Sink<FrameInfo> cloud, ByteString handle, List<InetSocketAddress> endpoints,
+        long window, long reorderBytes) {
       this.handle = handle;
-      this.endpoint = endpoint;
-      this.state = SessionState.CREATED;
+      this.endpoints = endpoints;
       this.receiver = cloud;
+      this.outbound = segmentBufferProvider.get();
+      this.receiveWindow = window > 0 ? new FlowControlWindow(window) : null;
+      this.reorderBytes = reorderBytes;
+    }
+
+    SessionState getState() {
+      return state.get();
+    }
+
+    /**
+     * Starts the idle and lifetime timeouts, once the session is in the table.
+     */
+    void startTimer() {
+      timer = new ConnectionTimer(timerWheel, localConf.getIdleTimeout() * 1000L,
+          localConf.getMaxConnectionLifetime() * 1000L, new Runnable() {
+            @Override
+            public void run() {
+              expire();
+            }
+          });
+    }
+
+    private void touch() {
+      final ConnectionTimer current = timer;
+      if (current != null) {
+        current.touch();
+      }
+    }
+
+    /**
+     * Closes a session that has been idle or open too long.  A running reader tells the cloud
+     * when the socket closes under it, otherwise the CLOSE is sent from here.
+     */
+    private void expire() {
+      logger.info(this + ": Idle or open too long, closing.");
+      reset();
+    }
+
+    /**
+     * Aborts the session and tells the cloud.  A running reader sends the CLOSE when the socket
+     * closes under it, otherwise it is sent from here.
+     */
+    private void reset() {
+      abort();
+      if (!connectReplySent.get()) {
+        sendClose();
+      }
+    }
+
+    /**
+     * Drops whatever is queued, closes the socket and forgets the session.
+     */
+    private void abort() {
+      cancelTimer();
+      state.set(SessionState.CLOSED);
+      outbound.reset();
+      dropHeldSegments();
+      closeSocket();
+      SocketSessionManager.this.sessions.remove(this.handle, this);
+    }
+
+    private void dropHeldSegments() {
+      synchronized (orderLock) {
+        outbound.getMemoryBudget().release(heldBytes);
+        heldSegments.clear();
+        heldBytes = 0;
+      }
+    }
+
+    private void cancelTimer() {
+      final ConnectionTimer current = timer;
+      if (current != null) {
+        current.cancel();
+      }
+    }
+
+    private void closeSocket() {
+      final Socket current = socket;
+      try {
+        for (Socket attempt : connecting) {
+          attempt.close();
+        }
+        if (current != null) {
+          logger.debug(this + ": Closing socket.");
+          current.close();
+        }
+      } catch (IOException e) {
+        logger.warn(this + ": Exception on close.", e);
+      }
     }
     
     @Override
     public String toString() {
       return String.format("Session[%s@%s:%d]", handle.toStringUtf8(),
-          endpoint.getHostName(), endpoint.getPort());
+          endpoints.get(0).getHostName(), endpoints.get(0).getPort());
     }
 
-    private Thread inputForwarder = new Thread() {
-      byte[] buffer = new byte[1024 * 64];
+    /**
+     * Reads the socket and forwards its bytes to the cloud until the end of the stream.  Started
+     * once the connect reply has been sent, so no data can reach the cloud before it.
+     */
+    private final Runnable inputForwarder = new Runnable() {
       @Override
       public void run() {
         long start = SocketSessionManager.this.clock.currentTimeMillis();
+        // Leased only while the forwarder runs, idle sessions hold no buffer.
+        byte[] buffer = bufferPool.lease(READ_SIZE);
         
         try {
-          // Wait till connect reply is sent.
-          while (!connectReplySent.get()) {
-            Thread.sleep(50L);
-          }
           logger.debug("Starting listener for input stream.");
           InputStream input = Session.this.socket.getInputStream();
-          for (int read = 0; ; read = input.read(buffer)) {
+          int read;
+          while ((read = input.read(buffer, 0, READ_SIZE)) >= 0) {
             if (read > 0) {
+              touch();
               long offset = bytesReceived.getAndAdd(read);
-              ByteString data = ByteString.copyFrom(buffer, 0, read);
-              
-              SocketSessionData m = SocketSessionData.newBuilder()
-                .setSocketHandle(handle)
-                .setData(data)
-                .setStreamOffset(offset).build();
-              
-              receiver.receive(m);
+              // Encoded straight from the read buffer into the frame payload.
+              receiver.receive(DataFrames.socketSessionData(handle, offset, buffer, 0, read));
               logger.debug( Session.this + ": [" + offset + "] received " + read + " bytes");
             }
           }
         } catch (SocketException e) {
           logger.warn(this + ": Socket closed.", e);
-          synchronized (Session.this) {
-            Session.this.state = SessionState.CLOSED;
-          }
+          state.set(SessionState.CLOSED);
         } catch (Exception e) {
           logger.warn(this + ": Exception while reading input.", e);
-          synchronized (Session.this) {
-            Session.this.state = SessionState.EXCEPTION;
-          }
+          state.set(SessionState.EXCEPTION);
         } finally {
-          // Send a CLOSE back up the cloud to confirm.
-          long offset = bytesReceived.getAndAdd(0);
-          // Closing down.  Need to tell the cloud about it.
-          SocketSessionData m = SocketSessionData.newBuilder()
-          .setSocketHandle(handle)
-          .setClose(true)
-          .setStreamOffset(offset).build();
-          receiver.receive(m);
-          logger.debug( Session.this + ": [" + offset + "] sent CLOSE.");
+          bufferPool.release(buffer);
+          sendClose();
         }
         logger.debug( Session.this + ": Stoped reading input after " + 
             (SocketSessionManager.this.clock.currentTimeMillis() - start) + " msec.");
       }
     };
+
+    /**
+     * Writes the queued data to the socket until the queue is closed and drained, then closes the
+     * socket.  Started once the socket is connected.
+     */
+    private final Runnable outputForwarder = new Runnable() {
+      @Override
+      public void run() {
+        // Leased only while the writer runs, the queue holds the session's data.
+        byte[] chunk = bufferPool.lease(WRITE_SIZE);
+        try {
+          OutputStream output = Session.this.socket.getOutputStream();
+          int length;
+          while ((length = outbound.read(chunk)) >= 0) {
+            output.write(chunk, 0, length);
+            touch();
+            acknowledge(length);
+          }
+          logger.debug(Session.this + ": Output drained.");
+        } catch (InterruptedException e) {
+          logger.info(Session.this + ": Interrupted while writing output.");
+          outbound.reset();
+        } catch (IOException e) {
+          logger.warn(Session.this + ": Exception on write.", e);
+          state.compareAndSet(SessionState.OPEN, SessionState.EXCEPTION);
+          outbound.reset();
+        } finally {
+          bufferPool.release(chunk);
+          final TimerWheel.Timeout drain = drainTimeout;
+          if (drain != null) {
+            drain.cancel();
+          }
+          // The reader then sees the socket closed and tells the cloud.
+          closeSocket();
+        }
+      }
+    };
+
+    /**
+     * Hands written bytes back to the cloud once half the window has been written out.  While the
+     * memory budget is exhausted that waits until the queue is empty, so sessions the cloud is
+     * filling faster than their backends read are slowed by their windows.
+     */
+    private void acknowledge(int length) {
+      if (receiveWindow == null) {
+        return;
+      }
+      unacknowledgedBytes += length;
+      if (unacknowledgedBytes >= receiveWindow.getSize() / 2 &&
+          (outbound.isEmpty() || !outbound.getMemoryBudget().isExhausted())) {
+        receiveWindow.release(unacknowledgedBytes);
+        SocketSessionData m = SocketSessionData.newBuilder()
+            .setSocketHandle(handle)
+            .setWindowUpdate(unacknowledgedBytes).build();
+        receiver.receive(FrameInfo.newBuilder()
+            .setType(FrameInfo.Type.SOCKET_SESSION)
+            .setPayload(m.toByteString())
+            .build());
+        unacknowledgedBytes = 0;
+      }
+    }
+
+    /**
+     * Sends a CLOSE back up the cloud to confirm the session's input is done.
+     */
+    private void sendClose() {
+      if (!closeSent.compareAndSet(false, true)) {
+        return;
+      }
+      long offset = bytesReceived.getAndAdd(0);
+      SocketSessionData m = SocketSessionData.newBuilder()
+          .setSocketHandle(handle)
+          .setClose(true)
+          .setStreamOffset(offset).build();
+      receiver.receive(FrameInfo.newBuilder()
+          .setType(FrameInfo.Type.SOCKET_SESSION)
+          .setPayload(m.toByteString())
+          .build());
+      logger.debug( Session.this + ": [" + offset + "] sent CLOSE.");
+    }
     
     /**
-     * Connects the socket.  Returns true iff connect succeeds.
+     * Connects the socket, racing the addresses of the host.  Returns true iff connect succeeds.
+     * A close meanwhile closes the sockets and aborts the connect.
+     * @param timeout The connect timeout in milliseconds.
      * @return True if connected.
      */
-    synchronized boolean connect() {
-      if (this.state != SessionState.CREATED) {
-        logger.warn(this + ": Invalid state when connect = " + this.state);
+    boolean connect(int timeout) {
+      if (!state.compareAndSet(SessionState.CREATED, SessionState.CONNECTING)) {
+        logger.warn(this + ": Invalid state when connect = " + state.get());
         return false;
       }
       try {
-        this.socket = new Socket();
-        this.socket.connect(endpoint, DEFAULT_CONNECT_TIMEOUT);
-        // Also submit a listener to the queue for execution
-        inputForwarder.start();
-        this.state = SessionState.OPEN;
-        return true;
-      } catch (IOException e) {
-        logger.warn(this + ": Exception on connect.", e);
-        this.state = SessionState.EXCEPTION;
+        socket = parallelConnector.connect(endpoints, timeout,
+            new ParallelConnector.Opener<Socket>() {
+              @Override
+              public Socket open() throws IOException {
+                Socket opened = new Socket();
+                connecting.add(opened);
+                if (state.get() != SessionState.CONNECTING) {
+                  opened.close();
+                }
+                return opened;
+              }
+
+              @Override
+              public void connect(Socket opened, InetSocketAddress address)
+                  throws IOException {
+                opened.connect(address);
+              }
+            });
       } catch (Exception e) {
         logger.warn(this + ": Exception on connect.", e);
-        this.state = SessionState.EXCEPTION;
+        state.compareAndSet(SessionState.CONNECTING, SessionState.EXCEPTION);
+        return false;
+      } finally {
+        connecting.clear();
+      }
+      if (!state.compareAndSet(SessionState.CONNECTING, SessionState.OPEN)) {
+        logger.warn(this + ": Closed while connecting, state = " + state.get());
+        closeSocket();
+        return false;
+      }
+      try {
+        threadPoolExecutor.execute(outputForwarder);
+      } catch (RejectedExecutionException e) {
+        logger.warn(this + ": No thread to write output, closing.", e);
+        abort();
+        return false;
       }
-      return false;
+      return true;
     }
     
     /**
-     * Writes the data to the output stream of the socket.
+     * Queues the data for the session's writer.
      * @param data The data to write.
-     * @return True if written.
+     * @param streamOffset Where the data starts in the stream, only checked when offsets were
+     * negotiated.
+     * @return True if queued, held or dropped as already queued.
      */
-    synchronized boolean write(byte[] data, long streamOffset) {
-      if (this.state != SessionState.OPEN) {
-        logger.warn(this + ": Invalid state when write = " + this.state);
+    boolean write(ByteString data, long streamOffset) {
+      if (state.get() != SessionState.OPEN) {
+        logger.warn(this + ": Invalid state when write = " + state.get());
         return false;
       }
-      try {
-        logger.debug( this + ": Writing " + data.length + " bytes: " + 
-            new String(data));
-        
-        socket.getOutputStream().write(data);
+      touch();
+      if (logger.isDebugEnabled()) {
+        logger.debug(this + ": [" + streamOffset + "] queueing " + data.size() + " bytes");
+      }
+      if (reorderBytes <= 0) {
+        return enqueue(data);
+      }
+      synchronized (orderLock) {
+        return writeInOrder(data, streamOffset);
+      }
+    }
+
+    /**
+     * Queues the part of the segment past what has been queued, then any held segments it lets
+     * through.  A segment ahead of a gap is held instead.  Called holding orderLock.
+     */
+    private boolean writeInOrder(ByteString data, long streamOffset) {
+      if (state.get() != SessionState.OPEN) {
+        // Closed while waiting for the lock, the held segments are gone.
+        return false;
+      }
+      long end = streamOffset + data.size();
+      if (end <= nextOffset) {
+        logger.debug(this + ": [" + streamOffset + "] dropping duplicate.");
         return true;
-      } catch (IOException e) {
-        logger.warn(this + ": Exception on write.", e);
-        this.state = SessionState.EXCEPTION;
       }
-      return false;
+      if (streamOffset > nextOffset) {
+        return hold(data, streamOffset);
+      }
+      if (!enqueue(skip(data, nextOffset - streamOffset))) {
+        return false;
+      }
+      nextOffset = end;
+      Map.Entry<Long, ByteString> first;
+      while ((first = heldSegments.firstEntry()) != null && first.getKey() <= nextOffset) {
+        heldSegments.remove(first.getKey());
+        ByteString held = first.getValue();
+        heldBytes -= held.size();
+        outbound.getMemoryBudget().release(held.size());
+        long heldEnd = first.getKey() + held.size();
+        if (heldEnd > nextOffset) {
+          if (!enqueue(skip(held, nextOffset - first.getKey()))) {
+            return false;
+          }
+          nextOffset = heldEnd;
+        }
+      }
+      return true;
     }
 
     /**
-     * Closes the connection of this session.
-     * @return True if close succeeded.
+     * Returns the segment without its first bytes, which have been queued already.
+     */
+    private ByteString skip(ByteString data, long bytes) {
+      if (bytes == 0) {
+        return data;
+      }
+      byte[] rest = new byte[data.size() - (int) bytes];
+      data.copyTo(rest, (int) bytes, 0, rest.length);
+      return ByteString.copyFrom(rest);
+    }
+
+    /**
+     * Holds a segment that arrived ahead of a gap, charging it to the memory budget.  Called
+     * holding orderLock.
      */
-    synchronized boolean close() {
-      if (socket != null) {
+    private boolean hold(ByteString data, long streamOffset) {
+      ByteString previous = heldSegments.get(streamOffset);
+      if (previous != null && previous.size() >= data.size()) {
+        return true;
+      }
+      long added = data.size() - (previous == null ? 0 : previous.size());
+      if (heldBytes + added > reorderBytes) {
+        logger.warn(this + ": More than " + reorderBytes + " bytes ahead of offset " +
+            nextOffset + ", resetting.");
+        reset();
+        return false;
+      }
+      heldSegments.put(streamOffset, data);
+      heldBytes += added;
+      outbound.getMemoryBudget().add(added);
+      return true;
+    }
+
+    /**
+     * Queues in order data for the writer, within the window if there is one.
+     */
+    private boolean enqueue(ByteString data) {
+      if (receiveWindow == null) {
         try {
-          // TODO:  Need to flush buffers and close off 
-          // the input and output streams
-          logger.debug( this + ": Closing socket.");
-          socket.close();
-          this.state = SessionState.CLOSED;
+          // Without a window the only push back is to wait for room.
+          outbound.put(data);
           return true;
-        } catch (IOException e) {
-          logger.warn(this + ": Exception on close.", e);
-          this.state = SessionState.EXCEPTION;
-        } finally {
-          logger.debug( "Removing session " + handle.toStringUtf8());
-          SocketSessionManager.this.sessions.remove(this.handle);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      if (data.isEmpty()) {
+        return true;
+      }
+      if (!receiveWindow.tryAcquire(data.size()) || !outbound.offer(data)) {
+        logger.warn(this + ": Receive window exceeded, resetting.");
+        reset();
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Closes the session on the cloud's request.  An open session's writer first writes out what
+     * is queued, for up to {@link #DRAIN_TIMEOUT_MILLIS}, and then closes the socket.
+     * @return True if close succeeded.
+     */
+    boolean close() {
+      cancelTimer();
+      try {
+        if (state.compareAndSet(SessionState.OPEN, SessionState.CLOSED)) {
+          // Whatever is held ahead of a gap can never be written.
+          dropHeldSegments();
+          outbound.close();
+          drainTimeout = timerWheel.schedule(DRAIN_TIMEOUT_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+              logger.info(Session.this + ": Output not drained in time, closing.");
+              closeSocket();
+            }
+          });
+        } else {
+          state.set(SessionState.CLOSED);
+          outbound.reset();
+          closeSocket();
         }
+        return true;
+      } finally {
+        logger.debug( "Removing session " + handle.toStringUtf8());
+        SocketSessionManager.this.sessions.remove(this.handle, this);
       }
-      return false;
     }
     
     void notifyCreateReplySent(SocketSessionReply reply) {
       
     }
+    /**
+     * Starts forwarding the socket's input once a successful connect has been answered.
+     */
     void notifyConnectReplySent(SocketSessionReply reply) {
-      logger.debug( "Connect reply SENT. OK to READ INPUTSTREAM.");
-      this.connectReplySent.set(true);
+      if (reply.getStatus() != SocketSessionReply.Status.OK ||
+          !this.connectReplySent.compareAndSet(false, true)) {
+        return;
+      }
+      logger.debug(this + ": Connect reply sent, starting to read input.");
+      try {
+        threadPoolExecutor.execute(inputForwarder);
+      } catch (RejectedExecutionException e) {
+        logger.warn(this + ": No thread to read input, closing.", e);
+        abort();
+        sendClose();
+      }
     }
     void notifyCloseReplySent(SocketSessionReply reply) {
       
     }
   }
   
-  public boolean createSession(Sink<SocketSessionData> receiver,
-      ByteString handle, InetSocketAddress endpoint) {
-    Preconditions.checkArgument(!endpoint.isUnresolved());
-    synchronized (sessions) {
-      if (!sessions.containsKey(handle)) {
-        Session session = new Session(receiver, handle, endpoint);
-        sessions.put(handle, session);
+  /**
+   * Creates a session to the endpoints unless the handle already has one.
+   * @param endpoints Every address of the host, tried in parallel when connecting.
+   * @param window The bytes the cloud may send before a window update, 0 if it waits for none.
+   * @param reorderBytes The bytes held ahead of a gap in the stream offsets, 0 to write data in
+   * the order it arrives without checking offsets.
+   */
+  public boolean createSession(Sink<FrameInfo> receiver,
+      ByteString handle, List<InetSocketAddress> endpoints, long window, long reorderBytes) {
+    Preconditions.checkArgument(!endpoints.isEmpty());
+    for (InetSocketAddress endpoint : endpoints) {
+      Preconditions.checkArgument(!endpoint.isUnresolved());
+    }
+    if (!sessions.containsKey(handle)) {
+      Session session = new Session(receiver, handle, endpoints, window, reorderBytes);
+      if (sessions.putIfAbsent(handle, session) == null) {
+        session.startTimer();
       }
     }
     return true;
   }
 
   /**
-   * Connects the socket identified by the handle.
+   * Returns the session of the handle, or null if there is none.
+   */
+  Session getSession(ByteString handle) {
+    return sessions.get(handle);
+  }
+
+  /**
+   * Returns the number of sessions, created or open.
+   */
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  /**
+   * Connects the socket identified by the handle.  Blocks until connected or the timeout
+   * expires, so it is not called on the tunnel's dispatch thread.
    * @param handle The socket handle.
+   * @param timeout The connect timeout in milliseconds, 0 for the configured default.
    * @return True if connect succeeded.
    */
-  public boolean connect(ByteString handle) {
+  public boolean connect(ByteString handle, int timeout) {
     Session session = sessions.get(handle);
     if (session != null) {
-      return session.connect();
+      return session.connect(timeout > 0 ? timeout : localConf.getConnectTimeout() * 1000);
     }
     return false;
   }
@@ -282,7 +674,10 @@ public class SocketSessionManager {
     }
   }
   
-  public boolean write(ByteString handle, byte[] data, long streamOffset) {
+  /**
+   * Queues the data for writing to the session's socket.  Does not wait for the socket.
+   */
+  public boolean write(ByteString handle, ByteString data, long streamOffset) {
     Session session = sessions.get(handle);
     if (session != null) {
       return session.write(data, streamOffset);
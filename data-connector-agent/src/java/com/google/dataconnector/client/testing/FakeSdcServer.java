@@ -0,0 +1,453 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.testing;
+
+import com.google.dataconnector.protocol.FrameReceiver;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.FramingException;
+import com.google.dataconnector.protocol.ProtocolFeatures;
+import com.google.dataconnector.protocol.ReplayBuffer;
+import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.HealthCheckInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.dataconnector.protocol.proto.SdcFrame.RegistrationResponseV4;
+import com.google.dataconnector.protocol.proto.SdcFrame.ServerSuppliedConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Plain TCP stand in for the SDC server.  It accepts any number of agent tunnels, logs them in,
+ * answers registration and health check frames, groups tunnels that offer a tunnel group and
+ * stripes frames sent to the agent across the open tunnels.  Everything else the agent sends is
+ * collected per tunnel.  Tunnels that negotiate resuming keep their session when dropped and the
+ * agent can resume it on a new connection.
+ */
+public class FakeSdcServer {
+
+  private static final Logger LOG = Logger.getLogger(FakeSdcServer.class);
+
+  private static final int HEALTH_CHECK_INTERVAL = 1; // seconds
+  private static final int HEALTH_CHECK_TIMEOUT = 30; // seconds
+  private static final int RESUME_BUFFER_BYTES = 4 * 1024 * 1024;
+
+  private final ServerSocket serverSocket;
+  private final boolean acceptTunnelGroups;
+  private final ShutdownManager shutdownManager = new ShutdownManager();
+  private final List<Tunnel> tunnels = new ArrayList<Tunnel>();
+  // Resumable sessions by token, mapped to the tunnel that last carried them.
+  private final Map<String, Tunnel> sessions = new HashMap<String, Tunnel>();
+  private int nextTunnel = 0;
+
+  /**
+   * One agent connection accepted by the server.  A tunnel that resumes a session takes over the
+   * frame sender and received frames of the tunnel that carried it before.
+   */
+  public class Tunnel extends Thread {
+
+    private final Socket socket;
+    private final FrameReceiver frameReceiver = new FrameReceiver();
+    private volatile FrameSender frameSender =
+        new FrameSender(new LinkedBlockingQueue<FrameInfo>(), shutdownManager);
+    private volatile BlockingQueue<FrameInfo> received = new LinkedBlockingQueue<FrameInfo>();
+    private volatile ReplayBuffer replayBuffer;
+    private volatile String resumeToken;
+    private volatile String group;
+    private volatile int index = 0;
+    private volatile boolean registered = false;
+    private volatile boolean resumed = false;
+    private volatile boolean closed = false;
+
+    Tunnel(final Socket socket) {
+      this.socket = socket;
+      setName(FakeSdcServer.class.getName() + "-" + socket.getPort());
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        readHandshake(socket.getInputStream());
+        frameReceiver.setInputStream(socket.getInputStream());
+        final AuthorizationInfo request =
+            AuthorizationInfo.parseFrom(frameReceiver.readOneFrame().getPayload());
+        if (getFeature(request, ProtocolFeatures.RESUME_SEQUENCE) != null) {
+          resume(request);
+        } else {
+          frameSender.setOutputStream(socket.getOutputStream());
+          login(request);
+        }
+        while (true) {
+          handle(frameReceiver.readOneFrame());
+        }
+      } catch (IOException e) {
+        LOG.debug("Tunnel closed.", e);
+      } catch (FramingException e) {
+        LOG.debug("Tunnel closed.", e);
+      } finally {
+        if (replayBuffer == null) {
+          close();
+        } else {
+          drop();
+        }
+      }
+    }
+
+    private void login(final AuthorizationInfo request) {
+      final AuthorizationInfo.Builder response = AuthorizationInfo.newBuilder()
+          .setResult(AuthorizationInfo.ResultCode.OK);
+      final String token = getFeature(request, ProtocolFeatures.RESUME);
+      if (token != null) {
+        // Buffer from the authorization response on, before the sender starts.
+        resumeToken = token;
+        replayBuffer = new ReplayBuffer(RESUME_BUFFER_BYTES);
+        frameSender.setReplayBuffer(replayBuffer);
+        frameReceiver.setReplayBuffer(replayBuffer);
+        response.addFeatures(MessageHeader.newBuilder()
+            .setKey(ProtocolFeatures.RESUME)
+            .setValue(token));
+        synchronized (sessions) {
+          sessions.put(token, this);
+        }
+      }
+      frameSender.start();
+      if (acceptTunnelGroups) {
+        for (MessageHeader feature : request.getFeaturesList()) {
+          if (feature.getKey().equals(ProtocolFeatures.TUNNEL_GROUP)) {
+            group = feature.getValue();
+            response.addFeatures(feature);
+          } else if (feature.getKey().equals(ProtocolFeatures.TUNNEL_INDEX)) {
+            index = Integer.parseInt(feature.getValue());
+            response.addFeatures(feature);
+          } else if (feature.getKey().equals(ProtocolFeatures.TUNNEL_COUNT)) {
+            response.addFeatures(feature);
+          }
+        }
+      }
+      frameSender.sendFrame(FrameInfo.Type.AUTHORIZATION, response.build().toByteString());
+      addTunnel();
+      // Later tunnels of a group join the registration of the group.
+      if (group != null && index > 0) {
+        sendRegistrationResponse();
+      }
+    }
+
+    /**
+     * Continues the session of an earlier tunnel.  The response goes out as frame 0 of the new
+     * connection, then both sides continue the sequences of the session.
+     *
+     * @throws IOException if the session is unknown, after telling the agent.
+     */
+    private void resume(final AuthorizationInfo request) throws IOException {
+      final String token = getFeature(request, ProtocolFeatures.RESUME);
+      final long agentSequence =
+          Long.parseLong(getFeature(request, ProtocolFeatures.RESUME_SEQUENCE));
+      final Tunnel previous;
+      synchronized (sessions) {
+        previous = sessions.get(token);
+      }
+      final AuthorizationInfo.Builder response = AuthorizationInfo.newBuilder()
+          .setResult(AuthorizationInfo.ResultCode.OK);
+      if (previous == null || !previous.replayBuffer.canReplayFrom(agentSequence)) {
+        FrameSender.writeFrame(socket.getOutputStream(), FrameInfo.newBuilder()
+            .setType(FrameInfo.Type.AUTHORIZATION)
+            .setPayload(response.build().toByteString())
+            .build());
+        throw new IOException("Unknown session " + token);
+      }
+      previous.drop();
+
+      resumeToken = token;
+      replayBuffer = previous.replayBuffer;
+      frameSender = previous.frameSender;
+      received = previous.received;
+      group = previous.group;
+      index = previous.index;
+      registered = previous.registered;
+      resumed = true;
+      final long serverSequence = replayBuffer.getReceivedSequence();
+      response.addFeatures(MessageHeader.newBuilder()
+              .setKey(ProtocolFeatures.RESUME)
+              .setValue(token))
+          .addFeatures(MessageHeader.newBuilder()
+              .setKey(ProtocolFeatures.RESUME_SEQUENCE)
+              .setValue(String.valueOf(serverSequence)));
+      FrameSender.writeFrame(socket.getOutputStream(), FrameInfo.newBuilder()
+          .setType(FrameInfo.Type.AUTHORIZATION)
+          .setPayload(response.build().toByteString())
+          .build());
+      frameReceiver.setSequence(serverSequence);
+      frameReceiver.setReplayBuffer(replayBuffer);
+      frameSender.resume(socket.getOutputStream(), agentSequence);
+      synchronized (sessions) {
+        sessions.put(token, this);
+      }
+      addTunnel();
+    }
+
+    private void addTunnel() {
+      synchronized (tunnels) {
+        tunnels.add(this);
+        tunnels.notifyAll();
+      }
+    }
+
+    private void handle(final FrameInfo frameInfo) throws InvalidProtocolBufferException {
+      switch (frameInfo.getType()) {
+        case REGISTRATION:
+          registered = true;
+          sendRegistrationResponse();
+          break;
+        case HEALTH_CHECK:
+          final HealthCheckInfo request = HealthCheckInfo.parseFrom(frameInfo.getPayload());
+          frameSender.sendFrame(FrameInfo.Type.HEALTH_CHECK, HealthCheckInfo.newBuilder()
+              .setSource(HealthCheckInfo.Source.SERVER)
+              .setType(HealthCheckInfo.Type.RESPONSE)
+              .setTimeStamp(request.getTimeStamp())
+              .build().toByteString());
+          break;
+        default:
+          received.add(frameInfo);
+      }
+    }
+
+    private void sendRegistrationResponse() {
+      frameSender.sendFrame(FrameInfo.Type.REGISTRATION, RegistrationResponseV4.newBuilder()
+          .setResult(RegistrationResponseV4.ResultCode.OK)
+          .setServerSuppliedConf(ServerSuppliedConf.newBuilder()
+              .setHealthCheckWakeUpInterval(HEALTH_CHECK_INTERVAL)
+              .setHealthCheckTimeout(HEALTH_CHECK_TIMEOUT))
+          .build().toByteString());
+    }
+
+    /**
+     * Queues a frame for the agent on this tunnel.
+     */
+    public void sendFrame(final FrameInfo frameInfo) {
+      frameSender.sendFrame(frameInfo);
+    }
+
+    /**
+     * Returns the frames the agent sent on this tunnel other than registration and health checks.
+     */
+    public BlockingQueue<FrameInfo> getReceived() {
+      return received;
+    }
+
+    /**
+     * Returns the tunnel group the agent offered or null.
+     */
+    public String getGroup() {
+      return group;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    /**
+     * Returns true if the agent registered its resources on this tunnel.
+     */
+    public boolean isRegistered() {
+      return registered;
+    }
+
+    /**
+     * Returns true if this tunnel continues the session of a dropped tunnel.
+     */
+    public boolean isResumed() {
+      return resumed;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    /**
+     * Drops the tunnel like a failed server connection would and forgets its session.
+     */
+    public void close() {
+      boolean ownsSession = true;
+      if (resumeToken != null) {
+        synchronized (sessions) {
+          ownsSession = sessions.get(resumeToken) == this;
+          if (ownsSession) {
+            sessions.remove(resumeToken);
+          }
+        }
+      }
+      drop();
+      // A session resumed by a later tunnel keeps its sender.
+      if (ownsSession) {
+        frameSender.shutdown();
+      }
+    }
+
+    /**
+     * Drops the connection of the tunnel but keeps a resumable session for the agent to resume.
+     * Frames sent in the meantime are delivered once it does.
+     */
+    public void drop() {
+      closed = true;
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOG.debug("Socket exception when closing.", e);
+      }
+    }
+  }
+
+  /**
+   * Creates a server on an ephemeral local port.
+   *
+   * @param acceptTunnelGroups false to act like a server that does not know about tunnel groups.
+   */
+  public FakeSdcServer(final boolean acceptTunnelGroups) throws IOException {
+    this.acceptTunnelGroups = acceptTunnelGroups;
+    serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Starts accepting tunnels in the background.
+   */
+  public void start() {
+    final Thread acceptor = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            new Tunnel(serverSocket.accept()).start();
+          }
+        } catch (IOException e) {
+          LOG.debug("Server socket closed.", e);
+        }
+      }
+    };
+    acceptor.setName(FakeSdcServer.class.getName());
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * Returns all tunnels that logged in so far, including closed ones, in login order.
+   */
+  public List<Tunnel> getTunnels() {
+    synchronized (tunnels) {
+      return new ArrayList<Tunnel>(tunnels);
+    }
+  }
+
+  /**
+   * Returns the open tunnels.
+   */
+  public List<Tunnel> getOpenTunnels() {
+    final List<Tunnel> open = new ArrayList<Tunnel>();
+    for (Tunnel tunnel : getTunnels()) {
+      if (!tunnel.isClosed()) {
+        open.add(tunnel);
+      }
+    }
+    return open;
+  }
+
+  /**
+   * Waits until the given number of tunnels logged in.
+   *
+   * @return all tunnels that logged in so far.
+   * @throws InterruptedException if the timeout passes first.
+   */
+  public List<Tunnel> awaitTunnels(final int count, final long timeoutMillis)
+      throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    synchronized (tunnels) {
+      while (tunnels.size() < count) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          throw new InterruptedException("Only " + tunnels.size() + " of " + count +
+              " tunnels logged in");
+        }
+        tunnels.wait(remaining);
+      }
+      return new ArrayList<Tunnel>(tunnels);
+    }
+  }
+
+  /**
+   * Sends a frame to the agent on the next open tunnel, round robin.
+   *
+   * @return the tunnel used.
+   */
+  public Tunnel stripe(final FrameInfo frameInfo) {
+    final List<Tunnel> open = getOpenTunnels();
+    if (open.isEmpty()) {
+      throw new IllegalStateException("No open tunnels");
+    }
+    final Tunnel tunnel;
+    synchronized (this) {
+      tunnel = open.get(nextTunnel++ % open.size());
+    }
+    tunnel.sendFrame(frameInfo);
+    return tunnel;
+  }
+
+  /**
+   * Stops accepting and drops all tunnels.
+   */
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Tunnel tunnel : getTunnels()) {
+      tunnel.close();
+    }
+    shutdownManager.shutdownAll();
+  }
+
+  private static String getFeature(final AuthorizationInfo request, final String name) {
+    for (MessageHeader feature : request.getFeaturesList()) {
+      if (feature.getKey().equals(name)) {
+        return feature.getValue();
+      }
+    }
+    return null;
+  }
+
+  private static void readHandshake(final InputStream in) throws IOException {
+    int read;
+    while ((read = in.read()) != '\n') {
+      if (read == -1) {
+        throw new IOException("Closed during handshake");
+      }
+    }
+  }
+}
@@ -0,0 +1,390 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import org.apache.log4j.Logger;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of I/O buffers shared by the connectors, socket sessions, the frame receiver and fetches.
+ * Buffers come in power of two size classes from {@link #MIN_CLASS_SIZE} to
+ * {@link #MAX_CLASS_SIZE}.  A lease is rounded up to its class and served from the free buffers of
+ * that class when there are any.  Released buffers are kept for the next lease until the pool
+ * holds its retention limit, the rest are left to the garbage collector.  Larger leases are never
+ * pooled.  A pool with a retention limit of 0 simply allocates.
+ *
+ * <p>Byte buffers are off-heap direct buffers if the pool is configured so, which saves a copy on
+ * every channel read.  Otherwise they wrap pooled arrays.
+ *
+ * <p>With leak detection on, the pool remembers where every outstanding buffer was leased.  That
+ * costs a stack trace per lease, but a buffer dropped without being released is reported with the
+ * code that leased it once the garbage collector finds it, see {@link #reportLeaks}.  It also
+ * makes releasing a buffer twice, or one the pool never leased, harmless.
+ */
+public class BufferPool {
+
+  private static final Logger LOG = Logger.getLogger(BufferPool.class);
+
+  public static final int MIN_CLASS_SIZE = 4 * 1024;
+  public static final int MAX_CLASS_SIZE = 1024 * 1024;
+  private static final int CLASS_COUNT =
+      Integer.numberOfTrailingZeros(MAX_CLASS_SIZE / MIN_CLASS_SIZE) + 1;
+
+  private final long maxPooledBytes;
+  private final boolean direct;
+  private final boolean leakDetection;
+  private final List<ConcurrentLinkedQueue<byte[]>> freeArrays;
+  private final List<ConcurrentLinkedQueue<ByteBuffer>> freeDirectBuffers;
+  // Outstanding leases by the identity hash of their buffer, only with leak detection.  Guarded
+  // by itself.
+  private final Map<Integer, List<Lease>> leases = new HashMap<Integer, List<Lease>>();
+  private final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+
+  // Metrics.
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final AtomicLong leasedBytes = new AtomicLong();
+  private final AtomicLong outstanding = new AtomicLong();
+  private final AtomicLong leaseCount = new AtomicLong();
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong leakCount = new AtomicLong();
+
+  /**
+   * @param maxPooledBytes bytes of free buffers the pool keeps for reuse.
+   * @param direct true to hand out off-heap byte buffers.
+   * @param leakDetection true to track where outstanding buffers were leased.
+   */
+  public BufferPool(final long maxPooledBytes, final boolean direct,
+      final boolean leakDetection) {
+    this.maxPooledBytes = maxPooledBytes;
+    this.direct = direct;
+    this.leakDetection = leakDetection;
+    freeArrays = new ArrayList<ConcurrentLinkedQueue<byte[]>>(CLASS_COUNT);
+    freeDirectBuffers = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>(CLASS_COUNT);
+    for (int i = 0; i < CLASS_COUNT; i++) {
+      freeArrays.add(new ConcurrentLinkedQueue<byte[]>());
+      freeDirectBuffers.add(new ConcurrentLinkedQueue<ByteBuffer>());
+    }
+  }
+
+  /**
+   * Returns a pool that never keeps buffers, for code used without an injector.
+   */
+  public static BufferPool unpooled() {
+    return new BufferPool(0, false, false);
+  }
+
+  /**
+   * Leases an array of at least {@code size} bytes.  The array may be longer and its contents
+   * are undefined.
+   */
+  public byte[] lease(final int size) {
+    final int sizeClass = sizeClass(size);
+    byte[] buffer = null;
+    if (sizeClass != -1) {
+      buffer = freeArrays.get(sizeClass).poll();
+    }
+    if (buffer != null) {
+      hitCount.incrementAndGet();
+      pooledBytes.addAndGet(-buffer.length);
+    } else {
+      buffer = new byte[sizeClass == -1 ? size : classSize(sizeClass)];
+    }
+    leased(buffer, buffer.length);
+    return buffer;
+  }
+
+  /**
+   * Hands back an array from {@link #lease}.  It must not be used afterwards.
+   */
+  public void release(final byte[] buffer) {
+    if (!released(buffer, buffer.length)) {
+      return;
+    }
+    final int sizeClass = exactClass(buffer.length);
+    if (sizeClass != -1 && retain(buffer.length)) {
+      freeArrays.get(sizeClass).add(buffer);
+    }
+  }
+
+  /**
+   * Leases a byte buffer with room for at least {@code size} bytes, cleared and limited to
+   * {@code size}.  It is direct if the pool was configured so.
+   */
+  public ByteBuffer leaseByteBuffer(final int size) {
+    if (!direct) {
+      final ByteBuffer buffer = ByteBuffer.wrap(lease(size));
+      buffer.limit(size);
+      return buffer;
+    }
+    final int sizeClass = sizeClass(size);
+    ByteBuffer buffer = null;
+    if (sizeClass != -1) {
+      buffer = freeDirectBuffers.get(sizeClass).poll();
+    }
+    if (buffer != null) {
+      hitCount.incrementAndGet();
+      pooledBytes.addAndGet(-buffer.capacity());
+    } else {
+      buffer = ByteBuffer.allocateDirect(sizeClass == -1 ? size : classSize(sizeClass));
+    }
+    leased(buffer, buffer.capacity());
+    buffer.clear();
+    buffer.limit(size);
+    return buffer;
+  }
+
+  /**
+   * Hands back a byte buffer from {@link #leaseByteBuffer}.  It must not be used afterwards.
+   */
+  public void release(final ByteBuffer buffer) {
+    if (!buffer.isDirect()) {
+      release(buffer.array());
+      return;
+    }
+    if (!released(buffer, buffer.capacity())) {
+      return;
+    }
+    final int sizeClass = exactClass(buffer.capacity());
+    if (sizeClass != -1 && retain(buffer.capacity())) {
+      freeDirectBuffers.get(sizeClass).add(buffer);
+    }
+  }
+
+  public boolean isDirect() {
+    return direct;
+  }
+
+  public long getMaxPooledBytes() {
+    return maxPooledBytes;
+  }
+
+  /**
+   * Returns the bytes of free buffers kept for reuse.
+   */
+  public long getPooledBytes() {
+    return pooledBytes.get();
+  }
+
+  /**
+   * Returns the bytes of buffers currently leased.
+   */
+  public long getLeasedBytes() {
+    return leasedBytes.get();
+  }
+
+  /**
+   * Returns the number of buffers currently leased.
+   */
+  public long getOutstanding() {
+    return outstanding.get();
+  }
+
+  public long getLeaseCount() {
+    return leaseCount.get();
+  }
+
+  /**
+   * Returns the number of leases served from free buffers.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Returns a one line summary of the pool's utilization.
+   */
+  public String getStats() {
+    final long leaseTotal = leaseCount.get();
+    return String.format("leased %d buffers/%d bytes, pooled %d/%d bytes, " +
+        "%d leases, %.1f%% reused, %d leaked", outstanding.get(), leasedBytes.get(),
+        pooledBytes.get(), maxPooledBytes, leaseTotal,
+        leaseTotal == 0 ? 0.0 : hitCount.get() * 100.0 / leaseTotal, leakCount.get());
+  }
+
+  /**
+   * Returns the number of buffers found garbage collected while still leased.
+   */
+  public long getLeakCount() {
+    return leakCount.get();
+  }
+
+  /**
+   * Logs where every buffer collected by the garbage collector without being released was leased,
+   * and stops counting it as leased.  Also done on every lease.  Only possible with leak detection
+   * on.
+   *
+   * @return the number of leaks found.
+   */
+  public int reportLeaks() {
+    if (!leakDetection) {
+      return 0;
+    }
+    int leaks = 0;
+    Reference<?> reference;
+    while ((reference = collected.poll()) != null) {
+      final Lease lease = (Lease) reference;
+      if (!removeLease(lease)) {
+        continue; // Released while being collected.
+      }
+      leaks++;
+      leakCount.incrementAndGet();
+      outstanding.decrementAndGet();
+      leasedBytes.addAndGet(-lease.size);
+      LOG.warn("Buffer of " + lease.size + " bytes was never released", lease.site);
+    }
+    return leaks;
+  }
+
+  private void leased(final Object buffer, final int size) {
+    leaseCount.incrementAndGet();
+    outstanding.incrementAndGet();
+    leasedBytes.addAndGet(size);
+    if (leakDetection) {
+      reportLeaks();
+      final Lease lease = new Lease(buffer, size, collected);
+      synchronized (leases) {
+        List<Lease> bucket = leases.get(lease.hash);
+        if (bucket == null) {
+          bucket = new ArrayList<Lease>(1);
+          leases.put(lease.hash, bucket);
+        }
+        bucket.add(lease);
+      }
+    }
+  }
+
+  /**
+   * Accounts for a released buffer.
+   *
+   * @return false if leak detection shows the buffer is not leased, so it must not be pooled.
+   */
+  private boolean released(final Object buffer, final int size) {
+    if (leakDetection) {
+      Lease lease = null;
+      synchronized (leases) {
+        final List<Lease> bucket = leases.get(System.identityHashCode(buffer));
+        if (bucket != null) {
+          for (Lease candidate : bucket) {
+            if (candidate.get() == buffer) {
+              lease = candidate;
+              break;
+            }
+          }
+        }
+      }
+      if (lease == null || !removeLease(lease)) {
+        LOG.warn("Released a buffer of " + size + " bytes that is not leased",
+            new Throwable("release site"));
+        return false;
+      }
+      lease.clear();
+    }
+    outstanding.decrementAndGet();
+    leasedBytes.addAndGet(-size);
+    return true;
+  }
+
+  /**
+   * Forgets a lease.
+   *
+   * @return false if it was already forgotten.
+   */
+  private boolean removeLease(final Lease lease) {
+    synchronized (leases) {
+      final List<Lease> bucket = leases.get(lease.hash);
+      if (bucket == null) {
+        return false;
+      }
+      for (int i = 0; i < bucket.size(); i++) {
+        if (bucket.get(i) == lease) {
+          bucket.remove(i);
+          if (bucket.isEmpty()) {
+            leases.remove(lease.hash);
+          }
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Makes room for a free buffer under the retention limit.
+   */
+  private boolean retain(final int size) {
+    while (true) {
+      final long pooled = pooledBytes.get();
+      if (pooled + size > maxPooledBytes) {
+        return false;
+      }
+      if (pooledBytes.compareAndSet(pooled, pooled + size)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Returns the smallest class holding {@code size} bytes, or -1 if it is too large to pool.
+   */
+  static int sizeClass(final int size) {
+    if (size > MAX_CLASS_SIZE) {
+      return -1;
+    }
+    if (size <= MIN_CLASS_SIZE) {
+      return 0;
+    }
+    return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_CLASS_SIZE);
+  }
+
+  static int classSize(final int sizeClass) {
+    return MIN_CLASS_SIZE << sizeClass;
+  }
+
+  /**
+   * Returns the class of a buffer the pool allocated, or -1 if it was never pooled.
+   */
+  private static int exactClass(final int length) {
+    final int sizeClass = sizeClass(length);
+    return (sizeClass != -1 && classSize(sizeClass) == length) ? sizeClass : -1;
+  }
+
+  /**
+   * Where a buffer was leased.  Only weakly refers to the buffer, so a leaked buffer is still
+   * collected and the lease turns up in the reference queue.
+   */
+  private static class Lease extends WeakReference<Object> {
+    private final int size;
+    private final int hash;
+    private final Throwable site = new Throwable("lease site");
+
+    Lease(final Object buffer, final int size, final ReferenceQueue<Object> queue) {
+      super(buffer, queue);
+      this.size = size;
+      this.hash = System.identityHashCode(buffer);
+    }
+  }
+}
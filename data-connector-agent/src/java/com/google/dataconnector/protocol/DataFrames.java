@@ -0,0 +1,173 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds the frames that carry bytes read from a socket.  The nested {@link SocketDataInfo} or
+ * {@link SocketSessionData} is encoded straight from the read buffer into an array of exactly its
+ * size, which becomes the frame payload with one more bounded copy.  That is still fewer copies
+ * than into a segment, then a serialized message and then the {@link FrameSender}'s write
+ * buffer.  The encoding is byte for byte what the generated classes produce.
+ */
+public final class DataFrames {
+
+  private static final int SEGMENT_FIELD = SocketDataInfo.SEGMENT_FIELD_NUMBER;
+  private static final int DATA_FIELD = SocketSessionData.DATA_FIELD_NUMBER;
+  private static final int COPY_CHUNK_SIZE = 4096;
+
+  private DataFrames() {
+  }
+
+  /**
+   * Returns a CONTINUE socket data frame carrying the given bytes.
+   */
+  public static FrameInfo socketData(final long connectionId, final byte[] buffer,
+      final int offset, final int length) {
+    final Encoder encoder = socketDataHeader(connectionId, length);
+    try {
+      encoder.getCodedOutput().writeRawBytes(buffer, offset, length);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Only thrown for a full buffer.
+    }
+    return frame(FrameInfo.Type.SOCKET_DATA, encoder.build());
+  }
+
+  /**
+   * Returns a CONTINUE socket data frame carrying the remaining bytes of the buffer, which are
+   * consumed.  Direct buffers are copied through a small array, they cannot be read in one go.
+   */
+  public static FrameInfo socketData(final long connectionId, final ByteBuffer buffer) {
+    final int length = buffer.remaining();
+    if (buffer.hasArray()) {
+      final FrameInfo frame = socketData(connectionId, buffer.array(),
+          buffer.arrayOffset() + buffer.position(), length);
+      buffer.position(buffer.limit());
+      return frame;
+    }
+    final Encoder encoder = socketDataHeader(connectionId, length);
+    final byte[] chunk = new byte[Math.min(length, COPY_CHUNK_SIZE)];
+    try {
+      while (buffer.hasRemaining()) {
+        final int count = Math.min(chunk.length, buffer.remaining());
+        buffer.get(chunk, 0, count);
+        encoder.getCodedOutput().writeRawBytes(chunk, 0, count);
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return frame(FrameInfo.Type.SOCKET_DATA, encoder.build());
+  }
+
+  /**
+   * Returns a socket session frame carrying the given bytes of the session's stream.
+   */
+  public static FrameInfo socketSessionData(final ByteString socketHandle,
+      final long streamOffset, final byte[] buffer, final int offset, final int length) {
+    final int size = CodedOutputStream.computeBytesSize(
+        SocketSessionData.SOCKETHANDLE_FIELD_NUMBER, socketHandle) +
+        lengthDelimitedSize(DATA_FIELD, length) +
+        CodedOutputStream.computeInt64Size(
+            SocketSessionData.STREAMOFFSET_FIELD_NUMBER, streamOffset);
+    final Encoder encoder = new Encoder(size);
+    final CodedOutputStream output = encoder.getCodedOutput();
+    try {
+      output.writeBytes(SocketSessionData.SOCKETHANDLE_FIELD_NUMBER, socketHandle);
+      output.writeTag(DATA_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeRawVarint32(length);
+      output.writeRawBytes(buffer, offset, length);
+      output.writeInt64(SocketSessionData.STREAMOFFSET_FIELD_NUMBER, streamOffset);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return frame(FrameInfo.Type.SOCKET_SESSION, encoder.build());
+  }
+
+  /**
+   * Starts a {@link SocketDataInfo} payload, everything up to the segment bytes.
+   */
+  private static Encoder socketDataHeader(final long connectionId, final int length) {
+    final int size =
+        CodedOutputStream.computeInt64Size(SocketDataInfo.CONNECTIONID_FIELD_NUMBER, connectionId) +
+        CodedOutputStream.computeEnumSize(SocketDataInfo.STATE_FIELD_NUMBER,
+            SocketDataInfo.State.CONTINUE.getNumber()) +
+        lengthDelimitedSize(SEGMENT_FIELD, length);
+    final Encoder encoder = new Encoder(size);
+    final CodedOutputStream output = encoder.getCodedOutput();
+    try {
+      output.writeInt64(SocketDataInfo.CONNECTIONID_FIELD_NUMBER, connectionId);
+      output.writeEnum(SocketDataInfo.STATE_FIELD_NUMBER,
+          SocketDataInfo.State.CONTINUE.getNumber());
+      output.writeTag(SEGMENT_FIELD, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      output.writeRawVarint32(length);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return encoder;
+  }
+
+  /**
+   * Encodes into an array of the exact size of the payload.
+   */
+  private static final class Encoder {
+    private final byte[] bytes;
+    private final CodedOutputStream output;
+
+    /**
+     * @param size the exact number of bytes that will be written.
+     */
+    Encoder(final int size) {
+      bytes = new byte[size];
+      output = CodedOutputStream.newInstance(bytes);
+    }
+
+    CodedOutputStream getCodedOutput() {
+      return output;
+    }
+
+    /**
+     * Returns the written bytes.
+     *
+     * @throws IllegalStateException if fewer bytes were written than announced.
+     */
+    ByteString build() {
+      output.checkNoSpaceLeft();
+      return ByteString.copyFrom(bytes);
+    }
+  }
+
+  private static int lengthDelimitedSize(final int field, final int length) {
+    return CodedOutputStream.computeTagSize(field) +
+        CodedOutputStream.computeRawVarint32Size(length) + length;
+  }
+
+  private static FrameInfo frame(final FrameInfo.Type type, final ByteString payload) {
+    return FrameInfo.newBuilder()
+        .setType(type)
+        .setPayload(payload)
+        .build();
+  }
+}
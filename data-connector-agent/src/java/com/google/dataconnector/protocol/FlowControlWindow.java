@@ -0,0 +1,114 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+/**
+ * Byte credit window for one direction of a socket data connection.  The sending side blocks in
+ * {@link #acquire} until the peer hands credit back, while the receiving side uses
+ * {@link #tryAcquire} so the frame dispatch loop never waits on a single slow connection.
+ */
+public class FlowControlWindow {
+
+  private final long size;
+  private long available;
+  private boolean closed = false;
+
+  /**
+   * Creates a window with all of its credit available.
+   *
+   * @param size window size in bytes.
+   */
+  public FlowControlWindow(final long size) {
+    this.size = size;
+    this.available = size;
+  }
+
+  /**
+   * Waits until some credit is available and takes up to {@code max} bytes of it.
+   *
+   * @param max the most credit the caller can use.
+   * @return the credit granted, or 0 if the window has been closed.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public synchronized int acquire(final int max) throws InterruptedException {
+    while (available <= 0 && !closed) {
+      wait();
+    }
+    if (closed) {
+      return 0;
+    }
+    final int granted = (int) Math.min(max, available);
+    available -= granted;
+    return granted;
+  }
+
+  /**
+   * Takes up to {@code max} bytes of whatever credit is available without waiting.
+   *
+   * @param max the most credit the caller can use.
+   * @return the credit granted, 0 if there is none or the window has been closed.
+   */
+  public synchronized int acquireAvailable(final int max) {
+    if (closed || available <= 0) {
+      return 0;
+    }
+    final int granted = (int) Math.min(max, available);
+    available -= granted;
+    return granted;
+  }
+
+  /**
+   * Takes exactly {@code bytes} of credit without waiting.
+   *
+   * @return false if the window does not have that much credit left or has been closed.
+   */
+  public synchronized boolean tryAcquire(final long bytes) {
+    if (closed || bytes > available) {
+      return false;
+    }
+    available -= bytes;
+    return true;
+  }
+
+  /**
+   * Returns credit to the window and wakes any waiting senders.
+   */
+  public synchronized void release(final long bytes) {
+    available += bytes;
+    notifyAll();
+  }
+
+  /**
+   * Closes the window, waking anyone blocked in {@link #acquire}.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  public synchronized long getAvailable() {
+    return available;
+  }
+
+  public long getSize() {
+    return size;
+  }
+}
@@ -0,0 +1,165 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.ByteString;
+
+import org.apache.log4j.Logger;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates and inflates {@link FrameInfo} payloads for the "frame-compression" protocol feature.
+ * Payloads below the threshold are sent as is, and a payload is only sent compressed when that
+ * actually saves bytes.
+ *
+ * <p>In adaptive mode the compressor keeps the observed ratio per frame type.  When a type stops
+ * compressing well, for example a connection tunnelling already compressed data, compression is
+ * skipped for that type for a while before it is sampled again.
+ *
+ * <p>An instance keeps its own {@link Deflater} and {@link Inflater} and must only be used from
+ * one thread.  The {@link FrameSender} and {@link FrameReceiver} each get their own.
+ */
+public class FrameCompressor {
+
+  private static final Logger LOG = Logger.getLogger(FrameCompressor.class);
+
+  public static final int DEFAULT_THRESHOLD = 512; // bytes
+  static final int SAMPLE_BYTES = 256 * 1024; // bytes looked at before judging a type.
+  static final double MAX_RATIO = 0.9; // compressed / original above which we give up.
+  static final int SKIP_FRAMES = 1000; // frames sent uncompressed before sampling again.
+
+  private final int threshold;
+  private final boolean adaptive;
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final Inflater inflater = new Inflater();
+  private byte[] buffer = new byte[FrameReceiver.READ_BUFFER_SIZE];
+
+  // Adaptive state indexed by frame type.
+  private final long[] sampledIn = new long[FrameInfo.Type.values().length];
+  private final long[] sampledOut = new long[FrameInfo.Type.values().length];
+  private final int[] framesToSkip = new int[FrameInfo.Type.values().length];
+
+  /**
+   * @param threshold payloads smaller than this are never compressed.
+   * @param adaptive true to stop compressing frame types that do not compress well.
+   */
+  public FrameCompressor(final int threshold, final boolean adaptive) {
+    this.threshold = threshold;
+    this.adaptive = adaptive;
+  }
+
+  /**
+   * Returns the frame with its payload compressed, or the frame untouched if it is too small,
+   * does not compress or its type is currently being skipped.
+   */
+  public FrameInfo compress(final FrameInfo frameInfo) {
+    final int size = frameInfo.getPayload().size();
+    if (size < threshold || frameInfo.getCompressed()) {
+      return frameInfo;
+    }
+    final int type = frameInfo.getType().ordinal();
+    if (framesToSkip[type] > 0) {
+      framesToSkip[type]--;
+      return frameInfo;
+    }
+
+    // Only accept output strictly smaller than the input.
+    ensureBuffer(size);
+    deflater.reset();
+    deflater.setInput(frameInfo.getPayload().toByteArray());
+    deflater.finish();
+    int length = 0;
+    while (!deflater.finished() && length < size - 1) {
+      length += deflater.deflate(buffer, length, size - 1 - length);
+    }
+    final boolean smaller = deflater.finished();
+    record(type, size, smaller ? length : size);
+    if (!smaller) {
+      return frameInfo;
+    }
+    return FrameInfo.newBuilder(frameInfo)
+        .setPayload(ByteString.copyFrom(buffer, 0, length))
+        .setCompressed(true)
+        .build();
+  }
+
+  /**
+   * Returns the frame with its payload inflated if it was sent compressed.
+   *
+   * @throws FramingException if the payload is corrupt or inflates past the maximum frame size.
+   */
+  public FrameInfo decompress(final FrameInfo frameInfo) throws FramingException {
+    if (!frameInfo.getCompressed()) {
+      return frameInfo;
+    }
+    inflater.reset();
+    inflater.setInput(frameInfo.getPayload().toByteArray());
+    int length = 0;
+    try {
+      while (!inflater.finished()) {
+        if (length == buffer.length) {
+          if (buffer.length >= FrameReceiver.MAX_FRAME_SIZE) {
+            throw new FramingException("Compressed payload exceeds maximum frame size.");
+          }
+          final byte[] newBuffer =
+              new byte[Math.min(buffer.length * 2, FrameReceiver.MAX_FRAME_SIZE)];
+          System.arraycopy(buffer, 0, newBuffer, 0, length);
+          buffer = newBuffer;
+        }
+        final int inflated = inflater.inflate(buffer, length, buffer.length - length);
+        if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new FramingException("Truncated compressed payload.");
+        }
+        length += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new FramingException(e);
+    }
+    return FrameInfo.newBuilder(frameInfo)
+        .setPayload(ByteString.copyFrom(buffer, 0, length))
+        .clearCompressed()
+        .build();
+  }
+
+  private void record(final int type, final int in, final int out) {
+    if (!adaptive) {
+      return;
+    }
+    sampledIn[type] += in;
+    sampledOut[type] += out;
+    if (sampledIn[type] >= SAMPLE_BYTES) {
+      final double ratio = (double) sampledOut[type] / sampledIn[type];
+      if (ratio > MAX_RATIO) {
+        LOG.debug("Compression ratio " + ratio + " for " + FrameInfo.Type.values()[type] +
+            " frames, skipping the next " + SKIP_FRAMES);
+        framesToSkip[type] = SKIP_FRAMES;
+      }
+      sampledIn[type] = 0;
+      sampledOut[type] = 0;
+    }
+  }
+
+  private void ensureBuffer(final int size) {
+    if (buffer.length < size) {
+      buffer = new byte[size];
+    }
+  }
+}
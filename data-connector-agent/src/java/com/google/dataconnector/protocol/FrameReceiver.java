@@ -18,16 +18,19 @@ package com.google.dataconnector.protocol;
 
 import com.google.common.base.Preconditions;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.inject.Inject;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import org.apache.log4j.Logger;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -37,6 +40,21 @@ import java.util.concurrent.atomic.AtomicLong;
  * registered {@link Dispatchable}.  It is up to the user of this object to define the
  * {@link Dispatchable} for each {@link FrameInfo.Type} it wishes to handle.
  *
+ * <p>The stream is read in large chunks into a reusable buffer.  Frame headers are validated in
+ * place and the {@link FrameInfo} is parsed straight out of that buffer, so decoding a frame does
+ * not allocate anything beyond the parsed protocol buffer itself.  A frame too large for the buffer
+ * is read into one leased from the {@link BufferPool}, which goes back once the frame is parsed.
+ *
+ * <p>By default frames are dispatched on the reading thread.  With asynchronous dispatch turned on,
+ * each {@link FrameInfo.Type} gets its own bounded lane and thread, so the reading thread only
+ * decodes frames and a handler that blocks only holds up frames of its own type.  Frames of one
+ * type are still dispatched in the order they were read.
+ *
+ * <p>Socket data is additionally sharded over several lanes by connection id, so different
+ * connections are handled in parallel while the frames of one connection stay in order.  Socket
+ * session frames are encrypted and their handle cannot be read before the handler decrypts them,
+ * so they stay on a single lane.
+ *
  * @author rayc@google.com (Ray Colline)
  */
 public class FrameReceiver {
@@ -49,32 +67,177 @@ public class FrameReceiver {
   static final int PAYLOAD_LEN = 4;
   static final int HEADER_SIZE = 1 + MAGIC.length + SEQUENCE_LEN + PAYLOAD_LEN;
   static final int MAX_FRAME_SIZE = 1024 * 1024; // 1MB
+  static final int READ_BUFFER_SIZE = 64 * 1024; // 64k
+  public static final int DEFAULT_DISPATCH_LANE_CAPACITY = 1000; // frames
+
+  // Types whose stream id is readable before dispatch and may be spread over several lanes.
+  private static final Set<FrameInfo.Type> SHARDED_TYPES = EnumSet.of(FrameInfo.Type.SOCKET_DATA);
 
   // Local fields
   private boolean dispatching;
   private long sequence = 0;
-  private ConcurrentMap<FrameInfo.Type, Dispatchable> dispatchMap =
-      new ConcurrentHashMap<FrameInfo.Type, Dispatchable>();
-  private DataInputStream dataInputStream; // used for byte to primitives conversion.
+  private final Dispatchable[] dispatchers = new Dispatchable[FrameInfo.Type.values().length];
+  private boolean asyncDispatch = false;
+  private int dispatchLaneCapacity = DEFAULT_DISPATCH_LANE_CAPACITY;
+  private int dispatchShards = Runtime.getRuntime().availableProcessors();
+  private DispatchLane[][] dispatchLanes; // indexed by type ordinal, then shard.
+  private volatile FramingException dispatchFailure;
+  private Thread readerThread;
+  private final byte[] defaultReadBuffer = new byte[READ_BUFFER_SIZE];
+  private byte[] readBuffer = defaultReadBuffer; // a leased buffer while reading a large frame.
+  private int readPosition = 0; // first unconsumed byte in readBuffer.
+  private int readLimit = 0; // one past the last valid byte in readBuffer.
 
   // Runtime dependencies
   private InputStream inputStream;
   private AtomicLong byteCounter = new AtomicLong(); // default counter
+  private FrameCompressor frameCompressor;
+  private ReplayBuffer replayBuffer;
+  private final BufferPool bufferPool;
+
+  public FrameReceiver() {
+    this(BufferPool.unpooled());
+  }
+
+  @Inject
+  public FrameReceiver(final BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
 
   /**
    * Reads frames and dispatches them to handlers.  This method does not return and is expected to
-   * be used as the listener reading socket input data for frames to dispatch.  Any frame dispatched
-   * here will be in the main server loop.  If your {@link Dispatchable} does not fork a new thread
-   * and hangs, the entire server will hang.
+   * be used as the listener reading socket input data for frames to dispatch.  Unless
+   * asynchronous dispatch is on, any frame dispatched here will be in the main server loop.  If
+   * your {@link Dispatchable} does not fork a new thread and hangs, the entire server will hang.
    *
-   * @throws FramingException if any framing errors occur.
+   * @throws FramingException if any framing errors occur, including errors from a handler running
+   * on a dispatch lane.
    */
   public void startDispatching() throws FramingException {
     dispatching = true; // Turn off synchronous access.
-    while (true) {
-      dispatch(readFrame());
+    if (!asyncDispatch) {
+      while (true) {
+        dispatch(readFrame());
+      }
+    }
+    readerThread = Thread.currentThread();
+    if (dispatchLanes == null) {
+      startDispatchLanes();
+    }
+    try {
+      while (true) {
+        final FrameInfo frameInfo;
+        try {
+          frameInfo = readFrame();
+        } catch (FramingException e) {
+          // A failed lane closes the stream to stop us, report its error rather than ours.
+          throw (dispatchFailure != null) ? dispatchFailure : e;
+        }
+        final DispatchLane lane = laneFor(frameInfo);
+        if (lane == null) {
+          LOG.info("Unknown frame received: " + frameInfo);
+          continue;
+        }
+        lane.queue.put(frameInfo);
+        if (dispatchFailure != null) {
+          throw dispatchFailure;
+        }
+      }
+    } catch (InterruptedException e) {
+      // A failed lane interrupts us in case we are waiting for room in a lane.
+      throw (dispatchFailure != null) ? dispatchFailure : new FramingException(e);
+    } finally {
+      // Lanes of a resumable session keep the frames they hold for when reading resumes.
+      if (replayBuffer == null || dispatchFailure != null) {
+        stopDispatchLanes();
+      }
+      if (dispatchFailure != null) {
+        Thread.interrupted(); // Clear any interrupt left by the failed lane.
+      }
+    }
+  }
+
+  /**
+   * Starts the lanes for every type that has a dispatcher registered: one per type, or one per
+   * shard for sharded types.
+   */
+  private void startDispatchLanes() {
+    dispatchLanes = new DispatchLane[dispatchers.length][];
+    for (FrameInfo.Type type : FrameInfo.Type.values()) {
+      if (dispatchers[type.ordinal()] == null) {
+        continue;
+      }
+      final int shards = SHARDED_TYPES.contains(type) ? dispatchShards : 1;
+      final DispatchLane[] lanes = new DispatchLane[shards];
+      for (int i = 0; i < shards; i++) {
+        final String name = "FrameDispatcher-" + type + (shards > 1 ? "-" + i : "");
+        lanes[i] = new DispatchLane(name, dispatchers[type.ordinal()]);
+        lanes[i].start();
+      }
+      dispatchLanes[type.ordinal()] = lanes;
+    }
+  }
+
+  /**
+   * Returns the lane for a frame, hashing the connection id of sharded socket data so every frame
+   * of a connection goes to the same lane.  Returns null if nobody handles the frame's type.
+   *
+   * <p>The reader thread only reads the leading connection id, a fixed cost of a few nanoseconds
+   * per frame.  The payload, segment copy included, is parsed once, by the handler on its lane.
+   */
+  private DispatchLane laneFor(final FrameInfo frameInfo) {
+    final DispatchLane[] lanes = dispatchLanes[frameInfo.getType().ordinal()];
+    if (lanes == null) {
+      return null;
+    }
+    if (lanes.length == 1) {
+      return lanes[0];
+    }
+    final long connectionId = StreamKeys.connectionId(frameInfo);
+    return lanes[((int) (connectionId ^ (connectionId >>> 32)) & Integer.MAX_VALUE) %
+        lanes.length];
+  }
+
+  private void stopDispatchLanes() {
+    if (dispatchLanes == null) {
+      return;
+    }
+    for (DispatchLane[] lanes : dispatchLanes) {
+      if (lanes != null) {
+        for (DispatchLane lane : lanes) {
+          lane.interrupt();
+        }
+      }
     }
-   }
+    dispatchLanes = null;
+  }
+
+  /**
+   * Stops the dispatch lanes a resumable session keeps running after reading failed.  Call when
+   * the session will not be resumed.
+   */
+  public void stopDispatching() {
+    stopDispatchLanes();
+  }
+
+  /**
+   * Records the first handler failure and stops the reading thread by closing the input stream
+   * and interrupting it.
+   */
+  private void failDispatching(final FramingException failure) {
+    synchronized (this) {
+      if (dispatchFailure != null) {
+        return;
+      }
+      dispatchFailure = failure;
+    }
+    try {
+      inputStream.close();
+    } catch (IOException e) {
+      LOG.debug("Error closing input stream after dispatch failure", e);
+    }
+    readerThread.interrupt();
+  }
 
   /**
    * Reads one frame and returns.  Use this for synchronous calls.  This cannot be called once
@@ -103,59 +266,77 @@ public class FrameReceiver {
 
     try {
       // Read start byte.
-      final int startIndicator = inputStream.read();
+      ensureAvailable(1);
+      final byte startIndicator = readBuffer[readPosition];
       LOG.debug("Start byte: " + startIndicator);
-      if ((byte) startIndicator != FRAME_START) {
+      if (startIndicator != FRAME_START) {
         throw new FramingException("Unexpected frame start read");
       }
 
-      // Read and check magic.
-      final byte[] magic = new byte[MAGIC.length];
-      readBytes(magic, MAGIC.length);
-      final String magicString = new String(magic);
-      LOG.debug("Magic: " + magicString);
-      if (!new String(magic).equals(new String(MAGIC))) {
-        throw new FramingException("Unexpected frame magic read");
+      // Check magic.
+      ensureAvailable(1 + MAGIC.length);
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (readBuffer[readPosition + 1 + i] != MAGIC[i]) {
+          throw new FramingException("Unexpected frame magic read");
+        }
       }
-      Arrays.equals(magic, MAGIC);
 
       // Read sequence, verify and increment.
-      final long readSequence = dataInputStream.readLong();
+      ensureAvailable(HEADER_SIZE);
+      int offset = readPosition + 1 + MAGIC.length;
+      final long readSequence = readLong(offset);
       LOG.debug("sequence: " + readSequence);
       if (readSequence == sequence) {
         sequence++;
+        if (replayBuffer != null) {
+          replayBuffer.setReceivedSequence(sequence);
+        }
       } else {
         throw new FramingException("Unexpected sequence number. Expected: " + sequence +
             " got:" + readSequence);
       }
+      offset += SEQUENCE_LEN;
 
       // Read and verify payload length.
-      final int payloadLength = dataInputStream.readInt();
+      final int payloadLength = readInt(offset);
       LOG.debug("payload length: " + payloadLength);
       if (payloadLength < 0 || payloadLength > MAX_FRAME_SIZE) {
         throw new FramingException("Payload length invalid.");
       }
 
-      // Read in the payload
-      final byte[] payload = new byte[payloadLength];
-      int bytesRead = 0;
-      do {
-        bytesRead += inputStream.read(payload, bytesRead, payloadLength - bytesRead);
-      } while (bytesRead < payloadLength);
+      // Make sure the whole payload is buffered.  The header is consumed first so the buffer only
+      // needs to hold the payload.
+      readPosition += HEADER_SIZE;
+      ensureAvailable(payloadLength);
       // Update the byte counter with header size and payload length if its specified.
       if (byteCounter != null) {
         byteCounter.addAndGet(HEADER_SIZE + payloadLength);
       }
 
-      LOG.debug("payload: " + payload);
-      // Parse the payload into a FrameInfo and return it.
+      // Parse the payload into a FrameInfo and return it.  Bytes fields are copied out of the
+      // buffer by the parser so the buffer can be reused for the next frame.
       try {
-        final FrameInfo frameInfo = FrameInfo.parseFrom(payload);
-        LOG.debug("frame:\n" + frameInfo.toString());
-        LOG.debug("frame type recevd: " + frameInfo.getType());
-        return  frameInfo;
+        FrameInfo frameInfo = FrameInfo.parseFrom(
+            CodedInputStream.newInstance(readBuffer, readPosition, payloadLength));
+        if (frameInfo.getCompressed()) {
+          if (frameCompressor == null) {
+            throw new FramingException("Compressed frame received but compression is off.");
+          }
+          frameInfo = frameCompressor.decompress(frameInfo);
+        }
+        if (replayBuffer != null && frameInfo.hasAck()) {
+          replayBuffer.acknowledge(frameInfo.getAck());
+        }
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("frame:\n" + frameInfo.toString());
+          LOG.debug("frame type recevd: " + frameInfo.getType());
+        }
+        return frameInfo;
       } catch (InvalidProtocolBufferException e) {
         throw new FramingException(e);
+      } finally {
+        readPosition += payloadLength;
+        returnLargeReadBuffer();
       }
     } catch (IOException e) {
       throw new FramingException("IO Exception on tunnelsocket", e);
@@ -163,19 +344,59 @@ public class FrameReceiver {
   }
 
   /**
-   * Calls {@link InputStream#read(byte[], int, int)} until there is no more bytes left to read.
-   * TCP does not guarantee that read will get all the bytes you want.  Therefore, you have to
-   * continually read until you get what you desire.
+   * Makes sure at least the requested number of unconsumed bytes are in the read buffer.  TCP does
+   * not guarantee that read will get all the bytes you want, so we keep reading, taking whatever
+   * the stream has available each time to avoid a read call per field.
    *
-   * @param buffer the buffer to read into.
-   * @param amountToRead the amount of bytes to read.
-   * @throws IOException if any read errors occur.
+   * @param amount the number of bytes needed starting at the current read position.
+   * @throws IOException if any read errors occur or the stream ends early.
+   */
+  private void ensureAvailable(final int amount) throws IOException {
+    if (readLimit - readPosition >= amount) {
+      return;
+    }
+    if (readBuffer.length - readPosition < amount) {
+      // Not enough room after the read position.  Compact and grow if needed.
+      final byte[] target = (readBuffer.length < amount) ? bufferPool.lease(amount) : readBuffer;
+      System.arraycopy(readBuffer, readPosition, target, 0, readLimit - readPosition);
+      readLimit -= readPosition;
+      readPosition = 0;
+      if (target != readBuffer && readBuffer != defaultReadBuffer) {
+        bufferPool.release(readBuffer);
+      }
+      readBuffer = target;
+    }
+    while (readLimit - readPosition < amount) {
+      final int bytesRead = inputStream.read(readBuffer, readLimit, readBuffer.length - readLimit);
+      if (bytesRead == -1) {
+        throw new EOFException("Tunnel stream closed");
+      }
+      readLimit += bytesRead;
+    }
+  }
+
+  /**
+   * Goes back to the default read buffer once a leased one holds nothing more than fits there.
    */
-  private void readBytes(final byte[] buffer, final int amountToRead) throws IOException {
-    int bytesRead = 0;
-    do {
-      bytesRead += inputStream.read(buffer, bytesRead, amountToRead - bytesRead);
-    } while (bytesRead < amountToRead);
+  private void returnLargeReadBuffer() {
+    final int remaining = readLimit - readPosition;
+    if (readBuffer == defaultReadBuffer || remaining > defaultReadBuffer.length) {
+      return;
+    }
+    System.arraycopy(readBuffer, readPosition, defaultReadBuffer, 0, remaining);
+    bufferPool.release(readBuffer);
+    readBuffer = defaultReadBuffer;
+    readPosition = 0;
+    readLimit = remaining;
+  }
+
+  private long readLong(final int offset) {
+    return ((long) readInt(offset) << 32) | (readInt(offset + 4) & 0xFFFFFFFFL);
+  }
+
+  private int readInt(final int offset) {
+    return ((readBuffer[offset] & 0xFF) << 24) | ((readBuffer[offset + 1] & 0xFF) << 16) |
+        ((readBuffer[offset + 2] & 0xFF) << 8) | (readBuffer[offset + 3] & 0xFF);
   }
 
   /**
@@ -187,24 +408,138 @@ public class FrameReceiver {
    * @throws FramingException if any errors occur while processing the frame.
    */
   void dispatch(final FrameInfo frameInfo) throws FramingException {
-
-    if (dispatchMap.containsKey(frameInfo.getType())) {
-      dispatchMap.get(frameInfo.getType()).dispatch(frameInfo);
+    final Dispatchable dispatchable = dispatchers[frameInfo.getType().ordinal()];
+    if (dispatchable != null) {
+      dispatchable.dispatch(frameInfo);
     } else {
       LOG.info("Unknown frame received: " + frameInfo);
     }
   }
 
+  /**
+   * Registers the handler for a frame type.  Must be called before {@link #startDispatching()}.
+   */
   public void registerDispatcher(final FrameInfo.Type type, final Dispatchable dispatchable) {
-    dispatchMap.put(type, dispatchable);
+    Preconditions.checkArgument(!dispatching, "Cannot register dispatchers while dispatching.");
+    dispatchers[type.ordinal()] = dispatchable;
+  }
+
+  /**
+   * Configures dispatching each frame type on its own thread.  Must be called before
+   * {@link #startDispatching()}.
+   *
+   * @param asyncDispatch true to dispatch off the reading thread.
+   * @param laneCapacity frames each type may have waiting before the reader blocks.
+   */
+  public void setAsyncDispatch(final boolean asyncDispatch, final int laneCapacity) {
+    Preconditions.checkArgument(laneCapacity > 0, "laneCapacity must be positive");
+    this.asyncDispatch = asyncDispatch;
+    this.dispatchLaneCapacity = laneCapacity;
+  }
+
+  /**
+   * Sets the number of lanes socket data is spread over in asynchronous dispatch mode.  Defaults
+   * to the number of processors.
+   */
+  public void setDispatchShards(final int dispatchShards) {
+    Preconditions.checkArgument(dispatchShards > 0, "dispatchShards must be positive");
+    this.dispatchShards = dispatchShards;
   }
 
   public void setInputStream(final InputStream inputStream) {
     this.inputStream = inputStream;
-    dataInputStream = new DataInputStream(inputStream);
+    readPosition = 0;
+    readLimit = 0;
+    returnLargeReadBuffer();
+  }
+
+  /**
+   * Switches a resumable session to the input stream of a new connection.  The new connection
+   * starts over at sequence 0 for its authorization frames, {@link #setSequence(long)} then
+   * continues the session's sequence.  Dispatching has to be started again.
+   *
+   * @return false if a handler failed, the session cannot be resumed then.
+   */
+  public boolean restart(final InputStream inputStream) {
+    if (dispatchFailure != null) {
+      return false;
+    }
+    setInputStream(inputStream);
+    sequence = 0;
+    dispatching = false;
+    return true;
+  }
+
+  /**
+   * Sets the sequence of the next frame, used when a resumed session continues on a new
+   * connection.
+   */
+  public void setSequence(final long sequence) {
+    this.sequence = sequence;
+    if (replayBuffer != null) {
+      replayBuffer.setReceivedSequence(sequence);
+    }
+  }
+
+  /**
+   * Returns the sequence of the next frame expected.
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Makes the session resumable.  Acknowledgements on received frames release frames from the
+   * replay buffer and frames read are acknowledged through it.  Only set once the "resume"
+   * feature has been negotiated.
+   */
+  public void setReplayBuffer(final ReplayBuffer replayBuffer) {
+    replayBuffer.setReceivedSequence(sequence);
+    this.replayBuffer = replayBuffer;
   }
 
   public void setByteCounter(final AtomicLong byteCounter) {
     this.byteCounter = byteCounter;
   }
+
+  /**
+   * Accepts compressed frames from now on.  Only set once the "frame-compression" feature has
+   * been negotiated.
+   */
+  public void setFrameCompressor(final FrameCompressor frameCompressor) {
+    this.frameCompressor = frameCompressor;
+  }
+
+  /**
+   * Dispatches the frames routed to it on its own thread, in the order they were read.
+   */
+  private class DispatchLane extends Thread {
+
+    private final Dispatchable dispatchable;
+    private final BlockingQueue<FrameInfo> queue;
+
+    DispatchLane(final String name, final Dispatchable dispatchable) {
+      this.dispatchable = dispatchable;
+      this.queue = new ArrayBlockingQueue<FrameInfo>(dispatchLaneCapacity);
+      setName(name);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          dispatchable.dispatch(queue.take());
+        }
+      } catch (InterruptedException e) {
+        LOG.debug(getName() + " stopped");
+      } catch (FramingException e) {
+        LOG.warn(getName() + " failed", e);
+        failDispatching(e);
+      } catch (RuntimeException e) {
+        LOG.warn(getName() + " failed", e);
+        failDispatching(new FramingException(e));
+      }
+    }
+  }
 }
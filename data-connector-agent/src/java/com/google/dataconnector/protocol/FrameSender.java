@@ -22,13 +22,15 @@ import com.google.dataconnector.util.ShutdownManager;
 import com.google.dataconnector.util.Stoppable;
 import com.google.inject.Inject;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
 import org.apache.log4j.Logger;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -38,12 +40,27 @@ import java.util.concurrent.atomic.AtomicLong;
  * {@link Thread} which watches a queue.  {@link FrameSender#sendFrame(FrameInfo)} is designed
  * to be called from your thread.
  *
+ * <p>Frames are encoded into a reusable write buffer and written to the stream with a single
+ * write.  When batching is enabled, the sender drains every frame already waiting in the queue
+ * into the same buffer and only flushes once the queue runs empty or the configured byte or
+ * latency limit is hit.  This keeps the number of TLS records and syscalls per frame low under
+ * bulk load without delaying a lone frame.
+ *
+ * <p>In a resumable session every frame is also kept in a {@link ReplayBuffer} until the peer
+ * acknowledges it.  A write error then does not end the sender: it waits for
+ * {@link #resume(OutputStream, long)} to hand it the stream of a new connection, sends the
+ * frames the peer missed and carries on with the queue.
+ *
  * @author rayc@google.com (Ray Colline)
  */
 public class FrameSender extends Thread implements Stoppable {
 
   private static final Logger LOG = Logger.getLogger(FrameSender.class);
 
+  static final int DEFAULT_BATCH_MAX_BYTES = 64 * 1024; // 64k
+  static final long DEFAULT_BATCH_MAX_LATENCY = 5; // ms
+  private static final int INITIAL_WRITE_BUFFER_SIZE = 16 * 1024;
+
   // Injected dependencies
   private final BlockingQueue<FrameInfo> sendQueue;
   private ShutdownManager shutdownManager;
@@ -51,10 +68,20 @@ public class FrameSender extends Thread implements Stoppable {
   // Runtime dependencies
   private OutputStream outputStream;
   private AtomicLong byteCounter;
+  private volatile FrameCompressor frameCompressor;
+  private volatile ReplayBuffer replayBuffer;
 
   // Local fields.
-  private DataOutputStream dataOutputStream;
   private long sequence = 0;
+  private byte[] writeBuffer = new byte[INITIAL_WRITE_BUFFER_SIZE];
+  private int writePosition = 0;
+  private boolean batching = true;
+  private int batchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+  private long batchMaxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_BATCH_MAX_LATENCY);
+  private boolean shutdownSeen = false; // set when a batch drained the shutdown frame.
+  private boolean stopping = false; // guarded by this.
+  private OutputStream resumeOutputStream; // guarded by this.
+  private long resumeSequence; // guarded by this.
 
 
   @Inject
@@ -93,8 +120,23 @@ public class FrameSender extends Thread implements Stoppable {
   }
 
   /**
-   * Used by the queue watching loop to write a a single frame to the output stream.   We leave
-   * this package-private to support testing.
+   * Writes a single frame to a stream no sender thread writes to, for example the authorization
+   * frame of a connection that resumes a session before the session's sender takes it over.
+   *
+   * @param outputStream the stream to write to.
+   * @param frameInfo the frame to send.
+   * @throws IOException if any IOerrors while writing.
+   */
+  public static void writeFrame(final OutputStream outputStream, final FrameInfo frameInfo)
+      throws IOException {
+    final FrameSender sender = new FrameSender(null, null);
+    sender.setOutputStream(outputStream);
+    sender.writeOneFrame(frameInfo);
+  }
+
+  /**
+   * Writes a single frame to the output stream right away, bypassing the queue.  Refused once the
+   * sender thread has started, the frame would interleave with its writes.
    *
    * @param frameInfo the frame to send.
    * @throws IOException if any IOerrors while writing.
@@ -102,34 +144,148 @@ public class FrameSender extends Thread implements Stoppable {
   // visible for testing.
   void writeOneFrame(final FrameInfo frameInfo) throws IOException {
     Preconditions.checkNotNull(outputStream, "Must specify outputStream before writing frames.");
+    Preconditions.checkState(!isAlive(), "Cannot write around a running sender thread.");
+    encodeFrame(frameInfo, false);
+    flushFrames();
+  }
 
-    final byte[] frameInfoBytes = frameInfo.toByteArray();
+  /**
+   * Appends the frame header and the {@link FrameInfo} raw bytes to the write buffer.  Nothing
+   * is written to the output stream until {@link #flushFrames()} is called.  The payload is
+   * compressed first if compression has been negotiated.
+   *
+   * <p>The sequence field of a frame that has none can be written ahead of the frame's own fields
+   * rather than building a sequenced copy.  Field 1 comes first in the generated encoding too, so
+   * the bytes are the same either way.
+   *
+   * @param frame the frame to encode.
+   * @param stampSequence true to set the frame's sequence field to the current sequence.
+   * @throws IOException if the frame cannot be serialized.
+   */
+  private void encodeFrame(final FrameInfo frame, final boolean stampSequence)
+      throws IOException {
+    final FrameCompressor compressor = frameCompressor;
+    FrameInfo frameInfo = (compressor == null) ? frame : compressor.compress(frame);
+    final boolean writeSequenceField = stampSequence && !frameInfo.hasSequence();
+    if (stampSequence && frameInfo.hasSequence()) {
+      frameInfo = FrameInfo.newBuilder(frameInfo).setSequence(sequence).build();
+    }
+    final int sequenceFieldLength = writeSequenceField ?
+        CodedOutputStream.computeInt64Size(FrameInfo.SEQUENCE_FIELD_NUMBER, sequence) : 0;
+    final int frameInfoLength = sequenceFieldLength + frameInfo.getSerializedSize();
+    ensureWriteCapacity(FrameReceiver.HEADER_SIZE + frameInfoLength);
 
     // Add frame start.
-    outputStream.write(FrameReceiver.FRAME_START);
-    LOG.debug("Start byte: " + FrameReceiver.FRAME_START);
+    writeBuffer[writePosition++] = FrameReceiver.FRAME_START;
     // Add magic.
-    outputStream.write(FrameReceiver.MAGIC);
-    LOG.debug("Magic: " + FrameReceiver.MAGIC);
+    System.arraycopy(FrameReceiver.MAGIC, 0, writeBuffer, writePosition,
+        FrameReceiver.MAGIC.length);
+    writePosition += FrameReceiver.MAGIC.length;
     // Add sequence number.
-    dataOutputStream.writeLong(sequence);
-    LOG.debug("sequence: " + sequence);
+    writeLong(sequence);
     // Add length value
-    dataOutputStream.writeInt(frameInfoBytes.length);
-    LOG.debug("payload length: " + frameInfoBytes.length);
+    writeInt(frameInfoLength);
     // Add frame info pb raw bytes.
-    outputStream.write(frameInfoBytes);
-    LOG.debug("payload: " + frameInfoBytes);
-    LOG.debug("frame:\n" + frameInfo.toString());
-    LOG.debug("sending frame type: " + frameInfo.getType());
+    final CodedOutputStream codedOutput =
+        CodedOutputStream.newInstance(writeBuffer, writePosition, frameInfoLength);
+    if (writeSequenceField) {
+      codedOutput.writeInt64(FrameInfo.SEQUENCE_FIELD_NUMBER, sequence);
+    }
+    frameInfo.writeTo(codedOutput);
+    codedOutput.checkNoSpaceLeft();
+    writePosition += frameInfoLength;
+
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("sequence: " + sequence);
+      LOG.debug("payload length: " + frameInfoLength);
+      LOG.debug("frame:\n" + frameInfo.toString());
+      LOG.debug("sending frame type: " + frameInfo.getType());
+    }
     // Update bytes sent counter if one has been supplied.
     if (byteCounter != null) {
-      byteCounter.addAndGet(FrameReceiver.HEADER_SIZE + frameInfoBytes.length);
+      byteCounter.addAndGet(FrameReceiver.HEADER_SIZE + frameInfoLength);
     }
     // Increment sequence number.
     sequence++;
   }
 
+  /**
+   * Writes all encoded frames to the output stream with a single write and resets the buffer.
+   *
+   * @throws IOException if any IOerrors while writing.
+   */
+  private void flushFrames() throws IOException {
+    if (writePosition == 0) {
+      return;
+    }
+    outputStream.write(writeBuffer, 0, writePosition);
+    outputStream.flush();
+    LOG.debug("flushed bytes: " + writePosition);
+    writePosition = 0;
+    // A batch overshoots batchMaxBytes by at most one frame, anything larger held a large frame
+    // and is not kept for the life of the tunnel.
+    if (writeBuffer.length > Math.max(INITIAL_WRITE_BUFFER_SIZE, batchMaxBytes * 2)) {
+      writeBuffer = new byte[INITIAL_WRITE_BUFFER_SIZE];
+    }
+  }
+
+  /**
+   * Returns the frames waiting to be sent, by stream, in a form fit for the log, or null when
+   * nothing is waiting or the queue does not track streams.
+   */
+  public String getQueueStats() {
+    if (!(sendQueue instanceof PriorityFrameQueue) || sendQueue.isEmpty()) {
+      return null;
+    }
+    return ((PriorityFrameQueue) sendQueue).getStats();
+  }
+
+  /**
+   * Returns the size of the buffer batches are encoded into.
+   */
+  int getWriteBufferSize() {
+    return writeBuffer.length;
+  }
+
+  private void ensureWriteCapacity(final int length) {
+    if (writePosition + length > writeBuffer.length) {
+      final byte[] newBuffer = new byte[Math.max(writeBuffer.length * 2, writePosition + length)];
+      System.arraycopy(writeBuffer, 0, newBuffer, 0, writePosition);
+      writeBuffer = newBuffer;
+    }
+  }
+
+  private void writeLong(final long value) {
+    writeInt((int) (value >>> 32));
+    writeInt((int) value);
+  }
+
+  private void writeInt(final int value) {
+    writeBuffer[writePosition++] = (byte) (value >>> 24);
+    writeBuffer[writePosition++] = (byte) (value >>> 16);
+    writeBuffer[writePosition++] = (byte) (value >>> 8);
+    writeBuffer[writePosition++] = (byte) value;
+  }
+
+  /**
+   * Encodes a frame from the queue under the current sequence number.  In a resumable session the
+   * frame also acknowledges what was received and a sequenced copy is kept for replay, otherwise
+   * the sequence is only stamped into the encoding.
+   */
+  private void encodeQueuedFrame(final FrameInfo frameInfo) throws IOException {
+    final ReplayBuffer buffer = replayBuffer;
+    if (buffer == null) {
+      encodeFrame(frameInfo, true);
+      return;
+    }
+    final FrameInfo sequencedFrame = FrameInfo.newBuilder(frameInfo)
+        .setSequence(sequence)
+        .setAck(buffer.getReceivedSequence())
+        .build();
+    buffer.add(sequencedFrame);
+    encodeFrame(sequencedFrame, false);
+  }
+
   /**
    * Reads the send queue, assigns a sequence number and puts on the wire.
    */
@@ -142,37 +298,227 @@ public class FrameSender extends Thread implements Stoppable {
     // Setup thread info
     this.setName(this.getClass().getName());
     
+    boolean replay = false;
     try {
       while (true) {
-        // Wait for a frame to become available.
-        final FrameInfo frameInfo = FrameInfo.newBuilder(sendQueue.take()).setSequence(sequence)
-            .build();
-        if (frameInfo.getType() == FrameInfo.Type.SHUTDOWN_QUEUE) {
-          break;
+        try {
+          if (replay) {
+            replay = false;
+            replayFrames();
+          }
+          sendFrames();
+          return;
+        } catch (InterruptedException e) {
+          if (replayBuffer == null || isStopping()) {
+            LOG.info("Sending frames shutting down", e);
+            return;
+          }
+          // Interrupted by resume.
+          replay = takeResume();
+        } catch (IOException e) {
+          if (replayBuffer == null) {
+            LOG.info("IO error while sending frame", e);
+            return;
+          }
+          LOG.info("IO error while sending frame, waiting to resume", e);
+          if (!awaitResume()) {
+            LOG.info("Sending frames shutting down");
+            return;
+          }
+          replay = true;
         }
-        writeOneFrame(frameInfo);
       }
-    } catch (InterruptedException e) {
-      LOG.info("Sending frames shutting down", e);
-    } catch (IOException e) {
-      LOG.info("IO error while sending frame", e);
+    } finally {
+      // What is left shows which connections were backed up when the tunnel ended.
+      if (sendQueue instanceof PriorityFrameQueue) {
+        LOG.info("Send queue: " + ((PriorityFrameQueue) sendQueue).getStats());
+      }
+    }
+  }
+
+  /**
+   * Writes frames from the queue until a shutdown frame is seen.
+   */
+  private void sendFrames() throws InterruptedException, IOException {
+    while (!shutdownSeen) {
+      // Wait for a frame to become available.
+      final FrameInfo frameInfo = sendQueue.take();
+      if (frameInfo.getType() == FrameInfo.Type.SHUTDOWN_QUEUE) {
+        return;
+      }
+      if (!batching) {
+        Preconditions.checkNotNull(outputStream,
+            "Must specify outputStream before writing frames.");
+        encodeQueuedFrame(frameInfo);
+        flushFrames();
+        continue;
+      }
+      writeBatch(frameInfo);
     }
   }
 
+  private synchronized boolean isStopping() {
+    return stopping;
+  }
+
+  /**
+   * Waits for {@link #resume(OutputStream, long)} after the connection failed and switches to
+   * the new stream.
+   *
+   * @return false if the sender was shut down instead.
+   */
+  private boolean awaitResume() {
+    synchronized (this) {
+      while (!stopping && resumeOutputStream == null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          // resume and shutdown interrupt us, checked by the loop.
+        }
+      }
+      if (stopping) {
+        return false;
+      }
+    }
+    return takeResume();
+  }
+
+  /**
+   * Switches to the stream handed over by {@link #resume(OutputStream, long)}, if any.
+   *
+   * @return true if there is a new stream to replay the missed frames on.
+   */
+  private boolean takeResume() {
+    synchronized (this) {
+      if (resumeOutputStream == null) {
+        return false;
+      }
+      outputStream = resumeOutputStream;
+      sequence = resumeSequence;
+      resumeOutputStream = null;
+    }
+    writePosition = 0; // Frames of a failed write are in the replay buffer.
+    return true;
+  }
+
+  /**
+   * Sends the buffered frames from the current sequence on, the ones the peer missed.
+   */
+  private void replayFrames() throws IOException {
+    final List<FrameInfo> replay = replayBuffer.framesFrom(sequence);
+    LOG.info("Resuming at sequence " + sequence + ", replaying " + replay.size() + " frames");
+    for (FrameInfo frameInfo : replay) {
+      encodeFrame(FrameInfo.newBuilder(frameInfo)
+          .setAck(replayBuffer.getReceivedSequence())
+          .build(), false);
+      if (writePosition >= batchMaxBytes) {
+        flushFrames();
+      }
+    }
+    flushFrames();
+  }
+
+  /**
+   * Continues a resumable session on a new connection.  The sender replays the frames the peer
+   * has not received and then sends the queue as before.  Call once the new connection has
+   * agreed to resume.
+   *
+   * @param newOutputStream stream of the new connection.
+   * @param nextSequence the next sequence the peer expects, the buffer must hold every frame
+   * from there on.
+   */
+  public void resume(final OutputStream newOutputStream, final long nextSequence) {
+    Preconditions.checkNotNull(replayBuffer, "Resume needs a replay buffer.");
+    Preconditions.checkArgument(replayBuffer.canReplayFrom(nextSequence),
+        "Frames from " + nextSequence + " are no longer buffered.");
+    synchronized (this) {
+      resumeOutputStream = newOutputStream;
+      resumeSequence = nextSequence;
+      notifyAll();
+    }
+    // Wake the sender in case it is still waiting on the queue of the failed connection.
+    this.interrupt();
+  }
+
+  /**
+   * Encodes the supplied frame followed by any frames already waiting in the queue, then flushes
+   * them with one write.  We stop draining when the queue is empty or the batch has reached its
+   * byte or latency limit so a busy queue cannot hold back frames indefinitely.
+   *
+   * A shutdown frame drained here is remembered even if the write fails, so a resumed sender
+   * still exits after replaying.
+   *
+   * @param first the frame that started this batch.
+   * @throws IOException if any IOerrors while writing.
+   */
+  private void writeBatch(final FrameInfo first) throws IOException {
+    Preconditions.checkNotNull(outputStream, "Must specify outputStream before writing frames.");
+    final long batchStart = System.nanoTime();
+    encodeQueuedFrame(first);
+    while (writePosition < batchMaxBytes &&
+        System.nanoTime() - batchStart < batchMaxLatencyNanos) {
+      final FrameInfo next = sendQueue.poll();
+      if (next == null) {
+        break;
+      }
+      if (next.getType() == FrameInfo.Type.SHUTDOWN_QUEUE) {
+        shutdownSeen = true;
+        break;
+      }
+      encodeQueuedFrame(next);
+    }
+    flushFrames();
+  }
+
   public void setOutputStream(OutputStream outputStream) {
     this.outputStream = outputStream;
-    dataOutputStream = new DataOutputStream(outputStream);
   }
 
   public void setByteCounter(AtomicLong byteCounter) {
     this.byteCounter = byteCounter;
   }
 
+  /**
+   * Turns on payload compression for frames sent from now on.  Only set once the
+   * "frame-compression" feature has been negotiated.
+   */
+  public void setFrameCompressor(final FrameCompressor frameCompressor) {
+    this.frameCompressor = frameCompressor;
+  }
+
+  /**
+   * Makes the session resumable.  Frames sent from now on are kept until acknowledged.  Only set
+   * once the "resume" feature has been negotiated.
+   */
+  public void setReplayBuffer(final ReplayBuffer replayBuffer) {
+    this.replayBuffer = replayBuffer;
+  }
+
+  /**
+   * Configures coalescing of queued frames into one write.
+   *
+   * @param batching true to drain the queue into a single write, false to write every frame on
+   * its own.
+   * @param maxBytes flush once the batch holds at least this many bytes.
+   * @param maxLatency flush once this many milliseconds were spent building the batch.
+   */
+  public void setBatching(final boolean batching, final int maxBytes, final long maxLatency) {
+    Preconditions.checkArgument(maxBytes > 0, "maxBytes must be positive");
+    Preconditions.checkArgument(maxLatency >= 0, "maxLatency must not be negative");
+    this.batching = batching;
+    this.batchMaxBytes = maxBytes;
+    this.batchMaxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatency);
+  }
+
   /** 
    * Shuts down sending by interrupting thread.
    */
   @Override
   public void shutdown() {
+    synchronized (this) {
+      stopping = true;
+      notifyAll();
+    }
     this.interrupt();
   }
 }
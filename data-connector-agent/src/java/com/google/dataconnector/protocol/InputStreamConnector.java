@@ -19,7 +19,8 @@ package com.google.dataconnector.protocol;
 import com.google.common.base.Preconditions;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
-import com.google.protobuf.ByteString;
+import com.google.dataconnector.util.ConnectionTimer;
+import com.google.inject.Inject;
 
 import org.apache.log4j.Logger;
 
@@ -37,26 +38,52 @@ public class InputStreamConnector extends Thread {
 
   private static final Logger LOG = Logger.getLogger(InputStreamConnector.class);
 
+  static final int READ_SIZE = 65536;
+
+  private final BufferPool bufferPool;
   private InputStream inputStream;
   private long connectionId;
   private FrameSender frameSender;
   private ConnectorStateCallback connectorStateCallback;
+  private FlowControlWindow sendWindow;
+  private ConnectionTimer connectionTimer;
+
+  public InputStreamConnector() {
+    this(BufferPool.unpooled());
+  }
+
+  @Inject
+  public InputStreamConnector(final BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
 
   /**
    * Reads bytes from the input stream and whatever is returned packages into a
    * {@link SocketDataInfo} and sends using the supplied FrameReceiver.  If it detects
-   * a close on the input stream it will fire the {@link ConnectorStateCallback}.
+   * a close on the input stream it will fire the {@link ConnectorStateCallback}.  When a send
+   * window is set, no more bytes are read than the peer has credit for.  The read buffer is
+   * leased from the {@link BufferPool} for as long as the connection lasts.
    */
   @Override
   public void run() {
     Preconditions.checkNotNull(inputStream, "must set inputStream before calling start()");
     Preconditions.checkNotNull(connectionId, "must set connectionId before calling start()");
 
+      final byte[] buffer = bufferPool.lease(READ_SIZE);
       try {
-        final byte[] buffer = new byte[65536];
         while (true) {
           int bytesRead;
-          bytesRead = inputStream.read(buffer);
+          if (sendWindow == null) {
+            bytesRead = inputStream.read(buffer);
+          } else {
+            final int allowed = sendWindow.acquire(READ_SIZE);
+            if (allowed == 0) {
+              throw new IOException("Send window closed for connection " + connectionId);
+            }
+            bytesRead = inputStream.read(buffer, 0, allowed);
+            // Hand back whatever credit the read did not use.
+            sendWindow.release(allowed - Math.max(bytesRead, 0));
+          }
           if (bytesRead == -1) {
             LOG.debug("Input stream " + connectionId + " closed.");
             // send closing frame
@@ -67,11 +94,10 @@ public class InputStreamConnector extends Thread {
             LOG.trace("Sent closing frame for connection: " + connectionId);
             break;
           }
-          frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
-              .setConnectionId(connectionId)
-              .setSegment(ByteString.copyFrom(buffer, 0, bytesRead))
-              .setState(SocketDataInfo.State.CONTINUE)
-              .build().toByteString());
+          if (connectionTimer != null) {
+            connectionTimer.touch();
+          }
+          frameSender.sendFrame(DataFrames.socketData(connectionId, buffer, 0, bytesRead));
         }
       } catch (IOException e) {
         // This is probably caused by a socket shutdown or error on ourside, let the
@@ -80,6 +106,14 @@ public class InputStreamConnector extends Thread {
             .setConnectionId(connectionId)
             .setState(SocketDataInfo.State.CLOSE)
             .build().toByteString());
+      } catch (InterruptedException e) {
+        LOG.info("Interrupted while waiting for send window on connection " + connectionId);
+        frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CLOSE)
+            .build().toByteString());
+      } finally {
+        bufferPool.release(buffer);
       }
     connectorStateCallback.close(connectionId);
     LOG.debug("removed connectionId " + connectionId);
@@ -100,4 +134,19 @@ public class InputStreamConnector extends Thread {
   public void setConnectorStateCallback(final ConnectorStateCallback connectorStateCallback) {
     this.connectorStateCallback = connectorStateCallback;
   }
+
+  /**
+   * Limits the bytes in flight to the peer.  Only set when socket data flow control has been
+   * negotiated with the server.
+   */
+  public void setSendWindow(final FlowControlWindow sendWindow) {
+    this.sendWindow = sendWindow;
+  }
+
+  /**
+   * Told about data read from the input stream, so the connection is not closed as idle.
+   */
+  public void setConnectionTimer(final ConnectionTimer connectionTimer) {
+    this.connectionTimer = connectionTimer;
+  }
 }
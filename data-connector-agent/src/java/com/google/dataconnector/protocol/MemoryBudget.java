@@ -0,0 +1,76 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+/**
+ * Bytes of socket data the agent may hold for all connections together.  Connections with flow
+ * control are already bounded by their windows, so their bytes are always charged with
+ * {@link #add} and an exhausted budget only holds back their window updates.  Connections without
+ * flow control wait in {@link #reserve} instead.
+ */
+public class MemoryBudget {
+
+  private final long limit;
+  private long used = 0; // guarded by this.
+
+  /**
+   * @param limit bytes that may be held before the budget is exhausted.
+   */
+  public MemoryBudget(final long limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Charges bytes to the budget, waiting while it is exhausted.  Something is always let through
+   * once nothing else is held so a segment larger than the limit cannot wait forever.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public synchronized void reserve(final long bytes) throws InterruptedException {
+    while (used > 0 && used + bytes > limit) {
+      wait();
+    }
+    used += bytes;
+  }
+
+  /**
+   * Charges bytes to the budget without waiting, even past the limit.
+   */
+  public synchronized void add(final long bytes) {
+    used += bytes;
+  }
+
+  /**
+   * Returns bytes to the budget and wakes anyone waiting to reserve.
+   */
+  public synchronized void release(final long bytes) {
+    used -= bytes;
+    notifyAll();
+  }
+
+  public synchronized boolean isExhausted() {
+    return used >= limit;
+  }
+
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  public long getLimit() {
+    return limit;
+  }
+}
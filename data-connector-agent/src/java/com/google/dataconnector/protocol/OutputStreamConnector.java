@@ -17,6 +17,7 @@
 package com.google.dataconnector.protocol;
 
 import com.google.common.base.Preconditions;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
 import com.google.inject.Inject;
 
@@ -24,14 +25,13 @@ import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.concurrent.BlockingQueue;
 
 /**
- * Converts {@link SocketDataInfo} into bytes on an output stream for use with streaming
- * sockets over the SDC Frame Protocol.  A queue is watched to wait for SocketDataInfo protocol
- * buffers and when one is received, {@link OutputStreamConnector} writes its segment contents
- * onto the wire.  If a CLOSE SocketDataInfo is received, the underlying output stream is closed
- * and the {@link ConnectorStateCallback#close(int)} is fired.
+ * Writes the segments of {@link SocketDataInfo} frames onto an output stream for use with
+ * streaming sockets over the SDC Frame Protocol.  The dispatcher copies segment bytes into a
+ * {@link SegmentBuffer} and {@link OutputStreamConnector} writes them onto the wire as they
+ * arrive.  Once the buffer is closed and drained, the underlying output stream is closed and the
+ * {@link ConnectorStateCallback#close(int)} is fired.
  *
  * @author rayc@google.com (Ray Colline)
  *
@@ -44,36 +44,56 @@ public class OutputStreamConnector extends Thread {
   private OutputStream outputStream;
   private long connectionId;
   private ConnectorStateCallback connectorStateCallback;
+  private FrameSender frameSender;
+  private FlowControlWindow receiveWindow;
+
+  static final int WRITE_CHUNK_SIZE = 16 * 1024;
 
   // local fields
-  private final BlockingQueue<SocketDataInfo> queue;
+  private final SegmentBuffer buffer;
+  private final BufferPool bufferPool;
+  private long unacknowledgedBytes = 0;
+
+  public OutputStreamConnector(final SegmentBuffer buffer) {
+    this(buffer, BufferPool.unpooled());
+  }
 
   @Inject
-  public OutputStreamConnector(final BlockingQueue<SocketDataInfo> queue) {
-    this.queue = queue;
+  public OutputStreamConnector(final SegmentBuffer buffer, final BufferPool bufferPool) {
+    this.buffer = buffer;
+    this.bufferPool = bufferPool;
   }
 
   /**
-   * Watches the {@link SocketDataInfo} queue and writes any available frames to the output stream.
-   * If the {@link SocketDataInfo} indicates CLOSE, the output stream is closed and the
-   * {@link ConnectorStateCallback#close} is fired.
+   * Watches the {@link SegmentBuffer} and writes any available bytes to the output stream.  Once
+   * it is closed and drained, the output stream is closed and the
+   * {@link ConnectorStateCallback#close} is fired.  When a receive window is set, consumed bytes
+   * are handed back to the peer once half the window has been written out.  While the shared
+   * memory budget is exhausted that is put off until this connection's buffer is empty, so peers
+   * filling memory faster than it drains are slowed by their windows.
    */
   @Override
   public void run() {
     Preconditions.checkNotNull(outputStream, "must set outputStream before calling start()");
     Preconditions.checkNotNull(connectionId, "must set connectionId before calling start()");
 
+    final byte[] chunk = bufferPool.lease(WRITE_CHUNK_SIZE);
     try {
       while (true) {
-        final SocketDataInfo socketDataInfo = queue.take();
-
-        if (socketDataInfo.getState() == SocketDataInfo.State.CLOSE) {
+        final int length = buffer.read(chunk);
+        if (length == -1) {
           LOG.debug("Closing connection " + connectionId);
           outputStream.close();
           break;
-        } else if (socketDataInfo.getState() == SocketDataInfo.State.CONTINUE) {
-          LOG.debug("frame = " + socketDataInfo.toString());
-          outputStream.write(socketDataInfo.getSegment().toByteArray());
+        }
+        LOG.debug("writing " + length + " bytes to connection " + connectionId);
+        outputStream.write(chunk, 0, length);
+        if (receiveWindow != null) {
+          unacknowledgedBytes += length;
+          if (unacknowledgedBytes >= receiveWindow.getSize() / 2 &&
+              (buffer.isEmpty() || !buffer.getMemoryBudget().isExhausted())) {
+            sendWindowUpdate();
+          }
         }
       }
     } catch (InterruptedException e) {
@@ -83,12 +103,26 @@ public class OutputStreamConnector extends Thread {
       // the tunnel.
       LOG.debug("IO error", e);
     } finally {
+      bufferPool.release(chunk);
       connectorStateCallback.close(connectionId);
       LOG.debug("Stopping output for ID:" + connectionId + "active thread count:" +
           Thread.activeCount());
     }
   }
 
+  /**
+   * Returns consumed bytes to the receive window and tells the peer it may send that much more.
+   */
+  private void sendWindowUpdate() {
+    receiveWindow.release(unacknowledgedBytes);
+    frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+        .setConnectionId(connectionId)
+        .setState(SocketDataInfo.State.CONTINUE)
+        .setWindowUpdate(unacknowledgedBytes)
+        .build().toByteString());
+    unacknowledgedBytes = 0;
+  }
+
   public void setOutputStream(final OutputStream outputStream) {
     this.outputStream = outputStream;
   }
@@ -97,11 +131,24 @@ public class OutputStreamConnector extends Thread {
     this.connectionId = connectionId;
   }
 
-  public BlockingQueue<SocketDataInfo> getQueue() {
-    return queue;
+  public SegmentBuffer getBuffer() {
+    return buffer;
   }
 
   public void setConnectorStateCallback(final ConnectorStateCallback connectorStateCallback) {
     this.connectorStateCallback = connectorStateCallback;
   }
+
+  public void setFrameSender(final FrameSender frameSender) {
+    this.frameSender = frameSender;
+  }
+
+  /**
+   * Bytes queued for this connection are charged against this window by the dispatcher.  Only set
+   * when socket data flow control has been negotiated with the server, along with the
+   * {@link FrameSender} used to send window updates.
+   */
+  public void setReceiveWindow(final FlowControlWindow receiveWindow) {
+    this.receiveWindow = receiveWindow;
+  }
 }
@@ -0,0 +1,106 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.protobuf.ByteString;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects written bytes in chunks leased from a {@link BufferPool} instead of an array that is
+ * copied every time it grows, then hands them out as one {@link ByteString}.  The chunks go back
+ * to the pool on {@link #close}, which must always be called.
+ */
+public class PooledOutputStream extends OutputStream {
+
+  static final int CHUNK_SIZE = 16 * 1024;
+
+  private final BufferPool bufferPool;
+  private final List<byte[]> chunks = new ArrayList<byte[]>();
+  private int chunkPosition = CHUNK_SIZE; // in the last chunk, full when there are none.
+  private int size = 0;
+
+  public PooledOutputStream(final BufferPool bufferPool) {
+    this.bufferPool = bufferPool;
+  }
+
+  @Override
+  public void write(final int b) {
+    if (chunkPosition == CHUNK_SIZE) {
+      addChunk();
+    }
+    chunks.get(chunks.size() - 1)[chunkPosition++] = (byte) b;
+    size++;
+  }
+
+  @Override
+  public void write(final byte[] b, int offset, int length) {
+    while (length > 0) {
+      if (chunkPosition == CHUNK_SIZE) {
+        addChunk();
+      }
+      final int count = Math.min(length, CHUNK_SIZE - chunkPosition);
+      System.arraycopy(b, offset, chunks.get(chunks.size() - 1), chunkPosition, count);
+      chunkPosition += count;
+      offset += count;
+      length -= count;
+      size += count;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns a copy of everything written so far.  Each chunk is copied straight into a
+   * {@link ByteString}, a body that fits one chunk is copied only once.
+   */
+  public ByteString toByteString() {
+    if (chunks.size() <= 1) {
+      return chunks.isEmpty() ? ByteString.EMPTY : ByteString.copyFrom(chunks.get(0), 0, size);
+    }
+    final List<ByteString> pieces = new ArrayList<ByteString>(chunks.size());
+    int position = 0;
+    for (byte[] chunk : chunks) {
+      final int count = Math.min(CHUNK_SIZE, size - position);
+      pieces.add(ByteString.copyFrom(chunk, 0, count));
+      position += count;
+    }
+    return ByteString.copyFrom(pieces);
+  }
+
+  /**
+   * Returns the chunks to the pool.  Nothing more may be written.
+   */
+  @Override
+  public void close() {
+    for (byte[] chunk : chunks) {
+      bufferPool.release(chunk);
+    }
+    chunks.clear();
+    chunkPosition = CHUNK_SIZE;
+    size = 0;
+  }
+
+  private void addChunk() {
+    chunks.add(bufferPool.lease(CHUNK_SIZE));
+    chunkPosition = 0;
+  }
+}
@@ -0,0 +1,515 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.common.base.Preconditions;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.ByteString;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Send queue for the {@link FrameSender} that keeps control frames from waiting behind bulk data.
+ * Frames are sorted into three lanes by type:
+ *
+ * <ul>
+ * <li>CONTROL: health checks, registration, authorization and shutdown.  Always sent first.
+ * <li>INTERACTIVE: fetch replies and socket session data.
+ * <li>BULK: socket data.
+ * </ul>
+ *
+ * <p>Interactive and bulk lanes share the link by weighted round robin, so bulk data keeps
+ * flowing while fetch replies are waiting and vice versa.  Each lane has its own capacity, so a
+ * full bulk lane only blocks producers of bulk data.
+ *
+ * <p>Within a lane, frames are kept in one sub-queue per stream: a socket data connection id or a
+ * socket session handle.  Streams are served by deficit round robin by bytes, so one connection
+ * moving a large transfer cannot starve many small ones.  Frames of one stream keep their order.
+ * Frames without a stream, such as fetch replies, share a single sub-queue.
+ */
+public class PriorityFrameQueue extends AbstractQueue<FrameInfo>
+    implements BlockingQueue<FrameInfo> {
+
+  static final int CONTROL = 0;
+  static final int INTERACTIVE = 1;
+  static final int BULK = 2;
+  private static final int LANES = 3;
+
+  public static final int DEFAULT_QUANTUM = 16 * 1024; // bytes per stream per round.
+  static final int DEEPEST_STREAMS = 5; // streams named in the stats.
+
+  private final int capacity;
+  private final int quantum;
+  private final int[] weights = new int[LANES];
+  private final List<Lane> lanes = new ArrayList<Lane>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition[] notFull = new Condition[LANES];
+  private int size = 0;
+
+  // Weighted round robin state between the interactive and bulk lanes.
+  private int turn = INTERACTIVE;
+  private int turnRemaining;
+
+  /**
+   * @param capacity the maximum number of frames in each lane.
+   * @param interactiveWeight frames sent from the interactive lane per turn.
+   * @param bulkWeight frames sent from the bulk lane per turn.
+   */
+  public PriorityFrameQueue(final int capacity, final int interactiveWeight,
+      final int bulkWeight) {
+    this(capacity, interactiveWeight, bulkWeight, DEFAULT_QUANTUM);
+  }
+
+  /**
+   * @param capacity the maximum number of frames in each lane.
+   * @param interactiveWeight frames sent from the interactive lane per turn.
+   * @param bulkWeight frames sent from the bulk lane per turn.
+   * @param quantum bytes each stream may send per deficit round robin round.
+   */
+  public PriorityFrameQueue(final int capacity, final int interactiveWeight,
+      final int bulkWeight, final int quantum) {
+    Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+    Preconditions.checkArgument(quantum > 0, "quantum must be positive");
+    Preconditions.checkArgument(interactiveWeight > 0, "interactiveWeight must be positive");
+    Preconditions.checkArgument(bulkWeight > 0, "bulkWeight must be positive");
+    this.capacity = capacity;
+    this.quantum = quantum;
+    weights[INTERACTIVE] = interactiveWeight;
+    weights[BULK] = bulkWeight;
+    turnRemaining = interactiveWeight;
+    for (int i = 0; i < LANES; i++) {
+      lanes.add(new Lane());
+      notFull[i] = lock.newCondition();
+    }
+  }
+
+  /**
+   * Returns the lane a frame of the given type is queued in.
+   */
+  static int laneFor(final FrameInfo.Type type) {
+    switch (type) {
+      case HEALTH_CHECK:
+      case REGISTRATION:
+      case AUTHORIZATION:
+      case SHUTDOWN_QUEUE:
+        return CONTROL;
+      case FETCH_REQUEST:
+      case SOCKET_SESSION:
+        return INTERACTIVE;
+      default:
+        return BULK;
+    }
+  }
+
+  @Override
+  public boolean offer(final FrameInfo frameInfo) {
+    Preconditions.checkNotNull(frameInfo);
+    final int lane = laneFor(frameInfo.getType());
+    final Object key = StreamKeys.of(frameInfo);
+    lock.lock();
+    try {
+      if (lanes.get(lane).size() >= capacity) {
+        return false;
+      }
+      enqueue(lane, key, frameInfo);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void put(final FrameInfo frameInfo) throws InterruptedException {
+    Preconditions.checkNotNull(frameInfo);
+    final int lane = laneFor(frameInfo.getType());
+    final Object key = StreamKeys.of(frameInfo);
+    lock.lockInterruptibly();
+    try {
+      while (lanes.get(lane).size() >= capacity) {
+        notFull[lane].await();
+      }
+      enqueue(lane, key, frameInfo);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean offer(final FrameInfo frameInfo, final long timeout, final TimeUnit unit)
+      throws InterruptedException {
+    Preconditions.checkNotNull(frameInfo);
+    final int lane = laneFor(frameInfo.getType());
+    final Object key = StreamKeys.of(frameInfo);
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (lanes.get(lane).size() >= capacity) {
+        if (nanos <= 0) {
+          return false;
+        }
+        nanos = notFull[lane].awaitNanos(nanos);
+      }
+      enqueue(lane, key, frameInfo);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public FrameInfo take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (size == 0) {
+        notEmpty.await();
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public FrameInfo poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+    long nanos = unit.toNanos(timeout);
+    lock.lockInterruptibly();
+    try {
+      while (size == 0) {
+        if (nanos <= 0) {
+          return null;
+        }
+        nanos = notEmpty.awaitNanos(nanos);
+      }
+      return dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public FrameInfo poll() {
+    lock.lock();
+    try {
+      return (size == 0) ? null : dequeue();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public FrameInfo peek() {
+    lock.lock();
+    try {
+      if (size == 0) {
+        return null;
+      }
+      return lanes.get(nextLane()).peek();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of frames waiting in one lane.
+   */
+  int laneSize(final int lane) {
+    lock.lock();
+    try {
+      return lanes.get(lane).size();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the bytes queued for one socket data connection.
+   */
+  long getQueuedBytes(final long connectionId) {
+    return getQueuedBytes(BULK, connectionId);
+  }
+
+  /**
+   * Returns the bytes queued for one socket session handle.
+   */
+  long getQueuedBytes(final ByteString socketHandle) {
+    return getQueuedBytes(INTERACTIVE, socketHandle);
+  }
+
+  private long getQueuedBytes(final int lane, final Object key) {
+    lock.lock();
+    try {
+      final Stream stream = lanes.get(lane).streams.get(key);
+      return (stream == null) ? 0 : stream.queuedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the bytes queued per stream, keyed by connection id ({@link Long}) or
+   * socket handle ({@link ByteString}).  Frames that do not belong to a stream are not included.
+   */
+  Map<Object, Long> getQueuedBytesByStream() {
+    lock.lock();
+    try {
+      final Map<Object, Long> queuedBytes = new HashMap<Object, Long>();
+      for (Lane lane : lanes) {
+        for (Stream stream : lane.streams.values()) {
+          if (stream.key != StreamKeys.NO_STREAM) {
+            queuedBytes.put(stream.key, stream.queuedBytes);
+          }
+        }
+      }
+      return queuedBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns the queue depth in a form fit for the log: frames queued, bytes queued per stream and
+   * the {@value #DEEPEST_STREAMS} streams with the most bytes waiting.
+   */
+  public String getStats() {
+    final int frames = size();
+    final List<Map.Entry<Object, Long>> streams =
+        new ArrayList<Map.Entry<Object, Long>>(getQueuedBytesByStream().entrySet());
+    Collections.sort(streams, new Comparator<Map.Entry<Object, Long>>() {
+      @Override
+      public int compare(final Map.Entry<Object, Long> a, final Map.Entry<Object, Long> b) {
+        return b.getValue().compareTo(a.getValue());
+      }
+    });
+    long bytes = 0;
+    for (Map.Entry<Object, Long> stream : streams) {
+      bytes += stream.getValue();
+    }
+    final StringBuilder stats = new StringBuilder();
+    stats.append(frames).append(" frames, ").append(bytes).append(" bytes in ")
+        .append(streams.size()).append(" streams");
+    for (int i = 0; i < Math.min(DEEPEST_STREAMS, streams.size()); i++) {
+      final Object key = streams.get(i).getKey();
+      stats.append(i == 0 ? ", deepest " : ", ")
+          .append(key instanceof ByteString ?
+              "session " + ((ByteString) key).toStringUtf8() : "connection " + key)
+          .append(' ').append(streams.get(i).getValue()).append(" bytes");
+    }
+    return stats.toString();
+  }
+
+  /**
+   * Returns the space left in the emptiest lane.  A frame may still block if its own lane is full.
+   */
+  @Override
+  public int remainingCapacity() {
+    lock.lock();
+    try {
+      int remaining = 0;
+      for (Lane lane : lanes) {
+        remaining = Math.max(remaining, capacity - lane.size());
+      }
+      return remaining;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int drainTo(final Collection<? super FrameInfo> collection) {
+    return drainTo(collection, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(final Collection<? super FrameInfo> collection, final int maxElements) {
+    Preconditions.checkNotNull(collection);
+    Preconditions.checkArgument(collection != this, "cannot drain to self");
+    lock.lock();
+    try {
+      int drained = 0;
+      while (size > 0 && drained < maxElements) {
+        collection.add(dequeue());
+        drained++;
+      }
+      return drained;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Returns a snapshot of the queued frames in lane and stream order.
+   */
+  @Override
+  public Iterator<FrameInfo> iterator() {
+    lock.lock();
+    try {
+      final List<FrameInfo> snapshot = new ArrayList<FrameInfo>(size);
+      for (Lane lane : lanes) {
+        for (Stream stream : lane.active) {
+          snapshot.addAll(stream.frames);
+        }
+      }
+      return snapshot.iterator();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void enqueue(final int lane, final Object key, final FrameInfo frameInfo) {
+    lanes.get(lane).add(key, frameInfo);
+    size++;
+    notEmpty.signal();
+  }
+
+  private FrameInfo dequeue() {
+    final int lane = nextLane();
+    if (lane != CONTROL && !lanes.get(INTERACTIVE).isEmpty() && !lanes.get(BULK).isEmpty()) {
+      turnRemaining--;
+    }
+    final FrameInfo frameInfo = lanes.get(lane).poll();
+    size--;
+    notFull[lane].signal();
+    return frameInfo;
+  }
+
+  /**
+   * Picks the lane the next frame comes from.  Control always wins.  When both the interactive and
+   * bulk lanes have frames, they take turns of their configured weight.  Must hold the lock and
+   * the queue must not be empty.
+   */
+  private int nextLane() {
+    if (!lanes.get(CONTROL).isEmpty()) {
+      return CONTROL;
+    }
+    if (lanes.get(BULK).isEmpty()) {
+      return INTERACTIVE;
+    }
+    if (lanes.get(INTERACTIVE).isEmpty()) {
+      return BULK;
+    }
+    if (turnRemaining <= 0) {
+      turn = (turn == INTERACTIVE) ? BULK : INTERACTIVE;
+      turnRemaining = weights[turn];
+    }
+    return turn;
+  }
+
+  /**
+   * Frames queued for one stream.
+   */
+  private static class Stream {
+    final Object key;
+    final ArrayDeque<FrameInfo> frames = new ArrayDeque<FrameInfo>();
+    long queuedBytes = 0;
+    long deficit = 0;
+    boolean creditedThisRound = false;
+
+    Stream(final Object key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * One priority lane.  Streams with frames waiting are served by deficit round robin: on its
+   * turn a stream is credited one quantum of bytes and sends frames while its deficit covers
+   * them.  Must be used with the queue lock held.
+   */
+  private class Lane {
+    final Map<Object, Stream> streams = new HashMap<Object, Stream>();
+    final ArrayDeque<Stream> active = new ArrayDeque<Stream>();
+    int size = 0;
+
+    void add(final Object key, final FrameInfo frameInfo) {
+      Stream stream = streams.get(key);
+      if (stream == null) {
+        stream = new Stream(key);
+        streams.put(key, stream);
+        active.addLast(stream);
+      }
+      stream.frames.addLast(frameInfo);
+      stream.queuedBytes += frameInfo.getSerializedSize();
+      size++;
+    }
+
+    FrameInfo poll() {
+      while (true) {
+        final Stream stream = active.peekFirst();
+        if (!stream.creditedThisRound) {
+          stream.deficit += quantum;
+          stream.creditedThisRound = true;
+        }
+        final int cost = stream.frames.peekFirst().getSerializedSize();
+        if (cost <= stream.deficit) {
+          stream.deficit -= cost;
+          stream.queuedBytes -= cost;
+          size--;
+          final FrameInfo frameInfo = stream.frames.pollFirst();
+          if (stream.frames.isEmpty()) {
+            active.pollFirst();
+            streams.remove(stream.key);
+          }
+          return frameInfo;
+        }
+        // Out of credit for this round, move to the back of the line.
+        active.pollFirst();
+        stream.creditedThisRound = false;
+        active.addLast(stream);
+      }
+    }
+
+    /**
+     * Returns the first frame of the stream whose turn it is.  The next {@link #poll} may still
+     * move on to another stream if this one is out of credit.
+     */
+    FrameInfo peek() {
+      final Stream stream = active.peekFirst();
+      return (stream == null) ? null : stream.frames.peekFirst();
+    }
+
+    int size() {
+      return size;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+  }
+}
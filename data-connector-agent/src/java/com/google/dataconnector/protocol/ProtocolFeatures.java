@@ -0,0 +1,139 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional protocol features negotiated with the SDC server during authorization.  The agent
+ * offers the features it supports in its {@link AuthorizationInfo} request and the server answers
+ * with the subset it accepted.  A feature the server did not return is treated as disabled, so
+ * older servers keep getting the original protocol.
+ */
+public class ProtocolFeatures {
+
+  /**
+   * Per connection byte window for SOCKET_DATA frames.  The value is the window size in bytes
+   * each side may have in flight before waiting for a window update.
+   */
+  public static final String SOCKET_DATA_WINDOW = "socket-data-window";
+
+  /**
+   * Per session byte window for data the server sends down socket sessions.  The value is the
+   * window size in bytes; the agent queues what it is sent and hands written bytes back in
+   * window updates, so a slow backend holds back its own session instead of the tunnel.
+   */
+  public static final String SOCKET_SESSION_WINDOW = "socket-session-window";
+
+  /**
+   * Offset checked socket session data.  The server sets the stream offset of every segment it
+   * sends down a session and may deliver them out of order or more than once, over parallel
+   * tunnels for instance.  The value is how many bytes ahead of a gap the agent holds.
+   */
+  public static final String SOCKET_SESSION_REORDER = "socket-session-reorder";
+
+  /**
+   * Deflate compression of {@code FrameInfo} payloads.  The value names the algorithm, currently
+   * always "deflate".
+   */
+  public static final String FRAME_COMPRESSION = "frame-compression";
+  public static final String DEFLATE = "deflate";
+
+  /**
+   * Parallel tunnels.  All tunnels of one agent offer the same group id, their index in the group
+   * and the number of tunnels the agent opens.  A server that accepts the group stripes socket
+   * data connections, socket sessions and fetch requests across the tunnels of the group and
+   * answers a tunnel after the first with the registration response of the group instead of
+   * expecting a registration of its own.
+   */
+  public static final String TUNNEL_GROUP = "tunnel-group";
+  public static final String TUNNEL_INDEX = "tunnel-index";
+  public static final String TUNNEL_COUNT = "tunnel-count";
+
+  /**
+   * Resumable sessions.  The value is a token the agent picks for the session.  Frames then
+   * acknowledge the peer's frames and each side keeps what the other has not acknowledged.  To
+   * resume on a new connection the agent offers the same token with "resume-sequence" set to the
+   * next sequence it expects, and the server answers with the next sequence it expects.  A server
+   * that no longer knows the token leaves "resume" out and the agent starts over.
+   */
+  public static final String RESUME = "resume";
+  public static final String RESUME_SEQUENCE = "resume-sequence";
+
+  /** No features negotiated. */
+  public static final ProtocolFeatures NONE =
+      new ProtocolFeatures(Collections.<String, String>emptyMap());
+
+  private final Map<String, String> features;
+
+  private ProtocolFeatures(final Map<String, String> features) {
+    this.features = features;
+  }
+
+  /**
+   * Creates the negotiated feature set from the headers returned by the server.
+   *
+   * @param headers features accepted by the server.
+   */
+  public static ProtocolFeatures fromHeaders(final List<MessageHeader> headers) {
+    final Map<String, String> features = new HashMap<String, String>();
+    for (MessageHeader header : headers) {
+      features.put(header.getKey(), header.getValue());
+    }
+    return new ProtocolFeatures(Collections.unmodifiableMap(features));
+  }
+
+  public boolean isEnabled(final String name) {
+    return features.containsKey(name);
+  }
+
+  /**
+   * Returns the value of a negotiated feature or null if it is not enabled.
+   */
+  public String getValue(final String name) {
+    return features.get(name);
+  }
+
+  /**
+   * Returns the value of a negotiated feature as a long.
+   *
+   * @param name feature name.
+   * @param defaultValue returned if the feature is not enabled or its value does not parse.
+   */
+  public long getLong(final String name, final long defaultValue) {
+    final String value = features.get(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return features.toString();
+  }
+}
@@ -17,12 +17,13 @@
 package com.google.dataconnector.protocol;
 
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
-import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.TimerWheel;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
+import com.google.inject.Singleton;
 
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Guice module for the protocol library.
@@ -32,18 +33,62 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class ProtocolGuiceModule extends AbstractModule {
 
   private static final int SEND_QUEUE_SIZE = 10 * 1024; // 10k entries
+  private static final long TIMER_TICK_MILLIS = 100;
+  private static final int TIMER_WHEEL_SIZE = 1024; // A turn is about 100 seconds.
 
   @Override
   protected void configure() {}
 
+  /**
+   * Provides the {@link FrameSender} queue, which keeps control frames ahead of bulk data and
+   * shares the link fairly between connections.
+   */
   @Provides
-  public BlockingQueue<FrameInfo> getFrameInfoBlockingQueue() {
-    return new LinkedBlockingQueue<FrameInfo>(SEND_QUEUE_SIZE);
+  public BlockingQueue<FrameInfo> getFrameInfoBlockingQueue(final LocalConf localConf) {
+    return new PriorityFrameQueue(SEND_QUEUE_SIZE, localConf.getSendInteractiveWeight(),
+        localConf.getSendBulkWeight(), localConf.getSendQuantum());
   }
 
+  /**
+   * Provides the buffer of an {@link OutputStreamConnector}, drawing on the memory budget shared
+   * by all connections.
+   */
   @Provides
-  public BlockingQueue<SocketDataInfo> getSocketDataInfoBlockingQueue() {
-    return new LinkedBlockingQueue<SocketDataInfo>(SEND_QUEUE_SIZE);
+  public SegmentBuffer getSegmentBuffer(final LocalConf localConf,
+      final MemoryBudget memoryBudget) {
+    return new SegmentBuffer(localConf.getSocketBufferBytes(), memoryBudget);
+  }
+
+  @Provides @Singleton
+  public MemoryBudget getMemoryBudget(final LocalConf localConf) {
+    return new MemoryBudget(localConf.getSocketMemoryBudget());
+  }
+
+  /**
+   * Provides the I/O buffers shared by all connections, sessions and fetches of the agent.
+   */
+  @Provides @Singleton
+  public BufferPool getBufferPool(final LocalConf localConf) {
+    return new BufferPool(localConf.getBufferPoolBytes(), localConf.getBufferPoolDirect(),
+        localConf.getBufferLeakDetection());
+  }
+
+  /**
+   * Provides the selector threads shared by all socks connections of the agent.
+   */
+  @Provides @Singleton
+  public SelectorTransport getSelectorTransport(final LocalConf localConf,
+      final BufferPool bufferPool) {
+    return new SelectorTransport(localConf.getSocksSelectorThreads(), bufferPool);
+  }
+
+  /**
+   * Provides the timer wheel running the connect, idle and lifetime timeouts of all socks
+   * connections and socket sessions.
+   */
+  @Provides @Singleton
+  public TimerWheel getTimerWheel() {
+    return new TimerWheel(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
   }
 
 }
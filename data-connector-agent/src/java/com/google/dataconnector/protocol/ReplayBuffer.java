@@ -0,0 +1,138 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the frames of a resumable session that the peer has not acknowledged yet, so they can be
+ * sent again on a new connection.  The {@link FrameSender} adds every frame it puts on the wire
+ * and stamps it with the sequence the {@link FrameReceiver} expects next, the receiver drops
+ * frames once the peer's acknowledgement covers them.
+ *
+ * <p>The buffer holds at most a fixed number of bytes.  Once that is exceeded it gives up rather
+ * than holding back the sender: it empties, stops buffering and the session can no longer be
+ * resumed.
+ */
+public class ReplayBuffer {
+
+  private static final Logger LOG = Logger.getLogger(ReplayBuffer.class);
+
+  private final long maxBytes;
+
+  // Unacknowledged frames in sequence order.
+  private final ArrayDeque<FrameInfo> frames = new ArrayDeque<FrameInfo>();
+  private long nextSequence = -1; // one past the last frame added, -1 before the first.
+  private long bufferedBytes = 0;
+  private boolean overflowed = false;
+  private volatile long receivedSequence = 0;
+
+  /**
+   * @param maxBytes serialized size of unacknowledged frames kept before resuming is given up.
+   */
+  public ReplayBuffer(final long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Adds a frame just sent.  Frames must be added in sequence order without gaps.
+   *
+   * @param frameInfo the frame with its sequence set.
+   */
+  public synchronized void add(final FrameInfo frameInfo) {
+    if (overflowed) {
+      return;
+    }
+    nextSequence = frameInfo.getSequence() + 1;
+    frames.add(frameInfo);
+    bufferedBytes += frameInfo.getSerializedSize();
+    if (bufferedBytes > maxBytes) {
+      LOG.warn("More than " + maxBytes + " bytes unacknowledged, session can not be resumed.");
+      overflowed = true;
+      frames.clear();
+      bufferedBytes = 0;
+    }
+  }
+
+  /**
+   * Drops the frames the peer has received.
+   *
+   * @param ack the next sequence the peer expects.
+   */
+  public synchronized void acknowledge(final long ack) {
+    while (!frames.isEmpty() && frames.peekFirst().getSequence() < ack) {
+      bufferedBytes -= frames.removeFirst().getSerializedSize();
+    }
+  }
+
+  /**
+   * Returns true if every frame from the given sequence on is still buffered.
+   *
+   * @param sequence the next sequence the peer expects.
+   */
+  public synchronized boolean canReplayFrom(final long sequence) {
+    if (overflowed) {
+      return false;
+    }
+    if (nextSequence == -1) {
+      return true;
+    }
+    final long firstSequence = frames.isEmpty() ? nextSequence : frames.peekFirst().getSequence();
+    return firstSequence <= sequence && sequence <= nextSequence;
+  }
+
+  /**
+   * Returns the buffered frames from the given sequence on, in order.
+   */
+  public synchronized List<FrameInfo> framesFrom(final long sequence) {
+    final List<FrameInfo> replay = new ArrayList<FrameInfo>();
+    for (FrameInfo frameInfo : frames) {
+      if (frameInfo.getSequence() >= sequence) {
+        replay.add(frameInfo);
+      }
+    }
+    return replay;
+  }
+
+  /**
+   * Returns false once the byte limit was exceeded.
+   */
+  public synchronized boolean isResumable() {
+    return !overflowed;
+  }
+
+  public synchronized long getBufferedBytes() {
+    return bufferedBytes;
+  }
+
+  /**
+   * Returns the next sequence expected from the peer, sent as acknowledgement on every frame.
+   */
+  public long getReceivedSequence() {
+    return receivedSequence;
+  }
+
+  void setReceivedSequence(final long receivedSequence) {
+    this.receivedSequence = receivedSequence;
+  }
+}
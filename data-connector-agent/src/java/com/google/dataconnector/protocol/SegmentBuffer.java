@@ -0,0 +1,190 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Ring buffer of raw socket data bytes waiting for an {@link OutputStreamConnector}, bounded in
+ * bytes rather than in segments.  The ring grows as data arrives, up to its capacity, and drops
+ * back to a small array whenever it has been drained, so idle connections hold little memory.
+ * Every buffered byte is also charged to the {@link MemoryBudget} shared by all connections.
+ *
+ * <p>The dispatcher uses {@link #offer} when flow control bounds what the peer may send, and
+ * {@link #put} otherwise.  Closing lets the reader drain what is left first.
+ */
+public class SegmentBuffer {
+
+  static final int INITIAL_SIZE = 4096;
+
+  private final int capacity;
+  private final MemoryBudget memoryBudget;
+
+  // All guarded by this.
+  private byte[] ring = new byte[0];
+  private int head = 0;
+  private int size = 0;
+  private boolean closed = false;
+
+  /**
+   * @param capacity bytes the buffer accepts before {@link #offer} refuses more.
+   * @param memoryBudget budget shared by all connections.
+   */
+  public SegmentBuffer(final int capacity, final MemoryBudget memoryBudget) {
+    this.capacity = capacity;
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Appends a segment without waiting.  Segments offered after {@link #close} are dropped.
+   *
+   * @return false if the segment does not fit in the remaining capacity.
+   */
+  public synchronized boolean offer(final ByteString segment) {
+    if (closed) {
+      return true;
+    }
+    if (size + segment.size() > capacity) {
+      return false;
+    }
+    memoryBudget.add(segment.size());
+    append(segment);
+    return true;
+  }
+
+  /**
+   * Appends a segment, waiting for room in this buffer and in the memory budget.  A segment larger
+   * than the capacity is taken once the buffer is empty.  Segments put after {@link #close} are
+   * dropped.
+   *
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void put(final ByteString segment) throws InterruptedException {
+    memoryBudget.reserve(segment.size());
+    synchronized (this) {
+      try {
+        while (!closed && size > 0 && size + segment.size() > capacity) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        memoryBudget.release(segment.size());
+        throw e;
+      }
+      if (closed) {
+        memoryBudget.release(segment.size());
+        return;
+      }
+      append(segment);
+    }
+  }
+
+  /**
+   * Copies buffered bytes into {@code destination}, waiting for some if the buffer is empty.
+   *
+   * @return the number of bytes copied, or -1 once the buffer is closed and drained.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public int read(final byte[] destination) throws InterruptedException {
+    final int length;
+    synchronized (this) {
+      while (size == 0 && !closed) {
+        wait();
+      }
+      if (size == 0) {
+        return -1;
+      }
+      length = Math.min(destination.length, size);
+      final int firstPart = Math.min(length, ring.length - head);
+      System.arraycopy(ring, head, destination, 0, firstPart);
+      System.arraycopy(ring, 0, destination, firstPart, length - firstPart);
+      head = (head + length) % ring.length;
+      size -= length;
+      if (size == 0) {
+        head = 0;
+        if (ring.length > INITIAL_SIZE) {
+          ring = new byte[INITIAL_SIZE];
+        }
+      }
+      notifyAll();
+    }
+    memoryBudget.release(length);
+    return length;
+  }
+
+  /**
+   * Ends the data.  The reader gets what is buffered and then the end of the stream.
+   */
+  public synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  /**
+   * Ends the data, dropping whatever is still buffered.
+   */
+  public synchronized void reset() {
+    memoryBudget.release(size);
+    ring = new byte[0];
+    head = 0;
+    size = 0;
+    closed = true;
+    notifyAll();
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  public synchronized boolean isEmpty() {
+    return size == 0;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public MemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Copies the segment behind the buffered bytes, growing the ring if needed.  Called holding the
+   * lock.
+   */
+  private void append(final ByteString segment) {
+    final int length = segment.size();
+    if (length == 0) {
+      return;
+    }
+    if (size + length > ring.length) {
+      final int newLength = Math.max(size + length,
+          Math.min(Math.max(ring.length * 2, INITIAL_SIZE), capacity));
+      final byte[] newRing = new byte[newLength];
+      final int firstPart = Math.min(size, ring.length - head);
+      System.arraycopy(ring, head, newRing, 0, firstPart);
+      System.arraycopy(ring, 0, newRing, firstPart, size - firstPart);
+      ring = newRing;
+      head = 0;
+    }
+    final int tail = (head + size) % ring.length;
+    final int firstPart = Math.min(length, ring.length - tail);
+    segment.copyTo(ring, 0, tail, firstPart);
+    segment.copyTo(ring, firstPart, 0, length - firstPart);
+    size += length;
+    notifyAll();
+  }
+}
@@ -0,0 +1,343 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.ConnectionTimer;
+import com.google.protobuf.ByteString;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One local socket served by a {@link SelectorTransport} event loop.  It does the work of an
+ * {@link InputStreamConnector} and {@link OutputStreamConnector} pair: bytes read from the socket
+ * are sent as CONTINUE {@link SocketDataInfo} frames, segments from the tunnel are queued with
+ * {@link #write} and written as the socket accepts them, and either side closing closes the
+ * connection and fires the {@link ConnectorStateCallback} once.
+ *
+ * <p>With a send window the connection stops reading while the peer has no credit left and
+ * {@link #windowUpdated()} starts it again.  With a receive window consumed bytes are handed back
+ * to the peer once half the window has been written out.  Without one, {@link #write} blocks the
+ * caller while too much is queued, like the bounded queue of an {@link OutputStreamConnector}.
+ */
+public class SelectorConnector {
+
+  private static final Logger LOG = Logger.getLogger(SelectorConnector.class);
+
+  static final int MAX_PENDING_BYTES = 1024 * 1024;
+
+  private final long connectionId;
+  private final SocketChannel channel;
+  private final SelectorTransport.EventLoop eventLoop;
+  private final FrameSender frameSender;
+  private final ConnectorStateCallback connectorStateCallback;
+  private volatile FlowControlWindow sendWindow;
+  private volatile FlowControlWindow receiveWindow;
+  private volatile ConnectionTimer connectionTimer;
+
+  // Segments waiting to be written, guarded by this.
+  private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<ByteBuffer>();
+  private long pendingBytes = 0;
+  private boolean closed = false;
+
+  // Only touched on the event loop thread.
+  private SelectionKey key;
+  private boolean closing = false;
+  private long unacknowledgedBytes = 0;
+
+  SelectorConnector(final long connectionId, final SocketChannel channel,
+      final SelectorTransport.EventLoop eventLoop, final FrameSender frameSender,
+      final ConnectorStateCallback connectorStateCallback) {
+    this.connectionId = connectionId;
+    this.channel = channel;
+    this.eventLoop = eventLoop;
+    this.frameSender = frameSender;
+    this.connectorStateCallback = connectorStateCallback;
+  }
+
+  /**
+   * Limits the bytes in flight to the peer.  Only set when socket data flow control has been
+   * negotiated with the server, before any data moves.
+   */
+  public void setSendWindow(final FlowControlWindow sendWindow) {
+    this.sendWindow = sendWindow;
+  }
+
+  /**
+   * Bytes queued for this connection are charged against this window by the dispatcher.  Only set
+   * when socket data flow control has been negotiated with the server, before any data moves.
+   */
+  public void setReceiveWindow(final FlowControlWindow receiveWindow) {
+    this.receiveWindow = receiveWindow;
+  }
+
+  /**
+   * Told about data read from the socket, so the connection is not closed as idle.
+   */
+  public void setConnectionTimer(final ConnectionTimer connectionTimer) {
+    this.connectionTimer = connectionTimer;
+  }
+
+  public long getConnectionId() {
+    return connectionId;
+  }
+
+  /**
+   * Queues a segment from the tunnel for the socket.
+   *
+   * @return false if the connection has already closed.
+   * @throws InterruptedException if interrupted while waiting for the queue to drain.
+   */
+  public boolean write(final ByteString segment) throws InterruptedException {
+    final boolean wasEmpty;
+    synchronized (this) {
+      while (receiveWindow == null && pendingBytes >= MAX_PENDING_BYTES && !closed) {
+        wait();
+      }
+      if (closed) {
+        return false;
+      }
+      wasEmpty = pendingWrites.isEmpty();
+      pendingWrites.add(segment.asReadOnlyByteBuffer());
+      pendingBytes += segment.size();
+    }
+    if (wasEmpty) {
+      eventLoop.execute(new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      });
+    }
+    return true;
+  }
+
+  /**
+   * Starts reading again after the peer granted more send window.
+   */
+  public void windowUpdated() {
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        if (key != null && key.isValid()) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+      }
+    });
+  }
+
+  /**
+   * Closes the connection once the segments already queued have been written.
+   */
+  public void close() {
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        closing = true;
+        flush();
+      }
+    });
+  }
+
+  /**
+   * Closes the connection right away, dropping anything still queued.
+   */
+  public void reset() {
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        abort();
+      }
+    });
+  }
+
+  /**
+   * Registers the channel with the loop's selector.  Called on the event loop thread.
+   */
+  void register() {
+    try {
+      key = channel.register(eventLoop.getSelector(), SelectionKey.OP_READ, this);
+    } catch (ClosedChannelException e) {
+      abort();
+    }
+  }
+
+  /**
+   * Handles the selected key on the event loop thread.
+   */
+  void handle(final SelectionKey selectedKey) {
+    try {
+      if (selectedKey.isReadable()) {
+        read();
+      }
+      if (selectedKey.isValid() && selectedKey.isWritable()) {
+        flush();
+      }
+    } catch (RuntimeException e) {
+      LOG.error("Connection " + connectionId + " failed.", e);
+      abort();
+    }
+  }
+
+  /**
+   * Reads what the socket has, as far as the send window allows, and sends it to the peer.
+   */
+  private void read() {
+    int allowed = SelectorTransport.READ_BUFFER_SIZE;
+    final FlowControlWindow window = sendWindow;
+    if (window != null) {
+      allowed = window.acquireAvailable(allowed);
+      if (allowed == 0) {
+        if (window.isClosed()) {
+          abort();
+        } else {
+          // Wait for windowUpdated().
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        return;
+      }
+    }
+
+    final ByteBuffer buffer = eventLoop.getReadBuffer();
+    buffer.clear();
+    buffer.limit(allowed);
+    int bytesRead;
+    try {
+      bytesRead = channel.read(buffer);
+    } catch (IOException e) {
+      LOG.debug("Read failed on connection " + connectionId, e);
+      bytesRead = -1;
+    }
+    if (window != null) {
+      // Hand back whatever credit the read did not use.
+      window.release(allowed - Math.max(bytesRead, 0));
+    }
+    if (bytesRead == -1) {
+      LOG.debug("Input channel " + connectionId + " closed.");
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      closing = true;
+      flush();
+      return;
+    }
+    if (bytesRead > 0) {
+      final ConnectionTimer timer = connectionTimer;
+      if (timer != null) {
+        timer.touch();
+      }
+      buffer.flip();
+      frameSender.sendFrame(DataFrames.socketData(connectionId, buffer));
+    }
+  }
+
+  /**
+   * Writes queued segments until the socket stops accepting bytes, then waits to become writable.
+   * A closing connection is closed once the queue is empty.
+   */
+  private void flush() {
+    if (key == null || !key.isValid()) {
+      return;
+    }
+    while (true) {
+      final ByteBuffer buffer;
+      synchronized (this) {
+        buffer = pendingWrites.peek();
+      }
+      if (buffer == null) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (closing) {
+          abort();
+        }
+        return;
+      }
+      final int written;
+      try {
+        written = channel.write(buffer);
+      } catch (IOException e) {
+        LOG.debug("Write failed on connection " + connectionId, e);
+        abort();
+        return;
+      }
+      acknowledge(written);
+      if (buffer.hasRemaining()) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        return;
+      }
+      synchronized (this) {
+        pendingWrites.poll();
+        pendingBytes -= buffer.limit();
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns written bytes to the receive window and tells the peer once half of it is used up.
+   */
+  private void acknowledge(final int written) {
+    final FlowControlWindow window = receiveWindow;
+    if (window == null) {
+      return;
+    }
+    unacknowledgedBytes += written;
+    if (unacknowledgedBytes >= window.getSize() / 2) {
+      window.release(unacknowledgedBytes);
+      frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+          .setConnectionId(connectionId)
+          .setState(SocketDataInfo.State.CONTINUE)
+          .setWindowUpdate(unacknowledgedBytes)
+          .build().toByteString());
+      unacknowledgedBytes = 0;
+    }
+  }
+
+  /**
+   * Closes the socket, tells the peer and fires the callback.  Does nothing the second time.
+   */
+  void abort() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      pendingWrites.clear();
+      pendingBytes = 0;
+      notifyAll();
+    }
+    if (key != null) {
+      key.cancel();
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      LOG.debug("Socket exception when closing.", e);
+    }
+    frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, SocketDataInfo.newBuilder()
+        .setConnectionId(connectionId)
+        .setState(SocketDataInfo.State.CLOSE)
+        .build().toByteString());
+    LOG.debug("Closed connection " + connectionId);
+    connectorStateCallback.close(connectionId);
+  }
+}
@@ -0,0 +1,238 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Moves socket data between local sockets and the tunnel from a small, fixed number of selector
+ * threads instead of an {@link InputStreamConnector} and an {@link OutputStreamConnector} thread
+ * per connection.  Each connection is pinned to one event loop by its id and all of its reads,
+ * writes and state changes happen on that loop's thread.  Each loop has one read buffer shared by
+ * its connections, leased from the {@link BufferPool} so it is off-heap when the pool is direct.
+ */
+public class SelectorTransport {
+
+  private static final Logger LOG = Logger.getLogger(SelectorTransport.class);
+
+  static final int READ_BUFFER_SIZE = 65536;
+
+  private final EventLoop[] eventLoops;
+  private final BufferPool bufferPool;
+  private boolean started = false; // guarded by this.
+
+  /**
+   * @param threads the number of event loops, 0 disables the transport.
+   */
+  public SelectorTransport(final int threads) {
+    this(threads, BufferPool.unpooled());
+  }
+
+  /**
+   * @param threads the number of event loops, 0 disables the transport.
+   * @param bufferPool where the loops lease their read buffers.
+   */
+  public SelectorTransport(final int threads, final BufferPool bufferPool) {
+    eventLoops = new EventLoop[threads];
+    this.bufferPool = bufferPool;
+  }
+
+  /**
+   * Returns false if socket data should be moved by stream connector threads instead.
+   */
+  public boolean isEnabled() {
+    return eventLoops.length > 0;
+  }
+
+  /**
+   * Connects to a local address and starts moving data between it and the tunnel.
+   *
+   * @param connectionId id of the socket data connection.
+   * @param address where to connect.
+   * @param frameSender sends what is read from the socket.
+   * @param connectorStateCallback told once the connection has closed.
+   * @return the connection, ready for {@link SelectorConnector#write}.
+   * @throws IOException if the connect fails.
+   */
+  public SelectorConnector connect(final long connectionId, final InetSocketAddress address,
+      final FrameSender frameSender, final ConnectorStateCallback connectorStateCallback)
+      throws IOException {
+    Preconditions.checkState(isEnabled(), "Selector transport is disabled");
+    final SocketChannel channel = SocketChannel.open();
+    try {
+      channel.connect(address);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return register(connectionId, channel, frameSender, connectorStateCallback);
+  }
+
+  /**
+   * Starts moving data between an already connected channel and the tunnel.
+   *
+   * @param connectionId id of the socket data connection.
+   * @param channel the connected channel, closed if it cannot be registered.
+   * @param frameSender sends what is read from the socket.
+   * @param connectorStateCallback told once the connection has closed.
+   * @return the connection, ready for {@link SelectorConnector#write}.
+   * @throws IOException if the channel cannot be made non-blocking.
+   */
+  public SelectorConnector register(final long connectionId, final SocketChannel channel,
+      final FrameSender frameSender, final ConnectorStateCallback connectorStateCallback)
+      throws IOException {
+    Preconditions.checkState(isEnabled(), "Selector transport is disabled");
+    try {
+      channel.configureBlocking(false);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    final EventLoop eventLoop = getEventLoop(connectionId);
+    final SelectorConnector connector = new SelectorConnector(connectionId, channel, eventLoop,
+        frameSender, connectorStateCallback);
+    eventLoop.execute(new Runnable() {
+      @Override
+      public void run() {
+        connector.register();
+      }
+    });
+    return connector;
+  }
+
+  /**
+   * Stops all event loops and closes their connections.
+   */
+  public synchronized void shutdown() {
+    if (!started) {
+      return;
+    }
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.shutdown();
+    }
+    started = false;
+  }
+
+  /**
+   * Returns the loop serving the connection, starting the loops on first use.
+   */
+  private synchronized EventLoop getEventLoop(final long connectionId) throws IOException {
+    if (!started) {
+      for (int i = 0; i < eventLoops.length; i++) {
+        eventLoops[i] = new EventLoop(i, bufferPool);
+        eventLoops[i].start();
+      }
+      started = true;
+    }
+    return eventLoops[(int) ((connectionId & Long.MAX_VALUE) % eventLoops.length)];
+  }
+
+  /**
+   * One selector thread.  Other threads hand it work through {@link #execute} so connections are
+   * only ever touched from here.
+   */
+  static class EventLoop extends Thread {
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final BufferPool bufferPool;
+    private final ByteBuffer readBuffer;
+    private volatile boolean stopped = false;
+
+    EventLoop(final int index, final BufferPool bufferPool) throws IOException {
+      selector = Selector.open();
+      this.bufferPool = bufferPool;
+      readBuffer = bufferPool.leaseByteBuffer(READ_BUFFER_SIZE);
+      setName(SelectorTransport.class.getName() + "-" + index);
+      setDaemon(true);
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(final Runnable task) {
+      tasks.add(task);
+      selector.wakeup();
+    }
+
+    Selector getSelector() {
+      return selector;
+    }
+
+    /**
+     * Returns the buffer connections read into, only valid on the loop thread.
+     */
+    ByteBuffer getReadBuffer() {
+      return readBuffer;
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!stopped) {
+          selector.select();
+          runTasks();
+          final Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+          while (selectedKeys.hasNext()) {
+            final SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+            ((SelectorConnector) key.attachment()).handle(key);
+          }
+        }
+      } catch (IOException e) {
+        LOG.error("Selector failed", e);
+      } finally {
+        for (SelectionKey key : selector.keys()) {
+          ((SelectorConnector) key.attachment()).abort();
+        }
+        try {
+          selector.close();
+        } catch (IOException e) {
+          LOG.debug("Selector exception when closing.", e);
+        }
+        bufferPool.release(readBuffer);
+      }
+    }
+
+    private void runTasks() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        try {
+          task.run();
+        } catch (RuntimeException e) {
+          LOG.error("Selector task failed", e);
+        }
+      }
+    }
+
+    void shutdown() {
+      stopped = true;
+      selector.wakeup();
+    }
+  }
+}
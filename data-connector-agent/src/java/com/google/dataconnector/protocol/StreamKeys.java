@@ -0,0 +1,101 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.CodedInputStream;
+
+import java.io.IOException;
+
+/**
+ * Finds the stream a frame belongs to without parsing its whole payload.  The send queue uses it
+ * to share the link fairly between streams and the receiver uses it to spread streams across
+ * dispatch lanes while keeping each stream in order.
+ */
+final class StreamKeys {
+
+  /** Key shared by all frames that do not belong to a stream. */
+  static final Object NO_STREAM = new Object();
+
+  // Field numbers of the stream ids.
+  private static final int SOCKET_DATA_CONNECTION_ID = 1; // SocketDataInfo.connectionId
+  private static final int SESSION_DATA_HANDLE = 1; // SocketSessionData.socketHandle
+  private static final int SESSION_REPLY_HANDLE = 2; // SocketSessionReply.socketHandle
+
+  private StreamKeys() {
+  }
+
+  /**
+   * Returns the connection id of a socket data frame, or 0 if its payload has none.  Protocol
+   * buffers write fields in number order, so the id leads the payload and this reads one tag and
+   * one varint whatever the size of the data carried.
+   */
+  static long connectionId(final FrameInfo frameInfo) {
+    try {
+      final CodedInputStream input = frameInfo.getPayload().newCodedInput();
+      int tag;
+      while ((tag = input.readTag()) != 0) {
+        if (tag >>> 3 == SOCKET_DATA_CONNECTION_ID && (tag & 0x7) == 0) {
+          return input.readInt64();
+        }
+        if (!input.skipField(tag)) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // Unparsable payloads share the default stream.
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the stream a frame belongs to: the connection id of socket data as a {@link Long}, the
+   * socket handle of plain text socket session frames as a
+   * {@link com.google.protobuf.ByteString}, or {@link #NO_STREAM} for everything else.  Only the
+   * fields in front of the id are decoded.
+   */
+  static Object of(final FrameInfo frameInfo) {
+    final FrameInfo.Type type = frameInfo.getType();
+    if (type != FrameInfo.Type.SOCKET_DATA && type != FrameInfo.Type.SOCKET_SESSION) {
+      return NO_STREAM;
+    }
+    try {
+      final CodedInputStream input = frameInfo.getPayload().newCodedInput();
+      int tag;
+      while ((tag = input.readTag()) != 0) {
+        final int field = tag >>> 3;
+        final int wireType = tag & 0x7;
+        if (type == FrameInfo.Type.SOCKET_DATA) {
+          if (field == SOCKET_DATA_CONNECTION_ID && wireType == 0) {
+            return input.readInt64();
+          }
+        } else if ((field == SESSION_DATA_HANDLE || field == SESSION_REPLY_HANDLE) &&
+            wireType == 2) {
+          // SocketSessionData starts with the handle, SocketSessionReply starts with a varint
+          // verb, so the first length delimited field 1 or 2 is the handle in both.
+          return input.readBytes();
+        }
+        if (!input.skipField(tag)) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      // Unparsable payloads share the default stream.
+    }
+    return NO_STREAM;
+  }
+}
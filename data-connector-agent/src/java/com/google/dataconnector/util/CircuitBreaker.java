@@ -0,0 +1,205 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which backends, by host and port, fail to connect, so requests for a backend that
+ * is down fail at once instead of each holding a thread until its connect times out.
+ *
+ * <p>After {@code circuitBreakerFailures} failed connects in a row to a backend its circuit
+ * opens: every request is refused for {@code circuitBreakerCooldown} seconds.  Then a single
+ * request is let through as a probe while the others are still refused.  If the probe connects
+ * the circuit closes, if it fails the circuit stays open for another cooldown.  A probe that
+ * never reports back is replaced by another after a cooldown.
+ *
+ * <p>Callers ask {@link #allow} before connecting and report the outcome with
+ * {@link #succeeded} or {@link #failed}.
+ */
+@Singleton
+public class CircuitBreaker {
+
+  private static final Logger LOG = Logger.getLogger(CircuitBreaker.class);
+
+  // Failing backends remembered before those with closed circuits, then all, are forgotten.
+  static final int MAX_BACKENDS = 10000;
+
+  private final LocalConf localConf;
+  private final ClockUtil clock;
+  private final ConcurrentMap<String, Backend> backends = new ConcurrentHashMap<String, Backend>();
+  private final AtomicLong opened = new AtomicLong();
+  private final AtomicLong refused = new AtomicLong();
+  private final AtomicLong probes = new AtomicLong();
+
+  @Inject
+  public CircuitBreaker(final LocalConf localConf, final ClockUtil clock) {
+    this.localConf = localConf;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the key of a backend.
+   */
+  public static String backend(final String host, final int port) {
+    return host.toLowerCase(Locale.ENGLISH) + ":" + port;
+  }
+
+  /**
+   * Returns whether a connect to the backend may be tried now.  Every call that returns true
+   * must be followed by {@link #succeeded} or {@link #failed} for the backend.
+   */
+  public boolean allow(final String backend) {
+    if (localConf.getCircuitBreakerFailures() <= 0) {
+      return true;
+    }
+    final Backend state = backends.get(backend);
+    if (state == null) {
+      return true;
+    }
+    final long now = clock.currentTimeMillis();
+    synchronized (state) {
+      if (!state.open) {
+        return true;
+      }
+      if (now >= state.retryAt) {
+        // This request probes the backend, the others wait for it until the next cooldown.
+        state.retryAt = now + cooldownMillis();
+        probes.incrementAndGet();
+        LOG.info("Probing " + backend + " after " + state.failures + " failed connects.");
+        return true;
+      }
+    }
+    refused.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Records a connect to the backend, closing its circuit.
+   */
+  public void succeeded(final String backend) {
+    final Backend state = backends.remove(backend);
+    if (state != null && state.open) {
+      LOG.info(backend + " is connecting again, closing its circuit.");
+    }
+  }
+
+  /**
+   * Records a failed connect to the backend, opening its circuit after enough in a row.
+   */
+  public void failed(final String backend) {
+    final int threshold = localConf.getCircuitBreakerFailures();
+    if (threshold <= 0) {
+      return;
+    }
+    Backend state = backends.get(backend);
+    if (state == null) {
+      if (backends.size() >= MAX_BACKENDS) {
+        evict();
+      }
+      backends.putIfAbsent(backend, new Backend());
+      state = backends.get(backend);
+      if (state == null) {
+        // Forgotten by another thread's eviction, the next failure counts again.
+        return;
+      }
+    }
+    synchronized (state) {
+      state.failures++;
+      if (state.open || state.failures >= threshold) {
+        if (!state.open) {
+          opened.incrementAndGet();
+          LOG.warn(backend + " failed " + state.failures + " connects in a row, refusing " +
+              "requests for " + localConf.getCircuitBreakerCooldown() + " seconds.");
+        }
+        state.open = true;
+        state.retryAt = clock.currentTimeMillis() + cooldownMillis();
+      }
+    }
+  }
+
+  /**
+   * Returns whether requests for the backend are being refused.
+   */
+  public boolean isOpen(final String backend) {
+    final Backend state = backends.get(backend);
+    if (state == null) {
+      return false;
+    }
+    synchronized (state) {
+      return state.open;
+    }
+  }
+
+  /**
+   * Returns the counters in a form fit for the log.
+   */
+  public String getStats() {
+    int open = 0;
+    for (Backend state : backends.values()) {
+      synchronized (state) {
+        if (state.open) {
+          open++;
+        }
+      }
+    }
+    return open + " open, " + opened.get() + " opened, " + refused.get() + " refused, " +
+        probes.get() + " probes";
+  }
+
+  private long cooldownMillis() {
+    return localConf.getCircuitBreakerCooldown() * 1000L;
+  }
+
+  /**
+   * Forgets the backends whose circuits are closed, or all if every one is open.
+   */
+  private void evict() {
+    boolean evicted = false;
+    for (Iterator<Backend> i = backends.values().iterator(); i.hasNext(); ) {
+      final Backend state = i.next();
+      synchronized (state) {
+        if (!state.open) {
+          i.remove();
+          evicted = true;
+        }
+      }
+    }
+    if (!evicted) {
+      backends.clear();
+    }
+  }
+
+  /**
+   * The failed connects of one backend since it last connected.
+   */
+  private static final class Backend {
+    private int failures;
+    private boolean open;
+    // While open, when the next probe is let through.
+    private long retryAt;
+  }
+}
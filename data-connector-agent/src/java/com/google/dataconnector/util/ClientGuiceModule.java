@@ -24,6 +24,8 @@ import com.google.inject.Provides;
 import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 
+import org.apache.log4j.Logger;
+
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.Inet4Address;
@@ -45,7 +47,10 @@ import javax.net.SocketFactory;
  */
 public class ClientGuiceModule extends AbstractModule {
 
+  private static final Logger LOG = Logger.getLogger(ClientGuiceModule.class);
+
   private static final int MAX_THREADS = 500;
+  private static final long VIRTUAL_KEEP_ALIVE = 10; // seconds
   private static Injector injector = null;
 
   @Override
@@ -64,7 +69,26 @@ public class ClientGuiceModule extends AbstractModule {
   }
 
   @Provides @Singleton
-  public ThreadPoolExecutor getThreadPoolExecutor() {
+  public ThreadPoolExecutor getThreadPoolExecutor(final LocalConf localConf) {
+    if (localConf.getVirtualThreads() && !VirtualThreads.isSupported()) {
+      LOG.warn("Virtual threads need Java 21 or later, using platform threads.");
+    }
+    return newThreadPoolExecutor(localConf.getVirtualThreads() && VirtualThreads.isSupported());
+  }
+
+  /**
+   * Creates the executor stream connectors, socket session readers and fetches run on.  Platform
+   * threads are pooled and capped at {@value #MAX_THREADS}.  Virtual threads are cheap enough to
+   * create one per task, so their pool is unbounded and only keeps idle threads briefly.  The
+   * executor's thread factory also makes virtual threads then, for callers that start their own.
+   *
+   * @param virtualThreads true to run tasks on virtual threads, which must be supported.
+   */
+  public static ThreadPoolExecutor newThreadPoolExecutor(final boolean virtualThreads) {
+    if (virtualThreads) {
+      return new ThreadPoolExecutor(0, Integer.MAX_VALUE, VIRTUAL_KEEP_ALIVE, TimeUnit.SECONDS,
+          new SynchronousQueue<Runnable>(), VirtualThreads.newThreadFactory("sdc-virtual-"));
+    }
     return new ThreadPoolExecutor(50, MAX_THREADS, 60L, TimeUnit.SECONDS,
         new SynchronousQueue<Runnable>());
   }
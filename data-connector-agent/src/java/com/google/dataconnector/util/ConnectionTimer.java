@@ -0,0 +1,138 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The idle and lifetime timeouts of one connection on a {@link TimerWheel}.  Traffic only stamps
+ * the time with {@link #touch()}; the idle timeout checks the stamp when it fires and waits out
+ * the rest of the idle time if there has been traffic since, so busy connections cost nothing
+ * per read.  When either limit is hit the expiry task runs once.
+ */
+public class ConnectionTimer {
+
+  public static final String CONNECT = "connect";
+  public static final String IDLE = "idle";
+  public static final String LIFETIME = "lifetime";
+
+  private final TimerWheel timerWheel;
+  private final long idleMillis;
+  private final Runnable onExpiry;
+  private final AtomicBoolean done = new AtomicBoolean(false);
+  private volatile long lastActivity;
+  private volatile TimerWheel.Timeout idleTimeout;
+  private final TimerWheel.Timeout lifetimeTimeout;
+
+  private final Runnable idleCheck = new Runnable() {
+    @Override
+    public void run() {
+      final long idle = timerWheel.now() - lastActivity;
+      if (idle >= idleMillis) {
+        expire(IDLE);
+      } else if (!done.get()) {
+        idleTimeout = timerWheel.schedule(idleMillis - idle, this);
+        if (done.get()) {
+          idleTimeout.cancel();
+        }
+      }
+    }
+  };
+
+  /**
+   * Starts the timeouts.
+   *
+   * @param idleMillis how long the connection may go without traffic, 0 for no limit.
+   * @param lifetimeMillis how long the connection may stay open, 0 for no limit.
+   * @param onExpiry closes the connection when a limit is hit.  Runs on the wheel thread.
+   */
+  public ConnectionTimer(final TimerWheel timerWheel, final long idleMillis,
+      final long lifetimeMillis, final Runnable onExpiry) {
+    this.timerWheel = timerWheel;
+    this.idleMillis = idleMillis;
+    this.onExpiry = onExpiry;
+    this.lastActivity = timerWheel.now();
+    if (idleMillis > 0) {
+      idleTimeout = timerWheel.schedule(idleMillis, idleCheck);
+    }
+    if (lifetimeMillis > 0) {
+      lifetimeTimeout = timerWheel.schedule(lifetimeMillis, new Runnable() {
+        @Override
+        public void run() {
+          expire(LIFETIME);
+        }
+      });
+    } else {
+      lifetimeTimeout = null;
+    }
+  }
+
+  /**
+   * Records traffic on the connection.
+   */
+  public void touch() {
+    lastActivity = timerWheel.now();
+  }
+
+  /**
+   * Stops the timeouts, the connection closed on its own.
+   */
+  public void cancel() {
+    if (done.compareAndSet(false, true)) {
+      cancelTimeouts();
+    }
+  }
+
+  private void expire(final String kind) {
+    if (done.compareAndSet(false, true)) {
+      cancelTimeouts();
+      timerWheel.countExpiry(kind);
+      onExpiry.run();
+    }
+  }
+
+  private void cancelTimeouts() {
+    final TimerWheel.Timeout idle = idleTimeout;
+    if (idle != null) {
+      idle.cancel();
+    }
+    if (lifetimeTimeout != null) {
+      lifetimeTimeout.cancel();
+    }
+  }
+
+  /**
+   * Closes the socket or channel being connected unless the returned timeout is cancelled first,
+   * which makes the blocked connect fail.  Counted as a connect expiry.
+   */
+  public static TimerWheel.Timeout connectTimeout(final TimerWheel timerWheel,
+      final long timeoutMillis, final Closeable connecting) {
+    return timerWheel.schedule(timeoutMillis, new Runnable() {
+      @Override
+      public void run() {
+        timerWheel.countExpiry(CONNECT);
+        try {
+          connecting.close();
+        } catch (IOException e) {
+          // Closing to abort, nothing more to do.
+        }
+      }
+    });
+  }
+}
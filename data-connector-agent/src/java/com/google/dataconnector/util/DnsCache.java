@@ -0,0 +1,255 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the host name lookups of the agent, so a slow DNS server is only asked about a name once
+ * per {@code dnsCacheTtl}.  Names that do not resolve are remembered for {@code dnsNegativeTtl}.
+ * A name looked up in the last quarter of its TTL is resolved again in the background while the
+ * cached addresses are still answered, so names in use never expire in front of a request.  If
+ * that refresh fails the cached addresses are kept until they expire.
+ *
+ * <p>Reverse lookups are cached the same way and can be turned off with
+ * {@code dnsReverseLookup}, the address itself is the host name then.
+ */
+@Singleton
+public class DnsCache {
+
+  private static final Logger LOG = Logger.getLogger(DnsCache.class);
+
+  // Entries of each kind kept before expired ones, then any, are evicted.
+  static final int MAX_ENTRIES = 10000;
+
+  private final LocalConf localConf;
+  private final ClockUtil clock;
+  private final ThreadPoolExecutor threadPoolExecutor;
+  private final ConcurrentMap<String, Addresses> addresses =
+      new ConcurrentHashMap<String, Addresses>();
+  private final ConcurrentMap<InetAddress, HostName> hostNames =
+      new ConcurrentHashMap<InetAddress, HostName>();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong refreshes = new AtomicLong();
+
+  @Inject
+  public DnsCache(final LocalConf localConf, final ClockUtil clock,
+      final ThreadPoolExecutor threadPoolExecutor) {
+    this.localConf = localConf;
+    this.clock = clock;
+    this.threadPoolExecutor = threadPoolExecutor;
+  }
+
+  /**
+   * Returns all addresses of the host, from the cache if they have not expired.
+   *
+   * @throws UnknownHostException if the host does not resolve now or did not a moment ago.
+   */
+  public InetAddress[] resolve(final String host) throws UnknownHostException {
+    final long ttlMillis = localConf.getDnsCacheTtl() * 1000L;
+    if (ttlMillis <= 0) {
+      return lookup(host);
+    }
+    final String key = host.toLowerCase(Locale.ENGLISH);
+    final long now = clock.currentTimeMillis();
+    final Addresses cached = addresses.get(key);
+    if (cached != null && now < cached.expiresAt) {
+      hits.incrementAndGet();
+      if (cached.failure == null && now >= cached.refreshAt &&
+          cached.refreshing.compareAndSet(false, true)) {
+        refreshAhead(host, key, cached);
+      }
+      return cached.get();
+    }
+    misses.incrementAndGet();
+    try {
+      final InetAddress[] found = lookup(host);
+      put(key, new Addresses(found, null, now, ttlMillis));
+      return found.clone();
+    } catch (UnknownHostException e) {
+      final long negativeTtlMillis = localConf.getDnsNegativeTtl() * 1000L;
+      if (negativeTtlMillis > 0) {
+        put(key, new Addresses(null, e, now, negativeTtlMillis));
+      } else {
+        addresses.remove(key);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Returns the host name to report for an address: its canonical name from a cached reverse
+   * lookup, or the address itself when reverse lookups are off.
+   */
+  public String getHostName(final InetAddress address) {
+    if (!localConf.getDnsReverseLookup()) {
+      return address.getHostAddress();
+    }
+    final long ttlMillis = localConf.getDnsCacheTtl() * 1000L;
+    if (ttlMillis <= 0) {
+      return reverseLookup(address);
+    }
+    final long now = clock.currentTimeMillis();
+    final HostName cached = hostNames.get(address);
+    if (cached != null && now < cached.expiresAt) {
+      hits.incrementAndGet();
+      return cached.name;
+    }
+    misses.incrementAndGet();
+    final String name = reverseLookup(address);
+    if (hostNames.size() >= MAX_ENTRIES) {
+      evict(hostNames, now);
+    }
+    hostNames.put(address, new HostName(name, now + ttlMillis));
+    return name;
+  }
+
+  /**
+   * Returns the counters in a form fit for the log.
+   */
+  public String getStats() {
+    return hits.get() + " hits, " + misses.get() + " misses, " + refreshes.get() +
+        " refreshed ahead, " + addresses.size() + " names and " + hostNames.size() +
+        " addresses cached";
+  }
+
+  /**
+   * Resolves the host.  Overridden in tests.
+   */
+  protected InetAddress[] lookup(final String host) throws UnknownHostException {
+    return InetAddress.getAllByName(host);
+  }
+
+  /**
+   * Finds the canonical name of the address.  Overridden in tests.
+   */
+  protected String reverseLookup(final InetAddress address) {
+    return address.getCanonicalHostName();
+  }
+
+  /**
+   * Resolves a name in use again before its entry expires.
+   */
+  private void refreshAhead(final String host, final String key, final Addresses cached) {
+    try {
+      threadPoolExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            final long ttlMillis = localConf.getDnsCacheTtl() * 1000L;
+            put(key, new Addresses(lookup(host), null, clock.currentTimeMillis(), ttlMillis));
+            refreshes.incrementAndGet();
+          } catch (UnknownHostException e) {
+            LOG.debug("Refreshing " + host + " failed, keeping the cached addresses.", e);
+          } finally {
+            // Also after a runtime failure, or the entry would never be refreshed again.
+            cached.refreshing.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Busy, the next lookup tries again.
+      cached.refreshing.set(false);
+    }
+  }
+
+  private void put(final String key, final Addresses entry) {
+    if (addresses.size() >= MAX_ENTRIES) {
+      evict(addresses, clock.currentTimeMillis());
+    }
+    addresses.put(key, entry);
+  }
+
+  /**
+   * Drops the expired entries, or an arbitrary one if none has expired.
+   */
+  private static <K> void evict(final ConcurrentMap<K, ? extends Cached> cache, final long now) {
+    boolean evicted = false;
+    for (Iterator<? extends Map.Entry<K, ? extends Cached>> i = cache.entrySet().iterator();
+        i.hasNext(); ) {
+      if (now >= i.next().getValue().expiresAt) {
+        i.remove();
+        evicted = true;
+      }
+    }
+    if (!evicted) {
+      final Iterator<K> i = cache.keySet().iterator();
+      if (i.hasNext()) {
+        i.next();
+        i.remove();
+      }
+    }
+  }
+
+  private abstract static class Cached {
+    final long expiresAt;
+
+    Cached(final long expiresAt) {
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * The addresses of a name, or why it did not resolve.
+   */
+  private static final class Addresses extends Cached {
+    private final InetAddress[] found;
+    private final UnknownHostException failure;
+    private final long refreshAt;
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+    Addresses(final InetAddress[] found, final UnknownHostException failure,
+        final long resolvedAt, final long ttlMillis) {
+      super(resolvedAt + ttlMillis);
+      this.found = found;
+      this.failure = failure;
+      this.refreshAt = resolvedAt + ttlMillis * 3 / 4;
+    }
+
+    InetAddress[] get() throws UnknownHostException {
+      if (failure != null) {
+        throw new UnknownHostException(failure.getMessage());
+      }
+      return found.clone();
+    }
+  }
+
+  private static final class HostName extends Cached {
+    private final String name;
+
+    HostName(final String name, final long expiresAt) {
+      super(expiresAt);
+      this.name = name;
+    }
+  }
+}
@@ -86,6 +86,94 @@ public class LocalConf {
   @Flag(help = "Resources File Watcher Thread sleep timer. default is 1 min")
   private int fileWatcherThreadSleepTimer = 1;
 
+  @Flag(help = "Coalesce queued frames into a single write to the SDC server.")
+  private Boolean frameBatching = true;
+  @Flag(help = "Flush a frame batch once it holds this many bytes. default is 64k")
+  private int frameBatchMaxBytes = 64 * 1024;
+  @Flag(help = "Flush a frame batch after this many milliseconds. default is 5 ms")
+  private int frameBatchMaxLatency = 5;
+  @Flag(help = "Per connection receive window in bytes offered to the SDC server. 0 disables " +
+      "flow control. default is 256k")
+  private int socketDataWindow = 256 * 1024;
+  @Flag(help = "Offer per frame payload compression to the SDC server.")
+  private Boolean frameCompression = true;
+  @Flag(help = "Only compress frame payloads of at least this many bytes. default is 512")
+  private int frameCompressionThreshold = 512;
+  @Flag(help = "Stop compressing frame types that do not compress well.")
+  private Boolean frameCompressionAdaptive = true;
+  @Flag(help = "Frames sent from the fetch and session reply lane per turn. default is 4")
+  private int sendInteractiveWeight = 4;
+  @Flag(help = "Frames sent from the socket data lane per turn. default is 1")
+  private int sendBulkWeight = 1;
+  @Flag(help = "Bytes each connection may send per scheduling round. default is 16k")
+  private int sendQuantum = 16 * 1024;
+  @Flag(help = "Dispatch each received frame type on its own thread.")
+  private Boolean asyncDispatch = false;
+  @Flag(help = "Received frames each type may have waiting for its handler. default is 1000")
+  private int dispatchLaneCapacity = 1000;
+  @Flag(help = "Lanes socket data is spread over when dispatching asynchronously. default is " +
+      "0, one per processor")
+  private int dispatchShards = 0;
+  @Flag(help = "Number of parallel tunnels opened to the SDC server. default is 1")
+  private int tunnelCount = 1;
+  @Flag(help = "Bytes of unacknowledged frames kept to resume a session after the tunnel " +
+      "drops, 0 turns resuming off. default is 4MB")
+  private int resumeBufferBytes = 4 * 1024 * 1024;
+  @Flag(help = "Seconds spent trying to resume a session before starting over. default is 60")
+  private int resumeTimeout = 60;
+  @Flag(help = "Selector threads moving socket data for all socks connections, 0 uses a reader " +
+      "and a writer thread per connection instead. default is 2")
+  private int socksSelectorThreads = 2;
+  @Flag(help = "Run stream connectors, socket session readers and fetches on virtual threads " +
+      "instead of the capped thread pool. Needs Java 21 or later, platform threads are used " +
+      "otherwise.")
+  private Boolean virtualThreads = false;
+  @Flag(help = "Answer socks connections in the agent and connect to resources directly, false " +
+      "relays them through the JSOCKS server on socksServerPort instead.")
+  private Boolean inProcessSocks = true;
+  @Flag(help = "Bytes buffered for writing to each socks connection, at least socketDataWindow. " +
+      "default is 256k")
+  private int socketBufferBytes = 256 * 1024;
+  @Flag(help = "Bytes buffered for writing to all socks connections together before the agent " +
+      "holds back window updates or waits. default is 64MB")
+  private int socketMemoryBudget = 64 * 1024 * 1024;
+  @Flag(help = "Bytes of free I/O buffers kept for reuse, 0 turns pooling off. default is 32MB")
+  private int bufferPoolBytes = 32 * 1024 * 1024;
+  @Flag(help = "Use off-heap buffers for socket reads. default is false")
+  private Boolean bufferPoolDirect = false;
+  @Flag(help = "Track where pooled buffers are leased and report those never released. " +
+      "default is false")
+  private Boolean bufferLeakDetection = false;
+  @Flag(help = "Seconds to wait for a resource to accept a connection, unless the request asks " +
+      "for less or more. default is 60")
+  private int connectTimeout = 60;
+  @Flag(help = "Milliseconds to wait for a connect before also trying the next address of a " +
+      "resource that resolves to several. default is 250")
+  private int connectAttemptDelay = 250;
+  @Flag(help = "Seconds a socks connection or socket session may go without traffic before it " +
+      "is closed, 0 keeps idle ones open. default is 3600")
+  private int idleTimeout = 3600;
+  @Flag(help = "Seconds a socks connection or socket session may stay open, 0 for no limit. " +
+      "default is 0")
+  private int maxConnectionLifetime = 0;
+  @Flag(help = "Bytes of socket session data arriving ahead of a gap the agent holds until the " +
+      "gap is filled, offered to the SDC server. 0 applies data in arrival order. default is 256k")
+  private int socketSessionReorderBytes = 256 * 1024;
+  @Flag(help = "Seconds resolved host names are cached, 0 turns the cache off. default is 60")
+  private int dnsCacheTtl = 60;
+  @Flag(help = "Seconds host names that do not resolve are remembered, 0 does not remember " +
+      "them. default is 10")
+  private int dnsNegativeTtl = 10;
+  @Flag(help = "Answer socket session requests with the host name a reverse lookup finds for " +
+      "the resolved address, false answers with the address itself.")
+  private Boolean dnsReverseLookup = true;
+  @Flag(help = "Failed connects in a row after which requests for a resource are refused at " +
+      "once for circuitBreakerCooldown seconds, 0 always connects. default is 5")
+  private int circuitBreakerFailures = 5;
+  @Flag(help = "Seconds requests for a failing resource are refused before one is let through " +
+      "to see whether it recovered. default is 30")
+  private int circuitBreakerCooldown = 30;
+
   // Config File Only
   private String socksProperties =
       "iddleTimeout = 60000\n" + // 10 minutes
@@ -271,4 +359,276 @@ public class LocalConf {
   public void setFileWatcherThreadSleepTimer(final int fileWatcherThreadSleepTimer) {
     this.fileWatcherThreadSleepTimer = fileWatcherThreadSleepTimer;
   }
+
+  public Boolean getFrameBatching() {
+    return frameBatching;
+  }
+
+  public void setFrameBatching(final Boolean frameBatching) {
+    this.frameBatching = frameBatching;
+  }
+
+  public int getFrameBatchMaxBytes() {
+    return frameBatchMaxBytes;
+  }
+
+  public void setFrameBatchMaxBytes(final int frameBatchMaxBytes) {
+    this.frameBatchMaxBytes = frameBatchMaxBytes;
+  }
+
+  public int getFrameBatchMaxLatency() {
+    return frameBatchMaxLatency;
+  }
+
+  public void setFrameBatchMaxLatency(final int frameBatchMaxLatency) {
+    this.frameBatchMaxLatency = frameBatchMaxLatency;
+  }
+
+  public int getSocketDataWindow() {
+    return socketDataWindow;
+  }
+
+  public void setSocketDataWindow(final int socketDataWindow) {
+    this.socketDataWindow = socketDataWindow;
+  }
+
+  public Boolean getFrameCompression() {
+    return frameCompression;
+  }
+
+  public void setFrameCompression(final Boolean frameCompression) {
+    this.frameCompression = frameCompression;
+  }
+
+  public int getFrameCompressionThreshold() {
+    return frameCompressionThreshold;
+  }
+
+  public void setFrameCompressionThreshold(final int frameCompressionThreshold) {
+    this.frameCompressionThreshold = frameCompressionThreshold;
+  }
+
+  public Boolean getFrameCompressionAdaptive() {
+    return frameCompressionAdaptive;
+  }
+
+  public void setFrameCompressionAdaptive(final Boolean frameCompressionAdaptive) {
+    this.frameCompressionAdaptive = frameCompressionAdaptive;
+  }
+
+  public int getSendInteractiveWeight() {
+    return sendInteractiveWeight;
+  }
+
+  public void setSendInteractiveWeight(final int sendInteractiveWeight) {
+    this.sendInteractiveWeight = sendInteractiveWeight;
+  }
+
+  public int getSendBulkWeight() {
+    return sendBulkWeight;
+  }
+
+  public void setSendBulkWeight(final int sendBulkWeight) {
+    this.sendBulkWeight = sendBulkWeight;
+  }
+
+  public int getSendQuantum() {
+    return sendQuantum;
+  }
+
+  public void setSendQuantum(final int sendQuantum) {
+    this.sendQuantum = sendQuantum;
+  }
+
+  public Boolean getAsyncDispatch() {
+    return asyncDispatch;
+  }
+
+  public void setAsyncDispatch(final Boolean asyncDispatch) {
+    this.asyncDispatch = asyncDispatch;
+  }
+
+  public int getDispatchLaneCapacity() {
+    return dispatchLaneCapacity;
+  }
+
+  public void setDispatchLaneCapacity(final int dispatchLaneCapacity) {
+    this.dispatchLaneCapacity = dispatchLaneCapacity;
+  }
+
+  public int getDispatchShards() {
+    return dispatchShards;
+  }
+
+  public void setDispatchShards(final int dispatchShards) {
+    this.dispatchShards = dispatchShards;
+  }
+
+  public int getTunnelCount() {
+    return tunnelCount;
+  }
+
+  public void setTunnelCount(final int tunnelCount) {
+    this.tunnelCount = tunnelCount;
+  }
+
+  public int getResumeBufferBytes() {
+    return resumeBufferBytes;
+  }
+
+  public void setResumeBufferBytes(final int resumeBufferBytes) {
+    this.resumeBufferBytes = resumeBufferBytes;
+  }
+
+  public int getResumeTimeout() {
+    return resumeTimeout;
+  }
+
+  public void setResumeTimeout(final int resumeTimeout) {
+    this.resumeTimeout = resumeTimeout;
+  }
+
+  public int getSocksSelectorThreads() {
+    return socksSelectorThreads;
+  }
+
+  public void setSocksSelectorThreads(final int socksSelectorThreads) {
+    this.socksSelectorThreads = socksSelectorThreads;
+  }
+
+  public Boolean getVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public void setVirtualThreads(final Boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+  public Boolean getInProcessSocks() {
+    return inProcessSocks;
+  }
+
+  public void setInProcessSocks(final Boolean inProcessSocks) {
+    this.inProcessSocks = inProcessSocks;
+  }
+
+  public int getSocketBufferBytes() {
+    return socketBufferBytes;
+  }
+
+  public void setSocketBufferBytes(final int socketBufferBytes) {
+    this.socketBufferBytes = socketBufferBytes;
+  }
+
+  public int getSocketMemoryBudget() {
+    return socketMemoryBudget;
+  }
+
+  public void setSocketMemoryBudget(final int socketMemoryBudget) {
+    this.socketMemoryBudget = socketMemoryBudget;
+  }
+
+  public int getBufferPoolBytes() {
+    return bufferPoolBytes;
+  }
+
+  public void setBufferPoolBytes(final int bufferPoolBytes) {
+    this.bufferPoolBytes = bufferPoolBytes;
+  }
+
+  public Boolean getBufferPoolDirect() {
+    return bufferPoolDirect;
+  }
+
+  public void setBufferPoolDirect(final Boolean bufferPoolDirect) {
+    this.bufferPoolDirect = bufferPoolDirect;
+  }
+
+  public Boolean getBufferLeakDetection() {
+    return bufferLeakDetection;
+  }
+
+  public void setBufferLeakDetection(final Boolean bufferLeakDetection) {
+    this.bufferLeakDetection = bufferLeakDetection;
+  }
+
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public void setConnectTimeout(final int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getConnectAttemptDelay() {
+    return connectAttemptDelay;
+  }
+
+  public void setConnectAttemptDelay(final int connectAttemptDelay) {
+    this.connectAttemptDelay = connectAttemptDelay;
+  }
+
+  public int getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public void setIdleTimeout(final int idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  public int getMaxConnectionLifetime() {
+    return maxConnectionLifetime;
+  }
+
+  public void setMaxConnectionLifetime(final int maxConnectionLifetime) {
+    this.maxConnectionLifetime = maxConnectionLifetime;
+  }
+
+  public int getSocketSessionReorderBytes() {
+    return socketSessionReorderBytes;
+  }
+
+  public void setSocketSessionReorderBytes(final int socketSessionReorderBytes) {
+    this.socketSessionReorderBytes = socketSessionReorderBytes;
+  }
+
+  public int getDnsCacheTtl() {
+    return dnsCacheTtl;
+  }
+
+  public void setDnsCacheTtl(final int dnsCacheTtl) {
+    this.dnsCacheTtl = dnsCacheTtl;
+  }
+
+  public int getDnsNegativeTtl() {
+    return dnsNegativeTtl;
+  }
+
+  public void setDnsNegativeTtl(final int dnsNegativeTtl) {
+    this.dnsNegativeTtl = dnsNegativeTtl;
+  }
+
+  public Boolean getDnsReverseLookup() {
+    return dnsReverseLookup;
+  }
+
+  public void setDnsReverseLookup(final Boolean dnsReverseLookup) {
+    this.dnsReverseLookup = dnsReverseLookup;
+  }
+
+  public int getCircuitBreakerFailures() {
+    return circuitBreakerFailures;
+  }
+
+  public void setCircuitBreakerFailures(final int circuitBreakerFailures) {
+    this.circuitBreakerFailures = circuitBreakerFailures;
+  }
+
+  public int getCircuitBreakerCooldown() {
+    return circuitBreakerCooldown;
+  }
+
+  public void setCircuitBreakerCooldown(final int circuitBreakerCooldown) {
+    this.circuitBreakerCooldown = circuitBreakerCooldown;
+  }
 }
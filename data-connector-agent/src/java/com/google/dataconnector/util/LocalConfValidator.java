@@ -182,6 +182,109 @@ public class LocalConfValidator {
       errors.append("'socksProperties' required\n");
     }
 
+    // frame batching
+    if (localConf.getFrameBatchMaxBytes() <= 0) {
+      errors.append("invalid 'frameBatchMaxBytes': " + localConf.getFrameBatchMaxBytes() + "\n");
+    }
+    if (localConf.getFrameBatchMaxLatency() < 0) {
+      errors.append("invalid 'frameBatchMaxLatency': " + localConf.getFrameBatchMaxLatency() +
+          "\n");
+    }
+
+    // socket data flow control
+    if (localConf.getSocketDataWindow() < 0) {
+      errors.append("invalid 'socketDataWindow': " + localConf.getSocketDataWindow() + "\n");
+    }
+    if (localConf.getSocketBufferBytes() <= 0 ||
+        localConf.getSocketBufferBytes() < localConf.getSocketDataWindow()) {
+      errors.append("invalid 'socketBufferBytes': " + localConf.getSocketBufferBytes() +
+          ", must be positive and at least 'socketDataWindow'\n");
+    }
+    if (localConf.getSocketMemoryBudget() <= 0) {
+      errors.append("invalid 'socketMemoryBudget': " + localConf.getSocketMemoryBudget() + "\n");
+    }
+    if (localConf.getBufferPoolBytes() < 0) {
+      errors.append("invalid 'bufferPoolBytes': " + localConf.getBufferPoolBytes() + "\n");
+    }
+    if (localConf.getSocketSessionReorderBytes() < 0) {
+      errors.append("invalid 'socketSessionReorderBytes': " +
+          localConf.getSocketSessionReorderBytes() + "\n");
+    }
+
+    // connection timeouts
+    if (localConf.getConnectTimeout() <= 0) {
+      errors.append("invalid 'connectTimeout': " + localConf.getConnectTimeout() + "\n");
+    }
+    if (localConf.getConnectAttemptDelay() < 0) {
+      errors.append("invalid 'connectAttemptDelay': " + localConf.getConnectAttemptDelay() +
+          "\n");
+    }
+    if (localConf.getIdleTimeout() < 0) {
+      errors.append("invalid 'idleTimeout': " + localConf.getIdleTimeout() + "\n");
+    }
+    if (localConf.getMaxConnectionLifetime() < 0) {
+      errors.append("invalid 'maxConnectionLifetime': " + localConf.getMaxConnectionLifetime() +
+          "\n");
+    }
+
+    // dns cache
+    if (localConf.getDnsCacheTtl() < 0) {
+      errors.append("invalid 'dnsCacheTtl': " + localConf.getDnsCacheTtl() + "\n");
+    }
+    if (localConf.getDnsNegativeTtl() < 0) {
+      errors.append("invalid 'dnsNegativeTtl': " + localConf.getDnsNegativeTtl() + "\n");
+    }
+
+    // circuit breaker
+    if (localConf.getCircuitBreakerFailures() < 0) {
+      errors.append("invalid 'circuitBreakerFailures': " +
+          localConf.getCircuitBreakerFailures() + "\n");
+    }
+    if (localConf.getCircuitBreakerCooldown() <= 0) {
+      errors.append("invalid 'circuitBreakerCooldown': " +
+          localConf.getCircuitBreakerCooldown() + "\n");
+    }
+
+    // frame compression
+    if (localConf.getFrameCompressionThreshold() < 0) {
+      errors.append("invalid 'frameCompressionThreshold': " +
+          localConf.getFrameCompressionThreshold() + "\n");
+    }
+
+    // send lane weights
+    if (localConf.getSendInteractiveWeight() <= 0) {
+      errors.append("invalid 'sendInteractiveWeight': " + localConf.getSendInteractiveWeight() +
+          "\n");
+    }
+    if (localConf.getSendBulkWeight() <= 0) {
+      errors.append("invalid 'sendBulkWeight': " + localConf.getSendBulkWeight() + "\n");
+    }
+    if (localConf.getSendQuantum() <= 0) {
+      errors.append("invalid 'sendQuantum': " + localConf.getSendQuantum() + "\n");
+    }
+
+    // receive dispatch
+    if (localConf.getDispatchLaneCapacity() <= 0) {
+      errors.append("invalid 'dispatchLaneCapacity': " + localConf.getDispatchLaneCapacity() +
+          "\n");
+    }
+    if (localConf.getDispatchShards() < 0) {
+      errors.append("invalid 'dispatchShards': " + localConf.getDispatchShards() + "\n");
+    }
+    if (localConf.getTunnelCount() < 1) {
+      errors.append("invalid 'tunnelCount': " + localConf.getTunnelCount() + "\n");
+    }
+    if (localConf.getResumeBufferBytes() < 0) {
+      errors.append("invalid 'resumeBufferBytes': " + localConf.getResumeBufferBytes() + "\n");
+    }
+    if (localConf.getResumeTimeout() < 0) {
+      errors.append("invalid 'resumeTimeout': " + localConf.getResumeTimeout() + "\n");
+    }
+    if (localConf.getSocksSelectorThreads() < 0) {
+      errors.append("invalid 'socksSelectorThreads': " + localConf.getSocksSelectorThreads() +
+          "\n");
+    }
+
     // Check for errors and throw
     if (errors.length() > 0) {
       throw new LocalConfException(errors.toString());
@@ -0,0 +1,434 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connects to a resource over every address its name resolves to, the way "happy eyeballs"
+ * clients do.  Attempts start {@code connectAttemptDelay} milliseconds apart, or as soon as the
+ * one before fails, and the first to connect wins; the others are closed.  A dead first address
+ * then costs one attempt delay instead of the whole connect timeout.
+ *
+ * <p>The outcome and latency of every attempt is remembered per address.  Addresses that
+ * connected last time are tried first, fastest first, then those not tried yet in resolver order
+ * alternating IPv6 and IPv4, then those that failed last time.
+ *
+ * <p>A host whose addresses all keep failing is refused by the {@link CircuitBreaker} without
+ * trying them, until a probe connects again.
+ */
+@Singleton
+public class ParallelConnector {
+
+  private static final Logger LOG = Logger.getLogger(ParallelConnector.class);
+
+  // Addresses whose outcomes are remembered before the record starts over.
+  static final int MAX_ADDRESSES = 10000;
+
+  /**
+   * Opens and connects one kind of socket, such as a {@link java.net.Socket} or a
+   * {@link java.nio.channels.SocketChannel}.
+   */
+  public interface Opener<S extends Closeable> {
+
+    /** Returns a new unconnected socket. */
+    S open() throws IOException;
+
+    /** Connects the socket, blocking until connected.  Closing the socket aborts it. */
+    void connect(S socket, InetSocketAddress address) throws IOException;
+  }
+
+  private final DnsCache dnsCache;
+  private final ThreadPoolExecutor threadPoolExecutor;
+  private final TimerWheel timerWheel;
+  private final LocalConf localConf;
+  private final CircuitBreaker circuitBreaker;
+  private final ConcurrentMap<InetSocketAddress, AddressStats> addressStats =
+      new ConcurrentHashMap<InetSocketAddress, AddressStats>();
+  private final AtomicLong races = new AtomicLong();
+  private final AtomicLong wonByLater = new AtomicLong();
+
+  @Inject
+  public ParallelConnector(final DnsCache dnsCache, final ThreadPoolExecutor threadPoolExecutor,
+      final TimerWheel timerWheel, final LocalConf localConf,
+      final CircuitBreaker circuitBreaker) {
+    this.dnsCache = dnsCache;
+    this.threadPoolExecutor = threadPoolExecutor;
+    this.timerWheel = timerWheel;
+    this.localConf = localConf;
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Returns an endpoint for each address of the host.
+   *
+   * @throws UnknownHostException if the host does not resolve.
+   */
+  public List<InetSocketAddress> resolve(final String host, final int port)
+      throws UnknownHostException {
+    final List<InetSocketAddress> endpoints = new ArrayList<InetSocketAddress>();
+    for (InetAddress address : dnsCache.resolve(host)) {
+      endpoints.add(new InetSocketAddress(address, port));
+    }
+    return endpoints;
+  }
+
+  /**
+   * Connects to the first of the endpoints that answers.  The endpoints are the addresses of one
+   * host and port, the backend the circuit breaker keeps track of.
+   *
+   * @param timeoutMillis how long all attempts together may take.
+   * @return the connected socket.
+   * @throws ConnectException at once if the backend's circuit is open.
+   * @throws IOException from the last attempt if none connects.
+   */
+  public <S extends Closeable> S connect(final List<InetSocketAddress> endpoints,
+      final long timeoutMillis, final Opener<S> opener) throws IOException {
+    Preconditions.checkArgument(!endpoints.isEmpty(), "no endpoints");
+    final String backend = CircuitBreaker.backend(endpoints.get(0).getHostString(),
+        endpoints.get(0).getPort());
+    if (!circuitBreaker.allow(backend)) {
+      throw new ConnectException(backend + " keeps failing to connect, not trying it now");
+    }
+    final S socket;
+    try {
+      socket = connectAny(endpoints, timerWheel.now() + timeoutMillis, opener);
+    } catch (InterruptedIOException e) {
+      if (e instanceof SocketTimeoutException) {
+        circuitBreaker.failed(backend);
+      }
+      // Otherwise given up on by the caller, which says nothing about the backend.
+      throw e;
+    } catch (IOException e) {
+      circuitBreaker.failed(backend);
+      throw e;
+    }
+    circuitBreaker.succeeded(backend);
+    return socket;
+  }
+
+  /**
+   * Returns the counters in a form fit for the log.
+   */
+  public String getStats() {
+    return races.get() + " raced, " + wonByLater.get() + " won by a later address, " +
+        addressStats.size() + " addresses tracked";
+  }
+
+  private <S extends Closeable> S connectAny(final List<InetSocketAddress> endpoints,
+      final long deadline, final Opener<S> opener) throws IOException {
+    if (endpoints.size() == 1) {
+      final Attempt<S> attempt = new Attempt<S>(endpoints.get(0), deadline, opener, null);
+      attempt.run();
+      return attempt.get();
+    }
+    races.incrementAndGet();
+    return new Race<S>(order(endpoints), deadline, opener).run();
+  }
+
+  /**
+   * Returns the endpoints in the order to try them.
+   */
+  List<InetSocketAddress> order(final List<InetSocketAddress> endpoints) {
+    final List<InetSocketAddress> ordered = interleaveFamilies(endpoints);
+    Collections.sort(ordered, new Comparator<InetSocketAddress>() {
+      @Override
+      public int compare(final InetSocketAddress a, final InetSocketAddress b) {
+        final AddressStats statsA = addressStats.get(a);
+        final AddressStats statsB = addressStats.get(b);
+        final int rankA = rank(statsA);
+        final int rankB = rank(statsB);
+        if (rankA != rankB || rankA != 0) {
+          return rankA - rankB;
+        }
+        return statsA.latencyMillis < statsB.latencyMillis ? -1 :
+            (statsA.latencyMillis > statsB.latencyMillis ? 1 : 0);
+      }
+    });
+    return ordered;
+  }
+
+  /**
+   * 0 if the address connected last time, 1 if it was never tried, 2 if it failed last time.
+   */
+  private static int rank(final AddressStats stats) {
+    if (stats == null) {
+      return 1;
+    }
+    return stats.lastFailed ? 2 : 0;
+  }
+
+  /**
+   * Alternates the address families, starting with that of the first address, keeping the
+   * resolver's order within each.
+   */
+  private static List<InetSocketAddress> interleaveFamilies(
+      final List<InetSocketAddress> endpoints) {
+    final Queue<InetSocketAddress> first = new LinkedList<InetSocketAddress>();
+    final Queue<InetSocketAddress> other = new LinkedList<InetSocketAddress>();
+    final boolean firstIsV6 = endpoints.get(0).getAddress() instanceof Inet6Address;
+    for (InetSocketAddress endpoint : endpoints) {
+      if ((endpoint.getAddress() instanceof Inet6Address) == firstIsV6) {
+        first.add(endpoint);
+      } else {
+        other.add(endpoint);
+      }
+    }
+    final List<InetSocketAddress> interleaved = new ArrayList<InetSocketAddress>();
+    while (!first.isEmpty() || !other.isEmpty()) {
+      if (!first.isEmpty()) {
+        interleaved.add(first.poll());
+      }
+      if (!other.isEmpty()) {
+        interleaved.add(other.poll());
+      }
+    }
+    return interleaved;
+  }
+
+  private void record(final InetSocketAddress endpoint, final boolean connected,
+      final long latencyMillis) {
+    AddressStats stats = addressStats.get(endpoint);
+    if (stats == null) {
+      if (addressStats.size() >= MAX_ADDRESSES) {
+        addressStats.clear();
+      }
+      addressStats.putIfAbsent(endpoint, new AddressStats());
+      stats = addressStats.get(endpoint);
+    }
+    stats.record(connected, latencyMillis);
+  }
+
+  private static void closeQuietly(final Closeable closeable) {
+    if (closeable == null) {
+      return;
+    }
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // Closing to abort, nothing more to do.
+    }
+  }
+
+  /**
+   * The outcomes of connecting to one address.
+   */
+  private static final class AddressStats {
+    private final AtomicLong successes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    // Moving average of the connect latency, weighing each connect an eighth.
+    private volatile long latencyMillis = -1;
+    private volatile boolean lastFailed;
+
+    void record(final boolean connected, final long latency) {
+      lastFailed = !connected;
+      if (!connected) {
+        failures.incrementAndGet();
+        return;
+      }
+      successes.incrementAndGet();
+      final long previous = latencyMillis;
+      latencyMillis = previous < 0 ? latency : previous + (latency - previous) / 8;
+    }
+  }
+
+  /**
+   * One connect to one address, bounded by the race's deadline on the timer wheel.
+   */
+  private final class Attempt<S extends Closeable> implements Runnable {
+    private final InetSocketAddress endpoint;
+    private final long deadline;
+    private final Opener<S> opener;
+    private final Race<S> race;
+    private S socket;
+    private IOException failure;
+
+    Attempt(final InetSocketAddress endpoint, final long deadline, final Opener<S> opener,
+        final Race<S> race) {
+      this.endpoint = endpoint;
+      this.deadline = deadline;
+      this.opener = opener;
+      this.race = race;
+    }
+
+    @Override
+    public void run() {
+      final long start = timerWheel.now();
+      S opened = null;
+      try {
+        if (deadline <= start) {
+          throw new SocketTimeoutException("No time left to connect to " + endpoint);
+        }
+        opened = opener.open();
+        if (race != null && !race.track(opened)) {
+          throw new IOException("Already connected to another address");
+        }
+        final TimerWheel.Timeout timeout =
+            ConnectionTimer.connectTimeout(timerWheel, deadline - start, opened);
+        try {
+          opener.connect(opened, endpoint);
+        } finally {
+          timeout.cancel();
+        }
+        record(endpoint, true, timerWheel.now() - start);
+        socket = opened;
+      } catch (IOException e) {
+        closeQuietly(opened);
+        if (race == null || !race.isDecided()) {
+          record(endpoint, false, 0);
+        }
+        failure = e;
+      } finally {
+        if (race != null) {
+          race.finished(this);
+        }
+      }
+    }
+
+    S get() throws IOException {
+      if (socket == null) {
+        throw failure;
+      }
+      return socket;
+    }
+  }
+
+  /**
+   * Staggered attempts on the thread pool, the caller waits for the first to connect.
+   */
+  private final class Race<S extends Closeable> {
+    private final List<InetSocketAddress> endpoints;
+    private final long deadline;
+    private final Opener<S> opener;
+    private final BlockingQueue<Attempt<S>> finished = new LinkedBlockingQueue<Attempt<S>>();
+    private final Queue<S> opened = new ConcurrentLinkedQueue<S>();
+    private final AtomicBoolean decided = new AtomicBoolean(false);
+
+    Race(final List<InetSocketAddress> endpoints, final long deadline, final Opener<S> opener) {
+      this.endpoints = endpoints;
+      this.deadline = deadline;
+      this.opener = opener;
+    }
+
+    S run() throws IOException {
+      final long delay = localConf.getConnectAttemptDelay();
+      int started = 0;
+      int done = 0;
+      IOException last = null;
+      start(started++);
+      try {
+        while (done < endpoints.size()) {
+          final Attempt<S> attempt = started < endpoints.size() ?
+              finished.poll(delay, TimeUnit.MILLISECONDS) : finished.take();
+          if (attempt == null) {
+            // Slow to answer, the next address joins the race.
+            start(started++);
+            continue;
+          }
+          done++;
+          if (attempt.socket != null && decided.compareAndSet(false, true)) {
+            closeOthers(attempt.socket);
+            if (attempt.endpoint != endpoints.get(0)) {
+              wonByLater.incrementAndGet();
+            }
+            return attempt.socket;
+          }
+          last = attempt.failure;
+          LOG.debug("Connect to " + attempt.endpoint + " failed: " + last);
+          if (started < endpoints.size()) {
+            start(started++);
+          }
+        }
+      } catch (InterruptedException e) {
+        decided.set(true);
+        closeOthers(null);
+        throw new InterruptedIOException("Interrupted while connecting");
+      }
+      throw last;
+    }
+
+    private void start(final int index) {
+      final Attempt<S> attempt = new Attempt<S>(endpoints.get(index), deadline, opener, this);
+      try {
+        threadPoolExecutor.execute(attempt);
+      } catch (RejectedExecutionException e) {
+        attempt.failure = new IOException("No thread to connect to " + attempt.endpoint);
+        finished.add(attempt);
+      }
+    }
+
+    /**
+     * Tracks a socket being connected so the winner can close it.
+     *
+     * @return false if the race has been decided, the socket is not needed.
+     */
+    boolean track(final S socket) {
+      opened.add(socket);
+      return !decided.get();
+    }
+
+    boolean isDecided() {
+      return decided.get();
+    }
+
+    void finished(final Attempt<S> attempt) {
+      finished.add(attempt);
+    }
+
+    /**
+     * Closes every socket opened for the race but the winner, which aborts their connects.
+     * Sockets opened after this see the race decided and close themselves.
+     */
+    private void closeOthers(final S winner) {
+      for (S socket : opened) {
+        if (socket != winner) {
+          closeQuietly(socket);
+        }
+      }
+    }
+  }
+}
@@ -89,33 +89,64 @@ public class Rfc1929SdcAuthenticator extends ServerAuthenticatorNone {
    */
   @Override
   public boolean checkRequest(final ProxyMessage msg) {
-    Preconditions.checkNotNull(keyManager);
-
     // This shouldn't happen but we should check anyways.
     if (msg.version != 5) {
       return false;
     }
+    return checkDestination(passKey, serverMetaData, String.valueOf(msg.getConnectionId()),
+        msg.host, msg.port);
+  }
+
+  /**
+   * Checks the destination against the allowed IP:Port pairs of a key and logs any cloud
+   * provided data.  Shared by the JSOCKS server and the in-process socks endpoint.
+   *
+   * @param key the RFC1929 password of the connection.
+   * @param metaData the RFC1929 user name, a JSON packet describing the connection.
+   * @param connectionLabel identifies the connection in the log.
+   * @param host the requested destination host.
+   * @param port the requested destination port.
+   * @returns true if request is allowed or false if its prevented by ruleset.
+   */
+  public boolean checkDestination(final String key, final String metaData,
+      final String connectionLabel, final String host, final int port) {
+    Preconditions.checkNotNull(keyManager);
 
     try {
-      final JSONObject serverMetadataJson = new JSONObject(serverMetaData);
+      final JSONObject serverMetadataJson = new JSONObject(metaData);
       final String name = serverMetadataJson.getString("name");
       final String resource = serverMetadataJson.getString("resource");
       final String user = serverMetadataJson.getString("user");
       final String appId = serverMetadataJson.getString("appId");
-      LOG.info(msg.getConnectionId() + " Incoming connection for rule id:" +  name + 
+      LOG.info(connectionLabel + " Incoming connection for rule id:" +  name +
           " for resource:" + resource +  " cloud-user:" + user + " reported-appId:" + appId);
     } catch (JSONException e) {
-      LOG.info(msg.getConnectionId() + " Cloud did not report metadata (old cloud clients?)");
+      LOG.info(connectionLabel + " Cloud did not report metadata (old cloud clients?)");
     }
 
     // Is this a valid "secret key"
-    final boolean rslt = keyManager.checkKeyIpPort(passKey, msg.host, msg.port);
+    final boolean rslt = keyManager.checkKeyIpPort(key, host, port);
     if (!rslt) {
-      LOG.info("No key found. Rejecting access to " + msg.host + ":" + msg.port);
+      LOG.info("No key found. Rejecting access to " + host + ":" + port);
     }
     return rslt;
   }
-  
+
+  /**
+   * Returns true if the RFC1929 password is a key the SDC server has sent us.
+   */
+  public boolean isKnownKey(final String key) {
+    if (keyManager == null) {
+      LOG.debug("SDC server hasn't sent the keys yet. reject the request.");
+      return false;
+    }
+    if (!keyManager.containsKey(key)) {
+      LOG.debug("the key " + key + " is not recognized.");
+      return false;
+    }
+    return true;
+  }
+
   /**
    * Reads the authentication data from the session and validates request
    * 
@@ -177,16 +208,11 @@ public class Rfc1929SdcAuthenticator extends ServerAuthenticatorNone {
     passKey = new String(password);
     
     // Verify passKey exists.
-    if (keyManager == null) {
-      LOG.debug("SDC server hasn't sent the keys yet. reject the request.");
-      return false;
-    }
-    if (keyManager.containsKey(passKey)) {
+    if (isKnownKey(passKey)) {
       // we have a passkey that matches, we will check the dest later
       out.write(new byte[]{1,0});
     } else {
       // failed auth, we have no passwords that match
-      LOG.debug("the key " + passKey + " is not recognized.");
       out.write(new byte[]{1,1});
       return false;
     }
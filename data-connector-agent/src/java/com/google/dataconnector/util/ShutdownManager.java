@@ -22,6 +22,7 @@ import com.google.inject.Singleton;
 import org.apache.log4j.Logger;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -64,7 +65,7 @@ public class ShutdownManager {
    * @param group A group identifier to support shutting down in separate 
    * phases.
    */
-  public void addStoppable(Stoppable stoppable, String group) {
+  public synchronized void addStoppable(Stoppable stoppable, String group) {
     if (!stoppableGroups.containsKey(group)) {
       stoppableGroups.put(group, new ArrayList<Pair<String, Stoppable>>());
     }
@@ -73,13 +74,29 @@ public class ShutdownManager {
     LOG.debug("Managing shutdown for " + stoppable.getClass().getName());
   }
   
+  /**
+   * Stops managing the stoppable in any group.  Used by components that are torn down on their
+   * own, like a single tunnel, so they are not kept around until the next full shutdown.
+   * 
+   * @param stoppable An instance that no longer needs to be shutdown.
+   */
+  public synchronized void removeStoppable(Stoppable stoppable) {
+    for (List<Pair<String, Stoppable>> stoppables : stoppableGroups.values()) {
+      for (Iterator<Pair<String, Stoppable>> it = stoppables.iterator(); it.hasNext();) {
+        if (it.next().second() == stoppable) {
+          it.remove();
+        }
+      }
+    }
+  }
+  
   /**
    * Loop through all registered stoppables and issue a shutdown.  If no 
    * stoppables are registered, we do nothing and return.  This allows 
    * defensive calls to shutdown.
    */
-  public void shutdownAll() {
-    for (String group : stoppableGroups.keySet()) {
+  public synchronized void shutdownAll() {
+    for (String group : new ArrayList<String>(stoppableGroups.keySet())) {
       shutdownGroup(group);
     }
   }
@@ -91,7 +108,7 @@ public class ShutdownManager {
    * 
    * @param groupName The group to shutdown.
    */
-  public void shutdownGroup(String groupName) {
+  public synchronized void shutdownGroup(String groupName) {
     if (!stoppableGroups.containsKey(groupName)) {
       return;
     }
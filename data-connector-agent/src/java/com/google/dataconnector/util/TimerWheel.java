@@ -0,0 +1,338 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import com.google.common.base.Preconditions;
+
+import org.apache.log4j.Logger;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timer wheel running the connect, idle and lifetime timeouts of every connection on a
+ * single thread.  Timeouts hash into a ring of buckets by deadline and the thread expires one
+ * bucket per tick, so scheduling and cancelling are constant time however many connections are
+ * open.  A timeout fires up to one tick late, never early.
+ *
+ * <p>New and cancelled timeouts are handed to the wheel thread through lock free queues and only
+ * that thread touches the buckets.  Tasks run on the wheel thread and must be quick, closing a
+ * socket rather than waiting on one.  The thread starts with the first timeout.
+ *
+ * <p>Callers record expiries that mean something, an idle connection closed rather than its
+ * deadline being checked, with {@link #countExpiry(String)}, they show up in {@link #getStats()}.
+ */
+public class TimerWheel implements Stoppable {
+
+  private static final Logger LOG = Logger.getLogger(TimerWheel.class);
+
+  private static final int INIT = 0;
+  private static final int CANCELLED = 1;
+  private static final int EXPIRED = 2;
+
+  private final long tickNanos;
+  private final Bucket[] buckets;
+  private final int mask;
+  private final long startNanos = System.nanoTime();
+  private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+  private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicLong firedCount = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> expiries =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private Thread worker; // guarded by this.
+  private volatile boolean running = true;
+  // Only used by the wheel thread.
+  private long tick = 0;
+
+  /**
+   * @param tickMillis how often the wheel advances, the resolution of its timeouts.
+   * @param wheelSize the number of buckets, rounded up to a power of two.  Timeouts further
+   * away than a turn of the wheel wait in their bucket for the turns in between.
+   */
+  public TimerWheel(final long tickMillis, final int wheelSize) {
+    Preconditions.checkArgument(tickMillis > 0, "tickMillis must be positive");
+    Preconditions.checkArgument(wheelSize > 0 && wheelSize <= 1 << 30, "bad wheelSize");
+    tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+    final int size = Integer.highestOneBit(wheelSize - 1 == 0 ? 1 : (wheelSize - 1) << 1);
+    buckets = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      buckets[i] = new Bucket();
+    }
+    mask = size - 1;
+  }
+
+  /**
+   * Runs the task once the delay has passed unless the returned timeout is cancelled first.
+   */
+  public Timeout schedule(final long delayMillis, final Runnable task) {
+    Preconditions.checkNotNull(task);
+    final Timeout timeout = new Timeout(task,
+        elapsedNanos() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0)));
+    pending.incrementAndGet();
+    added.add(timeout);
+    startWorker();
+    return timeout;
+  }
+
+  /**
+   * Returns the milliseconds since the wheel was made.  Cheap enough to stamp activity with on
+   * every read.
+   */
+  public long now() {
+    return TimeUnit.NANOSECONDS.toMillis(elapsedNanos());
+  }
+
+  /**
+   * Counts an expiry of the given kind, such as "idle", for {@link #getStats()}.
+   */
+  public void countExpiry(final String kind) {
+    AtomicLong count = expiries.get(kind);
+    if (count == null) {
+      expiries.putIfAbsent(kind, new AtomicLong());
+      count = expiries.get(kind);
+    }
+    count.incrementAndGet();
+  }
+
+  /**
+   * Returns how many expiries of the kind have been counted.
+   */
+  public long getExpiryCount(final String kind) {
+    final AtomicLong count = expiries.get(kind);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * Returns the number of timeouts neither fired nor cancelled yet.
+   */
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * Returns the number of timeouts that have fired.
+   */
+  public long getFiredCount() {
+    return firedCount.get();
+  }
+
+  /**
+   * Returns the counters in a form fit for the log.
+   */
+  public String getStats() {
+    final StringBuilder stats = new StringBuilder();
+    stats.append(pending.get()).append(" pending, ").append(firedCount.get()).append(" fired");
+    for (Map.Entry<String, AtomicLong> expiry :
+        new TreeMap<String, AtomicLong>(expiries).entrySet()) {
+      stats.append(", ").append(expiry.getValue().get()).append(' ').append(expiry.getKey())
+          .append(" expired");
+    }
+    return stats.toString();
+  }
+
+  /**
+   * Stops the wheel thread.  Timeouts not fired yet never will be.
+   */
+  @Override
+  public void shutdown() {
+    running = false;
+    synchronized (this) {
+      if (worker != null) {
+        worker.interrupt();
+      }
+    }
+  }
+
+  private long elapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  private synchronized void startWorker() {
+    if (worker != null || !running) {
+      return;
+    }
+    worker = new Thread("sdc-timer-wheel") {
+      @Override
+      public void run() {
+        runWheel();
+      }
+    };
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  private void runWheel() {
+    while (running) {
+      final long deadline = tickNanos * (tick + 1);
+      final long sleepNanos = deadline - elapsedNanos();
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          continue; // Checks running.
+        }
+        continue; // Sleep may return early.
+      }
+      removeCancelled();
+      transferAdded();
+      expire(buckets[(int) (tick & mask)], deadline);
+      tick++;
+    }
+  }
+
+  private void removeCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelled.poll()) != null) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+    }
+  }
+
+  /**
+   * Hashes newly scheduled timeouts into their buckets.  Those already due go into the current
+   * bucket.
+   */
+  private void transferAdded() {
+    Timeout timeout;
+    while ((timeout = added.poll()) != null) {
+      if (timeout.state.get() != INIT) {
+        continue;
+      }
+      final long dueTick = (timeout.deadline + tickNanos - 1) / tickNanos - 1;
+      timeout.remainingRounds = Math.max(dueTick - tick, 0) / buckets.length;
+      buckets[(int) (Math.max(dueTick, tick) & mask)].add(timeout);
+    }
+  }
+
+  private void expire(final Bucket bucket, final long deadline) {
+    Timeout timeout = bucket.head;
+    while (timeout != null) {
+      final Timeout next = timeout.next;
+      if (timeout.remainingRounds <= 0) {
+        bucket.remove(timeout);
+        if (timeout.deadline <= deadline) {
+          timeout.fire();
+        } else {
+          // Cannot happen, the timeout was hashed into the wrong bucket.
+          LOG.warn("Timeout in bucket ahead of its deadline, rescheduling.");
+          added.add(timeout);
+        }
+      } else {
+        timeout.remainingRounds--;
+      }
+      timeout = next;
+    }
+  }
+
+  /**
+   * A scheduled task that can be cancelled until it has run.
+   */
+  public final class Timeout {
+    private final Runnable task;
+    private final long deadline;
+    private final AtomicInteger state = new AtomicInteger(INIT);
+    // Only used by the wheel thread.
+    private long remainingRounds;
+    private Bucket bucket;
+    private Timeout previous;
+    private Timeout next;
+
+    private Timeout(final Runnable task, final long deadline) {
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancels the timeout.
+     *
+     * @return false if it has already run or been cancelled.
+     */
+    public boolean cancel() {
+      if (!state.compareAndSet(INIT, CANCELLED)) {
+        return false;
+      }
+      pending.decrementAndGet();
+      cancelled.add(this);
+      return true;
+    }
+
+    public boolean isExpired() {
+      return state.get() == EXPIRED;
+    }
+
+    private void fire() {
+      if (!state.compareAndSet(INIT, EXPIRED)) {
+        return;
+      }
+      pending.decrementAndGet();
+      firedCount.incrementAndGet();
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        LOG.warn("Timeout task failed.", e);
+      }
+    }
+  }
+
+  /**
+   * A doubly linked list of the timeouts hashed to one slot of the wheel.
+   */
+  private static final class Bucket {
+    private Timeout head;
+    private Timeout tail;
+
+    void add(final Timeout timeout) {
+      timeout.bucket = this;
+      timeout.previous = tail;
+      timeout.next = null;
+      if (tail == null) {
+        head = timeout;
+      } else {
+        tail.next = timeout;
+      }
+      tail = timeout;
+    }
+
+    void remove(final Timeout timeout) {
+      if (timeout.bucket != this) {
+        return;
+      }
+      if (timeout.previous == null) {
+        head = timeout.next;
+      } else {
+        timeout.previous.next = timeout.next;
+      }
+      if (timeout.next == null) {
+        tail = timeout.previous;
+      } else {
+        timeout.next.previous = timeout.previous;
+      }
+      timeout.bucket = null;
+      timeout.previous = null;
+      timeout.next = null;
+    }
+  }
+}
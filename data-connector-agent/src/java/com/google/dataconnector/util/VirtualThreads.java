@@ -0,0 +1,93 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on JVMs that have them (Java 21 and later).  The agent still builds and
+ * runs on older JVMs, so the thread builder API is looked up reflectively and callers fall back
+ * to platform threads when {@link #isSupported()} is false.
+ */
+public final class VirtualThreads {
+
+  private static final Logger LOG = Logger.getLogger(VirtualThreads.class);
+
+  // Thread.ofVirtual(), Thread.Builder.name(String, long) and Thread.Builder.factory().
+  private static final Method OF_VIRTUAL;
+  private static final Method NAME;
+  private static final Method FACTORY;
+
+  static {
+    Method ofVirtual = null;
+    Method name = null;
+    Method factory = null;
+    try {
+      final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      name = builder.getMethod("name", String.class, long.class);
+      factory = builder.getMethod("factory");
+      // Preview builds have the API but refuse to use it unless previews are enabled.
+      ofVirtual.invoke(null);
+    } catch (ClassNotFoundException e) {
+      ofVirtual = null;
+    } catch (NoSuchMethodException e) {
+      ofVirtual = null;
+    } catch (IllegalAccessException e) {
+      ofVirtual = null;
+    } catch (InvocationTargetException e) {
+      LOG.debug("Virtual threads unavailable", e.getCause());
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+  }
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Returns true if this JVM can create virtual threads.
+   */
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * Returns a factory for virtual threads named with the given prefix and a counter.
+   *
+   * @throws UnsupportedOperationException if the JVM has no virtual threads.
+   */
+  public static ThreadFactory newThreadFactory(final String namePrefix) {
+    if (!isSupported()) {
+      throw new UnsupportedOperationException("Virtual threads need Java 21 or later");
+    }
+    try {
+      final Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), namePrefix, 0L);
+      return (ThreadFactory) FACTORY.invoke(builder);
+    } catch (IllegalAccessException e) {
+      throw new UnsupportedOperationException(e);
+    } catch (InvocationTargetException e) {
+      throw new UnsupportedOperationException(e.getCause());
+    }
+  }
+}
@@ -16,12 +16,16 @@
  */
 package com.google.dataconnector.client;
 
+import com.google.dataconnector.client.FetchRequestHandler.Strategy;
 import com.google.dataconnector.client.FetchRequestHandler.StrategyType;
+import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.dataconnector.util.CircuitBreaker;
 import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.LocalConf;
 import com.google.dataconnector.util.SdcKeysManager;
 import com.google.dataconnector.util.SessionEncryption;
 import com.google.inject.Injector;
@@ -32,8 +36,12 @@ import junit.framework.TestCase;
 
 import org.easymock.classextension.EasyMock;
 
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 
 /**
@@ -65,7 +73,7 @@ public class FetchRequestHandlerTest extends TestCase {
 	      sm,
 	      EasyMock.createMock(ThreadPoolExecutor.class),
 	      EasyMock.createMock(Injector.class),
-	      EasyMock.createMock(ClockUtil.class));
+	      EasyMock.createMock(ClockUtil.class), null);
 
 	  FetchRequest parsed = sm.getSessionEncryption().getFrom(frameInfo,
 	      new SessionEncryption.Parse<FetchRequest>() {
@@ -104,7 +112,7 @@ public class FetchRequestHandlerTest extends TestCase {
           sm,
           EasyMock.createMock(ThreadPoolExecutor.class),
           EasyMock.createMock(Injector.class),
-          EasyMock.createMock(ClockUtil.class));
+          EasyMock.createMock(ClockUtil.class), null);
       
       FrameInfo frame = sm.getSessionEncryption().toFrameInfo(
           FrameInfo.Type.FETCH_REQUEST, reply);
@@ -121,7 +129,7 @@ public class FetchRequestHandlerTest extends TestCase {
 		        EasyMock.createMock(SdcKeysManager.class),
 				EasyMock.createMock(ThreadPoolExecutor.class),
 				EasyMock.createMock(Injector.class),
-				EasyMock.createMock(ClockUtil.class));
+				EasyMock.createMock(ClockUtil.class), null);
 		
 		Exception ex = null;
 		try {
@@ -153,7 +161,7 @@ public class FetchRequestHandlerTest extends TestCase {
 		        EasyMock.createMock(SdcKeysManager.class),
 				EasyMock.createMock(ThreadPoolExecutor.class),
 				EasyMock.createMock(Injector.class),
-				EasyMock.createMock(ClockUtil.class));
+				EasyMock.createMock(ClockUtil.class), null);
 		
 		ex = null;
 		try {
@@ -170,5 +178,51 @@ public class FetchRequestHandlerTest extends TestCase {
 		assertEquals(StrategyType.HTTP_CLIENT, StrategyType.match("Unknown"));
 		assertEquals(StrategyType.URL_CONNECTION, StrategyType.match("URLConnection"));
 	}
-	
+
+	public void testOnlyConnectFailuresOpenCircuit() throws Exception {
+		LocalConf localConf = new LocalConf();
+		localConf.setCircuitBreakerFailures(2);
+		CircuitBreaker circuitBreaker = new CircuitBreaker(localConf, new ClockUtil());
+		FetchRequestHandler handler = new FetchRequestHandler(new SdcKeysManager(), null, null,
+				new ClockUtil(), circuitBreaker);
+		handler.setFrameSender(new FrameSender(new LinkedBlockingQueue<FrameInfo>(), null));
+		FetchRequest request = FetchRequest.newBuilder()
+				.setId("requestId").setStrategy("URLConnection")
+				.setResource("http://intranet:8080/missing").build();
+		String backend = CircuitBreaker.backend("intranet", 8080);
+
+		// A resource answering 404 or 500 is up.
+		FailingStrategy httpError = new FailingStrategy(new FileNotFoundException("404"));
+		for (int i = 0; i < 5; i++) {
+			handler.new ResourceFetcher(request, httpError).call();
+		}
+		assertFalse(circuitBreaker.isOpen(backend));
+
+		FailingStrategy refused = new FailingStrategy(new ConnectException("Connection refused"));
+		handler.new ResourceFetcher(request, refused).call();
+		handler.new ResourceFetcher(request, refused).call();
+		assertTrue(circuitBreaker.isOpen(backend));
+		FetchReply reply = handler.new ResourceFetcher(request, refused).call();
+		assertEquals(502, reply.getStatus());
+		assertEquals("Refused without fetching.", 2, refused.calls);
+	}
+
+	/**
+	 * Fails every fetch the way a strategy reports an I/O error.
+	 */
+	private static class FailingStrategy implements Strategy {
+		private final IOException cause;
+		private int calls;
+
+		FailingStrategy(IOException cause) {
+			this.cause = cause;
+		}
+
+		@Override
+		public void process(FetchRequest request, FetchReply.Builder replyBuilder)
+				throws StrategyException {
+			calls++;
+			throw new StrategyException(request.getId() + ": io exception.", cause);
+		}
+	}
 }
@@ -64,6 +64,7 @@ public class HealthCheckHandlerTest extends TestCase {
     frameSender = EasyMock.createMock(FrameSender.class);
     frameSender.sendFrame(EasyMock.eq(FrameInfo.Type.HEALTH_CHECK), verifyHci());
     EasyMock.expectLastCall();
+    EasyMock.expect(frameSender.getQueueStats()).andReturn(null);
     EasyMock.replay(frameSender);
 
     serverSuppliedConf = ServerSuppliedConf.newBuilder()
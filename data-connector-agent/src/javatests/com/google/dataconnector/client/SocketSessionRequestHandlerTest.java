@@ -0,0 +1,153 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.client.socketsession.SocketSessionManager;
+import com.google.dataconnector.protocol.BufferPool;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.MemoryBudget;
+import com.google.dataconnector.protocol.SegmentBuffer;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionRequest;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
+import com.google.dataconnector.util.CircuitBreaker;
+import com.google.dataconnector.util.ClientGuiceModule;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.DnsCache;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ParallelConnector;
+import com.google.dataconnector.util.SdcKeysManager;
+import com.google.dataconnector.util.SessionEncryption;
+import com.google.dataconnector.util.TimerWheel;
+import com.google.inject.Provider;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SocketSessionRequestHandler}.
+ */
+public class SocketSessionRequestHandlerTest extends TestCase {
+
+  private static final ByteString HANDLE = ByteString.copyFromUtf8("handle");
+
+  private ThreadPoolExecutor threadPoolExecutor;
+  private TimerWheel timerWheel;
+  private SdcKeysManager sdcKeysManager;
+  private SocketSessionManager manager;
+  private BlockingQueue<FrameInfo> sent;
+  private CountDownLatch resolving;
+  private CountDownLatch resolved;
+  private SocketSessionRequestHandler handler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threadPoolExecutor = ClientGuiceModule.newThreadPoolExecutor(false);
+    timerWheel = new TimerWheel(10, 64);
+    LocalConf localConf = new LocalConf();
+    final MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024);
+    resolving = new CountDownLatch(1);
+    resolved = new CountDownLatch(1);
+    DnsCache dnsCache = new DnsCache(localConf, new ClockUtil(), threadPoolExecutor) {
+      @Override
+      protected InetAddress[] lookup(String host) throws UnknownHostException {
+        resolving.countDown();
+        try {
+          resolved.await();
+        } catch (InterruptedException e) {
+          throw new UnknownHostException(host);
+        }
+        return new InetAddress[] { InetAddress.getLoopbackAddress() };
+      }
+    };
+    manager = new SocketSessionManager(threadPoolExecutor, new ClockUtil(),
+        BufferPool.unpooled(), new Provider<SegmentBuffer>() {
+          @Override
+          public SegmentBuffer get() {
+            return new SegmentBuffer(64 * 1024, memoryBudget);
+          }
+        }, timerWheel, new ParallelConnector(dnsCache, threadPoolExecutor, timerWheel,
+            localConf, new CircuitBreaker(localConf, new ClockUtil())), localConf);
+    sdcKeysManager = new SdcKeysManager();
+    sdcKeysManager.storeSessionKey(UUID.randomUUID().toString(), SessionEncryption.JCE_ALGO,
+        SessionEncryption.newKeyBytes());
+    sent = new LinkedBlockingQueue<FrameInfo>();
+    handler = new SocketSessionRequestHandler(sdcKeysManager, manager, null, new ClockUtil(),
+        threadPoolExecutor, dnsCache);
+    handler.setFrameSender(new FrameSender(sent, null));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    resolved.countDown();
+    threadPoolExecutor.shutdownNow();
+    timerWheel.shutdown();
+    super.tearDown();
+  }
+
+  public void testCloseWaitsForCreateStillResolving() throws Exception {
+    handler.dispatch(request(SocketSessionVerb.CREATE));
+    assertTrue(resolving.await(5, TimeUnit.SECONDS));
+    handler.dispatch(request(SocketSessionVerb.CLOSE));
+    assertNull("The CLOSE is not handled before its CREATE.",
+        sent.poll(100, TimeUnit.MILLISECONDS));
+
+    resolved.countDown();
+    assertReply(SocketSessionVerb.CREATE, SocketSessionReply.Status.OK);
+    assertReply(SocketSessionVerb.CLOSE, SocketSessionReply.Status.OK);
+    assertEquals("The session is not left behind.", 0, manager.getSessionCount());
+  }
+
+  public void testRequestsRejectedWithoutThreads() throws Exception {
+    threadPoolExecutor.shutdown();
+    handler.dispatch(request(SocketSessionVerb.CREATE));
+    assertReply(SocketSessionVerb.CREATE, SocketSessionReply.Status.ERROR);
+    handler.dispatch(request(SocketSessionVerb.CONNECT));
+    assertReply(SocketSessionVerb.CONNECT, SocketSessionReply.Status.CANNOT_CONNECT);
+  }
+
+  private FrameInfo request(SocketSessionVerb verb) {
+    SocketSessionRequest request = SocketSessionRequest.newBuilder()
+        .setVerb(verb)
+        .setSocketHandle(HANDLE)
+        .setHostname("backend")
+        .setPort(80)
+        .build();
+    return sdcKeysManager.getSessionEncryption().toFrameInfo(FrameInfo.Type.SOCKET_SESSION,
+        request);
+  }
+
+  private void assertReply(SocketSessionVerb verb, SocketSessionReply.Status status)
+      throws Exception {
+    FrameInfo frame = sent.poll(5, TimeUnit.SECONDS);
+    assertNotNull("No reply to " + verb, frame);
+    SocketSessionReply reply = SocketSessionReply.parseFrom(frame.getPayload());
+    assertEquals(verb, reply.getVerb());
+    assertEquals(status, reply.getStatus());
+  }
+}
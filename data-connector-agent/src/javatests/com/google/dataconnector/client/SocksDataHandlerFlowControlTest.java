@@ -0,0 +1,214 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.ProtocolFeatures;
+import com.google.dataconnector.protocol.ProtocolGuiceModule;
+import com.google.dataconnector.protocol.SelectorTransport;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.MessageHeader;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.LocalConf;
+import com.google.inject.Guice;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+/**
+ * Tests socket data flow control in {@link SocksDataHandler} against a local server standing in
+ * for the socks server, with a reader and a writer thread per connection.
+ */
+public class SocksDataHandlerFlowControlTest extends TestCase {
+
+  private static final int WINDOW = 1024;
+
+  protected LocalServer localServer;
+  protected ThreadPoolExecutor threadPoolExecutor;
+  protected SelectorTransport selectorTransport;
+  protected BlockingQueue<FrameInfo> sendQueue;
+  protected SocksDataHandler socksDataHandler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    localServer = new LocalServer();
+    LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setSocksServerPort(localServer.getPort());
+    localConf.setInProcessSocks(false);
+    threadPoolExecutor = new ThreadPoolExecutor(4, 16, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>());
+    sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    selectorTransport = createSelectorTransport();
+
+    socksDataHandler = new SocksDataHandler(localConf, SocketFactory.getDefault(),
+        InetAddress.getByName("127.0.0.1"), threadPoolExecutor,
+        Guice.createInjector(new ProtocolGuiceModule()), selectorTransport, null, null, null);
+    socksDataHandler.setFrameSender(new FrameSender(sendQueue, null));
+    socksDataHandler.setProtocolFeatures(ProtocolFeatures.fromHeaders(Collections.singletonList(
+        MessageHeader.newBuilder()
+            .setKey(ProtocolFeatures.SOCKET_DATA_WINDOW)
+            .setValue(String.valueOf(WINDOW))
+            .build())));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    localServer.close();
+    threadPoolExecutor.shutdownNow();
+    selectorTransport.shutdown();
+    super.tearDown();
+  }
+
+  /**
+   * Returns the transport the handler uses, disabled so connections get stream connectors.
+   */
+  protected SelectorTransport createSelectorTransport() {
+    return new SelectorTransport(0);
+  }
+
+  public void testOverrunWindowResetsOnlyThatConnection() throws Exception {
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, 0));
+    Socket first = localServer.accept();
+    socksDataHandler.dispatch(socketData(2, SocketDataInfo.State.START, 0));
+    Socket second = localServer.accept();
+
+    // More than the window in one go is a protocol violation and must not block dispatch.
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE, WINDOW * 2));
+    assertEquals(-1, first.getInputStream().read());
+
+    socksDataHandler.dispatch(socketData(2, SocketDataInfo.State.CONTINUE, 100));
+    readFully(second.getInputStream(), 100);
+  }
+
+  public void testConsumedBytesAreHandedBack() throws Exception {
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, 0));
+    Socket local = localServer.accept();
+
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE, WINDOW));
+    readFully(local.getInputStream(), WINDOW);
+
+    SocketDataInfo update = nextSocketData(5000);
+    assertNotNull(update);
+    assertEquals(WINDOW, update.getWindowUpdate());
+    assertEquals(0, update.getSegment().size());
+
+    // The full window is available again.
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE, WINDOW));
+    readFully(local.getInputStream(), WINDOW);
+  }
+
+  public void testInputWaitsForWindowUpdate() throws Exception {
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, 0));
+    Socket local = localServer.accept();
+    local.getOutputStream().write(new byte[WINDOW * 3]);
+    local.getOutputStream().flush();
+
+    int received = 0;
+    while (received < WINDOW) {
+      SocketDataInfo data = nextSocketData(5000);
+      assertNotNull(data);
+      received += data.getSegment().size();
+    }
+    assertEquals(WINDOW, received);
+    assertNull(nextSocketData(200));
+
+    socksDataHandler.dispatch(FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(1)
+            .setState(SocketDataInfo.State.CONTINUE)
+            .setWindowUpdate(WINDOW * 2)
+            .build().toByteString())
+        .build());
+    while (received < WINDOW * 3) {
+      SocketDataInfo data = nextSocketData(5000);
+      assertNotNull(data);
+      received += data.getSegment().size();
+    }
+    assertEquals(WINDOW * 3, received);
+  }
+
+  protected SocketDataInfo nextSocketData(final long timeoutMillis) throws Exception {
+    FrameInfo frame = sendQueue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    return frame == null ? null : SocketDataInfo.parseFrom(frame.getPayload());
+  }
+
+  protected static void readFully(final InputStream in, final int length) throws IOException {
+    byte[] buffer = new byte[length];
+    int read = 0;
+    while (read < length) {
+      int count = in.read(buffer, read, length - read);
+      assertTrue("stream closed after " + read + " bytes", count != -1);
+      read += count;
+    }
+  }
+
+  protected static FrameInfo socketData(final long connectionId, final SocketDataInfo.State state,
+      final int segmentSize) {
+    return FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(state)
+            .setSegment(ByteString.copyFrom(new byte[segmentSize]))
+            .build().toByteString())
+        .build();
+  }
+
+  /**
+   * Plain TCP server on an ephemeral port standing in for the local socks server.
+   */
+  protected static class LocalServer {
+
+    private final ServerSocket serverSocket;
+
+    LocalServer() throws IOException {
+      serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+      serverSocket.setSoTimeout(5000);
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    Socket accept() throws IOException {
+      Socket socket = serverSocket.accept();
+      socket.setSoTimeout(5000);
+      return socket;
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+}
@@ -0,0 +1,212 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.ProtocolGuiceModule;
+import com.google.dataconnector.protocol.SelectorTransport;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.ResourceKey;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.Rfc1929SdcAuthenticator;
+import com.google.dataconnector.util.SdcKeysManager;
+import com.google.inject.Guice;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+/**
+ * Tests the in-process socks endpoint of {@link SocksDataHandler}, which negotiates SOCKS5 itself
+ * and connects straight to the resource.
+ */
+public class SocksDataHandlerInProcessTest extends TestCase {
+
+  private static final long KEY = 4242;
+  private static final String METADATA = "{\"name\":\"rule\",\"resource\":\"test\"," +
+      "\"user\":\"user\",\"appId\":\"app\"}";
+
+  private ServerSocket resource;
+  private ThreadPoolExecutor threadPoolExecutor;
+  private SelectorTransport selectorTransport;
+  private BlockingQueue<FrameInfo> sendQueue;
+  private SocksDataHandler socksDataHandler;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    resource = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+    resource.setSoTimeout(5000);
+    threadPoolExecutor = new ThreadPoolExecutor(4, 16, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>());
+    sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    createHandler(new SelectorTransport(0));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    resource.close();
+    threadPoolExecutor.shutdownNow();
+    selectorTransport.shutdown();
+    super.tearDown();
+  }
+
+  /**
+   * Creates the handler with a key that allows connecting to the resource.
+   */
+  private void createHandler(final SelectorTransport transport) throws Exception {
+    SdcKeysManager sdcKeysManager = new SdcKeysManager();
+    sdcKeysManager.storeSecretKeys(Collections.singletonList(ResourceKey.newBuilder()
+        .setKey(KEY)
+        .setIp("127.0.0.1")
+        .setPort(resource.getLocalPort())
+        .build()));
+    LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setInProcessSocks(true);
+    selectorTransport = transport;
+    socksDataHandler = new SocksDataHandler(localConf, SocketFactory.getDefault(),
+        InetAddress.getByName("127.0.0.1"), threadPoolExecutor,
+        Guice.createInjector(new ProtocolGuiceModule()), selectorTransport,
+        new Rfc1929SdcAuthenticator(sdcKeysManager), null, null);
+    socksDataHandler.setFrameSender(new FrameSender(sendQueue, null));
+  }
+
+  public void testConnectsToAllowedResource() throws Exception {
+    checkConnectsToAllowedResource();
+  }
+
+  public void testConnectsToAllowedResourceOnSelector() throws Exception {
+    createHandler(new SelectorTransport(2));
+    checkConnectsToAllowedResource();
+  }
+
+  private void checkConnectsToAllowedResource() throws Exception {
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, new byte[0]));
+    // Method selection split over two segments.
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE, new byte[] { 5 }));
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE,
+        new byte[] { 2, 0, 2 }));
+    assertReply(new byte[] { 5, 2 });
+
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE,
+        authentication(String.valueOf(KEY))));
+    assertReply(new byte[] { 1, 0 });
+
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE,
+        connectRequest(resource.getLocalPort())));
+    Socket backend = resource.accept();
+    backend.setSoTimeout(5000);
+    // The resource speaks first, its greeting must follow the reply.
+    backend.getOutputStream().write("hello".getBytes());
+    SocketDataInfo reply = nextSocketData();
+    assertEquals(5, reply.getSegment().byteAt(0));
+    assertEquals(Socks5Handshake.REPLY_SUCCEEDED, reply.getSegment().byteAt(1));
+    assertEquals("hello", nextSocketData().getSegment().toStringUtf8());
+
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE, "ping".getBytes()));
+    byte[] ping = new byte[4];
+    int read = 0;
+    while (read < ping.length) {
+      int count = backend.getInputStream().read(ping, read, ping.length - read);
+      assertTrue(count != -1);
+      read += count;
+    }
+    assertEquals("ping", new String(ping));
+
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CLOSE, new byte[0]));
+    assertEquals(-1, backend.getInputStream().read());
+  }
+
+  public void testUnknownKeyIsRejected() throws Exception {
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, new byte[0]));
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE,
+        new byte[] { 5, 1, 2 }));
+    assertReply(new byte[] { 5, 2 });
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE,
+        authentication("1234")));
+    assertReply(new byte[] { 1, 1 });
+    assertEquals(SocketDataInfo.State.CLOSE, nextSocketData().getState());
+  }
+
+  public void testDisallowedDestinationIsRejected() throws Exception {
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, new byte[0]));
+    ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+    handshake.write(new byte[] { 5, 1, 2 });
+    handshake.write(authentication(String.valueOf(KEY)));
+    handshake.write(connectRequest(resource.getLocalPort() + 1));
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE,
+        handshake.toByteArray()));
+
+    // All replies to a pipelined handshake go back in one segment.
+    ByteString reply = nextSocketData().getSegment();
+    assertEquals(ByteString.copyFrom(new byte[] { 5, 2, 1, 0 }),
+        ByteString.copyFrom(reply.toByteArray(), 0, 4));
+    assertEquals(5, reply.byteAt(4));
+    assertEquals(Socks5Handshake.REPLY_NOT_ALLOWED, reply.byteAt(5));
+    assertEquals(SocketDataInfo.State.CLOSE, nextSocketData().getState());
+  }
+
+  private void assertReply(final byte[] expected) throws Exception {
+    assertEquals(ByteString.copyFrom(expected), nextSocketData().getSegment());
+  }
+
+  private SocketDataInfo nextSocketData() throws Exception {
+    FrameInfo frame = sendQueue.poll(5000, TimeUnit.MILLISECONDS);
+    assertNotNull(frame);
+    return SocketDataInfo.parseFrom(frame.getPayload());
+  }
+
+  private static byte[] authentication(final String password) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(1);
+    out.write(METADATA.length());
+    out.write(METADATA.getBytes());
+    out.write(password.length());
+    out.write(password.getBytes());
+    return out.toByteArray();
+  }
+
+  private static byte[] connectRequest(final int port) {
+    return new byte[] { 5, 1, 0, 1, 127, 0, 0, 1, (byte) (port >>> 8), (byte) port };
+  }
+
+  private static FrameInfo socketData(final long connectionId, final SocketDataInfo.State state,
+      final byte[] segment) {
+    return FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(state)
+            .setSegment(ByteString.copyFrom(segment))
+            .build().toByteString())
+        .build();
+  }
+}
@@ -0,0 +1,122 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.protocol.ProtocolFeatures;
+import com.google.dataconnector.protocol.SelectorTransport;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.protobuf.ByteString;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the flow control tests of {@link SocksDataHandler} on the {@link SelectorTransport} and
+ * checks it serves many connections without a thread per connection.
+ */
+public class SocksDataHandlerSelectorTest extends SocksDataHandlerFlowControlTest {
+
+  private static final int CONNECTIONS = 200;
+
+  @Override
+  protected SelectorTransport createSelectorTransport() {
+    return new SelectorTransport(2);
+  }
+
+  public void testManyConnectionsWithoutConnectorThreads() throws Exception {
+    socksDataHandler.setProtocolFeatures(ProtocolFeatures.NONE);
+    Socket[] locals = new Socket[CONNECTIONS];
+    for (int id = 0; id < CONNECTIONS; id++) {
+      socksDataHandler.dispatch(socketData(id, SocketDataInfo.State.START, 0));
+      locals[id] = localServer.accept();
+    }
+    for (int id = 0; id < CONNECTIONS; id++) {
+      socksDataHandler.dispatch(continueFrame(id, "request " + id));
+    }
+    for (int id = 0; id < CONNECTIONS; id++) {
+      readFully(locals[id].getInputStream(), ("request " + id).length());
+      locals[id].getOutputStream().write(("reply " + id).getBytes());
+    }
+
+    Map<Long, StringBuilder> replies = new HashMap<Long, StringBuilder>();
+    int replyBytes = 0;
+    int expectedBytes = 0;
+    for (int id = 0; id < CONNECTIONS; id++) {
+      expectedBytes += ("reply " + id).length();
+    }
+    while (replyBytes < expectedBytes) {
+      SocketDataInfo data = nextSocketData(5000);
+      assertNotNull("only " + replyBytes + " bytes of replies", data);
+      if (!replies.containsKey(data.getConnectionId())) {
+        replies.put(data.getConnectionId(), new StringBuilder());
+      }
+      replies.get(data.getConnectionId()).append(data.getSegment().toStringUtf8());
+      replyBytes += data.getSegment().size();
+    }
+    for (long id = 0; id < CONNECTIONS; id++) {
+      assertEquals("reply " + id, replies.get(id).toString());
+    }
+    assertEquals(0, threadPoolExecutor.getLargestPoolSize());
+  }
+
+  public void testCloseFromTunnelWritesQueuedDataFirst() throws Exception {
+    socksDataHandler.setProtocolFeatures(ProtocolFeatures.NONE);
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, 0));
+    Socket local = localServer.accept();
+
+    int length = 1024 * 1024;
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CONTINUE, length));
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.CLOSE, 0));
+
+    InputStream in = local.getInputStream();
+    readFully(in, length);
+    assertEquals(-1, in.read());
+    SocketDataInfo close = nextSocketData(5000);
+    assertNotNull(close);
+    assertEquals(SocketDataInfo.State.CLOSE, close.getState());
+  }
+
+  public void testLocalCloseIsSentToTunnel() throws Exception {
+    socksDataHandler.setProtocolFeatures(ProtocolFeatures.NONE);
+    socksDataHandler.dispatch(socketData(1, SocketDataInfo.State.START, 0));
+    Socket local = localServer.accept();
+    local.getOutputStream().write("last words".getBytes());
+    local.close();
+
+    SocketDataInfo data = nextSocketData(5000);
+    assertNotNull(data);
+    assertEquals("last words", data.getSegment().toStringUtf8());
+    SocketDataInfo close = nextSocketData(5000);
+    assertNotNull(close);
+    assertEquals(SocketDataInfo.State.CLOSE, close.getState());
+    assertNull(nextSocketData(200));
+  }
+
+  private static FrameInfo continueFrame(final long connectionId, final String data) {
+    return FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CONTINUE)
+            .setSegment(ByteString.copyFromUtf8(data))
+            .build().toByteString())
+        .build();
+  }
+}
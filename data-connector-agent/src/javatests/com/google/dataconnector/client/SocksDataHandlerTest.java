@@ -21,7 +21,9 @@ import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
 import com.google.dataconnector.protocol.FrameSender;
 import com.google.dataconnector.protocol.FramingException;
 import com.google.dataconnector.protocol.InputStreamConnector;
+import com.google.dataconnector.protocol.MemoryBudget;
 import com.google.dataconnector.protocol.OutputStreamConnector;
+import com.google.dataconnector.protocol.SegmentBuffer;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
 import com.google.dataconnector.util.LocalConf;
@@ -34,8 +36,6 @@ import org.easymock.classextension.EasyMock;
 
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.net.SocketFactory;
@@ -60,7 +60,7 @@ public class SocksDataHandlerTest extends TestCase {
   private FrameInfo mockFrame;
   private SocketDataInfo mockSocketDataInfo;
   private LocalConf fakeLocalConf;
-  private BlockingQueue<SocketDataInfo> queue;
+  private SegmentBuffer buffer;
 
 
   @Override
@@ -68,6 +68,7 @@ public class SocksDataHandlerTest extends TestCase {
     super.setUp();
 
     fakeLocalConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    fakeLocalConf.setInProcessSocks(false);
     // 2nd order dependency mocks that isnt important to define behavior
     socket = EasyMock.createNiceMock(Socket.class);
     EasyMock.replay(socket);
@@ -75,7 +76,7 @@ public class SocksDataHandlerTest extends TestCase {
     EasyMock.replay(localHostAddress);
     frameSender = EasyMock.createNiceMock(FrameSender.class);
     EasyMock.replay(frameSender);
-    queue = new LinkedBlockingQueue<SocketDataInfo>();
+    buffer = new SegmentBuffer(1024, new MemoryBudget(1024));
 
     // SocketFactory
     socketFactory = EasyMock.createMock(SocketFactory.class);
@@ -106,8 +107,8 @@ public class SocksDataHandlerTest extends TestCase {
     EasyMock.expectLastCall();
     outputStreamConnector.setName("Outputconnector-" + CONNECTION_ID);
     EasyMock.expectLastCall();
-    outputStreamConnector.getQueue();
-    EasyMock.expectLastCall().andReturn(queue);
+    outputStreamConnector.getBuffer();
+    EasyMock.expectLastCall().andReturn(buffer);
     EasyMock.replay(outputStreamConnector);
 
     // Injector
@@ -141,7 +142,7 @@ public class SocksDataHandlerTest extends TestCase {
         .build();
 
     SocksDataHandler socksDataHandler = new SocksDataHandler(fakeLocalConf,
-        socketFactory, localHostAddress, threadPoolExecutor, injector);
+        socketFactory, localHostAddress, threadPoolExecutor, injector, null, null, null, null);
     socksDataHandler.setFrameSender(frameSender);
     socksDataHandler.dispatch(mockFrame);
 
@@ -175,14 +176,15 @@ public class SocksDataHandlerTest extends TestCase {
 
     // Execute.
     SocksDataHandler socksDataHandler = new SocksDataHandler(fakeLocalConf,
-        socketFactory, localHostAddress, threadPoolExecutor, injector);
+        socketFactory, localHostAddress, threadPoolExecutor, injector, null, null, null, null);
     socksDataHandler.setFrameSender(frameSender);
     socksDataHandler.dispatch(mockFrame);
     socksDataHandler.dispatch(continuingFrame);
 
     // Verify
-    SocketDataInfo actualSocketDataInfo = queue.take();
-    assertEquals(continuingSocketDataInfo, actualSocketDataInfo);
+    byte[] actual = new byte[DATA.length()];
+    assertEquals(DATA.length(), buffer.read(actual));
+    assertEquals(DATA, new String(actual));
 
     EasyMock.verify(socketFactory, inputStreamConnector, outputStreamConnector, injector,
         threadPoolExecutor);
@@ -195,7 +197,8 @@ public class SocksDataHandlerTest extends TestCase {
         .setPayload(ByteString.copyFrom(new byte[] { 0, 0, 0, 0, 0 })) // Invalid pb.
         .build();
 
-    SocksDataHandler socksDataHandler = new SocksDataHandler(null, null, null, null, null);
+    SocksDataHandler socksDataHandler =
+        new SocksDataHandler(null, null, null, null, null, null, null, null, null);
     socksDataHandler.setFrameSender(frameSender);
     try {
       socksDataHandler.dispatch(mockFrame);
@@ -0,0 +1,277 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+import com.google.dataconnector.client.testing.FakeSdcServer;
+import com.google.dataconnector.protocol.FrameReceiver;
+import com.google.dataconnector.protocol.FrameSender;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.registration.v4.Registration;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.ConnectionException;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.inject.Provider;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import org.easymock.IAnswer;
+import org.easymock.classextension.EasyMock;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link TunnelManager} class against a {@link FakeSdcServer}.
+ */
+public class TunnelManagerTest extends TestCase {
+
+  private static final int TUNNELS = 3;
+  private static final long TIMEOUT = 10000;
+
+  private LocalConf localConf;
+  private ShutdownManager shutdownManager;
+  private FakeSdcServer server;
+  private TunnelManager tunnelManager;
+  private Thread connectThread;
+  private volatile Exception connectFailure;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setRunHeartBeatThread(false);
+    localConf.setTunnelCount(TUNNELS);
+    localConf.setResumeTimeout(1);
+    shutdownManager = new ShutdownManager();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    if (tunnelManager != null) {
+      tunnelManager.shutdown();
+    }
+    if (server != null) {
+      server.close();
+    }
+    if (connectThread != null) {
+      connectThread.join(TIMEOUT);
+    }
+    shutdownManager.shutdownAll();
+    super.tearDown();
+  }
+
+  public void testTunnelsJoinOneGroup() throws Exception {
+    startServerAndAgent(true);
+    List<FakeSdcServer.Tunnel> tunnels = server.awaitTunnels(TUNNELS, TIMEOUT);
+
+    Set<Integer> indexes = new HashSet<Integer>();
+    for (FakeSdcServer.Tunnel tunnel : tunnels) {
+      assertNotNull(tunnel.getGroup());
+      assertEquals(tunnels.get(0).getGroup(), tunnel.getGroup());
+      indexes.add(tunnel.getIndex());
+    }
+    assertEquals(TUNNELS, indexes.size());
+
+    // Once every tunnel answered a request only the first one has registered.
+    stripeAndAwaitReplies();
+    for (FakeSdcServer.Tunnel tunnel : tunnels) {
+      assertEquals(tunnel.getIndex() == 0, tunnel.isRegistered());
+    }
+  }
+
+  public void testStripedRequestsAnsweredOnTheirTunnel() throws Exception {
+    startServerAndAgent(true);
+    server.awaitTunnels(TUNNELS, TIMEOUT);
+    stripeAndAwaitReplies();
+  }
+
+  public void testFailedTunnelReconnectsAlone() throws Exception {
+    startServerAndAgent(true);
+    List<FakeSdcServer.Tunnel> tunnels = server.awaitTunnels(TUNNELS, TIMEOUT);
+    FakeSdcServer.Tunnel failed = null;
+    for (FakeSdcServer.Tunnel tunnel : tunnels) {
+      if (tunnel.getIndex() == 1) {
+        failed = tunnel;
+      }
+    }
+    failed.close();
+
+    FakeSdcServer.Tunnel replacement = server.awaitTunnels(TUNNELS + 1, TIMEOUT).get(TUNNELS);
+    assertEquals(1, replacement.getIndex());
+    assertEquals(failed.getGroup(), replacement.getGroup());
+    for (FakeSdcServer.Tunnel tunnel : tunnels) {
+      assertEquals(tunnel == failed, tunnel.isClosed());
+    }
+    stripeAndAwaitReplies();
+  }
+
+  public void testDroppedTunnelResumesSession() throws Exception {
+    startServerAndAgent(true);
+    List<FakeSdcServer.Tunnel> tunnels = server.awaitTunnels(TUNNELS, TIMEOUT);
+    // Every tunnel has negotiated resuming once it answered a request.
+    stripeAndAwaitReplies();
+    FakeSdcServer.Tunnel dropped = tunnels.get(0);
+    dropped.drop();
+
+    // Sent while the tunnel is down, it is delivered once the agent resumes.
+    FrameInfo request = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.FETCH_REQUEST)
+        .setPayload(ByteString.copyFromUtf8("while down"))
+        .build();
+    dropped.sendFrame(request);
+
+    FakeSdcServer.Tunnel resumed = server.awaitTunnels(TUNNELS + 1, TIMEOUT).get(TUNNELS);
+    assertTrue(resumed.isResumed());
+    assertEquals(dropped.getIndex(), resumed.getIndex());
+    assertEquals(dropped.isRegistered(), resumed.isRegistered());
+    FrameInfo reply = resumed.getReceived().poll(TIMEOUT, TimeUnit.MILLISECONDS);
+    assertNotNull(reply);
+    assertEquals(request.getPayload(), reply.getPayload());
+
+    stripeAndAwaitReplies();
+    assertEquals(TUNNELS, tunnelManager.getLiveTunnels());
+    assertEquals(TUNNELS + 1, server.getTunnels().size());
+  }
+
+  public void testServerWithoutTunnelGroupsKeepsFirstTunnel() throws Exception {
+    startServerAndAgent(false);
+    server.awaitTunnels(TUNNELS, TIMEOUT);
+
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (server.getOpenTunnels().size() > 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, server.getOpenTunnels().size());
+    assertEquals(1, tunnelManager.getLiveTunnels());
+    FakeSdcServer.Tunnel tunnel = server.getOpenTunnels().get(0);
+    while (!tunnel.isRegistered() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertTrue(tunnel.isRegistered());
+  }
+
+  public void testConnectFailsWhenAllTunnelsAreDown() throws Exception {
+    startServerAndAgent(true);
+    server.awaitTunnels(TUNNELS, TIMEOUT);
+    server.close();
+
+    connectThread.join(TIMEOUT);
+    assertFalse(connectThread.isAlive());
+    assertTrue(connectFailure instanceof ConnectionException);
+    assertEquals(0, tunnelManager.getLiveTunnels());
+  }
+
+  /**
+   * Sends one fetch request per open tunnel and checks each reply comes back on the tunnel the
+   * request went out on.
+   */
+  private void stripeAndAwaitReplies() throws Exception {
+    int tunnelCount = server.getOpenTunnels().size();
+    for (int i = 0; i < tunnelCount; i++) {
+      FrameInfo request = FrameInfo.newBuilder()
+          .setType(FrameInfo.Type.FETCH_REQUEST)
+          .setPayload(ByteString.copyFromUtf8("request " + i))
+          .build();
+      FakeSdcServer.Tunnel tunnel = server.stripe(request);
+      FrameInfo reply = tunnel.getReceived().poll(TIMEOUT, TimeUnit.MILLISECONDS);
+      assertNotNull(reply);
+      assertEquals(request.getPayload(), reply.getPayload());
+    }
+  }
+
+  private void startServerAndAgent(final boolean acceptTunnelGroups) throws Exception {
+    server = new FakeSdcServer(acceptTunnelGroups);
+    server.start();
+    tunnelManager = new TunnelManager(localConf, new ConnectionProvider(), shutdownManager);
+    tunnelManager.setReconnectDelay(50);
+    connectThread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          tunnelManager.connect();
+        } catch (Exception e) {
+          connectFailure = e;
+        }
+      }
+    };
+    connectThread.start();
+  }
+
+  /**
+   * Builds connections to the fake server over plain sockets.  Registration sends an empty
+   * registration frame, the fetch request handler echoes each request back as its reply and the
+   * resources file is not watched.
+   */
+  private class ConnectionProvider implements Provider<SdcConnection> {
+
+    @Override
+    public SdcConnection get() {
+      final FrameSender frameSender =
+          new FrameSender(new LinkedBlockingQueue<FrameInfo>(), shutdownManager);
+      try {
+        Registration registration = EasyMock.createNiceMock(Registration.class);
+        registration.sendRegistrationInfo(frameSender);
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+          @Override
+          public Object answer() {
+            frameSender.sendFrame(FrameInfo.Type.REGISTRATION, ByteString.EMPTY);
+            return null;
+          }
+        });
+        FetchRequestHandler fetchRequestHandler =
+            new FetchRequestHandler(null, null, null, null, null) {
+          @Override
+          public void dispatch(final FrameInfo frameInfo) {
+            frameSender.sendFrame(frameInfo);
+          }
+        };
+        EasyMock.replay(registration);
+        SocksDataHandler socksDataHandler =
+            new SocksDataHandler(localConf, null, null, null, null, null, null, null, null);
+        HealthCheckHandler healthCheckHandler =
+            new HealthCheckHandler(new ClockUtil(), shutdownManager);
+        SocketSessionRequestHandler socketSessionRequestHandler =
+            new SocketSessionRequestHandler(null, null, null, null, null, null);
+        ResourcesFileWatcher resourcesFileWatcher =
+            new ResourcesFileWatcher(localConf, registration, null, null, shutdownManager) {
+          @Override
+          public void run() {
+          }
+        };
+
+        return new SdcConnection(localConf, null, new FrameReceiver(), frameSender, registration,
+            socksDataHandler, healthCheckHandler, fetchRequestHandler,
+            socketSessionRequestHandler, resourcesFileWatcher, shutdownManager) {
+          @Override
+          Socket openSocket() throws IOException {
+            return new Socket("127.0.0.1", server.getPort());
+          }
+        };
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+}
@@ -28,6 +28,7 @@ import junit.framework.TestCase;
 
 import com.google.dataconnector.client.StrategyException;
 import com.google.dataconnector.client.fetchrequest.HttpFetchStrategy;
+import com.google.dataconnector.protocol.BufferPool;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchReply;
 import com.google.dataconnector.protocol.proto.SdcFrame.FetchRequest;
 
@@ -67,7 +68,7 @@ public class HttpFetchStrategyTest extends TestCase {
     EasyMock.expect(resp.getAllHeaders()).andReturn(headers);
     EasyMock.replay(st, resp);
     
-    HttpFetchStrategy s = new HttpFetchStrategy() {
+    HttpFetchStrategy s = new HttpFetchStrategy(BufferPool.unpooled()) {
         @Override
         HttpResponse getHttpResponse(FetchRequest request) throws StrategyException {
           // Mock the response
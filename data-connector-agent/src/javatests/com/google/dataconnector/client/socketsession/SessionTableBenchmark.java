@@ -0,0 +1,137 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.socketsession;
+
+import com.google.dataconnector.client.SocketSessionRequestHandler.Sink;
+import com.google.dataconnector.protocol.BufferPool;
+import com.google.dataconnector.protocol.MemoryBudget;
+import com.google.dataconnector.protocol.SegmentBuffer;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
+import com.google.dataconnector.util.CircuitBreaker;
+import com.google.dataconnector.util.ClientGuiceModule;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.DnsCache;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ParallelConnector;
+import com.google.dataconnector.util.TimerWheel;
+import com.google.inject.Provider;
+import com.google.protobuf.ByteString;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Measures the {@link SocketSessionManager} session table with 50k concurrent sessions: how fast
+ * they are created, looked up from 1 to 16 threads the way replies and data are routed, and
+ * closed.  Lookups use fresh handles, as parsed from each message from the cloud.  Sessions are
+ * not connected, the table is what is measured, not sockets.
+ *
+ * <p>Not a unit test, run it by hand with the test classpath:
+ * {@code java com.google.dataconnector.client.socketsession.SessionTableBenchmark}.
+ */
+public class SessionTableBenchmark {
+
+  private static final int SESSIONS = 50000;
+  private static final int[] THREADS = { 1, 4, 16 };
+  private static final int LOOKUPS_PER_SESSION = 20;
+
+  public static void main(final String[] args) throws Exception {
+    final ThreadPoolExecutor executor = ClientGuiceModule.newThreadPoolExecutor(false);
+    final LocalConf localConf = new LocalConf();
+    final TimerWheel timerWheel = new TimerWheel(100, 1024);
+    final MemoryBudget memoryBudget = new MemoryBudget(localConf.getSocketMemoryBudget());
+    final SocketSessionManager manager =
+        new SocketSessionManager(executor, new ClockUtil(), BufferPool.unpooled(),
+            new Provider<SegmentBuffer>() {
+              @Override
+              public SegmentBuffer get() {
+                return new SegmentBuffer(localConf.getSocketBufferBytes(), memoryBudget);
+              }
+            }, timerWheel, new ParallelConnector(new DnsCache(localConf, new ClockUtil(), executor),
+                executor, timerWheel, localConf, new CircuitBreaker(localConf, new ClockUtil())),
+            localConf);
+    final Sink<FrameInfo> cloud = new Sink<FrameInfo>() {
+      @Override
+      public boolean receive(final FrameInfo frame) {
+        return true;
+      }
+    };
+    final List<InetSocketAddress> endpoint =
+        Collections.singletonList(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+
+    final byte[][] handles = new byte[SESSIONS][];
+    for (int i = 0; i < SESSIONS; i++) {
+      handles[i] = ("session-" + i).getBytes();
+    }
+
+    long start = System.nanoTime();
+    for (byte[] handle : handles) {
+      manager.createSession(cloud, ByteString.copyFrom(handle), endpoint, 0, 0);
+    }
+    report("create", SESSIONS, 1, start);
+
+    for (final int threads : THREADS) {
+      final CountDownLatch done = new CountDownLatch(threads);
+      start = System.nanoTime();
+      for (int t = 0; t < threads; t++) {
+        final int first = t;
+        new Thread() {
+          @Override
+          public void run() {
+            for (int round = 0; round < LOOKUPS_PER_SESSION / threads + 1; round++) {
+              for (int i = first; i < SESSIONS; i += threads) {
+                final ByteString handle = ByteString.copyFrom(handles[i]);
+                // A CREATE reply only routes to the session, it changes nothing.
+                manager.notifySent(handle, SocketSessionReply.newBuilder()
+                    .setVerb(SocketSessionVerb.CREATE)
+                    .setSocketHandle(handle)
+                    .setStatus(SocketSessionReply.Status.OK)
+                    .setHostname("localhost")
+                    .build());
+              }
+            }
+            done.countDown();
+          }
+        }.start();
+      }
+      done.await();
+      report("lookup", SESSIONS * (long) (LOOKUPS_PER_SESSION / threads + 1) * threads, threads,
+          start);
+    }
+
+    start = System.nanoTime();
+    for (byte[] handle : handles) {
+      manager.close(ByteString.copyFrom(handle));
+    }
+    report("close", SESSIONS, 1, start);
+    System.out.println("sessions left: " + manager.getSessionCount());
+    executor.shutdown();
+  }
+
+  private static void report(final String operation, final long count, final int threads,
+      final long start) {
+    final double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(String.format("%-7s %2d threads %10d ops %12.0f ops/s", operation,
+        threads, count, count / seconds));
+  }
+}
@@ -0,0 +1,387 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.client.socketsession;
+
+import com.google.dataconnector.client.SocketSessionRequestHandler.Sink;
+import com.google.dataconnector.protocol.BufferPool;
+import com.google.dataconnector.protocol.MemoryBudget;
+import com.google.dataconnector.protocol.SegmentBuffer;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
+import com.google.dataconnector.util.CircuitBreaker;
+import com.google.dataconnector.util.ClientGuiceModule;
+import com.google.dataconnector.util.ClockUtil;
+import com.google.dataconnector.util.ConnectionTimer;
+import com.google.dataconnector.util.DnsCache;
+import com.google.dataconnector.util.LocalConf;
+import com.google.dataconnector.util.ParallelConnector;
+import com.google.dataconnector.util.TimerWheel;
+import com.google.inject.Provider;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SocketSessionManager}.
+ */
+public class SocketSessionManagerTest extends TestCase {
+
+  private static final ByteString HANDLE = ByteString.copyFromUtf8("handle");
+
+  private ThreadPoolExecutor threadPoolExecutor;
+  private TimerWheel timerWheel;
+  private LocalConf localConf;
+  private SocketSessionManager manager;
+  private BlockingQueue<FrameInfo> frames;
+  private Sink<FrameInfo> cloud;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threadPoolExecutor = ClientGuiceModule.newThreadPoolExecutor(false);
+    timerWheel = new TimerWheel(10, 64);
+    localConf = new LocalConf();
+    final MemoryBudget memoryBudget = new MemoryBudget(1024 * 1024);
+    manager = new SocketSessionManager(threadPoolExecutor, new ClockUtil(),
+        BufferPool.unpooled(), new Provider<SegmentBuffer>() {
+          @Override
+          public SegmentBuffer get() {
+            return new SegmentBuffer(64 * 1024, memoryBudget);
+          }
+        }, timerWheel, new ParallelConnector(new DnsCache(localConf, new ClockUtil(),
+            threadPoolExecutor), threadPoolExecutor, timerWheel, localConf,
+            new CircuitBreaker(localConf, new ClockUtil())), localConf);
+    frames = new LinkedBlockingQueue<FrameInfo>();
+    cloud = new Sink<FrameInfo>() {
+      @Override
+      public boolean receive(FrameInfo frame) {
+        return frames.add(frame);
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    threadPoolExecutor.shutdownNow();
+    timerWheel.shutdown();
+    super.tearDown();
+  }
+
+  public void testConnectAndForward() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      assertTrue(manager.createSession(cloud, HANDLE, endpoints(server), 0, 0));
+      assertTrue(manager.connect(HANDLE, 5000));
+      Socket backend = server.accept();
+      manager.notifySent(HANDLE, connectReply(SocketSessionReply.Status.OK));
+
+      backend.getOutputStream().write("hello".getBytes());
+      SocketSessionData data = nextData();
+      assertEquals("hello", data.getData().toStringUtf8());
+      assertEquals(0, data.getStreamOffset());
+
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("world"), 0));
+      InputStream input = backend.getInputStream();
+      byte[] read = new byte[5];
+      for (int n = 0; n < read.length; ) {
+        n += input.read(read, n, read.length - n);
+      }
+      assertEquals("world", new String(read));
+
+      assertTrue(manager.close(HANDLE));
+      assertTrue(nextData().getClose());
+      assertFalse(manager.write(HANDLE, ByteString.copyFromUtf8("gone"), 5));
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testCloseWritesOutQueuedData() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, endpoints(server), 0, 0);
+      assertTrue(manager.connect(HANDLE, 5000));
+      Socket backend = server.accept();
+      byte[] data = new byte[256 * 1024];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = (byte) i;
+      }
+      // More than the socket takes at once, the writer is still busy when the close arrives.
+      for (int i = 0; i < data.length; i += 16 * 1024) {
+        assertTrue(manager.write(HANDLE, ByteString.copyFrom(data, i, 16 * 1024), i));
+      }
+      assertTrue(manager.close(HANDLE));
+      assertEquals(0, manager.getSessionCount());
+
+      InputStream input = backend.getInputStream();
+      byte[] read = new byte[data.length];
+      for (int n = 0; n < read.length; ) {
+        int length = input.read(read, n, read.length - n);
+        assertTrue(length > 0);
+        n += length;
+      }
+      assertTrue(Arrays.equals(data, read));
+      assertEquals(-1, input.read());
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testWindowUpdates() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, endpoints(server), 8, 0);
+      assertTrue(manager.connect(HANDLE, 5000));
+      Socket backend = server.accept();
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("abc"), 0));
+      // Less than half the window has been written, nothing is handed back yet.
+      assertNull(frames.poll(200, TimeUnit.MILLISECONDS));
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("de"), 3));
+      SocketSessionData update = nextData();
+      assertEquals(HANDLE, update.getSocketHandle());
+      assertTrue(update.hasWindowUpdate());
+      assertEquals(5, update.getWindowUpdate());
+      assertFalse(update.hasData());
+      // The returned bytes may be sent again.
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("fghijklm"), 5));
+      assertEquals(8, nextData().getWindowUpdate());
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testWindowOverrunResetsSession() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, endpoints(server), 8, 0);
+      assertTrue(manager.connect(HANDLE, 5000));
+      Socket backend = server.accept();
+      SocketSessionManager.Session session = manager.getSession(HANDLE);
+      assertFalse(manager.write(HANDLE, ByteString.copyFromUtf8("123456789"), 0));
+      assertEquals(SocketSessionManager.SessionState.CLOSED, session.getState());
+      assertEquals(0, manager.getSessionCount());
+      // The reader was not started, so the CLOSE comes from the reset.
+      assertTrue(nextData().getClose());
+      assertEquals(-1, backend.getInputStream().read());
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testSegmentsAreWrittenInOffsetOrder() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, endpoints(server), 0, 1024);
+      assertTrue(manager.connect(HANDLE, 5000));
+      Socket backend = server.accept();
+      // Ahead of a gap, held.
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("56789"), 5));
+      // Fills the gap and lets the held segment through.
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("01234"), 0));
+      // Seen before, dropped.
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("234"), 2));
+      // Partly seen before, only the new bytes are written.
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("789ab"), 7));
+      assertTrue(manager.close(HANDLE));
+
+      InputStream input = backend.getInputStream();
+      ByteArrayOutputStream read = new ByteArrayOutputStream();
+      int b;
+      while ((b = input.read()) >= 0) {
+        read.write(b);
+      }
+      assertEquals("0123456789ab", read.toString());
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testTooMuchAheadOfGapResetsSession() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, endpoints(server), 0, 8);
+      assertTrue(manager.connect(HANDLE, 5000));
+      Socket backend = server.accept();
+      assertTrue(manager.write(HANDLE, ByteString.copyFromUtf8("2345"), 2));
+      assertFalse(manager.write(HANDLE, ByteString.copyFromUtf8("6789a"), 6));
+      assertEquals(0, manager.getSessionCount());
+      assertTrue(nextData().getClose());
+      assertEquals(-1, backend.getInputStream().read());
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testReadingStartsWithConnectReplyAndStopsAtEndOfStream() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, endpoints(server), 0, 0);
+      assertTrue(manager.connect(HANDLE, 5000));
+      Socket backend = server.accept();
+      backend.getOutputStream().write("early".getBytes());
+      backend.shutdownOutput();
+      // Nothing is read until the connect has been answered.
+      assertNull(frames.poll(200, TimeUnit.MILLISECONDS));
+
+      manager.notifySent(HANDLE, connectReply(SocketSessionReply.Status.OK));
+      assertEquals("early", nextData().getData().toStringUtf8());
+      SocketSessionData close = nextData();
+      assertTrue(close.getClose());
+      assertEquals(5, close.getStreamOffset());
+      // The reader is done at the end of the stream, a second answer does not restart it.
+      manager.notifySent(HANDLE, connectReply(SocketSessionReply.Status.OK));
+      assertNull(frames.poll(200, TimeUnit.MILLISECONDS));
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testIdleSessionExpires() throws Exception {
+    localConf.setIdleTimeout(1);
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, endpoints(server), 0, 0);
+      assertTrue(manager.connect(HANDLE, 0));
+      Socket backend = server.accept();
+      manager.notifySent(HANDLE, connectReply(SocketSessionReply.Status.OK));
+
+      SocketSessionData close = nextData();
+      assertTrue(close.getClose());
+      assertEquals(0, manager.getSessionCount());
+      assertEquals(1, timerWheel.getExpiryCount(ConnectionTimer.IDLE));
+      assertEquals(-1, backend.getInputStream().read());
+      // Only one CLOSE is sent.
+      assertNull(frames.poll(200, TimeUnit.MILLISECONDS));
+      backend.close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testConnectRefused() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    List<InetSocketAddress> endpoint = endpoints(server);
+    server.close();
+
+    assertTrue(manager.createSession(cloud, HANDLE, endpoint, 0, 0));
+    assertFalse(manager.connect(HANDLE, 5000));
+    // The session failed, it cannot be connected again.
+    assertFalse(manager.connect(HANDLE, 5000));
+    assertFalse(manager.connect(ByteString.copyFromUtf8("unknown"), 5000));
+  }
+
+  public void testConnectFallsBackToNextAddress() throws Exception {
+    ServerSocket dead = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    InetSocketAddress refusing = (InetSocketAddress) dead.getLocalSocketAddress();
+    dead.close();
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    try {
+      manager.createSession(cloud, HANDLE, Arrays.asList(refusing,
+          (InetSocketAddress) server.getLocalSocketAddress()), 0, 0);
+      assertTrue(manager.connect(HANDLE, 5000));
+      server.accept().close();
+    } finally {
+      server.close();
+    }
+  }
+
+  public void testCloseBeforeConnect() throws Exception {
+    List<InetSocketAddress> endpoint =
+        Collections.singletonList(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+    manager.createSession(cloud, HANDLE, endpoint, 0, 0);
+    SocketSessionManager.Session session = manager.getSession(HANDLE);
+    assertEquals(SocketSessionManager.SessionState.CREATED, session.getState());
+    assertTrue(manager.close(HANDLE));
+    assertEquals(SocketSessionManager.SessionState.CLOSED, session.getState());
+    assertEquals(0, manager.getSessionCount());
+    assertFalse(session.connect(5000));
+  }
+
+  public void testConcurrentCreateAndClose() throws Exception {
+    final List<InetSocketAddress> endpoint =
+        Collections.singletonList(new InetSocketAddress(InetAddress.getLoopbackAddress(), 1));
+    final int threads = 8;
+    final int perThread = 1000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < perThread; i++) {
+            // Every handle is created by two threads, only one session may result.
+            ByteString handle = ByteString.copyFromUtf8((thread / 2) + "-" + i);
+            manager.createSession(cloud, handle, endpoint, 0, 0);
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    done.await();
+    assertEquals(threads / 2 * perThread, manager.getSessionCount());
+    for (int t = 0; t < threads / 2; t++) {
+      for (int i = 0; i < perThread; i++) {
+        assertTrue(manager.close(ByteString.copyFromUtf8(t + "-" + i)));
+      }
+    }
+    assertEquals(0, manager.getSessionCount());
+  }
+
+  private static List<InetSocketAddress> endpoints(ServerSocket server) {
+    return Collections.singletonList((InetSocketAddress) server.getLocalSocketAddress());
+  }
+
+  private static SocketSessionReply connectReply(SocketSessionReply.Status status) {
+    return SocketSessionReply.newBuilder()
+        .setVerb(SocketSessionVerb.CONNECT)
+        .setSocketHandle(HANDLE)
+        .setStatus(status)
+        .setHostname("localhost")
+        .build();
+  }
+
+  private SocketSessionData nextData() throws Exception {
+    FrameInfo frame = frames.poll(5, TimeUnit.SECONDS);
+    assertNotNull(frame);
+    assertEquals(FrameInfo.Type.SOCKET_SESSION, frame.getType());
+    return SocketSessionData.parseFrom(frame.getPayload());
+  }
+}
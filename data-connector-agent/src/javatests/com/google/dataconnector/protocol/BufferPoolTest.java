@@ -0,0 +1,138 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link BufferPool}.
+ */
+public class BufferPoolTest extends TestCase {
+
+  public void testSizeClasses() {
+    assertEquals(0, BufferPool.sizeClass(1));
+    assertEquals(0, BufferPool.sizeClass(BufferPool.MIN_CLASS_SIZE));
+    assertEquals(1, BufferPool.sizeClass(BufferPool.MIN_CLASS_SIZE + 1));
+    assertEquals(65536, BufferPool.classSize(BufferPool.sizeClass(65536)));
+    assertEquals(131072, BufferPool.classSize(BufferPool.sizeClass(65537)));
+    assertEquals(BufferPool.MAX_CLASS_SIZE,
+        BufferPool.classSize(BufferPool.sizeClass(BufferPool.MAX_CLASS_SIZE)));
+    assertEquals(-1, BufferPool.sizeClass(BufferPool.MAX_CLASS_SIZE + 1));
+  }
+
+  public void testReleasedBufferIsReused() {
+    BufferPool pool = new BufferPool(1024 * 1024, false, false);
+    byte[] buffer = pool.lease(10000);
+    assertEquals(16384, buffer.length);
+    assertEquals(1, pool.getOutstanding());
+    assertEquals(16384, pool.getLeasedBytes());
+    pool.release(buffer);
+    assertEquals(0, pool.getOutstanding());
+    assertEquals(16384, pool.getPooledBytes());
+
+    assertSame(buffer, pool.lease(16384));
+    assertEquals(1, pool.getHitCount());
+    assertEquals(2, pool.getLeaseCount());
+    assertEquals(0, pool.getPooledBytes());
+  }
+
+  public void testRetentionLimit() {
+    BufferPool pool = new BufferPool(8192, false, false);
+    byte[] first = pool.lease(4096);
+    byte[] second = pool.lease(4096);
+    byte[] third = pool.lease(4096);
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+    assertEquals(8192, pool.getPooledBytes());
+
+    // Too large to pool.
+    byte[] large = pool.lease(BufferPool.MAX_CLASS_SIZE + 1);
+    assertEquals(BufferPool.MAX_CLASS_SIZE + 1, large.length);
+    pool.release(large);
+    assertEquals(8192, pool.getPooledBytes());
+
+    BufferPool unpooled = BufferPool.unpooled();
+    unpooled.release(unpooled.lease(4096));
+    assertEquals(0, unpooled.getPooledBytes());
+    assertEquals(0, unpooled.getOutstanding());
+  }
+
+  public void testDirectByteBuffers() {
+    BufferPool pool = new BufferPool(1024 * 1024, true, false);
+    ByteBuffer buffer = pool.leaseByteBuffer(5000);
+    assertTrue(buffer.isDirect());
+    assertEquals(8192, buffer.capacity());
+    assertEquals(5000, buffer.limit());
+    buffer.put((byte) 1);
+    pool.release(buffer);
+
+    ByteBuffer again = pool.leaseByteBuffer(8000);
+    assertSame(buffer, again);
+    assertEquals(0, again.position());
+    assertEquals(8000, again.limit());
+
+    assertFalse(BufferPool.unpooled().leaseByteBuffer(5000).isDirect());
+  }
+
+  public void testDoubleReleaseIsIgnoredWithLeakDetection() {
+    BufferPool pool = new BufferPool(1024 * 1024, false, true);
+    byte[] buffer = pool.lease(4096);
+    pool.release(buffer);
+    pool.release(buffer);
+    assertEquals(0, pool.getOutstanding());
+    assertEquals(4096, pool.getPooledBytes());
+    pool.release(new byte[4096]);
+    assertEquals(4096, pool.getPooledBytes());
+  }
+
+  public void testLeakedBufferIsReported() throws Exception {
+    BufferPool pool = new BufferPool(1024 * 1024, false, true);
+    byte[] kept = pool.lease(4096);
+    pool.lease(4096); // Dropped without release.
+    for (int i = 0; i < 100 && pool.getLeakCount() == 0; i++) {
+      System.gc();
+      Thread.sleep(10);
+      pool.reportLeaks();
+    }
+    assertEquals(1, pool.getLeakCount());
+    assertEquals(1, pool.getOutstanding());
+    pool.release(kept);
+    assertEquals(0, pool.getOutstanding());
+    assertEquals(0, pool.getLeasedBytes());
+  }
+
+  public void testPooledOutputStreamAcrossChunks() {
+    BufferPool pool = new BufferPool(1024 * 1024, false, false);
+    PooledOutputStream out = new PooledOutputStream(pool);
+    assertTrue(out.toByteString().isEmpty());
+    byte[] body = new byte[PooledOutputStream.CHUNK_SIZE * 2 + 100];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    out.write(body, 0, 10);
+    assertEquals(ByteString.copyFrom(body, 0, 10), out.toByteString());
+    out.write(body, 10, body.length - 10);
+    assertEquals(ByteString.copyFrom(body), out.toByteString());
+    out.close();
+    assertEquals(0, pool.getOutstanding());
+  }
+}
@@ -0,0 +1,214 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.util.ClientGuiceModule;
+import com.google.dataconnector.util.VirtualThreads;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares stream connectors on the platform thread pool with connectors on virtual threads at
+ * 100, 1k and 10k concurrent connections.  Each connection is a loopback socket with an
+ * {@link InputStreamConnector} and {@link OutputStreamConnector} on the agent side, and the frames
+ * they send are echoed straight back as if by the cloud.  Reports the time for a number of
+ * request rounds, the peak thread count and how many connections the executor turned away.
+ *
+ * <p>Not a unit test, run it by hand with the test classpath:
+ * {@code java com.google.dataconnector.protocol.ConnectorThreadsBenchmark}.  10k connections
+ * need an open file limit above 20k.
+ */
+public class ConnectorThreadsBenchmark {
+
+  private static final int[] CONNECTIONS = { 100, 1000, 10000 };
+  private static final int ROUNDS = 10;
+  private static final int REQUEST_BYTES = 1024;
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  public static void main(final String[] args) throws Exception {
+    System.out.println("threads   connections  accepted  rounds/s  peak threads");
+    for (int connections : CONNECTIONS) {
+      run(false, connections);
+      if (VirtualThreads.isSupported()) {
+        run(true, connections);
+      }
+    }
+    if (!VirtualThreads.isSupported()) {
+      System.out.println("Virtual threads need Java 21 or later, only platform threads measured.");
+    }
+  }
+
+  private static void run(final boolean virtualThreads, final int connections) throws Exception {
+    final ThreadPoolExecutor executor = ClientGuiceModule.newThreadPoolExecutor(virtualThreads);
+    final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    final ServerSocket serverSocket =
+        new ServerSocket(0, connections, InetAddress.getByName("127.0.0.1"));
+    final BlockingQueue<FrameInfo> sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    final MemoryBudget memoryBudget = new MemoryBudget(BUFFER_BYTES * (long) connections);
+    final Map<Long, SegmentBuffer> outputBuffers = new ConcurrentHashMap<Long, SegmentBuffer>();
+    final Thread echo = startEcho(sendQueue, outputBuffers);
+    final List<Socket> clients = new ArrayList<Socket>();
+    final List<Socket> accepted = new ArrayList<Socket>();
+    String result;
+    try {
+      threadMXBean.resetPeakThreadCount();
+      for (long id = 0; id < connections; id++) {
+        final Socket client =
+            new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        final Socket socket = serverSocket.accept();
+        accepted.add(socket);
+        if (startConnectors(id, socket, executor, sendQueue, outputBuffers, memoryBudget)) {
+          clients.add(client);
+        } else {
+          client.close();
+        }
+      }
+
+      final byte[] request = new byte[REQUEST_BYTES];
+      final long start = System.nanoTime();
+      for (int round = 0; round < ROUNDS; round++) {
+        for (Socket client : clients) {
+          client.getOutputStream().write(request);
+        }
+        for (Socket client : clients) {
+          readFully(client.getInputStream(), REQUEST_BYTES);
+        }
+      }
+      final double seconds = (System.nanoTime() - start) / 1e9;
+      result = String.format("%-9s %11d %9d %9.1f %13d", virtualThreads ? "virtual" : "platform",
+          connections, clients.size(), ROUNDS / seconds, threadMXBean.getPeakThreadCount());
+    } catch (IOException e) {
+      result = String.format("%-9s %11d failed: %s", virtualThreads ? "virtual" : "platform",
+          connections, e);
+    } finally {
+      for (Socket socket : clients) {
+        socket.close();
+      }
+      for (Socket socket : accepted) {
+        socket.close();
+      }
+      serverSocket.close();
+      executor.shutdown();
+      executor.awaitTermination(60, TimeUnit.SECONDS);
+      echo.interrupt();
+    }
+    System.out.println(result);
+  }
+
+  /**
+   * Starts the connector pair of one connection.
+   *
+   * @return false if the executor had no thread for them.
+   */
+  private static boolean startConnectors(final long connectionId, final Socket socket,
+      final ThreadPoolExecutor executor, final BlockingQueue<FrameInfo> sendQueue,
+      final Map<Long, SegmentBuffer> outputBuffers, final MemoryBudget memoryBudget)
+      throws IOException {
+    final ConnectorStateCallback callback = new ConnectorStateCallback() {
+      @Override
+      public void close(final long id) {
+        final SegmentBuffer buffer = outputBuffers.remove(id);
+        if (buffer != null) {
+          buffer.close();
+        }
+      }
+    };
+    final InputStreamConnector inputStreamConnector = new InputStreamConnector();
+    inputStreamConnector.setConnectionId(connectionId);
+    inputStreamConnector.setInputStream(socket.getInputStream());
+    inputStreamConnector.setFrameSender(new FrameSender(sendQueue, null));
+    inputStreamConnector.setConnectorStateCallback(callback);
+    final OutputStreamConnector outputStreamConnector =
+        new OutputStreamConnector(new SegmentBuffer(BUFFER_BYTES, memoryBudget));
+    outputStreamConnector.setConnectionId(connectionId);
+    outputStreamConnector.setOutputStream(socket.getOutputStream());
+    outputStreamConnector.setConnectorStateCallback(callback);
+    outputBuffers.put(connectionId, outputStreamConnector.getBuffer());
+    try {
+      executor.execute(outputStreamConnector);
+    } catch (RejectedExecutionException e) {
+      outputBuffers.remove(connectionId);
+      return false;
+    }
+    try {
+      executor.execute(inputStreamConnector);
+    } catch (RejectedExecutionException e) {
+      outputStreamConnector.getBuffer().close();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Plays the cloud: hands every segment the input connectors send back to the output connector
+   * of the same connection.
+   */
+  private static Thread startEcho(final BlockingQueue<FrameInfo> sendQueue,
+      final Map<Long, SegmentBuffer> outputBuffers) {
+    final Thread echo = new Thread() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final SocketDataInfo socketDataInfo =
+                SocketDataInfo.parseFrom(sendQueue.take().getPayload());
+            final SegmentBuffer buffer = outputBuffers.get(socketDataInfo.getConnectionId());
+            if (buffer != null && socketDataInfo.getState() == SocketDataInfo.State.CONTINUE) {
+              buffer.put(socketDataInfo.getSegment());
+            }
+          }
+        } catch (InterruptedException e) {
+          // Done.
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    echo.setDaemon(true);
+    echo.start();
+    return echo;
+  }
+
+  private static void readFully(final InputStream in, final int length) throws IOException {
+    final byte[] buffer = new byte[length];
+    int read = 0;
+    while (read < length) {
+      final int count = in.read(buffer, read, length - read);
+      if (count == -1) {
+        throw new IOException("Closed after " + read + " bytes");
+      }
+      read += count;
+    }
+  }
+}
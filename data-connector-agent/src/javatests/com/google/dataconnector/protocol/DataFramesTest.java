@@ -0,0 +1,107 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Tests that {@link DataFrames} encodes exactly what the generated classes do.
+ */
+public class DataFramesTest extends TestCase {
+
+  private static final byte[] DATA = new byte[10000];
+
+  static {
+    for (int i = 0; i < DATA.length; i++) {
+      DATA[i] = (byte) (i * 7);
+    }
+  }
+
+  public void testSocketData() throws Exception {
+    FrameInfo expected = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(123456789012L)
+            .setSegment(ByteString.copyFrom(DATA, 100, 5000))
+            .setState(SocketDataInfo.State.CONTINUE)
+            .build().toByteString())
+        .build();
+    assertEquals(expected.toByteString(),
+        DataFrames.socketData(123456789012L, DATA, 100, 5000).toByteString());
+
+    ByteBuffer heap = ByteBuffer.wrap(DATA, 100, 5000);
+    assertEquals(expected.toByteString(),
+        DataFrames.socketData(123456789012L, heap).toByteString());
+    assertFalse(heap.hasRemaining());
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(8192);
+    direct.put(DATA, 100, 5000);
+    direct.flip();
+    assertEquals(expected.toByteString(),
+        DataFrames.socketData(123456789012L, direct).toByteString());
+    assertFalse(direct.hasRemaining());
+  }
+
+  public void testSocketSessionData() throws Exception {
+    FrameInfo expected = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_SESSION)
+        .setPayload(SocketSessionData.newBuilder()
+            .setSocketHandle(ByteString.copyFromUtf8("handle"))
+            .setData(ByteString.copyFrom(DATA, 0, 300))
+            .setStreamOffset(70000)
+            .build().toByteString())
+        .build();
+    assertEquals(expected.toByteString(), DataFrames.socketSessionData(
+        ByteString.copyFromUtf8("handle"), 70000, DATA, 0, 300).toByteString());
+  }
+
+  /**
+   * The sender stamps the sequence into the encoding, the frames must read back as if they had
+   * been built with it.
+   */
+  public void testSequenceStampedBySender() throws Exception {
+    LinkedBlockingQueue<FrameInfo> queue = new LinkedBlockingQueue<FrameInfo>();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameSender frameSender = new FrameSender(queue, new ShutdownManager());
+    frameSender.setOutputStream(out);
+    queue.add(DataFrames.socketData(1, DATA, 0, 10));
+    queue.add(DataFrames.socketData(2, DATA, 10, 20));
+    queue.add(FrameInfo.newBuilder().setType(FrameInfo.Type.SHUTDOWN_QUEUE).build());
+    frameSender.run();
+
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(out.toByteArray()));
+    FrameInfo first = frameReceiver.readOneFrame();
+    assertEquals(0, first.getSequence());
+    assertEquals(DataFrames.socketData(1, DATA, 0, 10).getPayload(), first.getPayload());
+    FrameInfo second = frameReceiver.readOneFrame();
+    assertEquals(1, second.getSequence());
+    assertEquals(ByteString.copyFrom(DATA, 10, 20),
+        SocketDataInfo.parseFrom(second.getPayload()).getSegment());
+  }
+}
@@ -0,0 +1,64 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the {@link FlowControlWindow} class.
+ */
+public class FlowControlWindowTest extends TestCase {
+
+  public void testAcquireGrantsAtMostAvailable() throws Exception {
+    FlowControlWindow window = new FlowControlWindow(100);
+    assertEquals(60, window.acquire(60));
+    assertEquals(40, window.acquire(60));
+    assertEquals(0, window.getAvailable());
+    window.release(25);
+    assertEquals(25, window.acquire(60));
+  }
+
+  public void testTryAcquireIsAllOrNothing() throws Exception {
+    FlowControlWindow window = new FlowControlWindow(100);
+    assertTrue(window.tryAcquire(80));
+    assertFalse(window.tryAcquire(30));
+    assertEquals(20, window.getAvailable());
+    assertTrue(window.tryAcquire(20));
+  }
+
+  public void testCloseWakesBlockedAcquire() throws Exception {
+    final FlowControlWindow window = new FlowControlWindow(10);
+    assertEquals(10, window.acquire(10));
+    final int[] granted = new int[] { -1 };
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          granted[0] = window.acquire(10);
+        } catch (InterruptedException e) {
+          // leaves granted at -1.
+        }
+      }
+    };
+    waiter.start();
+    window.close();
+    waiter.join(5000);
+    assertFalse(waiter.isAlive());
+    assertEquals(0, granted[0]);
+    assertFalse(window.tryAcquire(1));
+  }
+}
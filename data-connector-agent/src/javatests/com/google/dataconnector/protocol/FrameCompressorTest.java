@@ -0,0 +1,128 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Tests for the {@link FrameCompressor} class.
+ */
+public class FrameCompressorTest extends TestCase {
+
+  private static final int THRESHOLD = 100;
+
+  private FrameInfo textFrame;
+  private FrameInfo randomFrame;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      text.append("GET /index.html HTTP/1.1\r\nHost: www.example.com\r\n\r\n");
+    }
+    textFrame = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.FETCH_REQUEST)
+        .setPayload(ByteString.copyFromUtf8(text.toString()))
+        .build();
+
+    byte[] random = new byte[4096];
+    new Random(1).nextBytes(random);
+    randomFrame = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(ByteString.copyFrom(random))
+        .build();
+  }
+
+  public void testRoundTrip() throws Exception {
+    FrameInfo compressed = new FrameCompressor(THRESHOLD, true).compress(textFrame);
+    assertTrue(compressed.getCompressed());
+    assertTrue(compressed.getPayload().size() < textFrame.getPayload().size());
+    assertEquals(textFrame, new FrameCompressor(THRESHOLD, true).decompress(compressed));
+  }
+
+  public void testSmallAndIncompressiblePayloadsUntouched() throws Exception {
+    FrameCompressor compressor = new FrameCompressor(THRESHOLD, false);
+    FrameInfo small = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(ByteString.copyFromUtf8("aaaaaaaaaaaaaaaaaaaaaaaaa"))
+        .build();
+    assertSame(small, compressor.compress(small));
+    assertSame(randomFrame, compressor.compress(randomFrame));
+  }
+
+  public void testAdaptiveSkipsIncompressibleType() throws Exception {
+    FrameCompressor compressor = new FrameCompressor(THRESHOLD, true);
+    for (int sampled = 0; sampled < FrameCompressor.SAMPLE_BYTES;
+        sampled += randomFrame.getPayload().size()) {
+      assertSame(randomFrame, compressor.compress(randomFrame));
+    }
+
+    // SOCKET_DATA is now skipped, even for compressible data, while other types still compress.
+    FrameInfo textData = FrameInfo.newBuilder(textFrame).setType(FrameInfo.Type.SOCKET_DATA)
+        .build();
+    assertFalse(compressor.compress(textData).getCompressed());
+    assertTrue(compressor.compress(textFrame).getCompressed());
+
+    for (int i = 1; i < FrameCompressor.SKIP_FRAMES; i++) {
+      compressor.compress(textData);
+    }
+    assertTrue(compressor.compress(textData).getCompressed());
+  }
+
+  public void testCorruptPayloadFails() throws Exception {
+    FrameInfo corrupt = FrameInfo.newBuilder(textFrame).setCompressed(true).build();
+    try {
+      new FrameCompressor(THRESHOLD, true).decompress(corrupt);
+      fail("expected FramingException");
+    } catch (FramingException e) {
+      // expected.
+    }
+  }
+
+  public void testSenderToReceiver() throws Exception {
+    ByteArrayOutputStream wire = new ByteArrayOutputStream();
+    FrameSender frameSender = new FrameSender(null, null);
+    frameSender.setOutputStream(wire);
+    frameSender.setFrameCompressor(new FrameCompressor(THRESHOLD, true));
+    frameSender.writeOneFrame(FrameInfo.newBuilder(textFrame).setSequence(0).build());
+    assertTrue(wire.size() < textFrame.getSerializedSize());
+
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(wire.toByteArray()));
+    try {
+      frameReceiver.readOneFrame();
+      fail("compressed frame accepted without negotiated compression");
+    } catch (FramingException e) {
+      // expected.
+    }
+
+    frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(wire.toByteArray()));
+    frameReceiver.setFrameCompressor(new FrameCompressor(THRESHOLD, true));
+    FrameInfo received = frameReceiver.readOneFrame();
+    assertEquals(textFrame.getPayload(), received.getPayload());
+    assertFalse(received.getCompressed());
+  }
+}
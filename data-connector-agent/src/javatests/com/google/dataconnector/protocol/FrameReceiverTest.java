@@ -18,14 +18,23 @@ package com.google.dataconnector.protocol;
 
 import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.protobuf.ByteString;
 
 import junit.framework.TestCase;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -99,6 +108,47 @@ public class FrameReceiverTest extends TestCase {
     assertEquals(expectedFrameInfo2, dispatchable.getReceivedFrames().get(1));
   }
 
+  public void testReadFramesFromTrickleStream() throws Exception {
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(bos.toByteArray()) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        // Hand out one byte at a time like a slow socket.
+        return super.read(b, off, Math.min(len, 1));
+      }
+    });
+    assertEquals(expectedFrameInfo1, frameReceiver.readOneFrame());
+    assertEquals(expectedFrameInfo2, frameReceiver.readOneFrame());
+  }
+
+  public void testReadFrameLargerThanReadBuffer() throws Exception {
+    byte[] contents = new byte[FrameReceiver.READ_BUFFER_SIZE * 3];
+    for (int i = 0; i < contents.length; i++) {
+      contents[i] = (byte) i;
+    }
+    FrameInfo bigFrame = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setSequence(2)
+        .setPayload(ByteString.copyFrom(contents))
+        .build();
+    DataOutputStream dataOutputStream = new DataOutputStream(bos);
+    bos.write('*');
+    bos.write(FrameReceiver.MAGIC);
+    dataOutputStream.writeLong(2);
+    dataOutputStream.writeInt(bigFrame.toByteArray().length);
+    bos.write(bigFrame.toByteArray());
+
+    BufferPool bufferPool = new BufferPool(1024 * 1024, false, true);
+    FrameReceiver frameReceiver = new FrameReceiver(bufferPool);
+    frameReceiver.setInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    assertEquals(expectedFrameInfo1, frameReceiver.readOneFrame());
+    assertEquals(expectedFrameInfo2, frameReceiver.readOneFrame());
+    assertEquals(bigFrame, frameReceiver.readOneFrame());
+    // The large read buffer went back to the pool once the frame was parsed.
+    assertEquals(1, bufferPool.getLeaseCount());
+    assertEquals(0, bufferPool.getOutstanding());
+  }
+
   public void testCounter() throws Exception {
     AtomicLong actualCounter = new AtomicLong();
     FrameReceiver frameReceiver = new FrameReceiver();
@@ -247,6 +297,222 @@ public class FrameReceiverTest extends TestCase {
     }
   }
 
+  public void testAsyncDispatchIsolatesTypes() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch authorizationsSeen = new CountDownLatch(3);
+    final List<FrameInfo> healthChecks = Collections.synchronizedList(new ArrayList<FrameInfo>());
+
+    final FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new HangingInputStream(encode(FrameInfo.Type.HEALTH_CHECK,
+        FrameInfo.Type.AUTHORIZATION, FrameInfo.Type.AUTHORIZATION, FrameInfo.Type.HEALTH_CHECK,
+        FrameInfo.Type.AUTHORIZATION)));
+    frameReceiver.registerDispatcher(FrameInfo.Type.HEALTH_CHECK, new Dispatchable() {
+      @Override
+      public void dispatch(FrameInfo frameInfo) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        healthChecks.add(frameInfo);
+      }
+    });
+    frameReceiver.registerDispatcher(FrameInfo.Type.AUTHORIZATION, new Dispatchable() {
+      @Override
+      public void dispatch(FrameInfo frameInfo) {
+        authorizationsSeen.countDown();
+      }
+    });
+    frameReceiver.setAsyncDispatch(true, 10);
+    Thread reader = startDispatchingThread(frameReceiver);
+
+    // Authorization frames get through while the health check handler is stuck.
+    assertTrue(authorizationsSeen.await(5, TimeUnit.SECONDS));
+    assertTrue(healthChecks.isEmpty());
+    release.countDown();
+    for (int i = 0; i < 50 && healthChecks.size() < 2; i++) {
+      Thread.sleep(100);
+    }
+    assertEquals(2, healthChecks.size());
+    assertTrue(healthChecks.get(0).getSequence() < healthChecks.get(1).getSequence());
+    reader.interrupt();
+  }
+
+  public void testAsyncDispatchFailureStopsReader() throws Exception {
+    final FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new HangingInputStream(encode(FrameInfo.Type.AUTHORIZATION)));
+    frameReceiver.registerDispatcher(FrameInfo.Type.AUTHORIZATION, new Dispatchable() {
+      @Override
+      public void dispatch(FrameInfo frameInfo) throws FramingException {
+        throw new FramingException("handler failed");
+      }
+    });
+    frameReceiver.setAsyncDispatch(true, 10);
+    final FramingException[] thrown = new FramingException[1];
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          frameReceiver.startDispatching();
+        } catch (FramingException e) {
+          thrown[0] = e;
+        }
+      }
+    };
+    reader.start();
+    reader.join(5000);
+    assertFalse(reader.isAlive());
+    assertEquals("handler failed", thrown[0].getMessage());
+  }
+
+  public void testShardedDispatchKeepsConnectionOrder() throws Exception {
+    final int connections = 4;
+    final int framesPerConnection = 20;
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch othersDone = new CountDownLatch((connections - 1) * framesPerConnection);
+    final Map<Long, List<Long>> received = new HashMap<Long, List<Long>>();
+    List<FrameInfo> frames = new ArrayList<FrameInfo>();
+    for (int i = 0; i < framesPerConnection; i++) {
+      for (long connectionId = 0; connectionId < connections; connectionId++) {
+        frames.add(FrameInfo.newBuilder()
+            .setType(FrameInfo.Type.SOCKET_DATA)
+            .setSequence(frames.size())
+            .setPayload(SocketDataInfo.newBuilder()
+                .setConnectionId(connectionId)
+                .setState(SocketDataInfo.State.CONTINUE)
+                .setSegment(ByteString.copyFromUtf8(String.valueOf(i)))
+                .build().toByteString())
+            .build());
+      }
+    }
+
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new HangingInputStream(encode(frames)));
+    frameReceiver.registerDispatcher(FrameInfo.Type.SOCKET_DATA, new Dispatchable() {
+      @Override
+      public void dispatch(FrameInfo frameInfo) throws FramingException {
+        try {
+          SocketDataInfo data = SocketDataInfo.parseFrom(frameInfo.getPayload());
+          if (data.getConnectionId() == 0) {
+            release.await();
+          } else {
+            othersDone.countDown();
+          }
+          synchronized (received) {
+            if (!received.containsKey(data.getConnectionId())) {
+              received.put(data.getConnectionId(), new ArrayList<Long>());
+            }
+            received.get(data.getConnectionId()).add(
+                Long.valueOf(data.getSegment().toStringUtf8()));
+          }
+        } catch (Exception e) {
+          throw new FramingException(e);
+        }
+      }
+    });
+    frameReceiver.setAsyncDispatch(true, framesPerConnection * connections);
+    frameReceiver.setDispatchShards(connections);
+    Thread reader = startDispatchingThread(frameReceiver);
+
+    // Connection 0 is stuck in its handler while the other connections run on their own lanes.
+    assertTrue(othersDone.await(5, TimeUnit.SECONDS));
+    release.countDown();
+    for (int i = 0; i < 50; i++) {
+      synchronized (received) {
+        if (received.containsKey(0L) && received.get(0L).size() == framesPerConnection) {
+          break;
+        }
+      }
+      Thread.sleep(100);
+    }
+    synchronized (received) {
+      for (long connectionId = 0; connectionId < connections; connectionId++) {
+        List<Long> order = received.get(connectionId);
+        assertEquals(framesPerConnection, order.size());
+        for (int i = 0; i < framesPerConnection; i++) {
+          assertEquals(i, order.get(i).longValue());
+        }
+      }
+    }
+    reader.interrupt();
+  }
+
+  /**
+   * Encodes one frame of each of the supplied types, numbering them with the frame sequence.
+   */
+  private static byte[] encode(final FrameInfo.Type... types) throws IOException {
+    List<FrameInfo> frames = new ArrayList<FrameInfo>();
+    for (int i = 0; i < types.length; i++) {
+      frames.add(FrameInfo.newBuilder()
+          .setType(types[i])
+          .setSequence(i)
+          .build());
+    }
+    return encode(frames);
+  }
+
+  private static byte[] encode(final List<FrameInfo> frames) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    FrameSender frameSender = new FrameSender(null, null);
+    frameSender.setOutputStream(out);
+    for (FrameInfo frame : frames) {
+      frameSender.writeOneFrame(frame);
+    }
+    return out.toByteArray();
+  }
+
+  private static Thread startDispatchingThread(final FrameReceiver frameReceiver) {
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          frameReceiver.startDispatching();
+        } catch (FramingException e) {
+          // stream closed.
+        }
+      }
+    };
+    reader.setDaemon(true);
+    reader.start();
+    return reader;
+  }
+
+  /**
+   * Serves the supplied bytes and then blocks like an idle socket until closed.
+   */
+  private static class HangingInputStream extends InputStream {
+    private final ByteArrayInputStream data;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    HangingInputStream(final byte[] bytes) {
+      data = new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) == -1) ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (data.available() > 0) {
+        return data.read(b, off, len);
+      }
+      try {
+        closed.await();
+      } catch (InterruptedException e) {
+        throw new IOException("interrupted");
+      }
+      throw new IOException("closed");
+    }
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+  }
+
   public class MockDispatchable implements Dispatchable {
     private List<FrameInfo> receivedFrames = new ArrayList<FrameInfo>();
 
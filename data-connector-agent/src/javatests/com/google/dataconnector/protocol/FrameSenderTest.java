@@ -18,6 +18,8 @@ package com.google.dataconnector.protocol;
 
 import com.google.dataconnector.protocol.proto.SdcFrame.AuthorizationInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
 
 import junit.framework.TestCase;
 
@@ -26,6 +28,7 @@ import org.easymock.classextension.EasyMock;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -105,4 +108,84 @@ public class FrameSenderTest extends TestCase {
     assertEquals(expectedFrameInfo1, actualFrameInfo);
     
   }
+
+  public void testBatchedFramesWrittenOnce() throws Exception {
+    queue = new LinkedBlockingQueue<FrameInfo>();
+    CountingOutputStream cos = new CountingOutputStream();
+    FrameSender frameSender = new FrameSender(queue, new ShutdownManager());
+    frameSender.setOutputStream(cos);
+    frameSender.setBatching(true, FrameSender.DEFAULT_BATCH_MAX_BYTES, 1000);
+    for (int i = 0; i < 3; i++) {
+      frameSender.sendFrame(expectedFrameInfo1);
+    }
+    frameSender.sendFrame(FrameInfo.newBuilder().setType(FrameInfo.Type.SHUTDOWN_QUEUE).build());
+    frameSender.run();
+    assertEquals(1, cos.writes);
+
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(cos.toByteArray()));
+    for (int i = 0; i < 3; i++) {
+      FrameInfo actualFrameInfo = frameReceiver.readOneFrame();
+      assertEquals(i, actualFrameInfo.getSequence());
+      assertEquals(expectedFrameInfo1.getPayload(), actualFrameInfo.getPayload());
+    }
+  }
+
+  public void testBatchingDisabledWritesEachFrame() throws Exception {
+    queue = new LinkedBlockingQueue<FrameInfo>();
+    CountingOutputStream cos = new CountingOutputStream();
+    FrameSender frameSender = new FrameSender(queue, new ShutdownManager());
+    frameSender.setOutputStream(cos);
+    frameSender.setBatching(false, FrameSender.DEFAULT_BATCH_MAX_BYTES, 1000);
+    for (int i = 0; i < 3; i++) {
+      frameSender.sendFrame(expectedFrameInfo1);
+    }
+    frameSender.sendFrame(FrameInfo.newBuilder().setType(FrameInfo.Type.SHUTDOWN_QUEUE).build());
+    frameSender.run();
+    assertEquals(3, cos.writes);
+  }
+
+  public void testWriteBufferShrinksAfterLargeFrame() throws Exception {
+    bos = new ByteArrayOutputStream();
+    FrameSender frameSender = new FrameSender(queue, null);
+    frameSender.setOutputStream(bos);
+    int initialSize = frameSender.getWriteBufferSize();
+    FrameInfo largeFrameInfo = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(ByteString.copyFrom(new byte[FrameSender.DEFAULT_BATCH_MAX_BYTES * 4]))
+        .build();
+    frameSender.writeOneFrame(largeFrameInfo);
+    assertEquals(initialSize, frameSender.getWriteBufferSize());
+
+    FrameReceiver frameReceiver = new FrameReceiver();
+    frameReceiver.setInputStream(new ByteArrayInputStream(bos.toByteArray()));
+    assertEquals(largeFrameInfo.getPayload(), frameReceiver.readOneFrame().getPayload());
+  }
+
+  public void testQueueStats() throws Exception {
+    PriorityFrameQueue priorityQueue = new PriorityFrameQueue(10, 4, 1);
+    FrameSender frameSender = new FrameSender(priorityQueue, null);
+    assertNull(frameSender.getQueueStats());
+    frameSender.sendFrame(expectedFrameInfo1);
+    assertTrue(frameSender.getQueueStats().startsWith("1 frames"));
+    assertNull(new FrameSender(new LinkedBlockingQueue<FrameInfo>(), null).getQueueStats());
+  }
+
+  /**
+   * Records how many times write was called on the stream.
+   */
+  private static class CountingOutputStream extends ByteArrayOutputStream {
+    private int writes = 0;
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      writes++;
+      super.write(b, off, len);
+    }
+
+    @Override
+    public void write(byte[] b) throws IOException {
+      write(b, 0, b.length);
+    }
+  }
 }
@@ -17,7 +17,9 @@
 package com.google.dataconnector.protocol;
 
 import com.google.dataconnector.protocol.InputStreamConnectorTest.MockConnectionRemover;
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
 import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.protobuf.ByteString;
 
 import junit.framework.TestCase;
 
@@ -26,8 +28,8 @@ import org.easymock.classextension.EasyMock;
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 import java.util.Arrays;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for the {@link OutputStreamConnector} class.
@@ -37,21 +39,14 @@ import java.util.concurrent.LinkedBlockingQueue;
 public class OutputStreamConnectorTest extends TestCase {
   private static final int CONNECTION_ID = 0;
 
-  private BlockingQueue<SocketDataInfo> sendQueue;
+  private SegmentBuffer buffer;
   private ByteArrayOutputStream bos;
   private byte[] expectedPayload = new byte[] { 1, 2, 3, 4, 5, 6 };
 
-  private SocketDataInfo expectedClosingSdi;
-
   @Override
   protected void setUp() throws Exception {
     super.setUp();
-    expectedClosingSdi = SocketDataInfo.newBuilder()
-        .setConnectionId(CONNECTION_ID)
-        .setState(SocketDataInfo.State.CLOSE)
-        .build();
-
-    sendQueue = new LinkedBlockingQueue<SocketDataInfo>();
+    buffer = new SegmentBuffer(1024, new MemoryBudget(1024 * 1024));
     bos = new ByteArrayOutputStream();
 
   }
@@ -60,18 +55,17 @@ public class OutputStreamConnectorTest extends TestCase {
   public void testOutputReceived() throws Exception {
 
     MockConnectionRemover mcr = new MockConnectionRemover();
-    OutputStreamConnector outputStreamConnector = new OutputStreamConnector(sendQueue);
+    OutputStreamConnector outputStreamConnector = new OutputStreamConnector(buffer);
     outputStreamConnector.setConnectionId(CONNECTION_ID);
     outputStreamConnector.setOutputStream(bos);
     outputStreamConnector.setConnectorStateCallback(mcr);
     outputStreamConnector.start(); // LARGE TEST
 
-    // Warning flakey test ahead.
-    sendQueue.put(expectedClosingSdi);
-    // We sleep this much to ensure that the outputstreamconnector has taken
-    // the frame off the queue and written it to the bos.
-    Thread.sleep(50);
-    Arrays.equals(expectedPayload, bos.toByteArray());
+    buffer.put(ByteString.copyFrom(expectedPayload));
+    buffer.close();
+    outputStreamConnector.join(5000);
+    assertTrue(Arrays.equals(expectedPayload, bos.toByteArray()));
+    assertTrue(mcr.isCallbackFired());
   }
 
   public void testOutputClosed() throws Exception {
@@ -81,18 +75,48 @@ public class OutputStreamConnectorTest extends TestCase {
     EasyMock.replay(mockOutputStream);
 
     MockConnectionRemover mcr = new MockConnectionRemover();
-    OutputStreamConnector outputStreamConnector = new OutputStreamConnector(sendQueue);
+    OutputStreamConnector outputStreamConnector = new OutputStreamConnector(buffer);
     outputStreamConnector.setConnectionId(CONNECTION_ID);
     outputStreamConnector.setOutputStream(mockOutputStream);
     outputStreamConnector.setConnectorStateCallback(mcr);
     outputStreamConnector.start(); // LARGE TEST
 
-    // Warning flakey test ahead.
-    sendQueue.put(expectedClosingSdi);
-    // We sleep this much to ensure that the outputstreamconnector has taken
-    // the frame off the queue and written it to the bos.
-    Thread.sleep(50);
+    buffer.close();
+    outputStreamConnector.join(5000);
     assertTrue(mcr.isCallbackFired());
     EasyMock.verify(mockOutputStream);
   }
+
+  public void testWindowUpdateWaitsForDrainWhileOverBudget() throws Exception {
+    final int length = OutputStreamConnector.WRITE_CHUNK_SIZE + 100;
+    MemoryBudget memoryBudget = new MemoryBudget(1);
+    buffer = new SegmentBuffer(length, memoryBudget);
+    // Another connection holds the whole budget.
+    memoryBudget.add(1);
+    LinkedBlockingQueue<FrameInfo> sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    FlowControlWindow receiveWindow =
+        new FlowControlWindow(OutputStreamConnector.WRITE_CHUNK_SIZE * 2);
+
+    MockConnectionRemover mcr = new MockConnectionRemover();
+    OutputStreamConnector outputStreamConnector = new OutputStreamConnector(buffer);
+    outputStreamConnector.setConnectionId(CONNECTION_ID);
+    outputStreamConnector.setOutputStream(bos);
+    outputStreamConnector.setConnectorStateCallback(mcr);
+    outputStreamConnector.setFrameSender(new FrameSender(sendQueue, null));
+    outputStreamConnector.setReceiveWindow(receiveWindow);
+
+    // Buffered before the connector runs, so its first write of half the window leaves bytes
+    // behind and the update is held back until the second write drains the buffer.
+    assertTrue(receiveWindow.tryAcquire(length));
+    assertTrue(buffer.offer(ByteString.copyFrom(new byte[length])));
+    outputStreamConnector.start();
+
+    FrameInfo frame = sendQueue.poll(5000, TimeUnit.MILLISECONDS);
+    assertNotNull(frame);
+    assertEquals(length, SocketDataInfo.parseFrom(frame.getPayload()).getWindowUpdate());
+    assertNull(sendQueue.poll(100, TimeUnit.MILLISECONDS));
+    assertEquals(1, memoryBudget.getUsed());
+    buffer.close();
+    outputStreamConnector.join(5000);
+  }
 }
@@ -0,0 +1,207 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketDataInfo;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionData;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionReply;
+import com.google.dataconnector.protocol.proto.SdcFrame.SocketSessionVerb;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link PriorityFrameQueue} class.
+ */
+public class PriorityFrameQueueTest extends TestCase {
+
+  public void testControlFramesJumpBulkData() throws Exception {
+    PriorityFrameQueue queue = new PriorityFrameQueue(100, 4, 1);
+    for (int i = 0; i < 10; i++) {
+      queue.put(frame(FrameInfo.Type.SOCKET_DATA, i));
+    }
+    queue.put(frame(FrameInfo.Type.HEALTH_CHECK, 0));
+
+    assertEquals(FrameInfo.Type.HEALTH_CHECK, queue.take().getType());
+    for (int i = 0; i < 10; i++) {
+      FrameInfo frame = queue.take();
+      assertEquals(FrameInfo.Type.SOCKET_DATA, frame.getType());
+      assertEquals(i, frame.getSequence());
+    }
+    assertNull(queue.poll());
+  }
+
+  public void testInteractiveAndBulkShareByWeight() throws Exception {
+    PriorityFrameQueue queue = new PriorityFrameQueue(100, 2, 1);
+    for (int i = 0; i < 6; i++) {
+      queue.put(frame(FrameInfo.Type.SOCKET_DATA, i));
+      queue.put(frame(FrameInfo.Type.FETCH_REQUEST, i));
+    }
+
+    List<FrameInfo> drained = new ArrayList<FrameInfo>();
+    assertEquals(12, queue.drainTo(drained));
+    List<FrameInfo.Type> order = new ArrayList<FrameInfo.Type>();
+    for (FrameInfo frame : drained) {
+      order.add(frame.getType());
+    }
+    FrameInfo.Type fetch = FrameInfo.Type.FETCH_REQUEST;
+    FrameInfo.Type data = FrameInfo.Type.SOCKET_DATA;
+    assertEquals(Arrays.asList(fetch, fetch, data, fetch, fetch, data, fetch, fetch, data, data,
+        data, data), order);
+  }
+
+  public void testFullBulkLaneDoesNotBlockControl() throws Exception {
+    PriorityFrameQueue queue = new PriorityFrameQueue(2, 4, 1);
+    assertTrue(queue.offer(frame(FrameInfo.Type.SOCKET_DATA, 0)));
+    assertTrue(queue.offer(frame(FrameInfo.Type.SOCKET_DATA, 1)));
+    assertFalse(queue.offer(frame(FrameInfo.Type.SOCKET_DATA, 2)));
+    assertFalse(queue.offer(frame(FrameInfo.Type.SOCKET_DATA, 2), 10, TimeUnit.MILLISECONDS));
+
+    assertTrue(queue.offer(frame(FrameInfo.Type.HEALTH_CHECK, 0)));
+    assertTrue(queue.offer(frame(FrameInfo.Type.SOCKET_SESSION, 0)));
+    assertEquals(4, queue.size());
+    assertEquals(2, queue.laneSize(PriorityFrameQueue.BULK));
+  }
+
+  public void testPutWaitsForRoomInItsLane() throws Exception {
+    final PriorityFrameQueue queue = new PriorityFrameQueue(1, 4, 1);
+    queue.put(frame(FrameInfo.Type.SOCKET_DATA, 0));
+    Thread producer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          queue.put(frame(FrameInfo.Type.SOCKET_DATA, 1));
+        } catch (InterruptedException e) {
+          // test fails on the assertions below.
+        }
+      }
+    };
+    producer.start();
+    assertEquals(0, queue.take().getSequence());
+    assertEquals(1, queue.poll(5, TimeUnit.SECONDS).getSequence());
+    producer.join(5000);
+    assertFalse(producer.isAlive());
+  }
+
+  public void testSmallConnectionsNotStarvedByBulkConnection() throws Exception {
+    PriorityFrameQueue queue = new PriorityFrameQueue(1000, 4, 1, 16 * 1024);
+    for (int i = 0; i < 50; i++) {
+      queue.put(socketData(1, 8 * 1024));
+    }
+    for (long connectionId = 2; connectionId <= 5; connectionId++) {
+      queue.put(socketData(connectionId, 100));
+    }
+
+    // Each small connection gets its turn after at most one quantum of the bulk connection.
+    int smallSeen = 0;
+    for (int i = 0; i < 12 && smallSeen < 4; i++) {
+      if (SocketDataInfo.parseFrom(queue.take().getPayload()).getConnectionId() != 1) {
+        smallSeen++;
+      }
+    }
+    assertEquals(4, smallSeen);
+  }
+
+  public void testQueuedBytesPerStream() throws Exception {
+    PriorityFrameQueue queue = new PriorityFrameQueue(1000, 4, 1);
+    FrameInfo first = socketData(7, 1000);
+    FrameInfo second = socketData(7, 500);
+    queue.put(first);
+    queue.put(second);
+    queue.put(socketData(8, 10));
+    assertEquals(first.getSerializedSize() + second.getSerializedSize(), queue.getQueuedBytes(7));
+    assertEquals(2, queue.getQueuedBytesByStream().size());
+
+    // Frames of one connection keep their order.
+    assertEquals(first, queue.take());
+    assertEquals(second.getSerializedSize(), queue.getQueuedBytes(7));
+    queue.take();
+    queue.take();
+    assertEquals(0, queue.getQueuedBytes(7));
+    assertTrue(queue.getQueuedBytesByStream().isEmpty());
+  }
+
+  public void testStatsNameDeepestStreams() throws Exception {
+    PriorityFrameQueue queue = new PriorityFrameQueue(1000, 4, 1);
+    FrameInfo small = socketData(8, 10);
+    FrameInfo large = socketData(7, 1000);
+    queue.put(small);
+    queue.put(large);
+    assertEquals("2 frames, " + (small.getSerializedSize() + large.getSerializedSize()) +
+        " bytes in 2 streams, deepest connection 7 " + large.getSerializedSize() +
+        " bytes, connection 8 " + small.getSerializedSize() + " bytes", queue.getStats());
+  }
+
+  public void testSocketSessionFramesKeyedByHandle() throws Exception {
+    ByteString handle = ByteString.copyFromUtf8("handle-1");
+    FrameInfo reply = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_SESSION)
+        .setPayload(SocketSessionReply.newBuilder()
+            .setVerb(SocketSessionVerb.CONNECT)
+            .setSocketHandle(handle)
+            .setStatus(SocketSessionReply.Status.OK)
+            .setHostname("example.com")
+            .build().toByteString())
+        .build();
+    FrameInfo data = FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_SESSION)
+        .setPayload(SocketSessionData.newBuilder()
+            .setSocketHandle(handle)
+            .setData(ByteString.copyFromUtf8("data"))
+            .build().toByteString())
+        .build();
+    assertEquals(handle, StreamKeys.of(reply));
+    assertEquals(handle, StreamKeys.of(data));
+
+    PriorityFrameQueue queue = new PriorityFrameQueue(1000, 4, 1);
+    queue.put(reply);
+    queue.put(data);
+    assertEquals(reply.getSerializedSize() + data.getSerializedSize(),
+        queue.getQueuedBytes(handle));
+  }
+
+  public void testSocketDataConnectionId() throws Exception {
+    assertEquals(Long.valueOf(1L << 40), StreamKeys.of(socketData(1L << 40, 100)));
+    assertEquals(1L << 40, StreamKeys.connectionId(socketData(1L << 40, 100)));
+    assertEquals(0, StreamKeys.connectionId(frame(FrameInfo.Type.SOCKET_DATA, 1)));
+  }
+
+  private static FrameInfo socketData(final long connectionId, final int segmentSize) {
+    return FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setPayload(SocketDataInfo.newBuilder()
+            .setConnectionId(connectionId)
+            .setState(SocketDataInfo.State.CONTINUE)
+            .setSegment(ByteString.copyFrom(new byte[segmentSize]))
+            .build().toByteString())
+        .build();
+  }
+
+  private static FrameInfo frame(final FrameInfo.Type type, final long id) {
+    return FrameInfo.newBuilder()
+        .setType(type)
+        .setSequence(id)
+        .setPayload(ByteString.copyFromUtf8("payload"))
+        .build();
+  }
+}
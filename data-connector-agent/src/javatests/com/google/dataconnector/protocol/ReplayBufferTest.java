@@ -0,0 +1,145 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.dataconnector.protocol.proto.SdcFrame.FrameInfo;
+import com.google.dataconnector.util.ShutdownManager;
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Tests for the {@link ReplayBuffer} class and resuming a {@link FrameSender} from it.
+ */
+public class ReplayBufferTest extends TestCase {
+
+  private static final long TIMEOUT = 10000;
+
+  public void testAcknowledgeDropsFrames() {
+    ReplayBuffer replayBuffer = new ReplayBuffer(1024);
+    for (int sequence = 0; sequence < 4; sequence++) {
+      replayBuffer.add(frame(sequence, "frame " + sequence));
+    }
+    replayBuffer.acknowledge(2);
+
+    List<FrameInfo> frames = replayBuffer.framesFrom(0);
+    assertEquals(2, frames.size());
+    assertEquals(2, frames.get(0).getSequence());
+    assertEquals(3, frames.get(1).getSequence());
+    assertEquals(frames.get(0).getSerializedSize() + frames.get(1).getSerializedSize(),
+        replayBuffer.getBufferedBytes());
+    assertEquals(1, replayBuffer.framesFrom(3).size());
+  }
+
+  public void testCanReplayFrom() {
+    ReplayBuffer replayBuffer = new ReplayBuffer(1024);
+    assertTrue(replayBuffer.canReplayFrom(5));
+    for (int sequence = 5; sequence < 8; sequence++) {
+      replayBuffer.add(frame(sequence, "frame " + sequence));
+    }
+    replayBuffer.acknowledge(6);
+
+    assertFalse(replayBuffer.canReplayFrom(5));
+    assertTrue(replayBuffer.canReplayFrom(6));
+    assertTrue(replayBuffer.canReplayFrom(8)); // everything was received.
+    assertFalse(replayBuffer.canReplayFrom(9));
+  }
+
+  public void testOverflowEndsResuming() {
+    FrameInfo frameInfo = frame(0, "0123456789");
+    ReplayBuffer replayBuffer = new ReplayBuffer(frameInfo.getSerializedSize() * 2);
+    replayBuffer.add(frameInfo);
+    replayBuffer.add(frame(1, "0123456789"));
+    assertTrue(replayBuffer.isResumable());
+
+    replayBuffer.add(frame(2, "0123456789"));
+    assertFalse(replayBuffer.isResumable());
+    assertFalse(replayBuffer.canReplayFrom(2));
+    assertEquals(0, replayBuffer.getBufferedBytes());
+    replayBuffer.add(frame(3, "0123456789"));
+    assertEquals(0, replayBuffer.getBufferedBytes());
+  }
+
+  public void testSenderReplaysUnacknowledgedFramesOnResume() throws Exception {
+    ReplayBuffer replayBuffer = new ReplayBuffer(1024 * 1024);
+    LinkedBlockingQueue<FrameInfo> sendQueue = new LinkedBlockingQueue<FrameInfo>();
+    ShutdownManager shutdownManager = new ShutdownManager();
+    FrameSender frameSender = new FrameSender(sendQueue, shutdownManager);
+    frameSender.setOutputStream(new FailingOutputStream());
+    frameSender.setReplayBuffer(replayBuffer);
+    frameSender.start();
+    try {
+      for (int i = 0; i < 3; i++) {
+        frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, ByteString.copyFromUtf8("data " + i));
+      }
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (replayBuffer.framesFrom(0).isEmpty() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      // The peer got the first frame before the connection failed.
+      replayBuffer.acknowledge(1);
+
+      ByteArrayOutputStream resumed = new ByteArrayOutputStream();
+      frameSender.resume(resumed, 1);
+      frameSender.sendFrame(FrameInfo.Type.SOCKET_DATA, ByteString.copyFromUtf8("data 3"));
+      frameSender.sendFrame(FrameInfo.newBuilder().setType(FrameInfo.Type.SHUTDOWN_QUEUE).build());
+      frameSender.join(TIMEOUT);
+      assertFalse(frameSender.isAlive());
+
+      FrameReceiver frameReceiver = new FrameReceiver();
+      assertTrue(frameReceiver.restart(new ByteArrayInputStream(resumed.toByteArray())));
+      frameReceiver.setSequence(1);
+      for (int i = 1; i < 4; i++) {
+        FrameInfo frameInfo = frameReceiver.readOneFrame();
+        assertEquals(i, frameInfo.getSequence());
+        assertEquals("data " + i, frameInfo.getPayload().toStringUtf8());
+      }
+    } finally {
+      shutdownManager.shutdownAll();
+    }
+  }
+
+  private static FrameInfo frame(final long sequence, final String payload) {
+    return FrameInfo.newBuilder()
+        .setType(FrameInfo.Type.SOCKET_DATA)
+        .setSequence(sequence)
+        .setPayload(ByteString.copyFromUtf8(payload))
+        .build();
+  }
+
+  /**
+   * Stream of a connection that has failed.
+   */
+  private static class FailingOutputStream extends OutputStream {
+    @Override
+    public void write(final int b) throws IOException {
+      throw new IOException("Connection reset");
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+      throw new IOException("Connection reset");
+    }
+  }
+}
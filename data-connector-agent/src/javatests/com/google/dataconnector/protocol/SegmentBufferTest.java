@@ -0,0 +1,116 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.protocol;
+
+import com.google.protobuf.ByteString;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the {@link SegmentBuffer} class.
+ */
+public class SegmentBufferTest extends TestCase {
+
+  private MemoryBudget memoryBudget;
+  private SegmentBuffer buffer;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    memoryBudget = new MemoryBudget(1024 * 1024);
+    buffer = new SegmentBuffer(SegmentBuffer.INITIAL_SIZE * 4, memoryBudget);
+  }
+
+  public void testBytesComeOutInOrderAcrossTheWrap() throws Exception {
+    byte[] chunk = new byte[1000];
+    int written = 0;
+    int read = 0;
+    for (int round = 0; round < 50; round++) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(buffer.offer(ByteString.copyFrom(sequence(written, 700))));
+        written += 700;
+      }
+      // Leave some behind so the next segments wrap around the ring.
+      while (buffer.size() > 500) {
+        int length = buffer.read(chunk);
+        for (int i = 0; i < length; i++) {
+          assertEquals((byte) (read + i), chunk[i]);
+        }
+        read += length;
+      }
+    }
+    while (!buffer.isEmpty()) {
+      int length = buffer.read(chunk);
+      for (int i = 0; i < length; i++) {
+        assertEquals((byte) (read + i), chunk[i]);
+      }
+      read += length;
+    }
+    assertEquals(written, read);
+    assertEquals(0, memoryBudget.getUsed());
+  }
+
+  public void testOfferRefusesPastCapacity() throws Exception {
+    assertTrue(buffer.offer(ByteString.copyFrom(new byte[buffer.getCapacity() - 10])));
+    assertFalse(buffer.offer(ByteString.copyFrom(new byte[11])));
+    assertTrue(buffer.offer(ByteString.copyFrom(new byte[10])));
+    assertEquals(buffer.getCapacity(), memoryBudget.getUsed());
+  }
+
+  public void testCloseDrainsFirstAndResetDrops() throws Exception {
+    buffer.offer(ByteString.copyFromUtf8("last"));
+    buffer.close();
+    byte[] chunk = new byte[16];
+    assertEquals(4, buffer.read(chunk));
+    assertEquals(-1, buffer.read(chunk));
+
+    SegmentBuffer other = new SegmentBuffer(1024, memoryBudget);
+    other.offer(ByteString.copyFromUtf8("dropped"));
+    other.reset();
+    assertEquals(-1, other.read(chunk));
+    assertEquals(0, memoryBudget.getUsed());
+  }
+
+  public void testPutWaitsForTheReader() throws Exception {
+    final SegmentBuffer small = new SegmentBuffer(10, memoryBudget);
+    small.put(ByteString.copyFrom(new byte[8]));
+    Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          small.put(ByteString.copyFrom(new byte[8]));
+        } catch (InterruptedException e) {
+          // Test fails on the size below.
+        }
+      }
+    };
+    writer.start();
+    writer.join(100);
+    assertTrue(writer.isAlive());
+    assertEquals(8, small.read(new byte[16]));
+    writer.join(5000);
+    assertEquals(8, small.size());
+  }
+
+  private static byte[] sequence(final int start, final int length) {
+    byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = (byte) (start + i);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,116 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for {@link CircuitBreaker}.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+  private static final String BACKEND = CircuitBreaker.backend("Intranet", 80);
+
+  private LocalConf localConf;
+  private long now;
+  private CircuitBreaker circuitBreaker;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    localConf = new LocalConf();
+    localConf.setCircuitBreakerFailures(3);
+    localConf.setCircuitBreakerCooldown(30);
+    now = 1000000;
+    circuitBreaker = new CircuitBreaker(localConf, new ClockUtil() {
+      @Override
+      public long currentTimeMillis() {
+        return now;
+      }
+    });
+  }
+
+  public void testOpensAfterFailuresInARow() throws Exception {
+    assertEquals("intranet:80", BACKEND);
+    circuitBreaker.failed(BACKEND);
+    circuitBreaker.failed(BACKEND);
+    assertTrue(circuitBreaker.allow(BACKEND));
+    circuitBreaker.failed(BACKEND);
+    assertTrue(circuitBreaker.isOpen(BACKEND));
+    assertFalse(circuitBreaker.allow(BACKEND));
+    // Other backends are not affected.
+    assertTrue(circuitBreaker.allow(CircuitBreaker.backend("intranet", 443)));
+    assertEquals("1 open, 1 opened, 1 refused, 0 probes", circuitBreaker.getStats());
+  }
+
+  public void testSuccessResetsFailures() throws Exception {
+    circuitBreaker.failed(BACKEND);
+    circuitBreaker.failed(BACKEND);
+    circuitBreaker.succeeded(BACKEND);
+    circuitBreaker.failed(BACKEND);
+    circuitBreaker.failed(BACKEND);
+    assertFalse(circuitBreaker.isOpen(BACKEND));
+    assertTrue(circuitBreaker.allow(BACKEND));
+  }
+
+  public void testSingleProbeAfterCooldown() throws Exception {
+    open();
+    now += 29999;
+    assertFalse(circuitBreaker.allow(BACKEND));
+    now += 1;
+    assertTrue("The probe is let through.", circuitBreaker.allow(BACKEND));
+    assertFalse("Others wait for the probe.", circuitBreaker.allow(BACKEND));
+    circuitBreaker.succeeded(BACKEND);
+    assertFalse(circuitBreaker.isOpen(BACKEND));
+    assertTrue(circuitBreaker.allow(BACKEND));
+    assertEquals("0 open, 1 opened, 2 refused, 1 probes", circuitBreaker.getStats());
+  }
+
+  public void testFailedProbeReopens() throws Exception {
+    open();
+    now += 30000;
+    assertTrue(circuitBreaker.allow(BACKEND));
+    circuitBreaker.failed(BACKEND);
+    assertTrue(circuitBreaker.isOpen(BACKEND));
+    now += 29999;
+    assertFalse(circuitBreaker.allow(BACKEND));
+    now += 1;
+    assertTrue(circuitBreaker.allow(BACKEND));
+  }
+
+  public void testLostProbeIsReplaced() throws Exception {
+    open();
+    now += 30000;
+    assertTrue(circuitBreaker.allow(BACKEND));
+    // The probe never reports back.
+    now += 30000;
+    assertTrue(circuitBreaker.allow(BACKEND));
+  }
+
+  public void testDisabled() throws Exception {
+    localConf.setCircuitBreakerFailures(0);
+    open();
+    assertFalse(circuitBreaker.isOpen(BACKEND));
+    assertTrue(circuitBreaker.allow(BACKEND));
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      circuitBreaker.failed(BACKEND);
+    }
+  }
+}
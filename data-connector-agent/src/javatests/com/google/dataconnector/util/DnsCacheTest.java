@@ -0,0 +1,178 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link DnsCache}.
+ */
+public class DnsCacheTest extends TestCase {
+
+  private static final InetAddress FIRST = address(10, 0, 0, 1);
+  private static final InetAddress SECOND = address(10, 0, 0, 2);
+
+  private ThreadPoolExecutor threadPoolExecutor;
+  private LocalConf localConf;
+  private long now;
+  private volatile InetAddress current;
+  private volatile RuntimeException failure;
+  private BlockingQueue<String> lookups;
+  private DnsCache dnsCache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threadPoolExecutor = ClientGuiceModule.newThreadPoolExecutor(false);
+    localConf = new LocalConf();
+    localConf.setDnsCacheTtl(60);
+    localConf.setDnsNegativeTtl(10);
+    now = 1000000;
+    current = FIRST;
+    lookups = new LinkedBlockingQueue<String>();
+    dnsCache = new DnsCache(localConf, new ClockUtil() {
+      @Override
+      public long currentTimeMillis() {
+        return now;
+      }
+    }, threadPoolExecutor) {
+      @Override
+      protected InetAddress[] lookup(String host) throws UnknownHostException {
+        // Read before the lookup is seen, so a test may clear it once it is.
+        final RuntimeException thrown = failure;
+        lookups.add(host);
+        if (thrown != null) {
+          throw thrown;
+        }
+        if (host.startsWith("unknown")) {
+          throw new UnknownHostException(host);
+        }
+        return new InetAddress[] { current };
+      }
+
+      @Override
+      protected String reverseLookup(InetAddress address) {
+        lookups.add(address.getHostAddress());
+        return "host-" + address.getHostAddress();
+      }
+    };
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    threadPoolExecutor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testCachesUntilExpired() throws Exception {
+    assertEquals(FIRST, dnsCache.resolve("db.example.com")[0]);
+    current = SECOND;
+    now += 30 * 1000;
+    assertEquals(FIRST, dnsCache.resolve("DB.example.com")[0]);
+    assertEquals(1, lookups.size());
+    now += 31 * 1000;
+    assertEquals(SECOND, dnsCache.resolve("db.example.com")[0]);
+    assertEquals(2, lookups.size());
+  }
+
+  public void testRemembersUnknownHosts() throws Exception {
+    for (int i = 0; i < 3; i++) {
+      try {
+        dnsCache.resolve("unknown.example.com");
+        fail("Resolved an unknown host.");
+      } catch (UnknownHostException expected) {
+        assertEquals("unknown.example.com", expected.getMessage());
+      }
+    }
+    assertEquals(1, lookups.size());
+    now += 11 * 1000;
+    try {
+      dnsCache.resolve("unknown.example.com");
+      fail("Resolved an unknown host.");
+    } catch (UnknownHostException expected) {
+      assertEquals(2, lookups.size());
+    }
+  }
+
+  public void testRefreshesNamesInUseAhead() throws Exception {
+    dnsCache.resolve("db.example.com");
+    assertEquals("db.example.com", lookups.take());
+    current = SECOND;
+    // In the last quarter of the TTL the cached address is answered and refreshed behind it.
+    now += 50 * 1000;
+    assertEquals(FIRST, dnsCache.resolve("db.example.com")[0]);
+    assertEquals("db.example.com", lookups.poll(5, TimeUnit.SECONDS));
+    // Only one refresh is started.
+    dnsCache.resolve("db.example.com");
+    for (int i = 0; i < 100 && !dnsCache.getStats().contains("1 refreshed"); i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(SECOND, dnsCache.resolve("db.example.com")[0]);
+    // The refreshed entry lives a full TTL from the refresh, past the expiry of the first one.
+    now += 40 * 1000;
+    assertEquals(SECOND, dnsCache.resolve("db.example.com")[0]);
+    assertNull(lookups.poll(100, TimeUnit.MILLISECONDS));
+  }
+
+  public void testRefreshRetriedAfterRuntimeFailure() throws Exception {
+    dnsCache.resolve("db.example.com");
+    assertEquals("db.example.com", lookups.take());
+    failure = new SecurityException("denied");
+    now += 50 * 1000;
+    assertEquals(FIRST, dnsCache.resolve("db.example.com")[0]);
+    assertEquals("db.example.com", lookups.poll(5, TimeUnit.SECONDS));
+    // The failed refresh does not keep the entry from being refreshed again.
+    failure = null;
+    String refreshed = null;
+    for (int i = 0; i < 100 && refreshed == null; i++) {
+      assertEquals(FIRST, dnsCache.resolve("db.example.com")[0]);
+      refreshed = lookups.poll(10, TimeUnit.MILLISECONDS);
+    }
+    assertEquals("db.example.com", refreshed);
+  }
+
+  public void testReverseLookups() throws Exception {
+    assertEquals("host-10.0.0.1", dnsCache.getHostName(FIRST));
+    assertEquals("host-10.0.0.1", dnsCache.getHostName(FIRST));
+    assertEquals(1, lookups.size());
+    localConf.setDnsReverseLookup(false);
+    assertEquals("10.0.0.2", dnsCache.getHostName(SECOND));
+    assertEquals(1, lookups.size());
+  }
+
+  public void testCacheOff() throws Exception {
+    localConf.setDnsCacheTtl(0);
+    dnsCache.resolve("db.example.com");
+    dnsCache.resolve("db.example.com");
+    assertEquals(2, lookups.size());
+  }
+
+  private static InetAddress address(int a, int b, int c, int d) {
+    try {
+      return InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d });
+    } catch (UnknownHostException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
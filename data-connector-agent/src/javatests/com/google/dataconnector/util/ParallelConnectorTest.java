@@ -0,0 +1,183 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import junit.framework.TestCase;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ParallelConnector}.
+ */
+public class ParallelConnectorTest extends TestCase {
+
+  private static final InetSocketAddress SLOW = endpoint(10, 0, 0, 1);
+  private static final InetSocketAddress FAST = endpoint(10, 0, 0, 2);
+  private static final InetSocketAddress DOWN = endpoint(10, 0, 0, 3);
+
+  private ThreadPoolExecutor threadPoolExecutor;
+  private TimerWheel timerWheel;
+  private LocalConf localConf;
+  private ParallelConnector connector;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    threadPoolExecutor = ClientGuiceModule.newThreadPoolExecutor(false);
+    timerWheel = new TimerWheel(10, 64);
+    localConf = new LocalConf();
+    localConf.setConnectAttemptDelay(50);
+    connector = new ParallelConnector(new DnsCache(localConf, new ClockUtil(), threadPoolExecutor),
+        threadPoolExecutor, timerWheel, localConf, new CircuitBreaker(localConf, new ClockUtil()));
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    threadPoolExecutor.shutdownNow();
+    timerWheel.shutdown();
+    super.tearDown();
+  }
+
+  public void testSlowAddressLosesToNext() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    FakeSocket socket = connector.connect(Arrays.asList(SLOW, FAST), 5000, opener);
+    assertEquals(FAST, socket.connectedTo);
+    assertFalse(socket.isClosed());
+    // The slow attempt is closed, which aborts it, and is not held against its address.
+    assertTrue(opener.slowClosed.await(1, TimeUnit.SECONDS));
+    assertEquals("1 raced, 1 won by a later address, 1 addresses tracked", connector.getStats());
+    // The address that answered is tried first next time.
+    assertEquals(Arrays.asList(FAST, SLOW), connector.order(Arrays.asList(SLOW, FAST)));
+  }
+
+  public void testFailedAddressStartsNextAtOnce() throws Exception {
+    localConf.setConnectAttemptDelay(10000);
+    long start = System.currentTimeMillis();
+    FakeSocket socket = connector.connect(Arrays.asList(DOWN, FAST), 5000, new FakeOpener());
+    assertEquals(FAST, socket.connectedTo);
+    assertTrue(System.currentTimeMillis() - start < 5000);
+    // Failed last time, tried last.
+    assertEquals(Arrays.asList(FAST, DOWN), connector.order(Arrays.asList(DOWN, FAST)));
+  }
+
+  public void testAllAddressesFail() throws Exception {
+    try {
+      connector.connect(Arrays.asList(DOWN, endpoint(10, 0, 0, 4)), 5000, new FakeOpener());
+      fail("Connected to no address.");
+    } catch (ConnectException expected) {
+      // Expected.
+    }
+  }
+
+  public void testRefusesBackendThatKeepsFailing() throws Exception {
+    localConf.setCircuitBreakerFailures(2);
+    FakeOpener opener = new FakeOpener();
+    for (int i = 0; i < 3; i++) {
+      try {
+        connector.connect(Arrays.asList(DOWN), 5000, opener);
+        fail("Connected to a down address.");
+      } catch (ConnectException expected) {
+        // Expected.
+      }
+    }
+    assertEquals("Refused without trying once the circuit opened.", 2, opener.opens.get());
+  }
+
+  public void testTimesOut() throws Exception {
+    FakeOpener opener = new FakeOpener();
+    try {
+      connector.connect(Arrays.asList(SLOW), 100, opener);
+      fail("Connected to a slow address.");
+    } catch (IOException expected) {
+      assertEquals(1, timerWheel.getExpiryCount(ConnectionTimer.CONNECT));
+    }
+  }
+
+  public void testOrderInterleavesFamilies() throws Exception {
+    InetSocketAddress v6a = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 80);
+    InetSocketAddress v6b = new InetSocketAddress(InetAddress.getByName("2001:db8::2"), 80);
+    List<InetSocketAddress> ordered = connector.order(Arrays.asList(v6a, v6b, SLOW, FAST));
+    assertEquals(Arrays.asList(v6a, SLOW, v6b, FAST), ordered);
+  }
+
+  private static InetSocketAddress endpoint(int a, int b, int c, int d) {
+    try {
+      return new InetSocketAddress(
+          InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d }), 80);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * A socket that only remembers where it connected and whether it was closed.
+   */
+  private static class FakeSocket implements Closeable {
+    private final CountDownLatch closed = new CountDownLatch(1);
+    private volatile InetSocketAddress connectedTo;
+
+    @Override
+    public void close() {
+      closed.countDown();
+    }
+
+    boolean isClosed() {
+      return closed.getCount() == 0;
+    }
+  }
+
+  /**
+   * Connects SLOW only once closed, that is never, refuses DOWN and connects anything else.
+   */
+  private static class FakeOpener implements ParallelConnector.Opener<FakeSocket> {
+    private final CountDownLatch slowClosed = new CountDownLatch(1);
+    private final AtomicInteger opens = new AtomicInteger();
+
+    @Override
+    public FakeSocket open() {
+      opens.incrementAndGet();
+      return new FakeSocket();
+    }
+
+    @Override
+    public void connect(FakeSocket socket, InetSocketAddress address) throws IOException {
+      if (address.equals(SLOW)) {
+        try {
+          socket.closed.await();
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted");
+        }
+        slowClosed.countDown();
+        throw new IOException("Socket closed");
+      }
+      if (!address.getAddress().equals(FAST.getAddress())) {
+        throw new ConnectException("Connection refused");
+      }
+      socket.connectedTo = address;
+    }
+  }
+}
@@ -72,6 +72,25 @@ public class ShutdownManagerTest extends TestCase {
     assertEquals(1, stoppable1.getTotalShutdownCalls());
   }
   
+  public void testRemoveStoppable() {
+    // Setup
+    MockStoppable stoppable1 = new MockStoppable();
+    MockStoppable stoppable2 = new MockStoppable();
+
+    ShutdownManager shutdownManager = new ShutdownManager();
+    shutdownManager.addStoppable(stoppable1);
+    shutdownManager.addStoppable(stoppable2, GROUP1);
+    shutdownManager.addStoppable(stoppable2, GROUP2);
+
+    // Execute
+    shutdownManager.removeStoppable(stoppable2);
+    shutdownManager.shutdownAll();
+
+    // Verify
+    assertEquals(1, stoppable1.getTotalShutdownCalls());
+    assertEquals(0, stoppable2.getTotalShutdownCalls());
+  }
+
   /**
    * Mock stoppable implementation that records whether shutdown was actually called.
    * 
@@ -0,0 +1,132 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link TimerWheel} and {@link ConnectionTimer}.
+ */
+public class TimerWheelTest extends TestCase {
+
+  private TimerWheel timerWheel;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    // Eight 5ms buckets, a turn of the wheel is 40ms.
+    timerWheel = new TimerWheel(5, 8);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    timerWheel.shutdown();
+    super.tearDown();
+  }
+
+  public void testFiresInOrderAndNotEarly() throws Exception {
+    final BlockingQueue<Long> fired = new LinkedBlockingQueue<Long>();
+    final long start = timerWheel.now();
+    // Further away than a turn of the wheel, in the same bucket as the 10ms timeout.
+    for (final long delay : new long[] { 90, 10, 50 }) {
+      timerWheel.schedule(delay, new Runnable() {
+        @Override
+        public void run() {
+          assertTrue(timerWheel.now() - start >= delay);
+          fired.add(delay);
+        }
+      });
+    }
+    assertEquals(Long.valueOf(10), fired.poll(1, TimeUnit.SECONDS));
+    assertEquals(Long.valueOf(50), fired.poll(1, TimeUnit.SECONDS));
+    assertEquals(Long.valueOf(90), fired.poll(1, TimeUnit.SECONDS));
+    assertEquals(3, timerWheel.getFiredCount());
+    assertEquals(0, timerWheel.getPendingCount());
+  }
+
+  public void testCancel() throws Exception {
+    final CountDownLatch fired = new CountDownLatch(1);
+    final TimerWheel.Timeout cancelled = timerWheel.schedule(20, new Runnable() {
+      @Override
+      public void run() {
+        fail("Cancelled timeout fired.");
+      }
+    });
+    final TimerWheel.Timeout kept = timerWheel.schedule(40, new Runnable() {
+      @Override
+      public void run() {
+        fired.countDown();
+      }
+    });
+    assertEquals(2, timerWheel.getPendingCount());
+    assertTrue(cancelled.cancel());
+    assertFalse(cancelled.cancel());
+    assertEquals(1, timerWheel.getPendingCount());
+    assertTrue(fired.await(1, TimeUnit.SECONDS));
+    assertTrue(kept.isExpired());
+    assertFalse(kept.cancel());
+    assertEquals(1, timerWheel.getFiredCount());
+  }
+
+  public void testIdleConnectionExpires() throws Exception {
+    final CountDownLatch expired = new CountDownLatch(1);
+    final ConnectionTimer connectionTimer = new ConnectionTimer(timerWheel, 60, 0,
+        new Runnable() {
+          @Override
+          public void run() {
+            expired.countDown();
+          }
+        });
+    // Traffic keeps it open past its idle time.
+    for (int i = 0; i < 6; i++) {
+      Thread.sleep(20);
+      connectionTimer.touch();
+    }
+    assertEquals(1, expired.getCount());
+    assertTrue(expired.await(1, TimeUnit.SECONDS));
+    assertEquals(1, timerWheel.getExpiryCount(ConnectionTimer.IDLE));
+    assertEquals(0, timerWheel.getExpiryCount(ConnectionTimer.LIFETIME));
+    assertEquals(0, timerWheel.getPendingCount());
+  }
+
+  public void testLifetimeAndCancel() throws Exception {
+    final CountDownLatch expired = new CountDownLatch(1);
+    new ConnectionTimer(timerWheel, 0, 30, new Runnable() {
+      @Override
+      public void run() {
+        expired.countDown();
+      }
+    });
+    final ConnectionTimer closed = new ConnectionTimer(timerWheel, 30, 30, new Runnable() {
+      @Override
+      public void run() {
+        fail("Cancelled connection expired.");
+      }
+    });
+    closed.cancel();
+    assertTrue(expired.await(1, TimeUnit.SECONDS));
+    Thread.sleep(50);
+    assertEquals(1, timerWheel.getExpiryCount(ConnectionTimer.LIFETIME));
+    assertEquals(0, timerWheel.getExpiryCount(ConnectionTimer.IDLE));
+    assertEquals("0 pending, 1 fired, 1 lifetime expired", timerWheel.getStats());
+  }
+}
@@ -0,0 +1,70 @@
+/* Copyright 2009 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+package com.google.dataconnector.util;
+
+import com.google.dataconnector.client.testing.FakeLocalConfGenerator;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link VirtualThreads} class and the executor built on it.  Which half runs
+ * depends on the JVM the tests run on.
+ */
+public class VirtualThreadsTest extends TestCase {
+
+  public void testVirtualThreadFactory() throws Exception {
+    if (!VirtualThreads.isSupported()) {
+      try {
+        VirtualThreads.newThreadFactory("test-");
+        fail("Expected UnsupportedOperationException");
+      } catch (UnsupportedOperationException e) {
+        // expected
+      }
+      return;
+    }
+    final CountDownLatch ran = new CountDownLatch(1);
+    Thread thread = VirtualThreads.newThreadFactory("test-").newThread(new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    });
+    assertEquals("test-0", thread.getName());
+    assertEquals(Boolean.TRUE, Thread.class.getMethod("isVirtual").invoke(thread));
+    thread.start();
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+  }
+
+  public void testExecutorFallsBackToPlatformThreads() throws Exception {
+    LocalConf localConf = new FakeLocalConfGenerator().getFakeLocalConf();
+    localConf.setVirtualThreads(true);
+    ThreadPoolExecutor executor = new ClientGuiceModule().getThreadPoolExecutor(localConf);
+    try {
+      if (VirtualThreads.isSupported()) {
+        assertEquals(Integer.MAX_VALUE, executor.getMaximumPoolSize());
+      } else {
+        assertTrue(executor.getMaximumPoolSize() < Integer.MAX_VALUE);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}